@@ -0,0 +1,33 @@
+package arch.sm213.machine.student;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Run the simulator benchmarks with the GC profiler, which adds the allocation rate (gc.alloc.rate.norm,
+ * bytes per operation) of every benchmark to its score.
+ *
+ * The benchmarks live in the SM213Bench module (bench/SM213Bench.iml), which depends on the SM213 module and
+ * on JMH; annotation processing must be enabled for the module so that JMH generates its harness classes.
+ * Arguments are ordinary JMH options, e.g. a benchmark regex and "-p mode=turbo,translate".  Compare memory
+ * backends with the backend parameter of MemoryBenchmark and execution modes with the mode parameter of
+ * ExecutionBenchmark.
+ *
+ * Usage: Benchmarks [jmh options] [benchmark regex]
+ */
+
+public class Benchmarks {
+  public static void main (String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions    command = new CommandLineOptions (args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent (command).addProfiler (GCProfiler.class);
+    if (command.getIncludes().isEmpty())
+      options.include (Benchmarks.class.getPackage().getName() + ".*Benchmark");
+    new Runner (options.build()).run();
+  }
+}
@@ -0,0 +1,84 @@
+package arch.sm213.machine.student;
+
+import machine.Register;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Pre-resolved branch targets from a ControlFlowGraph against the target arithmetic they replace.
+ *
+ * With targets "graph" the CPU has a graph of the program (CPU.setControlFlowGraph); with "inline" it has none
+ * and adds the sign-extended displacement to pc.  resolve scores one branch target, looked up or computed, over
+ * SITES beq instructions with varied displacements; cycle scores one clocked instruction of the branch mix of
+ * ExecutionBenchmark, the path where the CPU consults the graph.
+ */
+
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ControlFlowGraphBenchmark {
+  static final int SITES      = 1024;
+  static final int SITE_START = 0x1000;
+
+  @Param ({"inline", "graph"})
+  public String targets;
+
+  private CPU              cpu;
+  private ControlFlowGraph sites;
+  private boolean          lookup;
+  private final byte[]     displacements = new byte [SITES];
+
+  @Setup public void setup () throws Exception {
+    MainMemory memory = new MainMemory (1 << 16);
+    memory.set (ExecutionBenchmark.ENTRY, ExecutionBenchmark.BRANCH);
+    Random random = new Random (213);
+    for (int i = 0; i < SITES; i++) {
+      displacements [i] = (byte) (random.nextInt (128) - 64);
+      memory.set (SITE_START + 2 * i, new byte[] {(byte) 0x90, displacements [i]});
+    }
+    memory.set (SITE_START + 2 * SITES, new byte[] {0x00, 0x00});
+    cpu    = new CPU (CPU.class.getName(), memory);
+    sites  = new ControlFlowGraph (memory, Collections.singletonList (SITE_START), Collections.emptyMap());
+    lookup = targets.equals ("graph");
+    if (lookup)
+      cpu.setControlFlowGraph (new ControlFlowGraph (memory, Collections.singletonList (ExecutionBenchmark.ENTRY), Collections.emptyMap()));
+    cpu.resetMachineToPC (ExecutionBenchmark.ENTRY);
+  }
+
+  @Benchmark @OperationsPerInvocation (SITES)
+  public int resolve () {
+    int sum = 0;
+    for (int i = 0; i < SITES; i++) {
+      int address = SITE_START + 2 * i;
+      sum += lookup ? (int) sites.target (address) : address + 2 + 2 * displacements [i];
+    }
+    return sum;
+  }
+
+  @Benchmark @OperationsPerInvocation (ExecutionBenchmark.STEPS)
+  public void cycle () throws Exception {
+    for (int i = 0; i < ExecutionBenchmark.STEPS; i++) {
+      cpu.fetch();
+      cpu.execute();
+      cpu.getRegisterFile().tickClock (Register.ClockTransition.NORMAL);
+    }
+  }
+}
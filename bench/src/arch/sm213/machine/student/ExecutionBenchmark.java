@@ -0,0 +1,107 @@
+package arch.sm213.machine.student;
+
+import machine.Register;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost per instruction of each execution mode over three instruction mixes.
+ *
+ * Each mix is an endless loop, so every invocation executes exactly STEPS instructions and the score is
+ * nanoseconds per instruction.  Mode "cycle" is the clocked path the GUI uses (fetch, execute and a clock
+ * tick per instruction); "turbo", "translate" and "fuse" are CPU.runTurbo with, respectively, neither,
+ * block translation, and block translation plus superinstruction fusion.  With profiler "on" the CPU counts
+ * into a GuestProfiler, so the difference from "off" is the cost of profiling.
+ */
+
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ExecutionBenchmark {
+  static final int STEPS = 16384;
+  static final int ENTRY = 0x100;
+
+  /**
+   * Machine code of each mix, loaded at ENTRY.
+   */
+  static final byte[] ALU = {
+    0x00, 0x00, 0x00, 0x00, 0x00, 0x01,   // 100: ld   $1, r0
+    0x61, 0x01,                           // 106: add  r0, r1
+    0x63, 0x02,                           //      inc  r2
+    0x62, 0x12,                           //      and  r1, r2
+    0x67, 0x03,                           //      not  r3
+    0x71, 0x02,                           //      shl  $2, r1
+    0x71, (byte) 0xfe,                    //      shr  $2, r1
+    0x60, 0x13,                           //      mov  r1, r3
+    (byte) 0x80, (byte) 0xf8              //      br   106
+  };
+
+  static final byte[] MEMORY = {
+    0x01, 0x00, 0x00, 0x00, 0x10, 0x00,   // 100: ld   $0x1000, r1
+    0x00, 0x00, 0x00, 0x00, 0x00, 0x00,   //      ld   $0, r0
+    0x10, 0x12,                           // 10c: ld   0(r1), r2
+    0x63, 0x02,                           //      inc  r2
+    0x32, 0x01,                           //      st   r2, 0(r1)
+    0x21, 0x03,                           //      ld   (r1, r0, 4), r3
+    0x43, 0x10,                           //      st   r3, (r1, r0, 4)
+    0x11, 0x13,                           //      ld   4(r1), r3
+    (byte) 0x80, (byte) 0xf9              //      br   10c
+  };
+
+  static final byte[] BRANCH = {
+    0x00, 0x00, 0x00, 0x00, 0x00, 0x04,   // 100: ld   $4, r0
+    0x65, 0x00,                           // 106: dec  r0
+    (byte) 0x90, 0x01,                    //      beq  r0, 10c
+    (byte) 0x80, (byte) 0xfd,             //      br   106
+    (byte) 0xb0, 0x00, 0x00, 0x00, 0x01, 0x00 // 10c: j  100
+  };
+
+  @Param ({"alu", "memory", "branch"})
+  public String mix;
+
+  @Param ({"cycle", "turbo", "translate", "fuse"})
+  public String mode;
+
+  @Param ({"off", "on"})
+  public String profiler;
+
+  private CPU cpu;
+
+  @Setup public void setup () throws Exception {
+    MainMemory memory = new MainMemory (1 << 16);
+    memory.set (ENTRY, mix.equals ("alu") ? ALU : mix.equals ("memory") ? MEMORY : BRANCH);
+    cpu = new CPU (CPU.class.getName(), memory);
+    cpu.setBlockTranslationEnabled (mode.equals ("translate") || mode.equals ("fuse"));
+    cpu.setFusionEnabled           (mode.equals ("fuse"));
+    cpu.setProfiler                (profiler.equals ("on") ? new GuestProfiler (1 << 16) : null);
+    cpu.resetMachineToPC (ENTRY);
+  }
+
+  @Benchmark @OperationsPerInvocation (STEPS)
+  public void run () throws Exception {
+    if (mode.equals ("cycle"))
+      for (int i = 0; i < STEPS; i++) {
+        cpu.fetch();
+        cpu.execute();
+        cpu.getRegisterFile().tickClock (Register.ClockTransition.NORMAL);
+      }
+    else
+      cpu.runTurbo (STEPS);
+  }
+}
@@ -0,0 +1,105 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.UnsignedByte;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Byte and word access paths of each main-memory backend.
+ *
+ * get and set are the protected byte-array primitives; read is the public path that CPU.fetch uses, which
+ * wraps each byte in an UnsignedByte; readInteger and writeInteger are the word fast paths used by loads and
+ * stores.  Addresses walk through memory a word at a time so that every access is valid and aligned.
+ */
+
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class MemoryBenchmark {
+  private static final int SIZE = 1 << 16;
+
+  /**
+   * The protected byte-array primitives of a backend, bound with method references.
+   */
+  interface Get {
+    byte[] get (int address, int length) throws AbstractMainMemory.InvalidAddressException;
+  }
+
+  interface Set {
+    void set (int address, byte[] value) throws AbstractMainMemory.InvalidAddressException;
+  }
+
+  @Param ({"heap", "mapped", "paged", "shared"})
+  public String backend;
+
+  private AbstractMainMemory memory;
+  private Get                getter;
+  private Set                setter;
+  private final byte[]       word = {0x12, 0x34, 0x56, 0x78};
+  private int                address;
+
+  @Setup public void setup () {
+    switch (backend) {
+      case "heap":   { MainMemory       m = new MainMemory       (SIZE); bind (m, m::get, m::set); break; }
+      case "mapped": { MappedMainMemory m = new MappedMainMemory (SIZE); bind (m, m::get, m::set); break; }
+      case "paged":  { PagedMainMemory  m = new PagedMainMemory  (SIZE); bind (m, m::get, m::set); break; }
+      case "shared": { SharedMainMemory m = new SharedMainMemory (SIZE); bind (m, m::get, m::set); break; }
+      default:       throw new IllegalArgumentException (backend);
+    }
+  }
+
+  private void bind (AbstractMainMemory m, Get g, Set s) {
+    memory = m;
+    getter = g;
+    setter = s;
+  }
+
+  private int nextAddress () {
+    address = (address + 4) & (SIZE - 4);
+    return address;
+  }
+
+  @Benchmark public byte[] get () throws AbstractMainMemory.InvalidAddressException {
+    return getter.get (nextAddress(), 4);
+  }
+
+  @Benchmark public void set () throws AbstractMainMemory.InvalidAddressException {
+    setter.set (nextAddress(), word);
+  }
+
+  @Benchmark public UnsignedByte[] read () throws AbstractMainMemory.InvalidAddressException {
+    return memory.read (nextAddress(), 2);
+  }
+
+  @Benchmark public int readInteger () throws AbstractMainMemory.InvalidAddressException {
+    return memory.readInteger (nextAddress());
+  }
+
+  @Benchmark public void writeInteger () throws AbstractMainMemory.InvalidAddressException {
+    memory.writeInteger (nextAddress(), address);
+  }
+
+  @Benchmark public int bytesToInteger () {
+    return memory.bytesToInteger (word [0], word [1], word [2], word [3]);
+  }
+
+  @Benchmark public byte[] integerToBytes () {
+    return memory.integerToBytes (nextAddress());
+  }
+}
@@ -0,0 +1,65 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import machine.Register;
+import machine.RegisterSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of VirtualMemoryCPU.translateAddress as the working set grows past the reach of the TLB.
+ *
+ * The page table maps every page identically; addresses step one page at a time through the first pages
+ * pages and wrap, so a working set of up to 64 pages (the default 16 x 4 TLB) hits after warm-up and a larger
+ * one misses and walks the page table on every access.
+ */
+
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class TranslationBenchmark {
+  private static final int PAGE_TABLE = 0x80000;
+  private static final int MAPPED     = 0x4000;
+
+  @Param ({"8", "64", "1024"})
+  public int pages;
+
+  private VirtualMemoryCPU cpu;
+  private int              va;
+
+  @Setup public void setup () throws AbstractMainMemory.InvalidAddressException {
+    MainMemory memory = new MainMemory (1 << 20);
+    for (int vpn = 0; vpn < MAPPED; vpn++)
+      memory.writeInteger (PAGE_TABLE + vpn * VirtualMemoryCPU.PTE_SIZE, VirtualMemoryCPU.PTE_VALID_BIT_MASK | vpn);
+    cpu = new VirtualMemoryCPU (VirtualMemoryCPU.class.getName(), memory);
+    for (RegisterSet set : cpu.getProcessorState()) {
+      Register ptbr = set.getRegister ("PTBR");
+      if (ptbr != null) {
+        ptbr.set (PAGE_TABLE);
+        ptbr.tickClock (Register.ClockTransition.NORMAL);
+      }
+    }
+  }
+
+  @Benchmark public int translateAddress () throws AbstractMainMemory.InvalidAddressException {
+    va += VirtualMemoryCPU.PAGE_SIZE + 4;
+    if (va >= pages * VirtualMemoryCPU.PAGE_SIZE)
+      va -= pages * VirtualMemoryCPU.PAGE_SIZE;
+    return cpu.translateAddress (va);
+  }
+}
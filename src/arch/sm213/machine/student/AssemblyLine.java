@@ -0,0 +1,410 @@
+package arch.sm213.machine.student;
+
+import isa.AbstractAssembler.AssemblyException;
+
+
+/**
+ * One line of SM213 assembly, parsed once and encoded on demand.
+ *
+ * Accepts the syntax of the standard assembler (arch.sm213.isa.Assembler) and produces the same bytes: an optional
+ * label declaration, then an instruction, a .pos/.address directive or a .long/.data directive, then an optional
+ * # comment.  Fields that do not fit are truncated, as the standard assembler does; misaligned offsets and index
+ * scales other than 4 are errors.
+ *
+ * Parsing depends only on the text, so it can be done once per edit or in parallel.  The encoding of most lines
+ * depends only on the text too; that of a line with a label operand also depends on the label's address, and that
+ * of a branch (br, beq, bgt) on the line's own address.  Layout (addresses and label values) is left to the caller.
+ */
+
+final class AssemblyLine {
+  static final int EMPTY       = 0;
+  static final int INSTRUCTION = 1;
+  static final int DATA        = 2;
+  static final int POSITION    = 3;
+
+  final String  text;
+  final String  label;       // declared by this line, or null
+  final int     kind;
+  final int     length;      // bytes emitted
+  final int     position;    // new pc of a POSITION line
+  final String  reference;   // label operand, or null
+  final boolean pcRelative;  // branch whose encoding depends on the line's address
+
+  private final int  opCode;
+  private final int  byte0;  // first instruction byte, complete except for pc-relative or label fields
+  private final int  byte1;
+  private final int  value;  // 32-bit immediate, target or datum when there is no reference
+  private final int  count;  // number of .long copies
+
+  // layout and encoding, maintained by the assembler that owns the line
+  int     address;         // pc before the line; for a line that emits nothing, address of the next byte emitted
+  byte[]  encoding;        // null until encoded, or while reference is undefined
+  boolean attached;        // the label of a line that emits nothing labels the next byte emitted
+  boolean unclaimed;       // no label at or after this line claims the next byte emitted
+
+  private AssemblyLine (String text, String label, int kind, int length, int position, String reference, int opCode, int byte0, int byte1, int value, int count) {
+    this.text       = text;
+    this.label      = label;
+    this.kind       = kind;
+    this.length     = length;
+    this.position   = position;
+    this.reference  = reference;
+    this.opCode     = opCode;
+    this.byte0      = byte0;
+    this.byte1      = byte1;
+    this.value      = value;
+    this.count      = count;
+    this.pcRelative = kind == INSTRUCTION && opCode >= 0x8 && opCode <= 0xa;
+  }
+
+  /**
+   * @return true iff the line emits bytes.
+   */
+  boolean emits () {
+    return kind == INSTRUCTION || kind == DATA;
+  }
+
+  /**
+   * Encode the line.
+   * @param address        address of the line's first byte.
+   * @param referenceValue address of the label operand, ignored if there is none.
+   * @param out            destination.
+   * @param offset         index in out of the first byte.
+   */
+  void encode (int address, int referenceValue, byte[] out, int offset) {
+    int v = reference != null ? referenceValue : value;
+    if (kind == DATA) {
+      for (int i = 0; i < count; i++)
+        putInt (out, offset + 4 * i, v);
+      return;
+    }
+    int b0 = byte0;
+    int b1 = byte1;
+    switch (opCode) {
+      case 0x6: // gpc $o, rd: o / 2 in op1
+        if (reference != null)
+          b1 |= ((referenceValue / 2) & 0xf) << 4;
+        break;
+      case 0x8: case 0x9: case 0xa:
+        b1 = ((v - (address + 2)) / 2) & 0xff;
+        break;
+    }
+    out [offset]     = (byte) b0;
+    out [offset + 1] = (byte) b1;
+    if (length == 6)
+      putInt (out, offset + 2, v);
+  }
+
+  private static void putInt (byte[] out, int offset, int v) {
+    out [offset]     = (byte) (v >> 24);
+    out [offset + 1] = (byte) (v >> 16);
+    out [offset + 2] = (byte) (v >> 8);
+    out [offset + 3] = (byte) v;
+  }
+
+  /**
+   * Parse a line.
+   * @param text the line, without its line terminator.
+   * @return the parsed line.
+   * @throws AssemblyException if the line is not valid SM213 assembly.
+   */
+  static AssemblyLine parse (String text) {
+    return new Parser (text).line();
+  }
+
+  /**
+   * Recursive-descent parser over the tokens of one line.
+   */
+  private static final class Parser {
+    private final String text;
+    private       int    at;
+    private       String token;     // current token: identifier, number, punctuation or null at end of line
+    private       int    tokenAt;
+
+    Parser (String text) {
+      this.text = text;
+      next();
+    }
+
+    private void next () {
+      while (at < text.length() && Character.isWhitespace (text.charAt (at)))
+        at++;
+      tokenAt = at;
+      if (at >= text.length() || text.charAt (at) == '#') {
+        token = null;
+        return;
+      }
+      char c = text.charAt (at);
+      if (Character.isLetter (c) || c == '_' || c == '.') {
+        do at++; while (at < text.length() && (Character.isLetterOrDigit (text.charAt (at)) || text.charAt (at) == '_'));
+      } else if (Character.isDigit (c) || (c == '-' && at + 1 < text.length() && Character.isDigit (text.charAt (at + 1)))) {
+        do at++; while (at < text.length() && Character.isLetterOrDigit (text.charAt (at)));
+      } else
+        at++;
+      token = text.substring (tokenAt, at);
+    }
+
+    /**
+     * @return the first character after the current token that is not white space, or 0 at end of line.
+     */
+    private char nextChar () {
+      int i = at;
+      while (i < text.length() && Character.isWhitespace (text.charAt (i)))
+        i++;
+      return i < text.length() ? text.charAt (i) : 0;
+    }
+
+    private AssemblyException error () {
+      return new AssemblyException (String.format ("column %d: unexpected %s", tokenAt, token == null ? "end of line" : "'" + token + "'"));
+    }
+
+    private void expect (String t) {
+      if (!t.equals (token))
+        throw error();
+      next();
+    }
+
+    private boolean accept (String t) {
+      if (!t.equals (token))
+        return false;
+      next();
+      return true;
+    }
+
+    private static boolean isIdentifier (String t) {
+      return t != null && (Character.isLetter (t.charAt (0)) || t.charAt (0) == '_') && !isRegister (t);
+    }
+
+    private static boolean isRegister (String t) {
+      return t != null && t.length() == 2 && t.charAt (0) == 'r' && t.charAt (1) >= '0' && t.charAt (1) <= '7';
+    }
+
+    private static boolean isNumber (String t) {
+      return t != null && (Character.isDigit (t.charAt (0)) || t.charAt (0) == '-');
+    }
+
+    private int register () {
+      if (!isRegister (token))
+        throw error();
+      int r = token.charAt (1) - '0';
+      next();
+      return r;
+    }
+
+    private int number (boolean signed, boolean hexOnly) {
+      if (!isNumber (token) || (!signed && token.charAt (0) == '-'))
+        throw error();
+      String  t   = token;
+      boolean hex = t.length() > 2 && t.charAt (0) == '0' && (t.charAt (1) == 'x' || t.charAt (1) == 'X');
+      if (hexOnly && !hex)
+        throw error();
+      long v;
+      try {
+        v = hex ? Long.parseLong (t.substring (2), 16) : Long.parseLong (t);
+      } catch (NumberFormatException e) {
+        throw error();
+      }
+      next();
+      return (int) v;
+    }
+
+    private String identifier () {
+      if (!isIdentifier (token))
+        throw error();
+      String t = token;
+      next();
+      return t;
+    }
+
+    private static int scale (int offset, int scale) {
+      if (offset % scale != 0)
+        throw new AssemblyException ("Offset must be a multiple of " + scale + ".");
+      return (offset / scale) & 0xf;
+    }
+
+    AssemblyLine line () {
+      String label = null;
+      if (isIdentifier (token) && nextChar() == ':') {
+        label = identifier();
+        expect (":");
+      }
+      AssemblyLine line;
+      if (token == null)
+        line = new AssemblyLine (text, label, EMPTY, 0, 0, null, 0, 0, 0, 0, 0);
+      else if (token.equals (".pos") || token.equals (".address")) {
+        next();
+        line = new AssemblyLine (text, label, POSITION, 0, number (false, true), null, 0, 0, 0, 0, 0);
+      } else if (token.equals (".long") || token.equals (".data")) {
+        next();
+        String reference = null;
+        int    value     = 0;
+        if (isIdentifier (token))
+          reference = identifier();
+        else
+          value = number (true, false);
+        int count = 1;
+        if (accept (","))
+          count = Math.max (1, number (false, false));
+        line = new AssemblyLine (text, label, DATA, 4 * count, 0, reference, 0, 0, 0, value, count);
+      } else
+        line = instruction (label);
+      if (token != null)
+        throw error();
+      return line;
+    }
+
+    private AssemblyLine instruction (String label) {
+      String mnemonic = token;
+      next();
+      switch (mnemonic) {
+        case "ld":
+          if (accept ("$"))
+            return immediate (label, 0x0, true);
+          if (accept ("(")) {
+            int s = register();
+            if (accept (",")) {
+              int i = index();
+              expect (",");
+              return op (label, 0x20 | s, i << 4 | register());
+            }
+            expect (")");
+            expect (",");
+            return op (label, 0x10, s << 4 | register());
+          } else {
+            int o = scale (number (false, false), 4);
+            expect ("(");
+            int s = register();
+            expect (")");
+            expect (",");
+            return op (label, 0x10 | o, s << 4 | register());
+          }
+        case "st": {
+          int s = register();
+          expect (",");
+          boolean hasOffset = !"(".equals (token);
+          int     o         = hasOffset ? scale (number (false, false), 4) : 0;
+          expect ("(");
+          int d = register();
+          if (!hasOffset && accept (",")) {
+            int i = index();
+            return op (label, 0x40 | s, d << 4 | i);
+          }
+          expect (")");
+          return op (label, 0x30 | s, o << 4 | d);
+        }
+        case "mov": return twoRegisters (label, 0x60);
+        case "add": return twoRegisters (label, 0x61);
+        case "and": return twoRegisters (label, 0x62);
+        case "inc":  return op (label, 0x63, register());
+        case "inca": return op (label, 0x64, register());
+        case "dec":  return op (label, 0x65, register());
+        case "deca": return op (label, 0x66, register());
+        case "not":  return op (label, 0x67, register());
+        case "gpc": {
+          expect ("$");
+          String reference = isIdentifier (token) ? identifier() : null;
+          int    o         = reference == null ? (number (true, false) / 2) & 0xf : 0;
+          expect (",");
+          return new AssemblyLine (text, label, INSTRUCTION, 2, 0, reference, 0x6, 0x6f, o << 4 | register(), 0, 0);
+        }
+        case "shl":
+        case "shr": {
+          expect ("$");
+          int n = number (true, false);
+          expect (",");
+          int d = register();
+          return op (label, 0x70 | d, (mnemonic.equals ("shl") ? n : -n) & 0xff);
+        }
+        case "br":
+          return branch (label, 0x80);
+        case "beq":
+        case "bgt": {
+          int r = register();
+          expect (",");
+          return branch (label, (mnemonic.equals ("beq") ? 0x90 : 0xa0) | r);
+        }
+        case "j":
+          if (accept ("*")) {
+            if (accept ("(")) {
+              int r = register();
+              if (accept (",")) {
+                int i = index();
+                return op (label, 0xe0 | r, i << 4);
+              }
+              expect (")");
+              return op (label, 0xd0 | r, 0);
+            }
+            int o = number (false, false);
+            if (o % 4 != 0)
+              throw new AssemblyException ("Offset must be a multiple of 4.");
+            expect ("(");
+            int r = register();
+            expect (")");
+            return op (label, 0xd0 | r, (o / 4) & 0xff);
+          }
+          if ("(".equals (token) || (isNumber (token) && nextChar() == '(')) {
+            int o = "(".equals (token) ? 0 : number (false, false);
+            if (o % 2 != 0)
+              throw new AssemblyException ("Offset must be a multiple of 2.");
+            expect ("(");
+            int r = register();
+            expect (")");
+            return op (label, 0xc0 | r, (o / 2) & 0xff);
+          }
+          return immediate (label, 0xb, false);
+        case "halt": return op (label, 0xf0, 0x00);
+        case "nop":  return op (label, 0xff, 0x00);
+        case "sys":
+          expect ("$");
+          return op (label, 0xf1, number (false, false) & 0xff);
+        default:
+          tokenAt = at - mnemonic.length();
+          token   = mnemonic;
+          throw error();
+      }
+    }
+
+    /**
+     * Parse the rest of an index operand, "ri, 4)".
+     * @return ri.
+     */
+    private int index () {
+      int i = register();
+      expect (",");
+      if (number (false, false) != 4)
+        throw new AssemblyException ("In index, scale must be 4.");
+      expect (")");
+      return i;
+    }
+
+    private AssemblyLine op (String label, int b0, int b1) {
+      return new AssemblyLine (text, label, INSTRUCTION, 2, 0, null, b0 >>> 4, b0, b1, 0, 0);
+    }
+
+    private AssemblyLine twoRegisters (String label, int b0) {
+      int s = register();
+      expect (",");
+      return op (label, b0, s << 4 | register());
+    }
+
+    /**
+     * Parse the 32-bit operand of ld $ (followed by ", rd") or j, a number or a label.
+     */
+    private AssemblyLine immediate (String label, int opCode, boolean load) {
+      String reference = isIdentifier (token) ? identifier() : null;
+      int    value     = reference == null ? number (load, false) : 0;
+      int    d         = 0;
+      if (load) {
+        expect (",");
+        d = register();
+      }
+      return new AssemblyLine (text, label, INSTRUCTION, 6, 0, reference, opCode, opCode << 4 | d, 0, value, 0);
+    }
+
+    private AssemblyLine branch (String label, int b0) {
+      String reference = isIdentifier (token) ? identifier() : null;
+      int    target    = reference == null ? number (false, false) : 0;
+      return new AssemblyLine (text, label, INSTRUCTION, 2, 0, reference, b0 >>> 4, b0, 0, target, 0);
+    }
+  }
+}
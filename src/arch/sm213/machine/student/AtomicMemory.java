@@ -0,0 +1,40 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+
+/**
+ * A main memory that can be shared by several CPUs and so provides atomic read-modify-write operations
+ * on aligned words.  CPU uses it for the atomic instructions (opcode 5).
+ */
+
+public interface AtomicMemory {
+
+  /**
+   * Atomically replace the word at address with value if it currently equals expected.
+   * @param address  physical address of the word; must be aligned to 4.
+   * @param expected value the word must hold for the store to happen.
+   * @param value    value to store.
+   * @return the word's previous value (equal to expected iff the store happened).
+   * @throws AbstractMainMemory.InvalidAddressException if address is not aligned or out of range.
+   */
+  int compareAndSwap (int address, int expected, int value) throws AbstractMainMemory.InvalidAddressException;
+
+  /**
+   * Atomically add delta to the word at address.
+   * @param address physical address of the word; must be aligned to 4.
+   * @param delta   value to add.
+   * @return the word's previous value.
+   * @throws AbstractMainMemory.InvalidAddressException if address is not aligned or out of range.
+   */
+  int getAndAdd (int address, int delta) throws AbstractMainMemory.InvalidAddressException;
+
+  /**
+   * Atomically replace the word at address with value.
+   * @param address physical address of the word; must be aligned to 4.
+   * @param value   value to store.
+   * @return the word's previous value.
+   * @throws AbstractMainMemory.InvalidAddressException if address is not aligned or out of range.
+   */
+  int getAndSet (int address, int value) throws AbstractMainMemory.InvalidAddressException;
+}
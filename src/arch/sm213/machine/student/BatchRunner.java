@@ -0,0 +1,374 @@
+package arch.sm213.machine.student;
+
+import arch.sm213.isa.ISA;
+import isa.Region;
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import machine.Register;
+import machine.RegisterSet;
+import machine.SystemCallInterface;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Headless engine that assembles and runs many independent SM213 programs concurrently.
+ *
+ * Each job gets its own MainMemory and CPU, loads its program with the standard assembler and runs
+ * it from the first instruction region in turbo mode (with block translation) until it halts, faults,
+ * exhausts its instruction budget or times out.  Jobs run on a work-stealing ForkJoinPool, so a
+ * single JVM keeps every core busy and pays its startup cost once.  Results are reported in input
+ * order, as JSON lines or CSV.
+ *
+ * Usage: BatchRunner [-j threads] [-b instructions] [-t millis] [-m bytes] [-f json|csv] [-o file] [-p profiledir] [-T tracedir] program... | @listfile
+ */
+
+public class BatchRunner implements Closeable {
+  public static final int  DEFAULT_MEMORY_SIZE = 1 << 20;
+  public static final long DEFAULT_BUDGET      = 1_000_000_000L;
+  public static final long DEFAULT_TIMEOUT     = 10_000;
+
+  /**
+   * How a job ended.
+   */
+  public enum Status { HALTED, BUDGET_EXHAUSTED, TIMEOUT, INVALID_INSTRUCTION, INVALID_ADDRESS, LOAD_ERROR, ERROR }
+
+  /**
+   * Outcome of one job.
+   */
+  public static final class Result {
+    public final String program;
+    public final Status status;
+    public final String message;
+    public final long   instructions;
+    public final long   elapsedNanos;
+    public final int    pc;
+    public final int[]  registers;
+    public final String memoryDigest;
+
+    Result (String program, Status status, String message, long instructions, long elapsedNanos, int pc, int[] registers, String memoryDigest) {
+      this.program      = program;
+      this.status       = status;
+      this.message      = message;
+      this.instructions = instructions;
+      this.elapsedNanos = elapsedNanos;
+      this.pc           = pc;
+      this.registers    = registers;
+      this.memoryDigest = memoryDigest;
+    }
+
+    /**
+     * @return the result as a single-line JSON object.
+     */
+    public String toJson () {
+      StringBuilder sb = new StringBuilder();
+      sb.append ("{\"program\":").append (jsonString (program))
+        .append (",\"status\":\"").append (status).append ('"')
+        .append (",\"message\":").append (message == null ? "null" : jsonString (message))
+        .append (",\"instructions\":").append (instructions)
+        .append (",\"millis\":").append (elapsedNanos / 1_000_000)
+        .append (",\"pc\":").append (pc)
+        .append (",\"registers\":[");
+      for (int i = 0; i < registers.length; i++)
+        sb.append (i == 0 ? "" : ",").append (registers [i]);
+      return sb.append ("],\"memorySha256\":").append (memoryDigest == null ? "null" : '"' + memoryDigest + '"').append ('}').toString();
+    }
+
+    /**
+     * @return the result as a CSV record matching csvHeader.
+     */
+    public String toCsv () {
+      StringBuilder sb = new StringBuilder();
+      sb.append (csvString (program)).append (',').append (status).append (',').append (message == null ? "" : csvString (message))
+        .append (',').append (instructions).append (',').append (elapsedNanos / 1_000_000).append (',').append (pc);
+      for (int value : registers)
+        sb.append (',').append (value);
+      return sb.append (',').append (memoryDigest == null ? "" : memoryDigest).toString();
+    }
+
+    public static String csvHeader () {
+      return "program,status,message,instructions,millis,pc,r0,r1,r2,r3,r4,r5,r6,r7,memorySha256";
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private final int          memorySize;
+  private final long         budget;
+  private final long         timeoutMillis;
+  private       File         profileDirectory;
+  private       File         traceDirectory;
+
+  /**
+   * Create a runner.
+   *
+   * @param parallelism   number of jobs run at once.
+   * @param memorySize    size of each job's memory in bytes.
+   * @param budget        maximum number of instructions a job may execute.
+   * @param timeoutMillis maximum wall-clock time a job may run, or 0 for no limit.
+   */
+  public BatchRunner (int parallelism, int memorySize, long budget, long timeoutMillis) {
+    this.pool          = new ForkJoinPool (parallelism);
+    this.memorySize    = memorySize;
+    this.budget        = budget;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Profile every job and, when it stops, write its folded profile to directory as program.folded
+   * (collapsed stacks) and program.profile.csv, where program is the program's file name.
+   *
+   * @param directory output directory, or null to disable profiling.
+   */
+  public void setProfileDirectory (File directory) {
+    profileDirectory = directory;
+  }
+
+  /**
+   * Trace every job to directory as program.trace, where program is the program's file name.  Traced jobs run
+   * without block translation; see CPU.setTraceRecorder.
+   *
+   * @param directory output directory, or null to disable tracing.
+   */
+  public void setTraceDirectory (File directory) {
+    traceDirectory = directory;
+  }
+
+  private String writeProfile (GuestProfiler profiler, isa.Memory loaded, MainMemory memory, File program, String message) {
+    List<GuestProfiler.Entry> folded = profiler.fold (loaded, memory);
+    try (PrintWriter folds = new PrintWriter (new File (profileDirectory, program.getName() + ".folded"), "UTF-8");
+         PrintWriter csv   = new PrintWriter (new File (profileDirectory, program.getName() + ".profile.csv"), "UTF-8")) {
+      GuestProfiler.writeCollapsed (folded, folds);
+      GuestProfiler.writeCsv       (folded, csv);
+      csv.println();
+      profiler.writeOpCodes (csv);
+      return message;
+    } catch (IOException e) {
+      return message == null ? "profile not written: " + e.getMessage() : message;
+    }
+  }
+
+  /**
+   * Run programs concurrently, reporting each result in input order as soon as it and every earlier one are done.
+   * A job that fails unexpectedly is reported with status ERROR and does not stop the others.
+   *
+   * @param programs assembly or machine-code files.
+   * @param sink     receives each result.
+   * @return every result, in input order.
+   */
+  public List<Result> runAll (List<File> programs, Consumer<Result> sink) {
+    List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+    for (File program : programs)
+      tasks.add (pool.submit (() -> runGuarded (program)));
+    List<Result> results = new ArrayList<>();
+    for (ForkJoinTask<Result> task : tasks) {
+      Result result = task.join();
+      sink.accept (result);
+      results.add (result);
+    }
+    return results;
+  }
+
+  private Result runGuarded (File program) {
+    long start = System.nanoTime();
+    try {
+      return run (program);
+    } catch (RuntimeException e) {
+      return new Result (program.getPath(), Status.ERROR, String.valueOf (e), 0, System.nanoTime() - start, 0, new int [8], null);
+    }
+  }
+
+  /**
+   * Load and run one program in the calling thread.
+   *
+   * @param program assembly or machine-code file.
+   * @return the outcome.
+   */
+  public Result run (File program) {
+    long       start  = System.nanoTime();
+    MainMemory memory = new MainMemory (memorySize);
+    CPU        cpu    = new CPU (CPU.class.getName(), memory);
+    isa.Memory loaded;
+    try {
+      loaded = load (cpu, memory, program);
+    } catch (Exception e) {
+      return new Result (program.getPath(), Status.LOAD_ERROR, String.valueOf (e.getMessage()), 0, System.nanoTime() - start, 0, new int [8], null);
+    }
+    memory.setNotificationsEnabled (false);
+    cpu.setNotificationsEnabled (false);
+    cpu.setTurboMode (true);
+    cpu.setBlockTranslationEnabled (true);
+    if (profileDirectory != null)
+      cpu.setProfiler (new GuestProfiler (memorySize));
+    TraceRecorder trace = null;
+    if (traceDirectory != null)
+      try {
+        trace = new TraceRecorder (new File (traceDirectory, program.getName() + ".trace"), TraceRecorder.DEFAULT_CHUNK_SIZE, TraceRecorder.DEFAULT_CHUNK_COUNT);
+        cpu.setTraceRecorder (trace);
+      } catch (IOException e) {
+        return new Result (program.getPath(), Status.LOAD_ERROR, "trace not created: " + e.getMessage(), 0, System.nanoTime() - start, 0, new int [8], null);
+      }
+    cpu.resetMachineToPC (entryPoint (loaded));
+    cpu.setTurboTimeout (TimeUnit.MILLISECONDS.toNanos (timeoutMillis));
+    Status status;
+    String message      = null;
+    long   instructions = 0;
+    try {
+      instructions = cpu.runTurbo (budget);
+      status       = instructions >= budget ? Status.BUDGET_EXHAUSTED : Status.TIMEOUT;
+    } catch (AbstractCPU.MachineHaltException e) {
+      status = Status.HALTED;
+    } catch (AbstractCPU.InvalidInstructionException e) {
+      status  = Status.INVALID_INSTRUCTION;
+      message = e.getMessage();
+    } catch (AbstractMainMemory.InvalidAddressException e) {
+      status  = Status.INVALID_ADDRESS;
+      message = e.getMessage();
+    } catch (SystemCallInterface.SyscallInterrupt e) {
+      // jobs share the host's streams, so they get no system call interface
+      status  = Status.INVALID_INSTRUCTION;
+      message = "system call " + e.nr + " in a batch job";
+    }
+    if (status != Status.BUDGET_EXHAUSTED && status != Status.TIMEOUT)
+      instructions = cpu.getTurboInstructionCount();
+    int[] registers = new int [8];
+    for (int i = 0; i < registers.length; i++)
+      registers [i] = cpu.getRegisterFile().getValue ("r" + i);
+    if (trace != null)
+      try {
+        trace.close();
+      } catch (IOException e) {
+        message = message == null ? "trace not written: " + e.getMessage() : message;
+      }
+    if (profileDirectory != null)
+      message = writeProfile (cpu.getProfiler(), loaded, memory, program, message);
+    return new Result (program.getPath(), status, message, instructions, System.nanoTime() - start, pcOf (cpu), registers, digest (memory));
+  }
+
+  /**
+   * Assemble or load a program into memory, then stop the loader from observing memory.
+   *
+   * @return the loaded program, e.g., for its labels.
+   */
+  static isa.Memory load (CPU cpu, AbstractMainMemory memory, File program) throws Exception {
+    isa.Memory loader = new isa.Memory (new ISA(), memory, cpu.getPC());
+    loader.loadFile (program.getPath());
+    memory.deleteObservers();
+    return loader;
+  }
+
+  /**
+   * @return address of the first instruction region of a loaded program, or 0 if there is none.
+   */
+  static int entryPoint (isa.Memory program) {
+    for (Region region : program.getRegions())
+      if (region.getType() == Region.Type.INSTRUCTIONS)
+        return region.getAddress();
+    return 0;
+  }
+
+  static int pcOf (CPU cpu) {
+    for (RegisterSet set : cpu.getProcessorState()) {
+      Register pc = set.getRegister ("PC");
+      if (pc != null)
+        return pc.get();
+    }
+    return 0;
+  }
+
+  private static String digest (MainMemory memory) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance ("SHA-256");
+      sha.update (memory.get (0, memory.length()));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : sha.digest())
+        sb.append (String.format ("%02x", b));
+      return sb.toString();
+    } catch (NoSuchAlgorithmException | AbstractMainMemory.InvalidAddressException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+  static String jsonString (String s) {
+    StringBuilder sb = new StringBuilder ("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        sb.append ('\\').append (c);
+      else if (c < 0x20)
+        sb.append (String.format ("\\u%04x", (int) c));
+      else
+        sb.append (c);
+    }
+    return sb.append ('"').toString();
+  }
+
+  private static String csvString (String s) {
+    if (s.indexOf (',') < 0 && s.indexOf ('"') < 0 && s.indexOf ('\n') < 0)
+      return s;
+    return '"' + s.replace ("\"", "\"\"") + '"';
+  }
+
+  @Override public void close () {
+    pool.shutdown();
+  }
+
+  public static void main (String[] args) throws IOException, InterruptedException, ExecutionException {
+    int        threads = Runtime.getRuntime().availableProcessors();
+    int        memory  = DEFAULT_MEMORY_SIZE;
+    long       budget  = DEFAULT_BUDGET;
+    long       timeout = DEFAULT_TIMEOUT;
+    boolean    csv     = false;
+    String     output  = null;
+    File       profile = null;
+    File       trace   = null;
+    List<File> files   = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args [i]) {
+        case "-j": threads = Integer.parseInt (args [++i]);     break;
+        case "-b": budget  = Long.parseLong   (args [++i]);     break;
+        case "-t": timeout = Long.parseLong   (args [++i]);     break;
+        case "-m": memory  = Integer.decode   (args [++i]);     break;
+        case "-f": csv     = args [++i].equals ("csv");         break;
+        case "-o": output  = args [++i];                        break;
+        case "-p": profile = new File (args [++i]);             break;
+        case "-T": trace   = new File (args [++i]);             break;
+        default:
+          if (args [i].startsWith ("@"))
+            for (String line : Files.readAllLines (new File (args [i].substring (1)).toPath(), StandardCharsets.UTF_8)) {
+              if (!line.trim().isEmpty())
+                files.add (new File (line.trim()));
+            }
+          else
+            files.add (new File (args [i]));
+      }
+    }
+    if (files.isEmpty()) {
+      System.err.println ("usage: BatchRunner [-j threads] [-b instructions] [-t millis] [-m bytes] [-f json|csv] [-o file] [-p profiledir] [-T tracedir] program... | @listfile");
+      System.exit (2);
+    }
+    final boolean asCsv = csv;
+    try (PrintWriter out = new PrintWriter (new OutputStreamWriter (output == null ? System.out : new FileOutputStream (output), StandardCharsets.UTF_8));
+         BatchRunner runner = new BatchRunner (threads, memory, budget, timeout)) {
+      runner.setProfileDirectory (profile);
+      runner.setTraceDirectory   (trace);
+      if (asCsv)
+        out.println (Result.csvHeader());
+      runner.runAll (files, result -> out.println (asCsv ? result.toCsv() : result.toJson()));
+    }
+  }
+}
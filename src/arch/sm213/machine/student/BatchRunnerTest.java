@@ -0,0 +1,106 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchRunnerTest {
+    File directory;
+
+    @BeforeEach
+    public void runBefore() throws Exception {
+        directory = Files.createTempDirectory("batch").toFile();
+        directory.deleteOnExit();
+    }
+
+    File program(String name, String... lines) throws Exception {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    File halting() throws Exception {
+        return program("halt.s",
+                ".pos 0x100",
+                "        ld $7, r0",
+                "        inc r0",
+                "        halt");
+    }
+
+    File looping() throws Exception {
+        return program("loop.s",
+                ".pos 0x100",
+                "loop:   inc r0",
+                "        br loop");
+    }
+
+    @Test
+    public void testHalted() throws Exception {
+        try (BatchRunner runner = new BatchRunner(1, 0x1000, 1000, 0)) {
+            BatchRunner.Result result = runner.run(halting());
+            assertEquals(BatchRunner.Status.HALTED, result.status);
+            assertEquals(3, result.instructions);
+            assertEquals(8, result.registers[0]);
+            assertEquals(0x10a, result.pc);
+            assertNotNull(result.memoryDigest);
+        }
+    }
+
+    @Test
+    public void testBudgetExhausted() throws Exception {
+        try (BatchRunner runner = new BatchRunner(1, 0x1000, 1000, 0)) {
+            BatchRunner.Result result = runner.run(looping());
+            assertEquals(BatchRunner.Status.BUDGET_EXHAUSTED, result.status);
+            assertEquals(1000, result.instructions);
+            assertEquals(500, result.registers[0]);
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // test a deadline shorter than the job's setup still stops it, rather than being lost before the run starts
+        try (BatchRunner runner = new BatchRunner(1, 0x1000, Long.MAX_VALUE, 1)) {
+            BatchRunner.Result result = runner.run(looping());
+            assertEquals(BatchRunner.Status.TIMEOUT, result.status);
+            assertTrue(result.instructions > 0);
+        }
+    }
+
+    @Test
+    public void testLoadError() throws Exception {
+        try (BatchRunner runner = new BatchRunner(1, 0x1000, 1000, 0)) {
+            BatchRunner.Result result = runner.run(new File(directory, "missing.s"));
+            assertEquals(BatchRunner.Status.LOAD_ERROR, result.status);
+        }
+    }
+
+    @Test
+    public void testFailedJobDoesNotStopBatch() throws Exception {
+        File broken = program("broken.s", "halt");
+        try (BatchRunner runner = new BatchRunner(2, 0x1000, 1000, 0) {
+            @Override public Result run(File program) {
+                if (program.equals(broken))
+                    throw new IllegalStateException("broken job");
+                return super.run(program);
+            }
+        }) {
+            List<BatchRunner.Result> reported = new ArrayList<>();
+            List<BatchRunner.Result> results  = runner.runAll(Arrays.asList(halting(), broken, looping()), reported::add);
+            assertEquals(results, reported);
+            assertEquals(3, results.size());
+            assertEquals(BatchRunner.Status.HALTED, results.get(0).status);
+            assertEquals(BatchRunner.Status.ERROR, results.get(1).status);
+            assertTrue(results.get(1).message.contains("broken job"));
+            assertEquals(BatchRunner.Status.BUDGET_EXHAUSTED, results.get(2).status);
+        }
+    }
+}
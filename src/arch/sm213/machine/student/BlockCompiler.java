@@ -0,0 +1,393 @@
+package arch.sm213.machine.student;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Compiles a decoded SM213 basic block into the bytecode of a subclass of BlockTranslator.Block.
+ *
+ * The generated run method is straight-line code: registers are elements of the int[] argument, memory is
+ * accessed through CPU.readWord and CPU.writeWord and every constant (register numbers, offsets, immediates,
+ * branch targets) is an operand of the bytecode itself.  Before each memory access the method stores the
+ * address of the following instruction into r[PC], so that an exception leaves pc where the interpreter
+ * would.  After each store it returns early if the store invalidated the block.
+ *
+ * Classes are emitted at version 49 so that they need no stack map frames.  Each is defined by a class loader
+ * of its own, so that a block dropped by the translator (invalidated by a store, or evicted) is unloaded with
+ * its class, however often self-modifying code is translated again.
+ */
+
+final class BlockCompiler {
+  private static final String BLOCK_CLASS = "arch/sm213/machine/student/BlockTranslator$Block";
+  private static final String CPU_CLASS   = "arch/sm213/machine/student/CPU";
+  private static final String RUN_DESC    = "([IL" + CPU_CLASS + ";I)I";
+  private static final int    PC          = BlockTranslator.PC;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_FINAL  = 0x0010;
+  private static final int ACC_SUPER  = 0x0020;
+
+  private static final int ICONST_0      = 0x03;
+  private static final int LCONST_1      = 0x0a;
+  private static final int BIPUSH        = 0x10;
+  private static final int SIPUSH        = 0x11;
+  private static final int LDC_W         = 0x13;
+  private static final int ILOAD_3       = 0x1d;
+  private static final int ALOAD_0       = 0x2a;
+  private static final int ALOAD_1       = 0x2b;
+  private static final int ALOAD_2       = 0x2c;
+  private static final int IALOAD        = 0x2e;
+  private static final int IASTORE       = 0x4f;
+  private static final int DUP           = 0x59;
+  private static final int IADD          = 0x60;
+  private static final int LADD          = 0x61;
+  private static final int ISHL          = 0x78;
+  private static final int ISHR          = 0x7a;
+  private static final int IAND          = 0x7e;
+  private static final int IXOR          = 0x82;
+  private static final int IFNE          = 0x9a;
+  private static final int IFLE          = 0x9e;
+  private static final int IRETURN       = 0xac;
+  private static final int RETURN        = 0xb1;
+  private static final int GETFIELD      = 0xb4;
+  private static final int PUTFIELD      = 0xb5;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+
+  /**
+   * Defines one generated block class.
+   */
+  private static final class Loader extends ClassLoader {
+    Loader () {
+      super (BlockCompiler.class.getClassLoader());
+    }
+
+    Class<?> define (String name, byte[] bytes) {
+      return defineClass (name, bytes, 0, bytes.length);
+    }
+  }
+
+  private int serial;
+
+  /**
+   * Compile a block.
+   *
+   * @param infos    decode info of the block's non-branching instructions.
+   * @param exts     extension words of those instructions.
+   * @param ends     offset from the block's start of the byte following each of those instructions.
+   * @param length   length of the block in bytes, including its terminator.
+   * @param exit     one of BlockTranslator.EXIT_*.
+   * @param exitReg  register tested or jumped through by the terminator.
+   * @param exitOp   branch displacement or jump target of the terminator.
+   * @param profiled true to count every run of the block in its profileRuns; see GuestProfiler.adopt.
+   * @return a new instance of the generated class.
+   */
+  BlockTranslator.Block compile (int[] infos, int[] exts, int[] ends, int length, int exit, int exitReg, int exitOp, boolean profiled) {
+    String        name  = "sm213/translated/Block" + serial++;
+    ConstantPool  pool  = new ConstantPool();
+    Code          code  = new Code (pool);
+    int           count = infos.length + (exit == BlockTranslator.EXIT_FALL ? 0 : 1);
+    if (profiled)
+      code.countRun();
+    for (int i = 0; i < infos.length; i++)
+      code.instruction (infos [i], exts [i], ends [i], i + 1);
+    switch (exit) {
+      case BlockTranslator.EXIT_BEQ:
+      case BlockTranslator.EXIT_BGT:
+        code.loadRegister (exitReg);
+        int branch = code.branch (exit == BlockTranslator.EXIT_BEQ ? IFNE : IFLE);
+        code.exit (length + exitOp, count);
+        code.patch (branch);
+        code.exit (length, count);
+        break;
+      case BlockTranslator.EXIT_BR:
+        code.exit (length + exitOp, count);
+        break;
+      case BlockTranslator.EXIT_J:
+        code.setPc (() -> code.push (exitOp));
+        code.returnCount (count);
+        break;
+      case BlockTranslator.EXIT_JR:
+        code.setPc (() -> { code.loadRegister (exitReg); code.push (exitOp); code.op (IADD); });
+        code.returnCount (count);
+        break;
+      default:
+        code.exit (length, count);
+        break;
+    }
+    byte[] bytes = classFile (name, pool, code);
+    try {
+      return (BlockTranslator.Block) new Loader().define (name.replace ('/', '.'), bytes).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+  private static byte[] classFile (String name, ConstantPool pool, Code code) {
+    int thisClass  = pool.classRef (name);
+    int superClass = pool.classRef (BLOCK_CLASS);
+    int initName   = pool.utf8 ("<init>");
+    int initDesc   = pool.utf8 ("()V");
+    int superInit  = pool.methodRef (BLOCK_CLASS, "<init>", "()V");
+    int runName    = pool.utf8 ("run");
+    int runDesc    = pool.utf8 (RUN_DESC);
+    int codeAttr   = pool.utf8 ("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream (bytes)) {
+      out.writeInt   (0xcafebabe);
+      out.writeShort (0);
+      out.writeShort (49);
+      pool.write (out);
+      out.writeShort (ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort (thisClass);
+      out.writeShort (superClass);
+      out.writeShort (0);
+      out.writeShort (0);
+      out.writeShort (2);
+      writeMethod (out, initName, initDesc, codeAttr, 1, 1,
+                   new byte[] {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN});
+      writeMethod (out, runName, runDesc, codeAttr, 8, 4, code.toByteArray());
+      out.writeShort (0);
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeMethod (DataOutputStream out, int name, int desc, int codeAttr, int maxStack, int maxLocals, byte[] code) throws IOException {
+    out.writeShort (ACC_PUBLIC);
+    out.writeShort (name);
+    out.writeShort (desc);
+    out.writeShort (1);
+    out.writeShort (codeAttr);
+    out.writeInt   (12 + code.length);
+    out.writeShort (maxStack);
+    out.writeShort (maxLocals);
+    out.writeInt   (code.length);
+    out.write      (code);
+    out.writeShort (0);
+    out.writeShort (0);
+  }
+
+  /**
+   * Constant pool under construction.
+   */
+  private static final class ConstantPool {
+    private final ByteArrayOutputStream bytes   = new ByteArrayOutputStream();
+    private final DataOutputStream      out     = new DataOutputStream (bytes);
+    private final Map<String, Integer>  entries = new HashMap<>();
+    private       int                   count   = 1;
+
+    private int entry (String key, int tag, int a, int b, String utf) {
+      Integer index = entries.get (key);
+      if (index != null)
+        return index;
+      try {
+        out.writeByte (tag);
+        if (utf != null)
+          out.writeUTF (utf);
+        else if (tag == 3)
+          out.writeInt (a);
+        else if (b < 0)
+          out.writeShort (a);
+        else {
+          out.writeShort (a);
+          out.writeShort (b);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException (e);
+      }
+      entries.put (key, count);
+      return count++;
+    }
+
+    int utf8        (String s)                          { return entry ("U" + s, 1, 0, 0, s); }
+    int integer     (int v)                             { return entry ("I" + v, 3, v, 0, null); }
+    int classRef    (String name)                       { return entry ("C" + name, 7, utf8 (name), -1, null); }
+    int nameAndType (String name, String desc)          { return entry ("N" + name + desc, 12, utf8 (name), utf8 (desc), null); }
+    int fieldRef    (String cls, String name, String d) { return entry ("F" + cls + name + d, 9, classRef (cls), nameAndType (name, d), null); }
+    int methodRef   (String cls, String name, String d) { return entry ("M" + cls + name + d, 10, classRef (cls), nameAndType (name, d), null); }
+
+    void write (DataOutputStream dst) throws IOException {
+      dst.writeShort (count);
+      bytes.writeTo (dst);
+    }
+  }
+
+  /**
+   * Bytecode of the run method under construction.  Locals: 0 this, 1 r, 2 cpu, 3 pc.
+   */
+  private static final class Code {
+    private final ConstantPool pool;
+    private       byte[]       code = new byte [256];
+    private       int          size;
+
+    Code (ConstantPool pool) {
+      this.pool = pool;
+    }
+
+    void op (int b) {
+      if (size == code.length)
+        code = Arrays.copyOf (code, size * 2);
+      code [size++] = (byte) b;
+    }
+
+    void op2 (int op, int operand) {
+      op (op);
+      op (operand >> 8);
+      op (operand);
+    }
+
+    void push (int v) {
+      if (v >= -1 && v <= 5)
+        op (ICONST_0 + v);
+      else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+        op (BIPUSH);
+        op (v);
+      } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+        op2 (SIPUSH, v);
+      else
+        op2 (LDC_W, pool.integer (v));
+    }
+
+    void loadRegister (int reg) {
+      op   (ALOAD_1);
+      push (reg);
+      op   (IALOAD);
+    }
+
+    /**
+     * Emit r[d] = value, where emitValue leaves the value on the stack.
+     */
+    void storeRegister (int reg, Runnable emitValue) {
+      op   (ALOAD_1);
+      push (reg);
+      emitValue.run();
+      op   (IASTORE);
+    }
+
+    void setPc (Runnable emitValue) {
+      storeRegister (PC, emitValue);
+    }
+
+    /**
+     * Emit r[PC] = pc + offset.
+     */
+    void setPcRelative (int offset) {
+      setPc (() -> { op (ILOAD_3); push (offset); op (IADD); });
+    }
+
+    /**
+     * Emit profileRuns++.
+     */
+    void countRun () {
+      int runs = pool.fieldRef (BLOCK_CLASS, "profileRuns", "J");
+      op  (ALOAD_0);
+      op  (DUP);
+      op2 (GETFIELD, runs);
+      op  (LCONST_1);
+      op  (LADD);
+      op2 (PUTFIELD, runs);
+    }
+
+    void returnCount (int count) {
+      push (count);
+      op   (IRETURN);
+    }
+
+    void exit (int offset, int count) {
+      setPcRelative (offset);
+      returnCount   (count);
+    }
+
+    int branch (int op) {
+      int at = size;
+      op2 (op, 0);
+      return at;
+    }
+
+    void patch (int at) {
+      int offset = size - at;
+      code [at + 1] = (byte) (offset >> 8);
+      code [at + 2] = (byte) offset;
+    }
+
+    private void readWord () {
+      op2 (INVOKEVIRTUAL, pool.methodRef (CPU_CLASS, "readWord", "(I)I"));
+    }
+
+    private void writeWord () {
+      op2 (INVOKEVIRTUAL, pool.methodRef (CPU_CLASS, "writeWord", "(II)V"));
+    }
+
+    private void returnIfInvalid (int end, int count) {
+      op  (ALOAD_0);
+      op2 (GETFIELD, pool.fieldRef (BLOCK_CLASS, "valid", "Z"));
+      int skip = branch (IFNE);
+      exit  (end, count);
+      patch (skip);
+    }
+
+    /**
+     * Emit one non-branching instruction, already checked by BlockTranslator to be translatable.
+     */
+    void instruction (int info, int ext, int end, int count) {
+      int s   = DecodedInstructionCache.op0 (info);
+      int t   = DecodedInstructionCache.op1 (info);
+      int d   = DecodedInstructionCache.op2 (info);
+      int imm = DecodedInstructionCache.imm (info);
+      switch (DecodedInstructionCache.opCode (info)) {
+        case 0x0: // ld $v, d
+          storeRegister (s, () -> push (ext));
+          break;
+        case 0x1: // ld o(rs), rd
+          setPcRelative (end);
+          storeRegister (d, () -> { op (ALOAD_2); push (s << 2); loadRegister (t); op (IADD); readWord(); });
+          break;
+        case 0x2: // ld (rs, ri, 4), rd
+          setPcRelative (end);
+          storeRegister (d, () -> { op (ALOAD_2); loadRegister (s); loadRegister (t); push (2); op (ISHL); op (IADD); readWord(); });
+          break;
+        case 0x3: // st rs, o(rd)
+          setPcRelative (end);
+          op (ALOAD_2); push (t << 2); loadRegister (d); op (IADD); loadRegister (s); writeWord();
+          returnIfInvalid (end, count);
+          break;
+        case 0x4: // st rs, (rd, ri, 4)
+          setPcRelative (end);
+          op (ALOAD_2); loadRegister (t); loadRegister (d); push (2); op (ISHL); op (IADD); loadRegister (s); writeWord();
+          returnIfInvalid (end, count);
+          break;
+        case 0x6: // ALU
+          switch (s) {
+            case 0x0: storeRegister (d, () -> loadRegister (t)); break;
+            case 0x1: storeRegister (d, () -> { loadRegister (t); loadRegister (d); op (IADD); }); break;
+            case 0x2: storeRegister (d, () -> { loadRegister (t); loadRegister (d); op (IAND); }); break;
+            case 0x3: storeRegister (d, () -> { loadRegister (d); push (1);  op (IADD); }); break;
+            case 0x4: storeRegister (d, () -> { loadRegister (d); push (4);  op (IADD); }); break;
+            case 0x5: storeRegister (d, () -> { loadRegister (d); push (-1); op (IADD); }); break;
+            case 0x6: storeRegister (d, () -> { loadRegister (d); push (-4); op (IADD); }); break;
+            case 0x7: storeRegister (d, () -> { loadRegister (d); push (-1); op (IXOR); }); break;
+            default:  storeRegister (d, () -> { op (ILOAD_3); push (end + 2 * t); op (IADD); }); break;
+          }
+          break;
+        case 0x7: // sh? $i, rd
+          int shift = (byte) imm;
+          storeRegister (s, () -> { loadRegister (s); push (shift > 0 ? shift : -shift); op (shift > 0 ? ISHL : ISHR); });
+          break;
+        default: // nop
+          break;
+      }
+    }
+
+    byte[] toByteArray () {
+      return Arrays.copyOf (code, size);
+    }
+  }
+}
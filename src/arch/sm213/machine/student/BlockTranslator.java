@@ -0,0 +1,309 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Dynamic translator of SM213 basic blocks to JVM bytecode, used by CPU.runTurbo.
+ *
+ * A basic block is a straight-line run of instructions that ends with a branch or jump (opcodes 8, 9, a, b
+ * and c), with halt, or before an instruction the translator does not handle.  Once a block has been entered
+ * HOT_THRESHOLD times it is compiled by BlockCompiler into a class of its own, which HotSpot then JIT-compiles
+ * like any other method.  Running a compiled block costs no fetch, decode or opcode dispatch.
+ *
+ * Blocks are cached by the physical address of their first instruction in a direct-mapped table and are
+ * dropped when a store overlaps their bytes.  A block is decoded from memory before it is installed, so the range
+ * it may cover is announced first: if another hart stores into that range before the block is installed, the
+ * block is discarded and translated again later, rather than installed with the bytes from before the store.  A store made by a block into its own code stops the block
+ * immediately after the store.  Instructions that cannot be translated (invalid opcodes, register numbers
+ * above 7 and everything in the f group other than halt and nop) are left to the interpreter.
+ */
+
+public class BlockTranslator implements MemoryWriteListener {
+  /**
+   * Index of pc in the register array passed to Block.run.
+   */
+  static final int PC = 8;
+
+  static final int EXIT_FALL = 0;
+  static final int EXIT_BR   = 1;
+  static final int EXIT_BEQ  = 2;
+  static final int EXIT_BGT  = 3;
+  static final int EXIT_J    = 4;
+  static final int EXIT_JR   = 5;
+  static final int EXIT_HALT = 6;
+
+  private static final int MAX_BLOCK_INSTRUCTIONS = 64;
+  private static final int HOT_THRESHOLD          = 16;
+  private static final int GRANULE_SHIFT          = 6;
+  private static final int MAX_BLOCK_BYTES        = 6 * MAX_BLOCK_INSTRUCTIONS;
+
+  /**
+   * A translated basic block.  Subclasses are generated by BlockCompiler.
+   */
+  public abstract static class Block {
+    int     key;
+    int     length;
+    int     count;
+    boolean halts;
+    int[]   offsets;  // offset of each of the count instructions from the block's first byte
+    byte[]  opCodes;  // opcode of each of the count instructions
+
+    /**
+     * Runs not yet added to profiler's counters, counted by the block itself; see GuestProfiler.adopt.
+     */
+    GuestProfiler  profiler;
+    int            profilePc;
+    protected long profileRuns;
+
+    /**
+     * Cleared when a store overlaps the block's code.
+     */
+    protected volatile boolean valid = true;
+
+    protected Block () {}
+
+    /**
+     * Run the block.  On return r[PC] holds the next pc; if an instruction throws, r[PC] holds the
+     * address following that instruction, as it would after the interpreter's fetch.
+     *
+     * @param r     r0-r7 followed by pc.
+     * @param cpu   CPU whose memory the block accesses.
+     * @param pcVal virtual address of the block's first instruction.
+     * @return number of instructions executed.
+     * @throws AbstractMainMemory.InvalidAddressException when an instruction references an invalid memory address.
+     */
+    public abstract int run (int[] r, CPU cpu, int pcVal) throws AbstractMainMemory.InvalidAddressException;
+
+    /**
+     * Count the instructions executed by a run that threw.
+     *
+     * @param end offset from the block's first byte of r[PC] after the run, i.e., of the byte following the
+     *            instruction that threw.
+     * @return number of instructions executed, including the one that threw, as the interpreter counts them.
+     */
+    int executedBefore (int end) {
+      int n = 0;
+      while (n < count && offsets [n] < end)
+        n++;
+      return n;
+    }
+  }
+
+  /**
+   * Marks an address whose first instruction must be interpreted.
+   */
+  private static final class Untranslatable extends Block {
+    @Override public int run (int[] r, CPU cpu, int pcVal) {
+      throw new IllegalStateException();
+    }
+  }
+
+  private final    int           mask;
+  private final    Block[]       blocks;
+  private final    int []        heat;
+  private final    BitSet        codeGranules = new BitSet();
+  private volatile int           codeStart    = Integer.MAX_VALUE;
+  private volatile int           codeEnd;
+  private volatile long          translating; // start << 32 | end of the range being translated, or 0
+  private          boolean       translationStale;
+  private final    BlockCompiler compiler     = new BlockCompiler();
+  private          long          translations;
+  private          long          invalidations;
+
+  /**
+   * Create an empty translation cache.
+   * @param capacity number of cached blocks; must be a power of two.
+   */
+  public BlockTranslator (int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException ("capacity must be a power of two");
+    mask   = capacity - 1;
+    blocks = new Block [capacity];
+    heat   = new int   [capacity];
+  }
+
+  /**
+   * Find the translation of the block starting at pcVal, translating it if it has become hot.
+   *
+   * @param cpu   CPU executing the code.
+   * @param pcVal virtual address of the block's first instruction.
+   * @param key   physical address of pcVal.
+   * @return the block, or null if the instruction at pcVal must be interpreted.
+   */
+  Block blockAt (CPU cpu, int pcVal, int key) {
+    int   slot  = (key >>> 1) & mask;
+    Block block = blocks [slot];
+    if (block != null && block.key == key && block.valid)
+      return block.count > 0 ? block : null;
+    if (++heat [slot] < HOT_THRESHOLD)
+      return null;
+    heat [slot] = 0;
+    synchronized (this) {
+      translationStale = false;
+      translating      = (long) key << 32 | (key + MAX_BLOCK_BYTES) & 0xffffffffL;
+    }
+    block = translate (cpu, pcVal, key);
+    synchronized (this) {
+      translating = 0;
+      if (translationStale)
+        return null;
+      blocks [slot] = block;
+      codeGranules.set (key >>> GRANULE_SHIFT, (int) (((key & 0xffffffffL) + block.length - 1) >>> GRANULE_SHIFT) + 1);
+      codeStart = Math.min (codeStart, key);
+      codeEnd   = Math.max (codeEnd,   key + block.length);
+    }
+    return block.count > 0 ? block : null;
+  }
+
+  private Block translate (CPU cpu, int pcVal, int key) {
+    int[] infos      = new int [MAX_BLOCK_INSTRUCTIONS];
+    int[] exts       = new int [MAX_BLOCK_INSTRUCTIONS];
+    int[] ends       = new int [MAX_BLOCK_INSTRUCTIONS];
+    int   n          = 0;
+    int   offset     = 0;
+    int   exit       = EXIT_FALL;
+    int   exitReg    = 0;
+    int   exitOp     = 0;
+    int   exitOpCode = 0;
+    while (n < MAX_BLOCK_INSTRUCTIONS && cpu.isInstructionCacheable (pcVal, offset + 2)) {
+      int info, ext;
+      try {
+        info = cpu.decodeFromMemory (pcVal + offset);
+        ext  = cpu.decodedExt();
+      } catch (AbstractMainMemory.InvalidAddressException e) {
+        break;
+      }
+      int length = DecodedInstructionCache.length (info);
+      if (!cpu.isInstructionCacheable (pcVal, offset + length))
+        break;
+      int opCode = DecodedInstructionCache.opCode (info);
+      int op0    = DecodedInstructionCache.op0    (info);
+      int imm    = DecodedInstructionCache.imm    (info);
+      if (opCode >= 0x8 && opCode <= 0xc || opCode == 0xf && op0 == 0) {
+        if ((opCode == 0x9 || opCode == 0xa || opCode == 0xc) && op0 > 7)
+          break;
+        switch (opCode) {
+          case 0x8: exit = EXIT_BR;   exitOp = 2 * (byte) imm; break;
+          case 0x9: exit = EXIT_BEQ;  exitOp = 2 * (byte) imm; break;
+          case 0xa: exit = EXIT_BGT;  exitOp = 2 * (byte) imm; break;
+          case 0xb: exit = EXIT_J;    exitOp = ext;            break;
+          case 0xc: exit = EXIT_JR;   exitOp = 2 * imm;        break;
+          default:  exit = EXIT_HALT;                          break;
+        }
+        exitReg    = op0;
+        exitOpCode = opCode;
+        offset    += length;
+        break;
+      }
+      if (!isTranslatable (info))
+        break;
+      offset    += length;
+      infos [n]  = info;
+      exts  [n]  = ext;
+      ends  [n]  = offset;
+      n++;
+    }
+    Block block;
+    if (offset == 0) {
+      block  = new Untranslatable();
+      offset = 2;
+    } else {
+      GuestProfiler profiler = cpu.getProfiler();
+      block = compiler.compile (Arrays.copyOf (infos, n), Arrays.copyOf (exts, n), Arrays.copyOf (ends, n), offset, exit, exitReg, exitOp, profiler != null);
+      block.count   = n + (exit == EXIT_FALL ? 0 : 1);
+      block.halts   = exit == EXIT_HALT;
+      block.offsets = new int  [block.count];
+      block.opCodes = new byte [block.count];
+      for (int i = 0; i < n; i++) {
+        block.offsets [i] = i == 0 ? 0 : ends [i - 1];
+        block.opCodes [i] = (byte) DecodedInstructionCache.opCode (infos [i]);
+      }
+      if (exit != EXIT_FALL) {
+        block.offsets [n] = n == 0 ? 0 : ends [n - 1];
+        block.opCodes [n] = (byte) exitOpCode;
+      }
+      if (profiler != null)
+        profiler.adopt (block, pcVal);
+      translations++;
+    }
+    block.key    = key;
+    block.length = offset;
+    return block;
+  }
+
+  /**
+   * Determine whether BlockCompiler handles a non-branching instruction.
+   *
+   * @param info decode info.
+   * @return false for invalid instructions and those that must be interpreted.
+   */
+  private static boolean isTranslatable (int info) {
+    int s = DecodedInstructionCache.op0 (info);
+    int t = DecodedInstructionCache.op1 (info);
+    int d = DecodedInstructionCache.op2 (info);
+    switch (DecodedInstructionCache.opCode (info)) {
+      case 0x0: return s <= 7;
+      case 0x1: return t <= 7 && d <= 7;
+      case 0x2: return (s | t | d) <= 7;
+      case 0x3: return s <= 7 && d <= 7;
+      case 0x4: return (s | t | d) <= 7;
+      case 0x6: return d <= 7 && (s <= 0x2 ? t <= 7 : s <= 0x7 || s == 0xf);
+      case 0x7: return s <= 7;
+      case 0xf: return s == 0xf;
+      default:  return false;
+    }
+  }
+
+  /**
+   * Drop every block whose bytes overlap the written range, and any block being translated from them.  Stores
+   * outside the range of addresses holding any block, or being translated, return without locking, so stores to
+   * data by other CPUs sharing memory are cheap.
+   */
+  @Override public void memoryWritten (int address, int length) {
+    long t = translating;
+    if (t != 0 && (t >>> 32) < (address & 0xffffffffL) + length && (address & 0xffffffffL) < (t & 0xffffffffL))
+      synchronized (this) {
+        if (translating == t)
+          translationStale = true;
+      }
+    if (address >= codeEnd || address + length <= codeStart)
+      return;
+    int first = address >>> GRANULE_SHIFT;
+    int last  = (int) (((address & 0xffffffffL) + length - 1) >>> GRANULE_SHIFT);
+    synchronized (this) {
+      int next = codeGranules.nextSetBit (first);
+      if (next < 0 || next > last)
+        return;
+      long lo = address & 0xffffffffL;
+      long hi = lo + length;
+      for (int i = 0; i < blocks.length; i++) {
+        Block block = blocks [i];
+        if (block != null && (block.key & 0xffffffffL) < hi && (block.key & 0xffffffffL) + block.length > lo) {
+          block.valid = false;
+          blocks [i]  = null;
+          invalidations++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every block.
+   */
+  public synchronized void clear () {
+    for (Block block : blocks)
+      if (block != null)
+        block.valid = false;
+    Arrays.fill (blocks, null);
+    codeGranules.clear();
+    codeStart = Integer.MAX_VALUE;
+    codeEnd   = 0;
+  }
+
+  public long getTranslations  () { return translations; }
+  public long getInvalidations () { return invalidations; }
+}
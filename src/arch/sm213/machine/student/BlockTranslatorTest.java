@@ -0,0 +1,146 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockTranslatorTest {
+
+    // a loop that stores over its own next two instructions on every iteration, alternating inc and inca pairs
+    static final List<String> SELF_MODIFYING = Arrays.asList(
+            ".pos 0x100",
+            "        ld $0, r0",
+            "        ld $200, r2",
+            "        ld $target, r1",
+            "        ld $0x64006400, r3",
+            "        ld $0x63006300, r5",
+            "loop:   st r3, 0(r1)",
+            "target: inc r0",
+            "        inc r0",
+            "        mov r3, r6",
+            "        mov r5, r3",
+            "        mov r6, r5",
+            "        dec r2",
+            "        bgt r2, loop",
+            "        halt");
+
+    static CPU translating(List<String> source) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        cpu.setBlockTranslationEnabled(true);
+        return cpu;
+    }
+
+    @Test
+    public void testTranslationMatchesClocked() throws Exception {
+        CPU clocked = CPUTest.load(CPUTest.PROGRAM);
+        CPU turbo   = translating(CPUTest.PROGRAM);
+        // run the program repeatedly, so its loop and call become hot and are translated
+        for (int run = 0; run < 20; run++) {
+            clocked.resetMachineToPC(0x100);
+            turbo.resetMachineToPC(0x100);
+            assertEquals(CPUTest.runClocked(clocked), CPUTest.runTurbo(turbo));
+            assertArrayEquals(CPUTest.state(clocked), CPUTest.state(turbo));
+            assertArrayEquals(CPUTest.memory(clocked), CPUTest.memory(turbo));
+        }
+        assertTrue(turbo.getBlockTranslator().getTranslations() > 0);
+    }
+
+    @Test
+    public void testSelfModifyingCode() throws Exception {
+        CPU clocked = CPUTest.load(SELF_MODIFYING);
+        CPU turbo   = translating(SELF_MODIFYING);
+        assertEquals(CPUTest.runClocked(clocked), CPUTest.runTurbo(turbo));
+        // test each iteration ran the pair just stored: 100 inca pairs and 100 inc pairs
+        assertEquals(100 * 8 + 100 * 2, CPUTest.state(turbo)[0]);
+        assertArrayEquals(CPUTest.state(clocked), CPUTest.state(turbo));
+        assertArrayEquals(CPUTest.memory(clocked), CPUTest.memory(turbo));
+        BlockTranslator translator = turbo.getBlockTranslator();
+        assertTrue(translator.getTranslations() > 0);
+        assertTrue(translator.getInvalidations() > 0);
+    }
+
+    @Test
+    public void testStoreFromAnotherBlock() throws Exception {
+        // the loop is rewritten once, from outside, after it has been translated
+        List<String> source = Arrays.asList(
+                ".pos 0x100",
+                "        ld $0, r0",
+                "        ld $100, r2",
+                "        ld $loop, r1",
+                "        ld $0x64006400, r3",
+                "        ld $-50, r5",
+                "        nop",
+                "loop:   inc r0",
+                "        inc r0",
+                "        dec r2",
+                "        beq r2, done",
+                "        mov r2, r4",
+                "        add r5, r4",
+                "        bgt r4, loop",
+                "        st r3, 0(r1)",
+                "        br loop",
+                "done:   halt");
+        CPU clocked = CPUTest.load(source);
+        CPU turbo   = translating(source);
+        assertEquals(CPUTest.runClocked(clocked), CPUTest.runTurbo(turbo));
+        assertEquals(50 * 2 + 50 * 8, CPUTest.state(turbo)[0]);
+        assertArrayEquals(CPUTest.state(clocked), CPUTest.state(turbo));
+        assertTrue(turbo.getBlockTranslator().getInvalidations() > 0);
+    }
+
+    @Test
+    public void testFaultInTranslatedBlock() throws Exception {
+        // the load walks off the end of memory after the block has been translated
+        List<String> source = Arrays.asList(
+                ".pos 0x100",
+                "        ld $0x1000, r1",
+                "        ld $0, r0",
+                "        ld $0x100, r4",
+                "loop:   inc r0",
+                "        ld 0(r1), r3",
+                "        add r4, r1",
+                "        br loop");
+        CPU clocked = CPUTest.load(source);
+        CPU turbo   = translating(source);
+        long cycles = 0;
+        try {
+            while (true) {
+                cycles++;
+                clocked.cycle();
+            }
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        try {
+            turbo.runTurbo(100000);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        assertTrue(turbo.getBlockTranslator().getTranslations() > 0);
+        // test the instructions the block ran before the fault are counted, and pc is left after the load
+        assertEquals(cycles, turbo.getTurboInstructionCount());
+        assertArrayEquals(CPUTest.state(clocked), CPUTest.state(turbo));
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        // test a run of translated blocks stops exactly at its instruction budget
+        CPU clocked = CPUTest.load(SELF_MODIFYING);
+        CPU turbo   = translating(SELF_MODIFYING);
+        for (int i = 0; i < 1001; i++)
+            clocked.cycle();
+        try {
+            for (int i = 0; i < 7; i++)
+                assertEquals(143, turbo.runTurbo(143));
+        } catch (AbstractCPU.MachineHaltException e) {
+            fail("should not halt");
+        }
+        assertArrayEquals(CPUTest.state(clocked), CPUTest.state(turbo));
+    }
+}
@@ -0,0 +1,38 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Predicts control transfers (br, beq, bgt, j) for PipelineModel.
+ *
+ * The pipeline asks for a target when it fetches the instruction, before it is decoded; only a predictor that
+ * remembers targets (a branch target buffer) can answer then.  Once a conditional branch is decoded, and its target
+ * is known, the pipeline asks for a direction.  Both are called for every control transfer executed, so
+ * implementations must be cheap.
+ */
+
+public interface BranchPredictor {
+
+  /**
+   * Predict, at fetch, where a control transfer goes.
+   * @param pcVal address of the instruction.
+   * @return predicted address of the next instruction, or -1 to fetch the next one in sequence.
+   */
+  int predictTarget (int pcVal);
+
+  /**
+   * Predict, once decoded, whether a conditional branch is taken.
+   * @param pcVal  address of the branch.
+   * @param target its target.
+   * @return true if predicted taken.
+   */
+  boolean predictTaken (int pcVal, int target);
+
+  /**
+   * A control transfer has been resolved.
+   * @param pcVal       address of the instruction.
+   * @param conditional true for beq and bgt.
+   * @param taken       true if it went to target rather than the next instruction in sequence.
+   * @param target      address it went to, if taken.
+   */
+  void update (int pcVal, boolean conditional, boolean taken, int target);
+}
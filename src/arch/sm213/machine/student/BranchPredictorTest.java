@@ -0,0 +1,74 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BranchPredictorTest {
+
+    @Test
+    public void testStatic() {
+        BranchPredictor predictor = new StaticBranchPredictor();
+        // test backward branches are predicted taken and forward ones not, whatever happened before
+        assertTrue(predictor.predictTaken(0x120, 0x100));
+        assertFalse(predictor.predictTaken(0x100, 0x120));
+        predictor.update(0x100, true, true, 0x120);
+        assertFalse(predictor.predictTaken(0x100, 0x120));
+        assertEquals(-1, predictor.predictTarget(0x100));
+    }
+
+    @Test
+    public void testTwoBit() {
+        BranchPredictor predictor = new TwoBitBranchPredictor(4);
+        // test a counter starts weakly not taken, and takes two outcomes to change its prediction back
+        assertFalse(predictor.predictTaken(0x100, 0x80));
+        predictor.update(0x100, true, true, 0x80);
+        assertTrue(predictor.predictTaken(0x100, 0x80));
+        predictor.update(0x100, true, true, 0x80);
+        predictor.update(0x100, true, true, 0x80);
+        predictor.update(0x100, true, false, 0x80);
+        assertTrue(predictor.predictTaken(0x100, 0x80));
+        predictor.update(0x100, true, false, 0x80);
+        assertFalse(predictor.predictTaken(0x100, 0x80));
+        // test unconditional transfers do not train it, and branches four entries apart share a counter
+        predictor.update(0x102, false, true, 0x80);
+        assertFalse(predictor.predictTaken(0x102, 0x80));
+        predictor.update(0x102, true, true, 0x80);
+        predictor.update(0x102, true, true, 0x80);
+        assertTrue(predictor.predictTaken(0x10a, 0x200));
+        assertEquals(-1, predictor.predictTarget(0x102));
+        try {
+            new TwoBitBranchPredictor(3);
+            fail("should not reach here");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testBranchTargetBuffer() {
+        BranchPredictor predictor = new BranchTargetBuffer(4);
+        // test a branch not in the buffer is predicted statically, and nothing at fetch
+        assertEquals(-1, predictor.predictTarget(0x100));
+        assertTrue(predictor.predictTaken(0x100, 0x80));
+        assertFalse(predictor.predictTaken(0x100, 0x180));
+        predictor.update(0x100, true, false, 0x180);
+        assertEquals(-1, predictor.predictTarget(0x100));
+        // test a taken branch is entered with its target, and leaves after two falls through
+        predictor.update(0x100, true, true, 0x180);
+        assertEquals(0x180, predictor.predictTarget(0x100));
+        assertTrue(predictor.predictTaken(0x100, 0x180));
+        predictor.update(0x100, true, false, 0x180);
+        assertEquals(-1, predictor.predictTarget(0x100));
+        assertFalse(predictor.predictTaken(0x100, 0x80));
+        // test an indirect jump is predicted to go where it went last
+        predictor.update(0x104, false, true, 0x300);
+        assertEquals(0x300, predictor.predictTarget(0x104));
+        predictor.update(0x104, false, true, 0x400);
+        assertEquals(0x400, predictor.predictTarget(0x104));
+        // test a transfer four entries apart replaces it
+        predictor.update(0x10c, false, true, 0x500);
+        assertEquals(-1, predictor.predictTarget(0x104));
+        assertEquals(0x500, predictor.predictTarget(0x10c));
+    }
+}
@@ -0,0 +1,61 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+
+
+/**
+ * Direct-mapped branch target buffer: each entry holds the address of a control transfer that was taken, its last
+ * target and a 2-bit saturating counter.  At fetch, an instruction found in the buffer with a counter of 2 or 3 is
+ * predicted to go to its target, so a correctly predicted taken branch or jump costs no cycle.  Unconditional
+ * transfers are entered with a counter of 3.  A conditional branch that is not in the buffer is predicted
+ * statically once decoded (backward taken, forward not taken).
+ */
+
+public class BranchTargetBuffer implements BranchPredictor {
+  private static final int INVALID = -1;
+
+  private final int [] tags;
+  private final int [] targets;
+  private final byte[] counters;
+
+  /**
+   * @param entries number of entries; must be a power of two.
+   */
+  public BranchTargetBuffer (int entries) {
+    if (entries <= 0 || (entries & (entries - 1)) != 0)
+      throw new IllegalArgumentException ("entries must be a power of two");
+    tags     = new int  [entries];
+    targets  = new int  [entries];
+    counters = new byte [entries];
+    Arrays.fill (tags, INVALID);
+  }
+
+  @Override public int predictTarget (int pcVal) {
+    int i = index (pcVal);
+    return tags [i] == pcVal && counters [i] >= 2 ? targets [i] : -1;
+  }
+
+  @Override public boolean predictTaken (int pcVal, int target) {
+    int i = index (pcVal);
+    return tags [i] == pcVal ? counters [i] >= 2 : target <= pcVal;
+  }
+
+  @Override public void update (int pcVal, boolean conditional, boolean taken, int target) {
+    int i = index (pcVal);
+    if (tags [i] != pcVal) {
+      if (!taken)
+        return;
+      tags     [i] = pcVal;
+      counters [i] = (byte) (conditional ? 2 : 3);
+    } else if (taken && counters [i] < 3)
+      counters [i]++;
+    else if (!taken && counters [i] > 0)
+      counters [i]--;
+    if (taken)
+      targets [i] = target;
+  }
+
+  private int index (int pcVal) {
+    return (pcVal >>> 1) & (tags.length - 1);
+  }
+}
@@ -0,0 +1,150 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+
+
+/**
+ * Set of memory addresses (breakpoints, or watched bytes; see Watchpoints) stored as one bit per address in pages
+ * of PAGE_SIZE addresses, so that a lookup is an array index and a bit test.  A page holding no address is not
+ * allocated, so a range of addresses in such a page is known to be empty without looking at its bits.
+ *
+ * Sets are immutable: with returns a new set, which shares every page it does not change with the old one.  A set
+ * can therefore be published to a running CPU (or memory) by writing a single reference, and be read there without
+ * locking.
+ */
+
+public final class BreakpointSet {
+  public  static final int           PAGE_SIZE  = 4096;
+  private static final int           PAGE_SHIFT = 12;
+  private static final int           PAGE_WORDS = PAGE_SIZE >>> 6;
+  public  static final BreakpointSet EMPTY      = new BreakpointSet (new long [0][], 0);
+
+  private final long [][] pages;
+  private final int       size;
+
+  private BreakpointSet (long [][] pages, int size) {
+    this.pages = pages;
+    this.size  = size;
+  }
+
+  /**
+   * @return true iff the set holds no address.
+   */
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  /**
+   * @return number of addresses in the set.
+   */
+  public int size () {
+    return size;
+  }
+
+  /**
+   * @param address any address.
+   * @return true iff address is in the set.
+   */
+  public boolean contains (int address) {
+    int page = address >>> PAGE_SHIFT;
+    if (page >= pages.length)
+      return false;
+    long [] bits = pages [page];
+    return bits != null && (bits [(address >>> 6) & (PAGE_WORDS - 1)] & (1L << address)) != 0;
+  }
+
+  /**
+   * @param from first address of a range.
+   * @param to   address after the last address of the range.
+   * @return true iff some address from from to to-1 is in the set.
+   */
+  public boolean containsAny (int from, int to) {
+    long start = Math.max (from, 0);
+    long end   = Math.min (to, (long) pages.length << PAGE_SHIFT);
+    while (start < end) {
+      long    page    = start >>> PAGE_SHIFT;
+      long    pageEnd = Math.min (end, (page + 1) << PAGE_SHIFT);
+      long [] bits    = pages [(int) page];
+      if (bits != null)
+        for (; start < pageEnd; start = (start | 63) + 1) {
+          long word = bits [(int) (start >>> 6) & (PAGE_WORDS - 1)] & (-1L << start);
+          if ((start | 63) >= pageEnd)
+            word &= -1L >>> (64 - (pageEnd & 63));
+          if (word != 0)
+            return true;
+        }
+      start = pageEnd;
+    }
+    return false;
+  }
+
+  /**
+   * @param from any address.
+   * @return the smallest address in the set that is not less than from, or -1 if there is none.
+   */
+  public int next (int from) {
+    for (long start = Math.max (from, 0); start < (long) pages.length << PAGE_SHIFT; ) {
+      long [] bits = pages [(int) (start >>> PAGE_SHIFT)];
+      if (bits == null) {
+        start = ((start >>> PAGE_SHIFT) + 1) << PAGE_SHIFT;
+        continue;
+      }
+      long word = bits [(int) (start >>> 6) & (PAGE_WORDS - 1)] & (-1L << start);
+      if (word != 0)
+        return (int) ((start & ~63L) + Long.numberOfTrailingZeros (word));
+      start = (start | 63) + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Add or remove an address.
+   * @param address address; must not be negative.
+   * @param enabled true to add the address, false to remove it.
+   * @return a set that differs from this one only at address.
+   */
+  public BreakpointSet with (int address, boolean enabled) {
+    return with (address, 1, enabled);
+  }
+
+  /**
+   * Add or remove a range of addresses.
+   * @param address first address of the range; must not be negative.
+   * @param length  number of addresses.
+   * @param enabled true to add the addresses, false to remove them.
+   * @return a set that differs from this one only from address to address+length-1.
+   * @throws IllegalArgumentException if the range is negative or extends beyond the largest int.
+   */
+  public BreakpointSet with (int address, int length, boolean enabled) {
+    if (address < 0 || length < 0 || address > Integer.MAX_VALUE - length)
+      throw new IllegalArgumentException ("addresses " + address + " to " + ((long) address + length));
+    if (length == 0)
+      return this;
+    int       lastPage = (address + length - 1) >>> PAGE_SHIFT;
+    long [][] copy     = Arrays.copyOf (pages, enabled ? Math.max (pages.length, lastPage + 1) : pages.length);
+    int       count    = size;
+    for (int page = address >>> PAGE_SHIFT; page <= lastPage && page < copy.length; page++) {
+      if (copy [page] == null && !enabled)
+        continue;
+      long [] bits  = copy [page] != null ? copy [page].clone() : new long [PAGE_WORDS];
+      int     from  = Math.max (address, page << PAGE_SHIFT);
+      int     to    = Math.min (address + length - 1, (page << PAGE_SHIFT) + PAGE_SIZE - 1);
+      boolean empty = true;
+      for (long a = from; a <= to; a++) {
+        int  index = (int) (a >>> 6) & (PAGE_WORDS - 1);
+        long bit   = 1L << a;
+        if (((bits [index] & bit) != 0) != enabled) {
+          bits [index] ^= bit;
+          count        += enabled ? 1 : -1;
+        }
+      }
+      for (long word : bits)
+        empty &= word == 0;
+      copy [page] = empty ? null : bits;
+    }
+    int used = copy.length;
+    while (used > 0 && copy [used - 1] == null)
+      used--;
+    return count == 0 ? EMPTY : new BreakpointSet (used == copy.length ? copy : Arrays.copyOf (copy, used), count);
+  }
+}
@@ -0,0 +1,408 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import machine.SystemCallInterface;
+import util.UnsignedByte;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Host I/O for the SM213 system calls, through buffered NIO channels.
+ *
+ *   sys $0 ..... read:  r0 = fd, r1 = buffer address, r2 = length; returns the number of bytes read, 0 at end of input
+ *   sys $1 ..... write: r0 = fd, r1 = buffer address, r2 = length; returns the number of bytes written
+ *   sys $2 ..... exec:  not supported; returns -1
+ *
+ * The result, or -1 on an error (unknown descriptor, negative length, failed channel), is left in r0, as by
+ * ui.Machine.  Set on a CPU with CPU.setSystemCallInterface, calls are handled as the instruction executes, without
+ * leaving the run, and bytes are copied in bulk between MainMemory and a direct buffer per descriptor (see
+ * MainMemory.readBuffer and writeBuffer); the CPU stores the bytes a read takes itself, so that they are traced and
+ * charged like those of st (see Store).  A read takes what is buffered, refilling the buffer with one channel
+ * read when it is empty, so it may return fewer bytes than asked for; a write is buffered until the buffer fills,
+ * the program reads, the run stops (see flush) or the interface is closed.  Writes larger than the buffer go
+ * straight to the channel.  Buffer addresses are physical, as in ui.Machine, even under VirtualMemoryCPU.
+ *
+ * Descriptors can be redirected to any channel, e.g., a file or one end of a java.nio.channels.Pipe.  The interface
+ * also implements SystemCallInterface, so ui.Machine can use it too; it then flushes after every write.
+ *
+ * System calls have effects outside the machine, so a program that makes them does not replay deterministically
+ * (see ReverseDebugger).
+ */
+
+public class BufferedSystemCallInterface implements SystemCallInterface, Closeable {
+  public static final int SYS_READ            = 0;
+  public static final int SYS_WRITE           = 1;
+  public static final int SYS_EXEC            = 2;
+  public static final int STDIN               = 0;
+  public static final int STDOUT              = 1;
+  public static final int STDERR              = 2;
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+  private final int           bufferSize;
+  private       Descriptor[]  descriptors = new Descriptor [3];
+  private       long          calls;
+  private       long          transfers;
+  private       IOException   lastError;
+
+  /**
+   * Destination of the bytes a read takes from its input.
+   */
+  interface Store {
+
+    /**
+     * Store bytes in memory.
+     * @param address address of the first byte.
+     * @param bytes   bytes to store, from its position to its limit.
+     * @throws AbstractMainMemory.InvalidAddressException if any byte is out of range; nothing is stored.
+     */
+    void store (int address, ByteBuffer bytes) throws AbstractMainMemory.InvalidAddressException;
+  }
+
+  /**
+   * An open descriptor: a channel to read from or write to, and its buffer.  An input buffer holds bytes read ahead
+   * between its position and limit; an output buffer holds bytes not yet written before its position.
+   */
+  private static final class Descriptor {
+    final ReadableByteChannel in;
+    final WritableByteChannel out;
+    final ByteBuffer          buffer;
+    final boolean             owned;
+
+    Descriptor (ReadableByteChannel in, WritableByteChannel out, int bufferSize, boolean owned) {
+      this.in     = in;
+      this.out    = out;
+      this.buffer = ByteBuffer.allocateDirect (bufferSize);
+      this.owned  = owned;
+      if (in != null)
+        buffer.flip();
+    }
+  }
+
+  /**
+   * Create an interface with descriptors 0, 1 and 2 open on the host's standard input, output and error.
+   */
+  public BufferedSystemCallInterface () {
+    this (DEFAULT_BUFFER_SIZE, true);
+  }
+
+  /**
+   * Create an interface.
+   * @param bufferSize      bytes buffered per descriptor.
+   * @param standardStreams true to open descriptors 0, 1 and 2 on the host's standard input, output and error;
+   *                        false to open none.
+   */
+  public BufferedSystemCallInterface (int bufferSize, boolean standardStreams) {
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException ("buffer size must be positive");
+    this.bufferSize = bufferSize;
+    if (standardStreams) {
+      open (STDIN,  new Descriptor (new FileInputStream  (FileDescriptor.in) .getChannel(), null, bufferSize, false));
+      open (STDOUT, new Descriptor (null, new FileOutputStream (FileDescriptor.out).getChannel(), bufferSize, false));
+      open (STDERR, new Descriptor (null, new FileOutputStream (FileDescriptor.err).getChannel(), bufferSize, false));
+    }
+  }
+
+  /**
+   * Read a descriptor from a channel, closing the file it was previously open on, if any.  The channel is not
+   * closed by close.
+   * @param fd descriptor; must not be negative.
+   * @param in channel, e.g., a Pipe.SourceChannel.
+   * @throws IOException if the previous file cannot be flushed or closed.
+   */
+  public void redirect (int fd, ReadableByteChannel in) throws IOException {
+    close (fd);
+    open (fd, new Descriptor (in, null, bufferSize, false));
+  }
+
+  /**
+   * Write a descriptor to a channel, flushing it and closing the file it was previously open on, if any.  The
+   * channel is not closed by close.
+   * @param fd  descriptor; must not be negative.
+   * @param out channel, e.g., a Pipe.SinkChannel.
+   * @throws IOException if the previous file cannot be flushed or closed.
+   */
+  public void redirect (int fd, WritableByteChannel out) throws IOException {
+    close (fd);
+    open (fd, new Descriptor (null, out, bufferSize, false));
+  }
+
+  /**
+   * Open a descriptor for reading a file.
+   * @param fd   descriptor; must not be negative.
+   * @param file file to read.
+   * @throws IOException if the file cannot be opened or the previous one closed.
+   */
+  public void openInput (int fd, Path file) throws IOException {
+    close (fd);
+    open (fd, new Descriptor (FileChannel.open (file, StandardOpenOption.READ), null, bufferSize, true));
+  }
+
+  /**
+   * Open a descriptor for writing a file, creating it if necessary.
+   * @param fd     descriptor; must not be negative.
+   * @param file   file to write.
+   * @param append true to append to the file, false to truncate it.
+   * @throws IOException if the file cannot be opened or the previous one closed.
+   */
+  public void openOutput (int fd, Path file, boolean append) throws IOException {
+    close (fd);
+    FileChannel channel = FileChannel.open (file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    open (fd, new Descriptor (null, channel, bufferSize, true));
+  }
+
+  private void open (int fd, Descriptor descriptor) {
+    if (fd < 0)
+      throw new IllegalArgumentException ("descriptor " + fd);
+    if (fd >= descriptors.length)
+      descriptors = Arrays.copyOf (descriptors, Math.max (fd + 1, descriptors.length * 2));
+    descriptors [fd] = descriptor;
+  }
+
+  /**
+   * Close a descriptor, flushing it and closing its file if it was opened by openInput or openOutput.
+   * @param fd descriptor.
+   * @throws IOException if it cannot be flushed or closed; it is closed anyway.
+   */
+  public void close (int fd) throws IOException {
+    Descriptor d = fd >= 0 && fd < descriptors.length ? descriptors [fd] : null;
+    if (d == null)
+      return;
+    descriptors [fd] = null;
+    try {
+      if (d.out != null)
+        drain (d);
+    } finally {
+      if (d.owned)
+        (d.in != null ? (Channel) d.in : d.out).close();
+    }
+  }
+
+  /**
+   * Flush and close every descriptor.
+   * @throws IOException if one cannot be flushed or closed; the others are closed anyway.
+   */
+  @Override public void close () throws IOException {
+    IOException failure = null;
+    for (int fd = 0; fd < descriptors.length; fd++)
+      try {
+        close (fd);
+      } catch (IOException e) {
+        failure = failure == null ? e : failure;
+      }
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Write every descriptor's buffered bytes to its channel; done by the CPU whenever a run stops.
+   * @return false if a channel failed (see getLastError).
+   */
+  public boolean flush () {
+    boolean ok = true;
+    for (Descriptor d : descriptors)
+      if (d != null && d.out != null && d.buffer.position() > 0)
+        try {
+          drain (d);
+        } catch (IOException e) {
+          lastError = e;
+          ok        = false;
+        }
+    return ok;
+  }
+
+  private void drain (Descriptor d) throws IOException {
+    d.buffer.flip();
+    try {
+      writeFully (d.out, d.buffer);
+    } finally {
+      d.buffer.clear();
+    }
+  }
+
+  private void writeFully (WritableByteChannel out, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      out.write (bytes);
+      transfers++;
+    }
+  }
+
+  /**
+   * Handle sys $0.
+   * @param memory  memory holding the buffer.
+   * @param fd      descriptor.
+   * @param address address of the buffer.
+   * @param length  size of the buffer.
+   * @return number of bytes read (0 at end of input), or -1 on an error.
+   * @throws AbstractMainMemory.InvalidAddressException if the bytes read do not fit in memory.
+   */
+  public int read (AbstractMainMemory memory, int fd, int address, int length) throws AbstractMainMemory.InvalidAddressException {
+    return read ((a, bytes) -> store (memory, a, bytes), fd, address, length);
+  }
+
+  /**
+   * Handle sys $0, storing the bytes read through a CPU.
+   * @param store   stores the bytes read; input is only consumed once it has stored them.
+   * @param fd      descriptor.
+   * @param address address of the buffer.
+   * @param length  size of the buffer.
+   * @return number of bytes read (0 at end of input), or -1 on an error.
+   * @throws AbstractMainMemory.InvalidAddressException if the bytes read do not fit in memory.
+   */
+  int read (Store store, int fd, int address, int length) throws AbstractMainMemory.InvalidAddressException {
+    calls++;
+    Descriptor d = fd >= 0 && fd < descriptors.length ? descriptors [fd] : null;
+    if (d == null || d.in == null || length < 0)
+      return -1;
+    if (length == 0)
+      return 0;
+    ByteBuffer chunk = fill (d, length);
+    if (chunk == null)
+      return -1;
+    int n = chunk.remaining();
+    store.store (address, chunk);
+    d.buffer.position (d.buffer.position() + n);
+    return n;
+  }
+
+  /**
+   * Make up to length bytes available in a descriptor's buffer, reading from its channel if it is empty, and
+   * flushing output first, so that a prompt is seen before the program waits for its answer.
+   * @return a view of the bytes available, or null if the channel failed.
+   */
+  private ByteBuffer fill (Descriptor d, int length) {
+    ByteBuffer buffer = d.buffer;
+    if (!buffer.hasRemaining()) {
+      flush();
+      buffer.clear();
+      try {
+        transfers++;
+        d.in.read (buffer);
+      } catch (IOException e) {
+        lastError = e;
+        return null;
+      } finally {
+        buffer.flip();
+      }
+    }
+    ByteBuffer chunk = buffer.duplicate();
+    chunk.limit (chunk.position() + Math.min (length, chunk.remaining()));
+    return chunk;
+  }
+
+  /**
+   * Handle sys $1.
+   * @param memory  memory holding the buffer.
+   * @param fd      descriptor.
+   * @param address address of the bytes to write.
+   * @param length  number of bytes.
+   * @return length, or -1 on an error.
+   * @throws AbstractMainMemory.InvalidAddressException if the bytes do not lie in memory.
+   */
+  public int write (AbstractMainMemory memory, int fd, int address, int length) throws AbstractMainMemory.InvalidAddressException {
+    calls++;
+    Descriptor d = fd >= 0 && fd < descriptors.length ? descriptors [fd] : null;
+    if (d == null || d.out == null || length < 0)
+      return -1;
+    if (length == 0)
+      return 0;
+    ByteBuffer bytes = load (memory, address, length);
+    try {
+      if (bytes.remaining() > d.buffer.remaining())
+        drain (d);
+      if (bytes.remaining() >= d.buffer.capacity())
+        writeFully (d.out, bytes);
+      else
+        d.buffer.put (bytes);
+    } catch (IOException e) {
+      lastError = e;
+      return -1;
+    }
+    return length;
+  }
+
+  private static ByteBuffer load (AbstractMainMemory memory, int address, int length) throws AbstractMainMemory.InvalidAddressException {
+    if (memory instanceof MainMemory)
+      return ((MainMemory) memory).readBuffer (address, length);
+    return ByteBuffer.wrap (UnsignedByte.toBytes (memory.readUnaligned (address, length)));
+  }
+
+  static void store (AbstractMainMemory memory, int address, ByteBuffer bytes) throws AbstractMainMemory.InvalidAddressException {
+    if (memory instanceof MainMemory)
+      ((MainMemory) memory).writeBuffer (address, bytes);
+    else {
+      byte[] value = new byte [bytes.remaining()];
+      bytes.get (value);
+      memory.writeUnaligned (address, UnsignedByte.toUnsignedBytes (value));
+    }
+  }
+
+  /**
+   * @return number of read and write system calls handled.
+   */
+  public long getCallCount () {
+    return calls;
+  }
+
+  /**
+   * @return number of channel reads and writes done for them; far fewer than calls when buffering pays off.
+   */
+  public long getTransferCount () {
+    return transfers;
+  }
+
+  /**
+   * @return the most recent channel failure, or null if there has been none.
+   */
+  public IOException getLastError () {
+    return lastError;
+  }
+
+  // SystemCallInterface, for ui.Machine: it copies the bytes to and from memory itself
+
+  @Override public byte[] handleReadSyscall (int fd, int length) {
+    calls++;
+    Descriptor d = fd >= 0 && fd < descriptors.length ? descriptors [fd] : null;
+    if (d == null || d.in == null || length < 0)
+      return null;
+    ByteBuffer chunk = fill (d, length);
+    if (chunk == null)
+      return null;
+    byte[] bytes = new byte [chunk.remaining()];
+    d.buffer.get (bytes);
+    return bytes;
+  }
+
+  @Override public int handleWriteSyscall (int fd, byte[] bytes) {
+    calls++;
+    Descriptor d = fd >= 0 && fd < descriptors.length ? descriptors [fd] : null;
+    if (d == null || d.out == null)
+      return -1;
+    try {
+      if (d.buffer.position() > 0)
+        drain (d);
+      writeFully (d.out, ByteBuffer.wrap (bytes));
+    } catch (IOException e) {
+      lastError = e;
+      return -1;
+    }
+    return bytes.length;
+  }
+
+  @Override public int handleExecSyscall (byte[] command) {
+    return -1;
+  }
+}
@@ -0,0 +1,158 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferedSystemCallInterfaceTest {
+    static final int MEMORY_SIZE = 0x1000;
+
+    // read up to 10 bytes of standard input into buf + 1, then halt with the count in r0
+    static final List<String> READS = Arrays.asList(
+            ".pos 0x100",
+            "        ld $0, r0",
+            "        ld $buf, r1",
+            "        inc r1",
+            "        ld $10, r2",
+            "        sys $0",
+            "        halt",
+            ".pos 0x800",
+            "buf:    .long 0",
+            "        .long 0",
+            "        .long 0");
+
+    static MainMemory memory(String text, int address) throws Exception {
+        MainMemory memory = new MainMemory(MEMORY_SIZE);
+        memory.set(address, text.getBytes(StandardCharsets.US_ASCII));
+        return memory;
+    }
+
+    static String text(ByteArrayOutputStream out) {
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    static String text(MainMemory memory, int address, int length) throws Exception {
+        return new String(memory.get(address, length), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testWriteOrder() throws Exception {
+        BufferedSystemCallInterface sys    = new BufferedSystemCallInterface(16, false);
+        ByteArrayOutputStream       out    = new ByteArrayOutputStream();
+        MainMemory                  memory = memory("hello 0123456789abcdefghij", 0);
+        sys.redirect(1, Channels.newChannel(out));
+        // test a write is buffered until the buffer fills or is flushed
+        assertEquals(6, sys.write(memory, 1, 0, 6));
+        assertEquals("", text(out));
+        // test ui.Machine's write goes out after the bytes buffered before it
+        assertEquals(5, sys.handleWriteSyscall(1, "world".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("hello world", text(out));
+        // test a write larger than the buffer goes straight out, after the bytes buffered before it
+        assertEquals(2, sys.write(memory, 1, 0, 2));
+        assertEquals(20, sys.write(memory, 1, 6, 20));
+        assertEquals("hello worldhe0123456789abcdefghij", text(out));
+        // test one that does not fit in what is left of the buffer drains it first
+        assertEquals(10, sys.write(memory, 1, 6, 10));
+        assertEquals(10, sys.write(memory, 1, 16, 10));
+        assertEquals("hello worldhe0123456789abcdefghij0123456789", text(out));
+        assertTrue(sys.flush());
+        assertEquals("hello worldhe0123456789abcdefghij0123456789abcdefghij", text(out));
+        sys.close();
+    }
+
+    @Test
+    public void testReadIntoMemory() throws Exception {
+        BufferedSystemCallInterface sys    = new BufferedSystemCallInterface(4, false);
+        MainMemory                  memory = new MainMemory(MEMORY_SIZE);
+        sys.redirect(0, Channels.newChannel(new ByteArrayInputStream("abcdefghij".getBytes(StandardCharsets.US_ASCII))));
+        // test a read returns what one channel read buffers, and 0 at end of input
+        assertEquals(4, sys.read(memory, 0, 0x10, 8));
+        assertEquals("abcd", text(memory, 0x10, 4));
+        assertEquals(2, sys.read(memory, 0, 0x14, 2));
+        assertEquals("ef", text(memory, 0x14, 2));
+        // test bytes that do not fit in memory are not taken from the input
+        try {
+            sys.read(memory, 0, MEMORY_SIZE - 1, 8);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        assertEquals(2, sys.read(memory, 0, 0x16, 8));
+        assertEquals(2, sys.read(memory, 0, 0x18, 8));
+        assertEquals(0, sys.read(memory, 0, 0x1a, 8));
+        assertEquals("abcdefghij", text(memory, 0x10, 10));
+        assertEquals(0, memory.get(0x1a, 1)[0]);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        BufferedSystemCallInterface sys    = new BufferedSystemCallInterface(4, false);
+        MainMemory                  memory = memory("abcdefgh", 0);
+        sys.redirect(0, Channels.newChannel(new ByteArrayInputStream(new byte[0])));
+        sys.redirect(1, Channels.newChannel(new ByteArrayOutputStream()));
+        // test unknown descriptors, the wrong direction and negative lengths
+        assertEquals(-1, sys.read(memory, 3, 0, 4));
+        assertEquals(-1, sys.read(memory, -1, 0, 4));
+        assertEquals(-1, sys.read(memory, 1, 0, 4));
+        assertEquals(-1, sys.read(memory, 0, 0, -1));
+        assertEquals(-1, sys.write(memory, 3, 0, 4));
+        assertEquals(-1, sys.write(memory, 0, 0, 4));
+        assertEquals(-1, sys.write(memory, 1, 0, -1));
+        assertNull(sys.handleReadSyscall(3, 4));
+        assertEquals(-1, sys.handleWriteSyscall(0, new byte[1]));
+        assertEquals(-1, sys.handleExecSyscall(new byte[1]));
+        assertEquals(0, sys.read(memory, 0, 0, 0));
+        assertEquals(0, sys.read(memory, 0, 0, 4));
+        assertEquals(0, sys.write(memory, 1, 0, 0));
+        assertNull(sys.getLastError());
+        // test a failing channel is reported, by write and by flush
+        sys.redirect(2, new WritableByteChannel() {
+            @Override public int write(ByteBuffer src) throws IOException { throw new IOException("full"); }
+            @Override public boolean isOpen() { return true; }
+            @Override public void close() {}
+        });
+        assertEquals(-1, sys.write(memory, 2, 0, 8));
+        assertEquals("full", sys.getLastError().getMessage());
+        assertEquals(2, sys.write(memory, 2, 0, 2));
+        assertFalse(sys.flush());
+        assertEquals(-1, sys.handleWriteSyscall(2, new byte[1]));
+    }
+
+    @Test
+    public void testCPURead() throws Exception {
+        BufferedSystemCallInterface sys    = new BufferedSystemCallInterface(64, false);
+        CPU                         cpu    = CPUTest.load(READS);
+        TimingModel                 timing = TimingModel.createDefault(MEMORY_SIZE);
+        TraceRecorder               trace  = new TraceRecorder(1024, 4);
+        sys.redirect(0, Channels.newChannel(new ByteArrayInputStream("abcdefghij".getBytes(StandardCharsets.US_ASCII))));
+        cpu.setSystemCallInterface(sys);
+        cpu.setTimingModel(timing);
+        cpu.setTraceRecorder(trace);
+        CPUTest.runClocked(cpu);
+        cpu.setTraceRecorder(null);
+        MainMemory memory = (MainMemory) cpu.getMainMemory();
+        assertEquals(10, CPUTest.state(cpu)[0]);
+        assertEquals("abcdefghij", text(memory, 0x801, 10));
+        // test the bytes read are charged like st: one data access for each of the three words they touch
+        CacheModel data = timing.getDataCache();
+        assertEquals(3, data.getHits() + data.getMisses());
+        // test the trace records them as stored by the sys
+        TraceReader.Record record = trace.reader().lastWrite(0x80a);
+        assertEquals(0x114, record.pc);
+        assertEquals(0x801, record.address);
+        assertEquals(10, record.storeLength);
+        assertNull(trace.reader().lastWrite(0x800));
+        assertNull(trace.reader().lastWrite(0x80b));
+    }
+}
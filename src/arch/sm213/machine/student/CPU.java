@@ -210,9 +210,15 @@ package arch.sm213.machine.student;
 
 import arch.sm213.machine.AbstractSM213CPU;
 import machine.AbstractMainMemory;
+import machine.Register;
 import machine.RegisterSet;
+import machine.SystemCallInterface;
 import util.UnsignedByte;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * The Simple Machine CPU.
@@ -221,6 +227,107 @@ import util.UnsignedByte;
  */
 
 public class CPU extends AbstractSM213CPU {
+    private static final int DECODE_CACHE_SIZE   = 4096;
+    private static final int BLOCK_CACHE_SIZE    = 4096;
+    private static final int FUSION_CACHE_SIZE   = 4096;
+    private static final int TURBO_POLL_INTERVAL = 1024;
+    private static final int FUSED               = 0x10; // runTurbo dispatches fused pairs as opcode FUSED + pattern id
+    private static final int TRACE_IDLE          = 0;
+    private static final int TRACE_FETCHED       = 1;
+    private static final int TRACE_EXECUTED      = 2;
+
+    /**
+     * Function codes of the atomic instructions (opcode 5); see atomic.
+     */
+    static final int ATOMIC_CAS  = 0x0;
+    static final int ATOMIC_XADD = 0x1;
+    static final int ATOMIC_XCHG = 0x2;
+
+    /**
+     * Decoded instructions keyed by physical address, or null when the memory does not report stores.
+     */
+    private DecodedInstructionCache decodeCache;
+
+    /**
+     * Extension word of the instruction most recently decoded.
+     */
+    private int decodedExt;
+
+    /**
+     * Turbo mode state; see setTurboMode.
+     */
+    private          boolean turboMode;
+    private volatile boolean turboRunning;
+    private volatile boolean turboInterrupt;
+    private volatile long    turboTimeout;
+    private          long    turboInstructions;
+
+    /**
+     * Breakpoints honoured by start and runTurbo (see setBreakpoint), and data watchpoints or null (see
+     * setWatchpoints).  watchpointHits is the hit count last seen, so that a new hit stops the run.
+     */
+    private volatile BreakpointSet breakpoints = BreakpointSet.EMPTY;
+    private          Watchpoints   watchpoints;
+    private          long          watchpointHits;
+
+    /**
+     * Basic-block translations used by runTurbo, or null when block translation is disabled.
+     */
+    private BlockTranslator translator;
+
+    /**
+     * Superinstruction recogniser used by runTurbo, or null when fusion is disabled.
+     */
+    private SuperinstructionFuser fuser;
+
+    /**
+     * Pre-resolved branch targets consulted by execute, or null; see setControlFlowGraph.
+     */
+    private ControlFlowGraph controlFlowGraph;
+
+    /**
+     * Instruction counters, or null when profiling is disabled.
+     */
+    private GuestProfiler profiler;
+
+    /**
+     * Cache and cycle-cost model, or null when timing is disabled.
+     */
+    private TimingModel timing;
+
+    /**
+     * Pipeline timing model, or null; set only by PipelinedCPU.
+     */
+    private PipelineModel pipeline;
+
+    /**
+     * Host I/O for sys, or null to leave system calls to the caller of start (see syscall).
+     */
+    private BufferedSystemCallInterface systemCalls;
+
+    /**
+     * Execution trace, or null when tracing is disabled.  In the clocked cycle an instruction's register writes
+     * are visible only after the clock tick, so it is recorded by the next fetch (traceState is TRACE_EXECUTED
+     * in between).
+     */
+    private       TraceRecorder tracer;
+    private       int           traceState;
+    private       int           tracePc;
+    private       int           traceInfo;
+    private       int           traceExt;
+    private final int[]         traceRegisters = new int [8];
+
+    /**
+     * False in a headless machine: no Observer is attached to the CPU, its register sets or their registers,
+     * and runTurbo does not notify when it stops.
+     */
+    private boolean notificationsEnabled = true;
+
+    /**
+     * Frames per second in which a clocked run started by start publishes register and memory changes to
+     * observers, or 0 to publish every change as it happens; see NotificationCoalescer.
+     */
+    private int notificationRate = NotificationCoalescer.DEFAULT_RATE;
 
     /**
      * Create a new CPU.
@@ -230,6 +337,286 @@ public class CPU extends AbstractSM213CPU {
      */
     public CPU (String name, AbstractMainMemory memory) {
         super (name, memory);
+        setDecodeCacheEnabled (true);
+    }
+
+    /**
+     * Enable or disable model-change notifications, e.g., for headless use (see HeadlessMachine).
+     *
+     * Disabling them detaches every Observer from the CPU and from each register set and register of the register
+     * file and processor state, so that a register write no longer propagates events to its set or to a GUI
+     * table.  Enabling them reattaches each register to its set; observers of the sets and of the CPU must be
+     * added again.
+     *
+     * @param enabled false to stop notifying observers.
+     */
+    public void setNotificationsEnabled (boolean enabled) {
+        notificationsEnabled = enabled;
+        List<RegisterSet> sets = new ArrayList<> (getProcessorState());
+        if (!sets.contains (getRegisterFile()))
+            sets.add (getRegisterFile());
+        for (RegisterSet set : sets) {
+            for (Register register : set.getAll()) {
+                register.deleteObservers();
+                if (enabled)
+                    register.addObserver (set);
+            }
+            if (!enabled)
+                set.deleteObservers();
+        }
+        if (!enabled)
+            deleteObservers();
+    }
+
+    public boolean isNotificationsEnabled () {
+        return notificationsEnabled;
+    }
+
+    /**
+     * Set how often a clocked run started by start publishes register and memory changes to observers such as
+     * the GUI tables.  Changes are batched per frame and published on the Swing event thread, so the simulation
+     * never waits for the GUI; the CPU itself still notifies its observers after every cycle, as the debugger
+     * needs.  Runs with nothing observing memory or the registers are not batched.
+     *
+     * @param framesPerSecond frames per second, or 0 to publish every change as it happens.
+     */
+    public void setNotificationRate (int framesPerSecond) {
+        notificationRate = framesPerSecond;
+    }
+
+    public int getNotificationRate () {
+        return notificationRate;
+    }
+
+    /**
+     * Enable or disable the decoded-instruction cache consulted by fetch.
+     * The cache is only available when main memory reports stores (i.e., is a MemoryWriteSource).
+     *
+     * @param enabled true to cache decoded instructions.
+     */
+    public void setDecodeCacheEnabled (boolean enabled) {
+        AbstractMainMemory memory = getMainMemory();
+        if (decodeCache != null) {
+            ((MemoryWriteSource) memory).removeWriteListener (decodeCache);
+            decodeCache = null;
+        }
+        if (enabled && memory instanceof MemoryWriteSource) {
+            decodeCache = new DecodedInstructionCache (DECODE_CACHE_SIZE);
+            ((MemoryWriteSource) memory).addWriteListener (decodeCache);
+        }
+    }
+
+    /**
+     * Enable or disable basic-block translation in turbo mode.
+     * Translation is only available when main memory reports stores (i.e., is a MemoryWriteSource).
+     *
+     * @param enabled true to translate basic blocks.
+     */
+    public void setBlockTranslationEnabled (boolean enabled) {
+        AbstractMainMemory memory = getMainMemory();
+        if (translator != null) {
+            ((MemoryWriteSource) memory).removeWriteListener (translator);
+            translator = null;
+        }
+        if (enabled && memory instanceof MemoryWriteSource) {
+            translator = new BlockTranslator (BLOCK_CACHE_SIZE);
+            ((MemoryWriteSource) memory).addWriteListener (translator);
+        }
+    }
+
+    /**
+     * @return the basic-block translator, e.g., to read its counters; null if translation is disabled.
+     */
+    public BlockTranslator getBlockTranslator () {
+        return translator;
+    }
+
+    /**
+     * Enable or disable superinstruction fusion in turbo mode.
+     * Fusion is only available when main memory reports stores (i.e., is a MemoryWriteSource).
+     *
+     * @param enabled true to fuse common instruction pairs.
+     */
+    public void setFusionEnabled (boolean enabled) {
+        AbstractMainMemory memory = getMainMemory();
+        if (fuser != null) {
+            ((MemoryWriteSource) memory).removeWriteListener (fuser);
+            fuser = null;
+        }
+        if (enabled && memory instanceof MemoryWriteSource) {
+            fuser = new SuperinstructionFuser (FUSION_CACHE_SIZE);
+            ((MemoryWriteSource) memory).addWriteListener (fuser);
+        }
+    }
+
+    /**
+     * @return the superinstruction fuser, e.g., for its report; null if fusion is disabled.
+     */
+    public SuperinstructionFuser getFuser () {
+        return fuser;
+    }
+
+    /**
+     * Stop runs after any instruction that hits one of a set of data watchpoints, or stop watching.
+     * While watchpoints are set, runTurbo interprets every instruction, without block translation or fusion, so
+     * that it stops right after the instruction that hit.
+     *
+     * @param watchpoints watchpoints to check on every load and store, or null to check none.
+     * @throws IllegalArgumentException if main memory is not a MainMemory.
+     */
+    public void setWatchpoints (Watchpoints watchpoints) {
+        AbstractMainMemory memory = getMainMemory();
+        if (!(memory instanceof MainMemory))
+            throw new IllegalArgumentException ("watchpoints need a MainMemory");
+        ((MainMemory) memory).setWatchpoints (watchpoints);
+        this.watchpoints = watchpoints;
+        if (watchpoints != null)
+            watchpointHits = watchpoints.getHitCount();
+    }
+
+    public Watchpoints getWatchpoints () {
+        return watchpoints;
+    }
+
+    /**
+     * Use the pre-resolved branch targets of a control-flow graph of the program in execute, or stop using them.
+     * If main memory reports stores (i.e., is a MemoryWriteSource), the graph is told about every store from now
+     * on, so that it stops resolving branches that the program has overwritten.
+     *
+     * @param graph graph of the program in main memory, or null.
+     */
+    public void setControlFlowGraph (ControlFlowGraph graph) {
+        AbstractMainMemory memory = getMainMemory();
+        if (controlFlowGraph != null && memory instanceof MemoryWriteSource)
+            ((MemoryWriteSource) memory).removeWriteListener (controlFlowGraph);
+        controlFlowGraph = graph;
+        if (graph != null && memory instanceof MemoryWriteSource)
+            ((MemoryWriteSource) memory).addWriteListener (graph);
+    }
+
+    public ControlFlowGraph getControlFlowGraph () {
+        return controlFlowGraph;
+    }
+
+    /**
+     * Count every instruction executed from now on, or stop counting.
+     * If main memory reports stores (i.e., is a MemoryWriteSource), runTurbo counts straight-line runs rather
+     * than single instructions, and the profiler is told about every store so that it can tell when they change.
+     * Translated blocks are dropped, so that they are translated again to count into the new profiler.
+     *
+     * @param profiler profiler to count into, or null to disable profiling.
+     */
+    public void setProfiler (GuestProfiler profiler) {
+        AbstractMainMemory memory = getMainMemory();
+        if (this.profiler != null && memory instanceof MemoryWriteSource)
+            ((MemoryWriteSource) memory).removeWriteListener (this.profiler);
+        this.profiler = profiler;
+        if (profiler != null && memory instanceof MemoryWriteSource)
+            ((MemoryWriteSource) memory).addWriteListener (profiler);
+        if (translator != null)
+            translator.clear();
+    }
+
+    public GuestProfiler getProfiler () {
+        return profiler;
+    }
+
+    /**
+     * Charge every instruction fetch, load and store from now on to a cache and cycle-cost model, or stop.
+     * While a model is set, runTurbo interprets every instruction, without block translation or fusion.
+     *
+     * @param timing model to charge, or null to disable timing.
+     */
+    public void setTimingModel (TimingModel timing) {
+        this.timing = timing;
+    }
+
+    public TimingModel getTimingModel () {
+        return timing;
+    }
+
+    /**
+     * Handle sys instructions from now on in the CPU itself, with buffered host I/O, instead of interrupting the
+     * run with a SystemCallInterface.SyscallInterrupt for ui.Machine to handle.  Buffered output is flushed
+     * whenever a run stops.
+     *
+     * @param systemCalls interface to handle system calls, or null to interrupt the run on each.
+     */
+    public void setSystemCallInterface (BufferedSystemCallInterface systemCalls) {
+        this.systemCalls = systemCalls;
+    }
+
+    public BufferedSystemCallInterface getSystemCallInterface () {
+        return systemCalls;
+    }
+
+    /**
+     * Report every instruction fetched from now on to a pipeline model (see PipelinedCPU), or stop.
+     * While a model is set, runTurbo interprets every instruction, without block translation or fusion.
+     *
+     * @param pipeline model to report to, or null.
+     */
+    void setPipelineModel (PipelineModel pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Record every instruction retired from now on, or stop recording.
+     * While a recorder is set, runTurbo interprets every instruction, without block translation or fusion.
+     * Detach the recorder (set null) before reading a trace recorded in the clocked cycle, so that the last
+     * instruction executed is recorded.
+     *
+     * @param recorder recorder to write to, or null to disable tracing.
+     */
+    public void setTraceRecorder (TraceRecorder recorder) {
+        if (traceState == TRACE_EXECUTED)
+            tracer.retire (tracePc, traceInfo, traceExt, traceRegisters());
+        tracer     = recorder;
+        traceState = TRACE_IDLE;
+    }
+
+    public TraceRecorder getTraceRecorder () {
+        return tracer;
+    }
+
+    /**
+     * @return the current values of r0-r7, in traceRegisters.
+     */
+    private int[] traceRegisters () {
+        try {
+            for (int i = 0; i < traceRegisters.length; i++)
+                traceRegisters [i] = reg.get (i);
+        } catch (RegisterSet.InvalidRegisterNumberException e) {
+            throw new AssertionError (e);
+        }
+        return traceRegisters;
+    }
+
+    /**
+     * Record the instruction executed since the previous fetch, if any, and note the one just fetched.
+     */
+    private void traceFetch (int pcVal, int info) {
+        if (traceState == TRACE_EXECUTED)
+            tracer.retire (tracePc, traceInfo, traceExt, traceRegisters());
+        else
+            tracer.sync (traceRegisters());
+        tracePc    = pcVal;
+        traceInfo  = info;
+        traceExt   = decodedExt;
+        traceState = TRACE_FETCHED;
+    }
+
+    /**
+     * Determine whether the decoded form of an instruction may be cached under the physical
+     * address of its first byte.  Subclasses that translate addresses must refuse instructions
+     * whose bytes need not be physically contiguous.
+     *
+     * @param pcVal  address of the instruction.
+     * @param length instruction length in bytes.
+     * @return true iff the instruction may be cached.
+     */
+    protected boolean isInstructionCacheable (int pcVal, int length) {
+        return true;
     }
 
     /**
@@ -244,28 +631,220 @@ public class CPU extends AbstractSM213CPU {
      * @throws MainMemory.InvalidAddressException when program counter contains an invalid memory address
      */
     @Override protected void fetch() throws MainMemory.InvalidAddressException {
-        int            pcVal  = pc.get();
+        int pcVal = pc.get();
+        int info  = decode (pcVal);
+        if (profiler != null)
+            profiler.count (pcVal, DecodedInstructionCache.opCode (info));
+        if (timing != null)
+            timing.fetch (pcVal, DecodedInstructionCache.length (info));
+        if (pipeline != null)
+            pipeline.fetch (pcVal, info, decodedExt);
+        if (tracer != null)
+            traceFetch (pcVal, info);
+        setInstructionRegisters (info, decodedExt);
+        pc.set (pcVal + DecodedInstructionCache.length (info));
+    }
+
+    /**
+     * Decode the instruction at an address, consulting the decoded-instruction cache if there is one.
+     * The extension word of a six-byte instruction is left in decodedExt.
+     *
+     * @param pcVal address of the instruction.
+     * @return packed decode info (see DecodedInstructionCache).
+     * @throws MainMemory.InvalidAddressException when pcVal is not a valid instruction address.
+     */
+    int decode (int pcVal) throws MainMemory.InvalidAddressException {
+        int key  = decodeCache != null ? translateAddress (pcVal) : 0;
+        int info = decodeCache != null ? decodeCache.lookup (key)  : 0;
+        if (info != 0) {
+            decodedExt = decodeCache.ext (key);
+            return info;
+        }
+        if (decodeCache != null)
+            decodeCache.beginFill (key);
+        info = decodeFromMemory (pcVal);
+        if (decodeCache != null && isInstructionCacheable (pcVal, DecodedInstructionCache.length (info)))
+            decodeCache.fill (key, info, decodedExt);
+        return info;
+    }
+
+    /**
+     * Decode the instruction at an address from memory, without consulting the decoded-instruction cache, e.g.,
+     * for BlockTranslator, which must see every store that another hart made before it began to translate.
+     * The extension word of a six-byte instruction is left in decodedExt.
+     *
+     * @param pcVal address of the instruction.
+     * @return packed decode info (see DecodedInstructionCache).
+     * @throws MainMemory.InvalidAddressException when pcVal is not a valid instruction address.
+     */
+    int decodeFromMemory (int pcVal) throws MainMemory.InvalidAddressException {
+        // a fetch is not a data load, so neither read is checked against watchpoints
         UnsignedByte[] ins    = mem.read (pcVal, 2);
-        byte           opCode = (byte) (ins[0].value() >>> 4);
-        insOpCode.set (opCode);
-        insOp0.set    (ins[0].value() & 0x0f);
-        insOp1.set    (ins[1].value() >>> 4);
-        insOp2.set    (ins[1].value() & 0x0f);
-        insOpImm.set  (ins[1].value());
-        pcVal += 2;
-        switch (opCode) {
-            case 0x0:
-            case 0xb:
-                long opExt = mem.readIntegerUnaligned (pcVal) & 0xffffffffL;
-                pcVal += 4;
-                insOpExt.set    (opExt);
-                instruction.set (ins[0].value() << 40 | ins[1].value() << 32 | opExt);
-                break;
-            default:
-                insOpExt.set    (0);
-                instruction.set (ins[0].value() << 40 | ins[1].value() << 32);
+        int            opCode = (int) (ins[0].value() >>> 4);
+        int            length = 2;
+        int            ext    = 0;
+        if (opCode == 0x0 || opCode == 0xb) {
+            ext    = MainMemory.peekInt (getMainMemory(), translateAddress (pcVal + 2));
+            length = 6;
+        }
+        decodedExt = ext;
+        return DecodedInstructionCache.pack ((int) ins[0].value(), (int) ins[1].value(), length);
+    }
+
+    /**
+     * @return extension word of the instruction most recently decoded.
+     */
+    int decodedExt () {
+        return decodedExt;
+    }
+
+    /**
+     * Read a word through the CPU's (possibly translating) memory port.
+     *
+     * @param address virtual address.
+     * @return the word at address.
+     * @throws MainMemory.InvalidAddressException when address is invalid or not aligned.
+     */
+    public int readWord (int address) throws MainMemory.InvalidAddressException {
+        return mem.readInteger (address);
+    }
+
+    /**
+     * Write a word through the CPU's (possibly translating) memory port.
+     *
+     * @param address virtual address.
+     * @param value   word to store.
+     * @throws MainMemory.InvalidAddressException when address is invalid or not aligned.
+     */
+    public void writeWord (int address, int value) throws MainMemory.InvalidAddressException {
+        mem.writeInteger (address, value);
+    }
+
+    /**
+     * Load a word for an ld instruction, charging the timing model if there is one.
+     */
+    private int load (int address) throws MainMemory.InvalidAddressException {
+        if (timing != null)
+            timing.data (address);
+        return mem.readInteger (address);
+    }
+
+    /**
+     * Store a word for an st instruction, charging the timing model if there is one.
+     */
+    private void store (int address, int value) throws MainMemory.InvalidAddressException {
+        if (timing != null)
+            timing.data (address);
+        mem.writeInteger (address, value);
+    }
+
+    /**
+     * Make a system call for a sys instruction.
+     *
+     *   sys $0 ..... f100  read  (fd r0, buffer r1, length r2)
+     *   sys $1 ..... f101  write (fd r0, buffer r1, length r2)
+     *   sys $2 ..... f102  exec  (command r0, length r1)
+     *
+     * Without a system call interface the call is passed to the caller of start (ui.Machine), which makes it and
+     * restarts the CPU with its result in r0.
+     *
+     * @param number system call number.
+     * @param r0     value of r0.
+     * @param r1     value of r1.
+     * @param r2     value of r2.
+     * @return       result, for r0.
+     * @throws InvalidInstructionException        if number is not a system call.
+     * @throws MainMemory.InvalidAddressException if the buffer does not lie in memory.
+     * @throws SystemCallInterface.SyscallInterrupt if there is no system call interface.
+     */
+    private int syscall (int number, int r0, int r1, int r2) throws InvalidInstructionException, MainMemory.InvalidAddressException {
+        if (number > BufferedSystemCallInterface.SYS_EXEC)
+            throw new InvalidInstructionException();
+        if (systemCalls == null)
+            throw new SystemCallInterface.SyscallInterrupt (number, new int[] {r0, r1, r2});
+        switch (number) {
+            case BufferedSystemCallInterface.SYS_READ:  return systemCalls.read  (this::storeRead, r0, r1, r2);
+            case BufferedSystemCallInterface.SYS_WRITE: return systemCalls.write (getMainMemory(), r0, r1, r2);
+            default:                                    return -1;
+        }
+    }
+
+    /**
+     * Store the bytes a sys $0 has read as st would: charging each word to the timing model, telling the trace
+     * recorder, and through MainMemory.writeBuffer, which tells write listeners (e.g., ReverseDebugger) and
+     * watchpoints.  The address is physical, as in ui.Machine.
+     */
+    private void storeRead (int address, ByteBuffer bytes) throws MainMemory.InvalidAddressException {
+        int length = bytes.remaining();
+        if (timing != null)
+            for (int a = address & ~3; a - address < length; a += 4)
+                timing.data (a);
+        BufferedSystemCallInterface.store (getMainMemory(), address, bytes);
+        if (tracer != null)
+            tracer.read (address, length);
+    }
+
+    /**
+     * Perform an atomic read-modify-write on the word at a virtual address.
+     *
+     *   cas  (ra), rs ..... 50as  if m[ra] == r0 then m[ra] = rs; r0 = old m[ra]
+     *   xadd rs, (ra) ..... 51as  m[ra] = m[ra] + rs;             rs = old m[ra]
+     *   xchg rs, (ra) ..... 52as  m[ra] = rs;                     rs = old m[ra]
+     *
+     * On an AtomicMemory the operation is atomic with respect to every CPU sharing the memory and is a
+     * full fence.  Any other memory is used by one CPU only, so a plain load and store suffice.
+     *
+     * @param function ATOMIC_CAS, ATOMIC_XADD or ATOMIC_XCHG.
+     * @param address  virtual address of the word.
+     * @param value    value stored (cas, xchg) or added (xadd).
+     * @param expected value the word must hold for cas to store.
+     * @return the word's previous value.
+     * @throws InvalidInstructionException        when function is not an atomic operation.
+     * @throws MainMemory.InvalidAddressException when address is invalid or not aligned.
+     */
+    private int atomic (int function, int address, int value, int expected) throws InvalidInstructionException, MainMemory.InvalidAddressException {
+        if (function > ATOMIC_XCHG)
+            throw new InvalidInstructionException();
+        if (timing != null)
+            timing.data (address);
+        AbstractMainMemory memory = getMainMemory();
+        if (memory instanceof AtomicMemory) {
+            AtomicMemory atomicMemory = (AtomicMemory) memory;
+            int          pa           = translateAddress (address);
+            switch (function) {
+                case ATOMIC_CAS:  return atomicMemory.compareAndSwap (pa, expected, value);
+                case ATOMIC_XADD: return atomicMemory.getAndAdd      (pa, value);
+                default:          return atomicMemory.getAndSet      (pa, value);
+            }
+        }
+        int old = mem.readInteger (address);
+        if (function != ATOMIC_CAS || old == expected)
+            mem.writeInteger (address, function == ATOMIC_XADD ? old + value : value);
+        return old;
+    }
+
+    /**
+     * Load the instruction registers from a decoded instruction.
+     *
+     * @param info packed decode info.
+     * @param ext  extension word, ignored for two-byte instructions.
+     */
+    private void setInstructionRegisters (int info, int ext) {
+        long byte0 = DecodedInstructionCache.byte0 (info);
+        long byte1 = DecodedInstructionCache.imm   (info);
+        insOpCode.set (DecodedInstructionCache.opCode (info));
+        insOp0.set    (DecodedInstructionCache.op0    (info));
+        insOp1.set    (DecodedInstructionCache.op1    (info));
+        insOp2.set    (DecodedInstructionCache.op2    (info));
+        insOpImm.set  (byte1);
+        if (DecodedInstructionCache.length (info) == 6) {
+            long opExt = ext & 0xffffffffL;
+            insOpExt.set    (opExt);
+            instruction.set (byte0 << 40 | byte1 << 32 | opExt);
+        } else {
+            insOpExt.set    (0);
+            instruction.set (byte0 << 40 | byte1 << 32);
         }
-        pc.set (pcVal);
     }
 
 
@@ -293,19 +872,24 @@ public class CPU extends AbstractSM213CPU {
                 break;
 
             case 0x1: // ld o(rs), rd .......... 1psd  (p = o / 4)
-                reg.set (insOp2.get(), mem.readInteger ((insOp0.get() << 2) + reg.get (insOp1.get())));
+                reg.set (insOp2.get(), load ((insOp0.get() << 2) + reg.get (insOp1.get())));
                 break;
 
             case 0x2: // ld (rs, ri, 2), rd .... 2sid
-                reg.set (insOp2.get(), mem.readInteger (reg.get (insOp0.get()) + (reg.get (insOp1.get())<<2)));
+                reg.set (insOp2.get(), load (reg.get (insOp0.get()) + (reg.get (insOp1.get())<<2)));
                 break;
 
             case 0x3: // st rs, o(rd) .......... 3spd  (p = o / 4)
-                mem.writeInteger ((insOp1.get() << 2) + reg.get (insOp2.get()), reg.get (insOp0.get()));
+                store ((insOp1.get() << 2) + reg.get (insOp2.get()), reg.get (insOp0.get()));
                 break;
 
             case 0x4: // st rs, (rd, ri, 4) .... 4sdi
-                mem.writeInteger (reg.get (insOp1.get()) + (reg.get (insOp2.get())<<2), reg.get (insOp0.get()));
+                store (reg.get (insOp1.get()) + (reg.get (insOp2.get())<<2), reg.get (insOp0.get()));
+                break;
+
+            case 0x5: // atomic ................ 5fas  (f selects cas, xadd or xchg; see atomic)
+                int old = atomic (insOp0.get(), reg.get (insOp1.get()), reg.get (insOp2.get()), reg.get (0));
+                reg.set (insOp0.get() == ATOMIC_CAS ? 0 : insOp2.get(), old);
                 break;
 
             case 0x6: // ALU ................... 6-sd
@@ -360,38 +944,17 @@ public class CPU extends AbstractSM213CPU {
                 break;
 
             case 0x8: // br a .................. 8-pp  (a = pc + pp * 2)
-                //pc.set((pc.get()+(insOp1.get()*16*2+insOp2.get()*2)));
-                int pp = (insOp1.get() << 4) + insOp2.get();
-                if ((pp & 0x80) == 0x80) { // which means pp is negative
-                    pp = (~pp & 0xff) + 1;
-                    pc.set(pc.get() - pp*2);
-                } else {
-                    pc.set(pc.get() + pp*2);
-                }
+                pc.set (branchTarget());
                 break;
 
             case 0x9: // beq rs, a ............. 9rpp  (a = pc + pp * 2)
-                if (reg.get(insOp0.get()) == 0) {
-                    int pp2 = (insOp1.get() << 4) + insOp2.get();
-                    if ((pp2 & 0x80) == 0x80) { // which means pp is negative
-                        pp2 = (~pp2 & 0xff) + 1;
-                        pc.set(pc.get() - pp2*2);
-                    } else {
-                        pc.set(pc.get() + pp2*2);
-                    }
-                }
+                if (reg.get(insOp0.get()) == 0)
+                    pc.set (branchTarget());
                 break;
 
             case 0xa: // bg rs, a .............. arpp  (a = pc + pp * 2)
-                if (reg.get(insOp0.get()) > 0) {
-                    int pp3 = (insOp1.get() << 4) + insOp2.get();
-                    if ((pp3 & 0x80) == 0x80) { // which means pp is negative
-                        pp3 = (~pp3 & 0xff) + 1;
-                        pc.set(pc.get() - pp3*2);
-                    } else {
-                        pc.set(pc.get() + pp3*2);
-                    }
-                }
+                if (reg.get(insOp0.get()) > 0)
+                    pc.set (branchTarget());
                 break;
 
             case 0xb: // j i ................... b--- iiii iiii
@@ -399,13 +962,20 @@ public class CPU extends AbstractSM213CPU {
                 break;
 
             case 0xc: // j o(rr) ............... crpp  (pp = o / 2)
-                pc.set(reg.get(insOp0.get()) + (insOp1.get()*16*2+insOp2.get()*2));
+                pc.set (reg.get (insOp0.get()) + 2 * insOpImm.getUnsigned());
                 break;
 
-            case 0xf: // halt or nop ............. f?--
-                if (insOp0.get() == 0)
+            case 0xf: // halt, sys or nop ........ f?--
+                if (insOp0.get() == 0) {
                     // halt .......................... f0--
+                    if (tracer != null && traceState == TRACE_FETCHED) {
+                        tracer.retire (tracePc, traceInfo, traceExt, traceRegisters());
+                        traceState = TRACE_IDLE;
+                    }
                     throw new MachineHaltException();
+                } else if (insOp0.get() == 1)
+                    // sys $n ........................ f1nn
+                    reg.set (0, syscall (insOpImm.getUnsigned(), reg.get (0), reg.get (1), reg.get (2)));
                 else if (insOp0.getUnsigned() == 0xf)
                     // nop ........................... ff--
                     break;
@@ -414,5 +984,427 @@ public class CPU extends AbstractSM213CPU {
             default:
                 throw new InvalidInstructionException();
         }
+        if (tracer != null && traceState == TRACE_FETCHED)
+            traceState = TRACE_EXECUTED;
+    }
+
+    /**
+     * @return target of the branch just fetched: pre-resolved by the control-flow graph if it has one for the
+     *         branch, else pc plus the sign-extended displacement times two.
+     */
+    private int branchTarget () {
+        int next = pc.get();
+        if (controlFlowGraph != null) {
+            long target = controlFlowGraph.target (next - 2);
+            if (target != ControlFlowGraph.NO_TARGET)
+                return (int) target;
+        }
+        return next + 2 * (byte) insOpImm.get();
+    }
+
+    /**
+     * Enable or disable turbo mode.
+     *
+     * In turbo mode start runs the program in runTurbo, which keeps the general-purpose registers and the
+     * current instruction in local variables instead of clocked Register ports and does not notify observers
+     * between instructions.  Register, pc and instruction-register state is written back only when the run
+     * stops: on halt, on an exception, at a turbo breakpoint or when interrupted.  Use it for batch runs;
+     * leave it off when single-stepping or animating in the GUI.
+     *
+     * @param enabled true to run in turbo mode.
+     */
+    public void setTurboMode (boolean enabled) {
+        turboMode = enabled;
+    }
+
+    public boolean isTurboMode () {
+        return turboMode;
+    }
+
+    /**
+     * Set or clear a breakpoint honoured by start (clocked or turbo) and runTurbo.  Execution stops before the
+     * instruction at the address is executed, unless it is the first instruction of the run (so that a run can
+     * resume).  Breakpoints are kept in a BreakpointSet, so checking one costs a bit test however many are set,
+     * and nothing at all when none is.  They may be set or cleared while the CPU runs.
+     *
+     * @param address instruction address; must not be negative.
+     * @param enabled true to set the breakpoint, false to clear it.
+     */
+    public synchronized void setBreakpoint (int address, boolean enabled) {
+        breakpoints = breakpoints.with (address, enabled);
+    }
+
+    /**
+     * Same as setBreakpoint.
+     */
+    public void setTurboBreakpoint (int address, boolean enabled) {
+        setBreakpoint (address, enabled);
+    }
+
+    /**
+     * @return the breakpoints currently set.
+     */
+    public BreakpointSet getBreakpoints () {
+        return breakpoints;
+    }
+
+    @Override public void start () throws InvalidInstructionException, MachineHaltException, MainMemory.InvalidAddressException, Register.TimingException, ImplementationException {
+        if (watchpoints != null)
+            watchpointHits = watchpoints.getHitCount();
+        if (turboMode)
+            runTurbo (Long.MAX_VALUE);
+        else
+            try {
+                if (notificationsEnabled && notificationRate > 0 && NotificationCoalescer.isObserved (this)) {
+                    NotificationCoalescer coalescer = new NotificationCoalescer (this, notificationRate);
+                    coalescer.start();
+                    try {
+                        super.start();
+                    } finally {
+                        coalescer.stop();
+                    }
+                } else
+                    super.start();
+            } finally {
+                if (systemCalls != null)
+                    systemCalls.flush();
+            }
+    }
+
+    /**
+     * Run one clocked cycle, then interrupt start if the next instruction is a breakpoint or the cycle hit a
+     * watchpoint.
+     */
+    @Override protected void cycle () throws InvalidInstructionException, MachineHaltException, MainMemory.InvalidAddressException {
+        super.cycle();
+        BreakpointSet breakpoints = this.breakpoints;
+        Watchpoints   watchpoints = this.watchpoints;
+        boolean       stop        = !breakpoints.isEmpty() && breakpoints.contains (pc.get());
+        if (watchpoints != null && watchpoints.getHitCount() != watchpointHits) {
+            watchpointHits = watchpoints.getHitCount();
+            stop           = true;
+        }
+        if (stop)
+            super.triggerInterrupt();
+    }
+
+    @Override public synchronized void triggerInterrupt () {
+        turboInterrupt = true;
+        if (!turboRunning)
+            super.triggerInterrupt();
+    }
+
+    /**
+     * Limit the wall-clock time of each runTurbo call, which stops as if interrupted once it has run this long.
+     * Unlike a triggerInterrupt from a timer, the limit cannot be lost by firing before the run starts.
+     *
+     * @param nanos time limit in nanoseconds, or 0 for none.
+     */
+    public void setTurboTimeout (long nanos) {
+        turboTimeout = nanos;
+    }
+
+    /**
+     * Run from the current pc without per-instruction clock ticks or observer notifications.
+     *
+     * Instructions behave exactly as in fetch and execute.  The interrupt flag and the time limit (see
+     * setTurboTimeout) are polled every TURBO_POLL_INTERVAL instructions.
+     *
+     * @param maxInstructions stop after executing this many instructions.
+     * @return number of instructions executed, including a final halt.
+     * @throws InvalidInstructionException        when instruction format is invalid or references an invalid register.
+     * @throws MachineHaltException               when instruction is the HALT instruction.
+     * @throws MainMemory.InvalidAddressException when instruction references an invalid memory address.
+     */
+    public long runTurbo (long maxInstructions) throws InvalidInstructionException, MachineHaltException, MainMemory.InvalidAddressException {
+        try {
+            return turbo (maxInstructions);
+        } catch (RegisterSet.InvalidRegisterNumberException e) {
+            throw new InvalidInstructionException();
+        }
+    }
+
+    private long turbo (long maxInstructions) throws InvalidInstructionException, MachineHaltException, RegisterSet.InvalidRegisterNumberException, MainMemory.InvalidAddressException {
+        int[]         r              = new int [BlockTranslator.PC + 1];
+        int           pcVal          = pc.get();
+        int           info           = 0;
+        int           ext            = 0;
+        long          count          = 0;
+        long          nextPoll       = 0;
+        BreakpointSet breakpoints    = this.breakpoints;
+        boolean       hasBreakpoints = !breakpoints.isEmpty();
+        Watchpoints   watchpoints    = this.watchpoints;
+        long          hits           = watchpoints != null ? watchpoints.getHitCount() : 0;
+        TimingModel   timing         = this.timing;
+        PipelineModel pipeline       = this.pipeline;
+        GuestProfiler profiler       = this.profiler;
+        boolean       countRuns      = profiler != null && getMainMemory() instanceof MemoryWriteSource;
+        long[]        runKeys        = countRuns ? profiler.runKeys   : null;
+        long[]        runCounts      = countRuns ? profiler.runCounts : null;
+        int           runStart       = pcVal; // the straight-line run being counted is [runStart, runNext)
+        int           runNext        = pcVal;
+        for (int i = 0; i < BlockTranslator.PC; i++)
+            r [i] = reg.get (i);
+        TraceRecorder tracer    = this.tracer;
+        boolean       translate = tracer == null && watchpoints == null && timing == null && pipeline == null;
+        if (tracer != null) {
+            if (traceState == TRACE_EXECUTED)
+                tracer.retire (tracePc, traceInfo, traceExt, r);
+            traceState = TRACE_IDLE;
+            tracer.sync (r);
+        }
+        long          timeout   = turboTimeout;
+        long          deadline  = System.nanoTime() + timeout;
+        turboInterrupt = false;
+        turboRunning   = true;
+        try {
+            while (count < maxInstructions) {
+                if (count >= nextPoll) {
+                    if (turboInterrupt || timeout > 0 && System.nanoTime() - deadline >= 0)
+                        break;
+                    nextPoll = count + TURBO_POLL_INTERVAL;
+                }
+                if (hasBreakpoints && count > 0 && breakpoints.contains (pcVal))
+                    break;
+                if (translator != null && translate) {
+                    BlockTranslator.Block block = translator.blockAt (this, pcVal, translateAddress (pcVal));
+                    if (block != null && count + block.count <= maxInstructions
+                            && !(hasBreakpoints && breakpoints.containsAny (pcVal + 1, pcVal + block.length))) {
+                        int executed = -1;
+                        int start    = pcVal;
+                        info = 0;
+                        if (countRuns && runStart != runNext)
+                            profiler.countRun (this, runStart, runNext);
+                        try {
+                            executed = block.run (r, this, pcVal);
+                        } finally {
+                            pcVal = r [BlockTranslator.PC];
+                            // a run that threw still executed the instructions up to and including the one that threw
+                            if (executed < 0)
+                                executed = block.executedBefore (pcVal - start);
+                            count += executed;
+                            // a block translated for the profiler counts its complete runs itself
+                            if (profiler != null) {
+                                if (executed != block.count)
+                                    profiler.countBlock (start, block, executed);
+                                runStart = runNext = pcVal;
+                            }
+                        }
+                        if (block.halts && executed == block.count)
+                            throw new MachineHaltException();
+                        continue;
+                    }
+                }
+                info  = decode (pcVal);
+                ext   = decodedExt;
+                int opCode = DecodedInstructionCache.opCode (info);
+                if (countRuns) {
+                    if (pcVal != runNext) {
+                        int slot = GuestProfiler.runSlot (runStart, runNext);
+                        if (runKeys [slot] == GuestProfiler.runKey (runStart, runNext))
+                            runCounts [slot]++;
+                        else if (runStart != runNext)
+                            profiler.countRun (this, runStart, runNext);
+                        runStart = pcVal;
+                    }
+                    runNext = pcVal + DecodedInstructionCache.length (info);
+                } else if (profiler != null)
+                    profiler.count (pcVal, opCode);
+                if (timing != null)
+                    timing.fetch (pcVal, DecodedInstructionCache.length (info));
+                if (pipeline != null)
+                    pipeline.fetch (pcVal, info, ext);
+                if (fuser != null && translate && count + 1 < maxInstructions) {
+                    int pattern = fuser.lookup (this, pcVal, info);
+                    int second  = pcVal + DecodedInstructionCache.length (info);
+                    if (pattern != 0 && !(hasBreakpoints && breakpoints.contains (second))) {
+                        opCode = FUSED + pattern;
+                        fuser.fired (pattern);
+                        if (countRuns)
+                            runNext = second + DecodedInstructionCache.length (fuser.secondInfo());
+                        else if (profiler != null)
+                            profiler.count (second, DecodedInstructionCache.opCode (fuser.secondInfo()));
+                    }
+                }
+                int at = pcVal;
+                pcVal = pcVal + DecodedInstructionCache.length (info);
+                count++;
+                int op0 = DecodedInstructionCache.op0 (info);
+                int op1 = DecodedInstructionCache.op1 (info);
+                int op2 = DecodedInstructionCache.op2 (info);
+                try {
+                    switch (opCode) {
+
+                        case 0x0: // ld $v, d .............. 0d-- vvvv vvvv
+                            r [op0] = ext;
+                            break;
+
+                        case 0x1: // ld o(rs), rd .......... 1psd  (p = o / 4)
+                            r [op2] = load ((op0 << 2) + r [op1]);
+                            break;
+
+                        case 0x2: // ld (rs, ri, 4), rd .... 2sid
+                            r [op2] = load (r [op0] + (r [op1] << 2));
+                            break;
+
+                        // Instructions that store end the run being counted first, so that the profiler decodes
+                        // the run before the store can rewrite it.
+
+                        case 0x3: // st rs, o(rd) .......... 3spd  (p = o / 4)
+                            if (countRuns)
+                                runStart = profiler.countRun (this, runStart, pcVal);
+                            store ((op1 << 2) + r [op2], r [op0]);
+                            break;
+
+                        case 0x4: // st rs, (rd, ri, 4) .... 4sdi
+                            if (countRuns)
+                                runStart = profiler.countRun (this, runStart, pcVal);
+                            store (r [op1] + (r [op2] << 2), r [op0]);
+                            break;
+
+                        case 0x5: // atomic ................ 5fas
+                            if (countRuns)
+                                runStart = profiler.countRun (this, runStart, pcVal);
+                            r [op0 == ATOMIC_CAS ? 0 : op2] = atomic (op0, r [op1], r [op2], r [0]);
+                            break;
+
+                        case 0x6: // ALU ................... 6-sd
+                            switch (op0) {
+                                case 0x0: r [op2] = r [op1];           break; // mov rs, rd
+                                case 0x1: r [op2] = r [op1] + r [op2]; break; // add rs, rd
+                                case 0x2: r [op2] = r [op1] & r [op2]; break; // and rs, rd
+                                case 0x3: r [op2] = r [op2] + 1;       break; // inc rr
+                                case 0x4: r [op2] = r [op2] + 4;       break; // inca rr
+                                case 0x5: r [op2] = r [op2] - 1;       break; // dec rr
+                                case 0x6: r [op2] = r [op2] - 4;       break; // deca rr
+                                case 0x7: r [op2] = ~r [op2];          break; // not rr
+                                case 0xf: r [op2] = pcVal + 2 * op1;   break; // gpc
+                                default:
+                                    throw new InvalidInstructionException();
+                            }
+                            break;
+
+                        case 0x7: // sh? $i,rd ............. 7dii
+                            int shift = (byte) DecodedInstructionCache.imm (info);
+                            r [op0] = shift > 0 ? r [op0] << shift : r [op0] >> -shift;
+                            break;
+
+                        case 0x8: // br a .................. 8-pp  (a = pc + pp * 2)
+                            pcVal += 2 * (byte) DecodedInstructionCache.imm (info);
+                            break;
+
+                        case 0x9: // beq rs, a ............. 9rpp  (a = pc + pp * 2)
+                            if (r [op0] == 0)
+                                pcVal += 2 * (byte) DecodedInstructionCache.imm (info);
+                            break;
+
+                        case 0xa: // bg rs, a .............. arpp  (a = pc + pp * 2)
+                            if (r [op0] > 0)
+                                pcVal += 2 * (byte) DecodedInstructionCache.imm (info);
+                            break;
+
+                        case 0xb: // j i ................... b--- iiii iiii
+                            pcVal = ext;
+                            break;
+
+                        case 0xc: // j o(rr) ............... crpp  (pp = o / 2)
+                            pcVal = r [op0] + 2 * DecodedInstructionCache.imm (info);
+                            break;
+
+                        case 0xf: // halt, sys or nop ........ f?--
+                            if (op0 == 0) {
+                                if (tracer != null)
+                                    tracer.retire (at, info, ext, r);
+                                throw new MachineHaltException();
+                            } else if (op0 == 1) {
+                                if (countRuns)
+                                    runStart = profiler.countRun (this, runStart, pcVal);
+                                r [0] = syscall (DecodedInstructionCache.imm (info), r [0], r [1], r [2]);
+                            }
+                            break;
+
+                        // Fused pairs: the first instruction executes, then info, ext, pc and count advance
+                        // to the second, exactly as if it had been fetched separately.
+
+                        case FUSED + SuperinstructionFuser.LOAD_ADDRESS_LOAD: // ld $a, rA; ld o(rA), rB
+                            r [op0] = ext;
+                            info    = fuser.secondInfo();
+                            ext     = fuser.secondExt();
+                            pcVal  += DecodedInstructionCache.length (info);
+                            count++;
+                            r [DecodedInstructionCache.op2 (info)] = mem.readInteger ((DecodedInstructionCache.op0 (info) << 2) + r [op0]);
+                            break;
+
+                        case FUSED + SuperinstructionFuser.STEP_BRANCH: // inc/inca/dec/deca rA; beq/bgt rA, L
+                            r [op2] += op0 == 0x3 ? 1 : op0 == 0x4 ? 4 : op0 == 0x5 ? -1 : -4;
+                            info     = fuser.secondInfo();
+                            ext      = fuser.secondExt();
+                            pcVal   += DecodedInstructionCache.length (info);
+                            count++;
+                            if (DecodedInstructionCache.opCode (info) == 0x9 ? r [op2] == 0 : r [op2] > 0)
+                                pcVal += 2 * (byte) DecodedInstructionCache.imm (info);
+                            break;
+
+                        case FUSED + SuperinstructionFuser.INDEXED_LOAD_INC: // ld (rS, rI, 4), rD; inc rI
+                            r [op2]  = mem.readInteger (r [op0] + (r [op1] << 2));
+                            info     = fuser.secondInfo();
+                            ext      = fuser.secondExt();
+                            pcVal   += DecodedInstructionCache.length (info);
+                            count++;
+                            r [op1] += 1;
+                            break;
+
+                        case FUSED + SuperinstructionFuser.INDEXED_LOAD_ADD: // ld (rS, rI, 4), rD; add rD, rT
+                            r [op2]  = mem.readInteger (r [op0] + (r [op1] << 2));
+                            info     = fuser.secondInfo();
+                            ext      = fuser.secondExt();
+                            pcVal   += DecodedInstructionCache.length (info);
+                            count++;
+                            int rt   = DecodedInstructionCache.op2 (info);
+                            r [rt]   = r [op2] + r [rt];
+                            break;
+
+                        default:
+                            throw new InvalidInstructionException();
+                    }
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    // register number 8-f
+                    throw new InvalidInstructionException();
+                }
+                if (tracer != null)
+                    tracer.retire (at, info, ext, r);
+                if (watchpoints != null && watchpoints.getHitCount() != hits)
+                    break;
+            }
+        } finally {
+            if (countRuns && runStart != runNext)
+                profiler.countRun (this, runStart, runNext);
+            if (systemCalls != null)
+                systemCalls.flush();
+            turboRunning      = false;
+            turboInstructions = count;
+            for (int i = 0; i < BlockTranslator.PC; i++)
+                reg.set (i, r [i]);
+            pc.set (pcVal);
+            if (info != 0)
+                setInstructionRegisters (info, ext);
+            // latch the written values, as cycle's clock ticks do, so that Register.get sees them
+            getRegisterFile().tickClock (Register.ClockTransition.NORMAL);
+            for (RegisterSet set : getProcessorState())
+                if (set != getRegisterFile())
+                    set.tickClock (Register.ClockTransition.NORMAL);
+            if (notificationsEnabled) {
+                setChanged();
+                notifyObservers();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of instructions executed by the most recent runTurbo, including one that ended with an exception.
+     */
+    public long getTurboInstructionCount () {
+        return turboInstructions;
     }
 }
@@ -0,0 +1,234 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPUTest {
+    static final int MEMORY_SIZE = 0x4000;
+
+    // every instruction the CPU implements: loads, stores, ALU, shifts, branches, jumps, a call and atomics
+    static final List<String> PROGRAM = Arrays.asList(
+            ".pos 0x100",
+            "        ld $a, r1",
+            "        ld $0, r0",
+            "        ld $5, r2",
+            "        ld $0, r3",
+            "loop:   ld (r1, r0, 4), r4",
+            "        add r4, r3",
+            "        shl $1, r4",
+            "        st r4, (r1, r0, 4)",
+            "        inc r0",
+            "        dec r2",
+            "        bgt r2, loop",
+            "        ld 4(r1), r5",
+            "        not r5",
+            "        and r3, r5",
+            "        shr $2, r5",
+            "        st r5, 8(r1)",
+            "        mov r3, r7",
+            "        gpc $6, r6",
+            "        j fn",
+            "        inca r3",
+            "        deca r3",
+            "        ld $20, r2",
+            "        add r1, r2",
+            "        ld $1, r0",
+            "        .long 0x50215120",
+            "        beq r2, done",
+            "        ld $done, r2",
+            "        j 0(r2)",
+            "        halt",
+            "done:   nop",
+            "        halt",
+            "fn:     inca r7",
+            "        j 0(r6)",
+            ".pos 0x1000",
+            "a:      .long 3",
+            "        .long -7",
+            "        .long 11",
+            "        .long 0x7fffffff",
+            "        .long 42",
+            "        .long 1");
+
+    static CPU load(List<String> source) throws Exception {
+        MainMemory           memory    = new MainMemory(MEMORY_SIZE);
+        IncrementalAssembler assembler = new IncrementalAssembler(source);
+        assembler.write(memory);
+        CPU cpu = new CPU(CPU.class.getName(), memory);
+        cpu.setNotificationsEnabled(false);
+        cpu.resetMachineToPC(assembler.getEntryPoint());
+        return cpu;
+    }
+
+    /**
+     * Run clocked cycles until halt.
+     * @return number of instructions executed, including the halt.
+     */
+    static long runClocked(CPU cpu) throws Exception {
+        for (long n = 1; n < 100000; n++)
+            try {
+                cpu.cycle();
+            } catch (AbstractCPU.MachineHaltException e) {
+                return n;
+            }
+        fail("should halt");
+        return 0;
+    }
+
+    static long runTurbo(CPU cpu) throws Exception {
+        try {
+            cpu.runTurbo(100000);
+            fail("should halt");
+        } catch (AbstractCPU.MachineHaltException e) {
+            // pass
+        }
+        return cpu.getTurboInstructionCount();
+    }
+
+    static int[] state(CPU cpu) {
+        int[] state = new int[9];
+        for (int i = 0; i < 8; i++)
+            state[i] = cpu.getRegisterFile().getValue("r" + i);
+        state[8] = BatchRunner.pcOf(cpu);
+        return state;
+    }
+
+    static byte[] memory(CPU cpu) throws Exception {
+        MainMemory memory = (MainMemory) cpu.getMainMemory();
+        return memory.get(0, memory.length());
+    }
+
+    @Test
+    public void testProgram() throws Exception {
+        CPU cpu = load(PROGRAM);
+        runClocked(cpu);
+        int[] r = state(cpu);
+        // sum of a[0..4] in r3, and the call added 4 to it in r7
+        assertEquals(3 - 7 + 11 + 0x7fffffff + 42, r[3]);
+        assertEquals(r[3] + 4, r[7]);
+        assertEquals(6, cpu.readWord(0x1000));
+        // test both atomics ran: cas (r2), r1 swapped 0x1000 for the 1 in r0, then xadd r0, (r2) added it back
+        assertEquals(0x1001, cpu.readWord(0x1014));
+        assertEquals(0x1000, r[0]);
+    }
+
+    @Test
+    public void testTurboMatchesClocked() throws Exception {
+        CPU clocked = load(PROGRAM);
+        CPU turbo   = load(PROGRAM);
+        assertEquals(runClocked(clocked), runTurbo(turbo));
+        assertArrayEquals(state(clocked), state(turbo));
+        assertArrayEquals(memory(clocked), memory(turbo));
+    }
+
+    @Test
+    public void testTurboStepsMatchClocked() throws Exception {
+        // test the state is written back after every run, e.g. pc is latched where the clocked cycle leaves it
+        CPU clocked = load(PROGRAM);
+        CPU turbo   = load(PROGRAM);
+        for (int step = 0; ; step++) {
+            boolean halted = false;
+            try {
+                clocked.cycle();
+            } catch (AbstractCPU.MachineHaltException e) {
+                halted = true;
+            }
+            try {
+                assertEquals(1, turbo.runTurbo(1), "step " + step);
+                assertFalse(halted, "step " + step);
+            } catch (AbstractCPU.MachineHaltException e) {
+                assertTrue(halted, "step " + step);
+            }
+            assertArrayEquals(state(clocked), state(turbo));
+            if (halted)
+                break;
+        }
+        assertArrayEquals(memory(clocked), memory(turbo));
+    }
+
+    @Test
+    public void testMixedModesMatchClocked() throws Exception {
+        // test a clocked cycle continues where a turbo run stopped, and the other way round
+        CPU clocked = load(PROGRAM);
+        CPU mixed   = load(PROGRAM);
+        for (int step = 0; ; step++) {
+            boolean halted = false;
+            try {
+                clocked.cycle();
+            } catch (AbstractCPU.MachineHaltException e) {
+                halted = true;
+            }
+            try {
+                if (step % 3 == 0)
+                    mixed.cycle();
+                else
+                    mixed.runTurbo(1);
+                assertFalse(halted, "step " + step);
+            } catch (AbstractCPU.MachineHaltException e) {
+                assertTrue(halted, "step " + step);
+            }
+            assertArrayEquals(state(clocked), state(mixed));
+            if (halted)
+                break;
+        }
+        assertArrayEquals(memory(clocked), memory(mixed));
+    }
+
+    @Test
+    public void testTurboFaultMatchesClocked() throws Exception {
+        // a load from beyond the end of memory faults in both modes with the same state
+        List<String> source = Arrays.asList(
+                ".pos 0x100",
+                "        ld $1, r0",
+                "        ld $0x8000, r1",
+                "        ld 0(r1), r2",
+                "        inc r0",
+                "        halt");
+        CPU clocked = load(source);
+        CPU turbo   = load(source);
+        try {
+            runClocked(clocked);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        try {
+            turbo.runTurbo(100);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        assertEquals(3, turbo.getTurboInstructionCount());
+        assertArrayEquals(state(clocked), state(turbo));
+    }
+
+    @Test
+    public void testWatchpoints() throws Exception {
+        CPU         cpu         = load(PROGRAM);
+        Watchpoints watchpoints = new Watchpoints();
+        // test the two loads of a[1] are reported, and neither the fetches of the first instructions nor tool reads
+        watchpoints.setWatchpoint(Watchpoints.Kind.READ, 0x100, 8, true);
+        watchpoints.setWatchpoint(Watchpoints.Kind.READ, 0x1004, 4, true);
+        cpu.setWatchpoints(watchpoints);
+        runClocked(cpu);
+        assertEquals(2, watchpoints.getHitCount());
+        assertEquals(0x1004, watchpoints.getHitAddress());
+        memory(cpu);
+        new ControlFlowGraph(cpu.getMainMemory(), Collections.singletonList(0x100), Collections.emptyMap());
+        assertEquals(2, watchpoints.getHitCount());
+        // test watchpoints need a MainMemory
+        try {
+            new CPU(CPU.class.getName(), new PagedMainMemory(MEMORY_SIZE)).setWatchpoints(watchpoints);
+            fail("should not reach here");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+}
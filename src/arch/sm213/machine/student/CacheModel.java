@@ -0,0 +1,133 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+
+/**
+ * One level of a simulated set-associative cache, for TimingModel.  It holds only tags: data stays in main memory,
+ * so the model decides whether an access hits and how long it takes, never what it reads.
+ *
+ * Lines are allocated on every miss, loads and stores alike (write-allocate); write-backs are not modelled.  Each
+ * set has its own ReplacementPolicy over its ways, e.g., LruReplacementPolicy::new or ClockReplacementPolicy::new.
+ */
+
+public class CacheModel {
+  private static final int INVALID = -1;
+
+  private final String              name;
+  private final int                 sets;
+  private final int                 ways;
+  private final int                 lineShift;
+  private final int                 hitLatency;
+  private final int []              tags;
+  private final ReplacementPolicy[] policies;
+  private       long                hits;
+  private       long                misses;
+
+  /**
+   * Create an empty cache.
+   * @param name       name used in reports, e.g., "L1I".
+   * @param size       capacity in bytes.
+   * @param ways       number of lines per set.
+   * @param lineSize   bytes per line; a power of two, at least 4.
+   * @param hitLatency cycles taken by an access that hits.
+   * @param policy     creates the replacement policy of a set, given the number of ways.
+   * @throws IllegalArgumentException if the geometry does not give a power-of-two number of sets.
+   */
+  public CacheModel (String name, int size, int ways, int lineSize, int hitLatency, IntFunction<ReplacementPolicy> policy) {
+    if (lineSize < 4 || (lineSize & (lineSize - 1)) != 0 || ways <= 0 || size % (ways * lineSize) != 0)
+      throw new IllegalArgumentException (name + ": line size must be a power of two of at least 4 that, times ways, divides size");
+    sets = size / (ways * lineSize);
+    if (sets == 0 || (sets & (sets - 1)) != 0)
+      throw new IllegalArgumentException (name + ": number of sets (" + sets + ") must be a power of two");
+    this.name       = name;
+    this.ways       = ways;
+    this.lineShift  = Integer.numberOfTrailingZeros (lineSize);
+    this.hitLatency = hitLatency;
+    tags            = new int [sets * ways];
+    policies        = new ReplacementPolicy [sets];
+    for (int set = 0; set < sets; set++)
+      policies [set] = policy.apply (ways);
+    Arrays.fill (tags, INVALID);
+  }
+
+  /**
+   * Look up the line holding an address, allocating it on a miss.
+   * @param address a byte address.
+   * @return true iff the line was present.
+   */
+  public boolean access (int address) {
+    int line = address >>> lineShift;
+    int set  = line & (sets - 1);
+    int base = set * ways;
+    for (int way = 0; way < ways; way++)
+      if (tags [base + way] == line) {
+        hits++;
+        policies [set].frameAccessed (way);
+        return true;
+      }
+    misses++;
+    int victim = -1;
+    for (int way = 0; way < ways && victim < 0; way++)
+      if (tags [base + way] == INVALID)
+        victim = way;
+    if (victim < 0)
+      victim = policies [set].selectVictim();
+    tags [base + victim] = line;
+    policies [set].frameLoaded (victim);
+    return false;
+  }
+
+  /**
+   * @param a a byte address.
+   * @param b another byte address.
+   * @return true iff a and b lie in the same line.
+   */
+  boolean sameLine (int a, int b) {
+    return a >>> lineShift == b >>> lineShift;
+  }
+
+  public String getName () {
+    return name;
+  }
+
+  public int getHitLatency () {
+    return hitLatency;
+  }
+
+  public int getSets () {
+    return sets;
+  }
+
+  public int getWays () {
+    return ways;
+  }
+
+  public int getLineSize () {
+    return 1 << lineShift;
+  }
+
+  public long getHits () {
+    return hits;
+  }
+
+  public long getMisses () {
+    return misses;
+  }
+
+  /**
+   * @return fraction of accesses that hit, or 0 if there have been none.
+   */
+  public double getHitRate () {
+    return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+  }
+
+  /**
+   * Zero the counters, keeping the lines cached.
+   */
+  public void resetCounters () {
+    hits   = 0;
+    misses = 0;
+  }
+}
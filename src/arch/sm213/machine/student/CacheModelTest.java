@@ -0,0 +1,58 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheModelTest {
+    CacheModel cache;
+
+    @BeforeEach
+    public void runBefore() {
+        // 64 bytes of 16-byte lines in 2 ways: 2 sets, lines 0x00, 0x20, 0x40 .. share set 0
+        cache = new CacheModel("L1D", 64, 2, 16, 1, LruReplacementPolicy::new);
+    }
+
+    @Test
+    public void testGeometry() {
+        assertEquals(2, cache.getSets());
+        assertEquals(2, cache.getWays());
+        assertEquals(16, cache.getLineSize());
+        try {
+            new CacheModel("bad", 96, 2, 16, 1, LruReplacementPolicy::new);
+            fail("should not reach here");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testHitMiss() {
+        assertFalse(cache.access(0x104));
+        // test the rest of the line hits
+        assertTrue(cache.access(0x100));
+        assertTrue(cache.access(0x10c));
+        assertFalse(cache.access(0x110));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate());
+        cache.resetCounters();
+        assertEquals(0, cache.getHits() + cache.getMisses());
+        assertTrue(cache.access(0x110));
+    }
+
+    @Test
+    public void testReplacement() {
+        cache.access(0x00);
+        cache.access(0x20);
+        // touch line 0x00 so line 0x20 is the least recently used in set 0
+        assertTrue(cache.access(0x00));
+        assertFalse(cache.access(0x40));
+        assertTrue(cache.access(0x00));
+        assertFalse(cache.access(0x20));
+        // test the other set is unaffected
+        cache.access(0x10);
+        assertTrue(cache.access(0x10));
+    }
+}
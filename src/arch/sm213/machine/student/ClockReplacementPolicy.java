@@ -0,0 +1,36 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Clock (second-chance) replacement: a frame is evicted the first time the hand finds it unreferenced.
+ */
+
+public class ClockReplacementPolicy implements ReplacementPolicy {
+  private final boolean[] referenced;
+  private       int       hand;
+
+  /**
+   * @param frameCount number of frames in the pool.
+   */
+  public ClockReplacementPolicy (int frameCount) {
+    referenced = new boolean [frameCount];
+  }
+
+  @Override public void frameLoaded (int frame) {
+    referenced [frame] = true;
+  }
+
+  @Override public void frameAccessed (int frame) {
+    referenced [frame] = true;
+  }
+
+  @Override public int selectVictim () {
+    while (referenced [hand]) {
+      referenced [hand] = false;
+      hand = (hand + 1) % referenced.length;
+    }
+    int victim = hand;
+    hand = (hand + 1) % referenced.length;
+    return victim;
+  }
+}
@@ -0,0 +1,400 @@
+package arch.sm213.machine.student;
+
+import isa.Region;
+import machine.AbstractMainMemory;
+import util.UnsignedByte;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * Static control-flow graph of a program image in memory, computed once after loading.
+ *
+ * Instructions are decoded from a set of roots (the first instruction of each instruction region, say), following
+ * every branch and jump whose target is in the instruction: br, beq, bgt and j i.  Indirect jumps (j o(r), j *o(r)
+ * and j *(r,i,4)) end a path.  The instructions reached are split into basic blocks, the nodes of the graph.  Each
+ * node has a taken edge to the node at its branch target and a fall-through edge to the node after it, as its last
+ * instruction allows.
+ *
+ * The absolute target of each direct branch is kept in a table indexed by the branch's address.  A CPU given the
+ * graph (CPU.setControlFlowGraph) looks its branch targets up there instead of decoding and sign-extending the
+ * displacement.  The graph is a MemoryWriteListener: a store into a node's bytes marks the node stale and removes
+ * its branches from the table, so self-modifying code falls back to decoding.  refresh rebuilds the graph from the
+ * same roots.
+ *
+ * Addresses are those of the memory the graph was built from.  The graph can be written in Graphviz DOT format or
+ * as JSON.
+ */
+
+public class ControlFlowGraph implements MemoryWriteListener {
+  /**
+   * Value of target for a node that has no direct branch target.
+   */
+  public static final long NO_TARGET = -1L;
+
+  private static final long     NO_EDGE    = Long.MIN_VALUE;
+  private static final String[] EXIT_NAMES = {
+    "fall", "fall", "fall", "fall", "fall", "fall", "fall", "fall",
+    "br", "beq", "bgt", "j", "j o(r)", "j *o(r)", "j *(r,i,4)", "halt"
+  };
+
+  /**
+   * A basic block.
+   */
+  public static final class Node {
+    public final int          id;
+    public final int          start;
+    public final int          end;           // address after the node's last byte
+    public final int          instructions;
+    public final int          exit;          // opcode of the last instruction, or 0 if the node falls through
+    public final long         target;        // absolute target of the last instruction, or NO_TARGET
+    public final boolean      fallsThrough;  // execution may continue at end
+    public final String       label;         // label at start, or null
+    final        List<Node>   successors = new ArrayList<>(2);
+    volatile     boolean      stale;
+
+    Node (int id, int start, int end, int instructions, int exit, long target, boolean fallsThrough, String label) {
+      this.id           = id;
+      this.start        = start;
+      this.end          = end;
+      this.instructions = instructions;
+      this.exit         = exit;
+      this.target       = target;
+      this.fallsThrough = fallsThrough;
+      this.label        = label;
+    }
+
+    /**
+     * @return the node at the branch target, if it is in the graph, then the node after this one, if execution
+     *         may fall through to it and it is in the graph.
+     */
+    public List<Node> getSuccessors () {
+      return Collections.unmodifiableList (successors);
+    }
+
+    /**
+     * @return true iff a store has overwritten part of the node since the graph was built.
+     */
+    public boolean isStale () {
+      return stale;
+    }
+
+    private String name () {
+      return label != null ? label : String.format ("0x%x", start);
+    }
+  }
+
+  private final    AbstractMainMemory    memory;
+  private final    Set<Integer>          roots;
+  private final    Map<Integer, String>  labels;
+  private volatile TreeMap<Integer, Node> nodes = new TreeMap<>();
+  private volatile long[]                edges = new long [0];
+  private volatile int                   codeStart;
+  private volatile int                   codeEnd;
+  private          int                   staleCount;
+
+  /**
+   * Build the graph of the code reachable from a set of roots.
+   * @param memory memory holding the program.
+   * @param roots  addresses of instructions known to execute, e.g., the entry point.
+   * @param labels names for node addresses (label to address), e.g., IncrementalAssembler.getLabels; may be empty.
+   */
+  public ControlFlowGraph (AbstractMainMemory memory, Collection<Integer> roots, Map<String, Integer> labels) {
+    this.memory = memory;
+    this.roots  = new LinkedHashSet<> (roots);
+    this.labels = new HashMap<>();
+    for (Map.Entry<String, Integer> label : labels.entrySet())
+      this.labels.putIfAbsent (label.getValue(), label.getKey());
+    refresh();
+  }
+
+  /**
+   * Build the graph of a program loaded by the standard loader, from the start of each of its instruction regions.
+   * @param program the program as loaded or assembled, for its instruction regions and labels.
+   * @param memory  the memory it was loaded into.
+   * @return the graph.
+   */
+  public static ControlFlowGraph of (isa.Memory program, AbstractMainMemory memory) {
+    List<Integer>        roots    = new ArrayList<>();
+    Map<String, Integer> labels   = new HashMap<>();
+    isa.Memory.LabelMap  labelMap = program.getLabelMap();
+    for (Region region : program.getRegions())
+      if (region.getType() == Region.Type.INSTRUCTIONS) {
+        roots.add (region.getAddress());
+        for (int a = region.getAddress(); a < region.getAddress() + region.byteLength(); a++) {
+          String label = labelMap.getLabel (a);
+          if (label != null)
+            labels.put (label, a);
+        }
+      }
+    return new ControlFlowGraph (memory, roots, labels);
+  }
+
+  /**
+   * Rebuild the graph from memory's current contents, e.g., after code has been modified.
+   */
+  public synchronized void refresh () {
+    TreeMap<Integer, long[]> decoded = new TreeMap<>();  // address -> {info, ext}
+    TreeSet<Integer>         leaders = new TreeSet<>();
+    Deque<Integer>           work    = new ArrayDeque<>();
+    for (int root : roots) {
+      leaders.add (root);
+      work.add (root);
+    }
+    while (!work.isEmpty()) {
+      int address = work.poll();
+      if (decoded.containsKey (address))
+        continue;
+      long[] instruction = decode (address);
+      if (instruction == null)
+        continue;
+      decoded.put (address, instruction);
+      int  info   = (int) instruction [0];
+      int  opCode = DecodedInstructionCache.opCode (info);
+      int  next   = address + DecodedInstructionCache.length (info);
+      long target = targetOf (address, info, (int) instruction [1]);
+      if (target != NO_TARGET) {
+        leaders.add ((int) target);
+        work.add    ((int) target);
+      }
+      if (fallsThrough (info)) {
+        if (opCode == 0x9 || opCode == 0xa)
+          leaders.add (next);
+        work.add (next);
+      }
+    }
+
+    TreeMap<Integer, Node> built = new TreeMap<>();
+    int                    start = Integer.MAX_VALUE;
+    int                    end   = Integer.MIN_VALUE;
+    for (int leader : leaders) {
+      if (!decoded.containsKey (leader))
+        continue;
+      int     address = leader;
+      int     count   = 0;
+      int     exit    = 0;
+      long    target  = NO_TARGET;
+      boolean falls;
+      while (true) {
+        int info = (int) decoded.get (address) [0];
+        count++;
+        int next = address + DecodedInstructionCache.length (info);
+        if (isExit (info)) {
+          exit   = DecodedInstructionCache.opCode (info);
+          target = targetOf (address, info, (int) decoded.get (address) [1]);
+          falls  = fallsThrough (info);
+          address = next;
+          break;
+        }
+        address = next;
+        if (leaders.contains (address) || !decoded.containsKey (address)) {
+          falls = decoded.containsKey (address);
+          break;
+        }
+      }
+      built.put (leader, new Node (built.size(), leader, address, count, exit, target, falls, labels.get (leader)));
+      start = Math.min (start, leader);
+      end   = Math.max (end,   address);
+    }
+    for (Node node : built.values()) {
+      if (node.target != NO_TARGET && built.containsKey ((int) node.target))
+        node.successors.add (built.get ((int) node.target));
+      if (node.fallsThrough && built.containsKey (node.end) && !(node.target != NO_TARGET && (int) node.target == node.end))
+        node.successors.add (built.get (node.end));
+    }
+
+    long[] table = new long [built.isEmpty() ? 0 : (int) (((end & 0xffffffffL) - (start & 0xffffffffL) + 1) >>> 1)];
+    Arrays.fill (table, NO_EDGE);
+    for (Map.Entry<Integer, long[]> instruction : decoded.entrySet()) {
+      int  address = instruction.getKey();
+      long target  = targetOf (address, (int) instruction.getValue() [0], (int) instruction.getValue() [1]);
+      if (target != NO_TARGET && address - start >= 0)
+        table [(address - start) >>> 1] = ((long) address << 32) | target;
+    }
+    nodes      = built;
+    codeStart  = built.isEmpty() ? 0 : start;
+    codeEnd    = built.isEmpty() ? 0 : end;
+    edges      = table;
+    staleCount = 0;
+  }
+
+  /**
+   * @return decode info and extension of the instruction at address, or null if it is not in memory.
+   */
+  private long[] decode (int address) {
+    try {
+      UnsignedByte[] ins    = memory.read (address, 2);
+      int            opCode = (int) (ins [0].value() >>> 4);
+      int            length = opCode == 0x0 || opCode == 0xb ? 6 : 2;
+      int            ext    = length == 6 ? MainMemory.peekInt (memory, address + 2) : 0;
+      return new long[] {DecodedInstructionCache.pack ((int) ins [0].value(), (int) ins [1].value(), length), ext};
+    } catch (AbstractMainMemory.InvalidAddressException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true iff the instruction ends a basic block: a branch, a jump or halt.
+   */
+  private static boolean isExit (int info) {
+    int opCode = DecodedInstructionCache.opCode (info);
+    return opCode >= 0x8 && opCode <= 0xe || opCode == 0xf && DecodedInstructionCache.op0 (info) == 0;
+  }
+
+  /**
+   * @return true iff execution may continue with the next instruction.
+   */
+  private static boolean fallsThrough (int info) {
+    int opCode = DecodedInstructionCache.opCode (info);
+    return !isExit (info) || opCode == 0x9 || opCode == 0xa;
+  }
+
+  /**
+   * @return absolute target of a direct branch or jump, or NO_TARGET.
+   */
+  private static long targetOf (int address, int info, int ext) {
+    switch (DecodedInstructionCache.opCode (info)) {
+      case 0x8: case 0x9: case 0xa:
+        return (address + 2 + 2 * (byte) DecodedInstructionCache.imm (info)) & 0xffffffffL;
+      case 0xb:
+        return ext & 0xffffffffL;
+      default:
+        return NO_TARGET;
+    }
+  }
+
+  /**
+   * Look up the pre-resolved target of the branch or jump at an address.
+   * @param address address of the instruction.
+   * @return its absolute target (as an unsigned int), or NO_TARGET if the instruction is not a direct branch or
+   *         jump in a node that is up to date.
+   */
+  public long target (int address) {
+    long[] table = edges;
+    int    slot  = (address - codeStart) >>> 1;
+    if (slot >= table.length)
+      return NO_TARGET;
+    long edge = table [slot];
+    return (int) (edge >>> 32) == address && edge != NO_EDGE ? edge & 0xffffffffL : NO_TARGET;
+  }
+
+  /**
+   * Mark every node whose bytes overlap the written range stale and forget its branch targets.  Stores outside
+   * the range of addresses holding code return without locking.
+   */
+  @Override public void memoryWritten (int address, int length) {
+    long lo = address & 0xffffffffL;
+    long hi = lo + length;
+    if (lo >= (codeEnd & 0xffffffffL) || hi <= (codeStart & 0xffffffffL))
+      return;
+    synchronized (this) {
+      Map.Entry<Integer, Node> first = nodes.floorEntry (address);
+      for (Node node : nodes.tailMap (first != null ? first.getKey() : address).values()) {
+        if ((node.start & 0xffffffffL) >= hi)
+          break;
+        if ((node.end & 0xffffffffL) <= lo || node.stale)
+          continue;
+        node.stale = true;
+        staleCount++;
+        long[] table = edges;
+        for (int a = node.start; a - node.end < 0; a += 2) {
+          int slot = (a - codeStart) >>> 1;
+          if (slot < table.length)
+            table [slot] = NO_EDGE;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the nodes, in address order.
+   */
+  public List<Node> getNodes () {
+    return new ArrayList<> (nodes.values());
+  }
+
+  /**
+   * @param address address of a node's first instruction.
+   * @return the node, or null if no node starts there.
+   */
+  public Node getNode (int address) {
+    return nodes.get (address);
+  }
+
+  /**
+   * @return number of nodes marked stale since the graph was last built.
+   */
+  public synchronized int getStaleCount () {
+    return staleCount;
+  }
+
+  private static boolean isTaken (Node node, Node successor) {
+    return node.target != NO_TARGET && (int) node.target == successor.start;
+  }
+
+  /**
+   * Write the graph in Graphviz DOT format.  Taken edges are solid, fall-through edges dashed and stale nodes
+   * grey.
+   * @param out destination.
+   */
+  public void writeDot (Appendable out) {
+    try {
+      out.append ("digraph cfg {\n  node [shape=box, fontname=\"monospace\"];\n");
+      for (Node node : nodes.values()) {
+        out.append (String.format ("  n%d [label=\"%s\\n0x%x-0x%x\\n%d instruction%s, %s\"%s];\n", node.id, node.name().replace ("\"", "\\\""),
+                                   node.start, node.end, node.instructions, node.instructions == 1 ? "" : "s", EXIT_NAMES [node.exit],
+                                   node.stale ? ", color=grey, fontcolor=grey" : ""));
+        for (Node successor : node.successors)
+          out.append (String.format ("  n%d -> n%d%s;\n", node.id, successor.id, isTaken (node, successor) ? "" : " [style=dashed]"));
+      }
+      out.append ("}\n");
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Write the graph as one JSON object with a nodes array (id, label, start, end, instructions, exit, target,
+   * stale) and an edges array (from, to, kind "taken" or "fall").
+   * @param out destination.
+   */
+  public void writeJson (Appendable out) {
+    try {
+      StringBuilder edgeList = new StringBuilder();
+      out.append ("{\"nodes\":[");
+      String separator = "";
+      for (Node node : nodes.values()) {
+        out.append (separator).append ("{\"id\":").append (Integer.toString (node.id))
+           .append (",\"label\":").append (node.label == null ? "null" : BatchRunner.jsonString (node.label))
+           .append (",\"start\":").append (Integer.toString (node.start))
+           .append (",\"end\":").append (Integer.toString (node.end))
+           .append (",\"instructions\":").append (Integer.toString (node.instructions))
+           .append (",\"exit\":\"").append (EXIT_NAMES [node.exit]).append ('"')
+           .append (",\"target\":").append (node.target == NO_TARGET ? "null" : Long.toString ((int) node.target))
+           .append (",\"stale\":").append (Boolean.toString (node.stale)).append ('}');
+        separator = ",";
+        for (Node successor : node.successors)
+          edgeList.append (edgeList.length() == 0 ? "" : ",")
+                  .append ("{\"from\":").append (node.id).append (",\"to\":").append (successor.id)
+                  .append (",\"kind\":\"").append (isTaken (node, successor) ? "taken" : "fall").append ("\"}");
+      }
+      out.append ("],\"edges\":[").append (edgeList).append ("]}\n");
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+}
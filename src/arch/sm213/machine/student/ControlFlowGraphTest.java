@@ -0,0 +1,112 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ControlFlowGraphTest {
+
+    // a loop whose branch is rewritten on the first iteration to skip the inc
+    static final List<String> REWRITES_ITS_BRANCH = Arrays.asList(
+            ".pos 0x100",
+            "        ld $0, r0",
+            "        ld $2, r2",
+            "        ld $site, r1",
+            "        ld $0x8002ff00, r3",
+            "site:   br one",
+            "        nop",
+            "one:    inc r0",
+            "two:    st r3, 0(r1)",
+            "        dec r2",
+            "        bgt r2, site",
+            "        halt");
+
+    static ControlFlowGraph graph(CPU cpu, List<String> source) {
+        IncrementalAssembler assembler = new IncrementalAssembler(source);
+        return new ControlFlowGraph(cpu.getMainMemory(), Collections.singletonList(assembler.getEntryPoint()), assembler.getLabels());
+    }
+
+    static int addressOf(IncrementalAssembler assembler, String text) {
+        for (int line = 0; line < assembler.getLineCount(); line++)
+            if (assembler.getLine(line).trim().equals(text))
+                return assembler.getLineAddress(line);
+        fail("no line " + text);
+        return 0;
+    }
+
+    @Test
+    public void testTargets() throws Exception {
+        CPU                  cpu       = CPUTest.load(CPUTest.PROGRAM);
+        IncrementalAssembler assembler = new IncrementalAssembler(CPUTest.PROGRAM);
+        int loop = assembler.getAddress("loop");
+        int done = assembler.getAddress("done");
+        int fn   = assembler.getAddress("fn");
+        int back = addressOf(assembler, "inca r3");
+        int beq  = addressOf(assembler, "beq r2, done");
+        // test code reached only through the indirect j 0(r6) back from fn is not in a graph rooted at the entry
+        ControlFlowGraph graph = graph(cpu, CPUTest.PROGRAM);
+        assertEquals(ControlFlowGraph.NO_TARGET, graph.target(beq));
+        assertNull(graph.getNode(back));
+        // test with the return address as a root too, the backward bgt, the forward beq and the absolute j are
+        // pre-resolved, and nothing else is
+        graph = new ControlFlowGraph(cpu.getMainMemory(), Arrays.asList(assembler.getEntryPoint(), back), assembler.getLabels());
+        for (int line = 0; line < assembler.getLineCount(); line++) {
+            String text    = assembler.getLine(line).trim();
+            int    address = assembler.getLineAddress(line);
+            long   target  = text.startsWith("bgt") ? loop : text.startsWith("beq") ? done : text.equals("j fn") ? fn : ControlFlowGraph.NO_TARGET;
+            assertEquals(target, graph.target(address), text);
+        }
+        assertEquals(ControlFlowGraph.NO_TARGET, graph.target(0x1000));
+        assertEquals(ControlFlowGraph.NO_TARGET, graph.target(0x80));
+        // test the loop is a node with a taken edge to itself and a fall-through edge to the node after it
+        ControlFlowGraph.Node node = graph.getNode(loop);
+        assertEquals("loop", node.label);
+        assertEquals(7, node.instructions);
+        assertEquals(0xa, node.exit);
+        assertEquals(Arrays.asList(node, graph.getNode(node.end)), node.getSuccessors());
+        // test the j o(r) back from fn ends a path without a successor
+        assertEquals(0xc, graph.getNode(fn).exit);
+        assertTrue(graph.getNode(fn).getSuccessors().isEmpty());
+    }
+
+    @Test
+    public void testClockedWithGraphMatches() throws Exception {
+        CPU plain = CPUTest.load(CPUTest.PROGRAM);
+        CPU cpu   = CPUTest.load(CPUTest.PROGRAM);
+        cpu.setControlFlowGraph(graph(cpu, CPUTest.PROGRAM));
+        assertEquals(CPUTest.runClocked(plain), CPUTest.runClocked(cpu));
+        assertArrayEquals(CPUTest.state(plain), CPUTest.state(cpu));
+        assertArrayEquals(CPUTest.memory(plain), CPUTest.memory(cpu));
+        assertEquals(0, cpu.getControlFlowGraph().getStaleCount());
+    }
+
+    @Test
+    public void testRewrittenBranch() throws Exception {
+        CPU              cpu   = CPUTest.load(REWRITES_ITS_BRANCH);
+        ControlFlowGraph graph = graph(cpu, REWRITES_ITS_BRANCH);
+        cpu.setControlFlowGraph(graph);
+        assertEquals(0x11c, graph.target(0x118));
+        assertEquals(0x118, graph.target(0x122));
+        // test the rewritten br goes to two, not to the target resolved before the store
+        CPUTest.runClocked(cpu);
+        assertEquals(1, CPUTest.state(cpu)[0]);
+        // test only the node holding the store's bytes is stale and has lost its targets
+        assertTrue(graph.getNode(0x118).isStale());
+        assertFalse(graph.getNode(0x11c).isStale());
+        assertEquals(1, graph.getStaleCount());
+        assertEquals(ControlFlowGraph.NO_TARGET, graph.target(0x118));
+        assertEquals(0x118, graph.target(0x122));
+        // test stores outside the code leave the graph alone, and refresh resolves the new branch
+        cpu.getMainMemory().writeInteger(0x1000, 0x8002ff00);
+        assertEquals(1, graph.getStaleCount());
+        graph.refresh();
+        assertEquals(0, graph.getStaleCount());
+        assertFalse(graph.getNode(0x118).isStale());
+        assertEquals(0x11e, graph.target(0x118));
+        assertNull(graph.getNode(0x11c));
+    }
+}
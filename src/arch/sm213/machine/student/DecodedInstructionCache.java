@@ -0,0 +1,147 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+
+
+/**
+ * Cache of decoded instructions keyed by (physical) instruction address.
+ *
+ * Direct mapped.  Each entry is a packed primitive record holding the two instruction bytes
+ * (from which opcode, op0, op1, op2 and imm are extracted), the instruction length and, for
+ * six-byte instructions, the 32-bit extension.  Entries are invalidated by stores that overlap
+ * the bytes they were decoded from, so self-modifying code sees its own writes.
+ *
+ * Entries are filled only by the fetching CPU; stores from any thread only clear them.  Because the CPU decodes
+ * an instruction before it fills its entry, it announces the address with beginFill first: a store from another
+ * thread that overlaps it in between makes fill drop the entry, which would otherwise hold the bytes from before
+ * the store.  The store must be visible to every thread before it is reported (see SharedMainMemory).
+ */
+
+public class DecodedInstructionCache implements MemoryWriteListener {
+  private static final int  MAX_INSTRUCTION_LENGTH = 6;
+  private static final int  VALID                  = 1 << 24;
+  private static final long INFO_MASK              = 0xffffffffL;
+  private static final long NOT_FILLING            = -1;
+
+  private final int    mask;
+  private final long[] entries;
+  private final int [] ext;
+
+  /**
+   * Address announced by beginFill, or NOT_FILLING; read by every store, so a single volatile word.
+   */
+  private volatile long    filling = NOT_FILLING;
+  private          boolean fillStale;            // guarded by this
+
+  /**
+   * Allocate an empty cache.
+   * @param capacity number of entries; must be a power of two.
+   */
+  public DecodedInstructionCache (int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException ("capacity must be a power of two");
+    mask    = capacity - 1;
+    entries = new long [capacity];
+    ext     = new int  [capacity];
+  }
+
+  private int slot (int address) {
+    return (address >>> 1) & mask;
+  }
+
+  /**
+   * Look up the instruction at an address.
+   * @param address address of the instruction's first byte.
+   * @return packed decode info (see opCode, op0 etc.), or 0 if the instruction is not cached.
+   */
+  public int lookup (int address) {
+    long entry = entries [slot (address)];
+    if ((int) (entry >>> 32) == address)
+      return (int) entry;
+    return 0;
+  }
+
+  /**
+   * Get the 32-bit extension of a cached six-byte instruction.
+   * Only meaningful immediately after lookup returned a non-zero value for the same address.
+   * @param address address of the instruction's first byte.
+   * @return the extension word.
+   */
+  public int ext (int address) {
+    return ext [slot (address)];
+  }
+
+  /**
+   * Announce that the instruction at an address is about to be decoded from memory and filled.
+   * @param address address of the instruction's first byte.
+   */
+  public synchronized void beginFill (int address) {
+    fillStale = false;
+    filling   = address & 0xffffffffL;
+  }
+
+  /**
+   * Record a decoded instruction, unless a store has overlapped it since beginFill.
+   * @param address address of the instruction's first byte.
+   * @param info    packed decode info returned by pack.
+   * @param opExt   32-bit extension, ignored for two-byte instructions.
+   */
+  public synchronized void fill (int address, int info, int opExt) {
+    filling = NOT_FILLING;
+    if (fillStale) {
+      fillStale = false;
+      return;
+    }
+    int s = slot (address);
+    ext     [s] = opExt;
+    entries [s] = ((long) address << 32) | (info & INFO_MASK);
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public void clear () {
+    Arrays.fill (entries, 0);
+  }
+
+  /**
+   * Invalidate every entry whose instruction bytes overlap the written range.
+   */
+  @Override public void memoryWritten (int address, int length) {
+    long f = filling;
+    if (f != NOT_FILLING && f < (address & 0xffffffffL) + length && (address & 0xffffffffL) < f + MAX_INSTRUCTION_LENGTH)
+      synchronized (this) {
+        if (filling == f)
+          fillStale = true;
+      }
+    if (length >= entries.length) {
+      clear();
+      return;
+    }
+    for (int a = address - (MAX_INSTRUCTION_LENGTH - 1); a < address + length; a++) {
+      int  s     = slot (a);
+      long entry = entries [s];
+      if ((int) (entry >>> 32) == a && a + length ((int) entry) > address)
+        entries [s] = 0;
+    }
+  }
+
+  /**
+   * Pack the bytes of an instruction into the info word stored by the cache.
+   * @param byte0  first instruction byte (unsigned).
+   * @param byte1  second instruction byte (unsigned).
+   * @param length instruction length in bytes (2 or 6).
+   * @return packed decode info; never 0.
+   */
+  public static int pack (int byte0, int byte1, int length) {
+    return VALID | (length << 16) | (byte0 << 8) | byte1;
+  }
+
+  public static int opCode (int info) { return (info >>> 12) & 0xf; }
+  public static int op0    (int info) { return (info >>>  8) & 0xf; }
+  public static int op1    (int info) { return (info >>>  4) & 0xf; }
+  public static int op2    (int info) { return  info         & 0xf; }
+  public static int imm    (int info) { return  info         & 0xff; }
+  public static int byte0  (int info) { return (info >>>  8) & 0xff; }
+  public static int length (int info) { return (info >>> 16) & 0xff; }
+}
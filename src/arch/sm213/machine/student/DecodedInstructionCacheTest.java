@@ -0,0 +1,92 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DecodedInstructionCacheTest {
+    DecodedInstructionCache cache;
+
+    @BeforeEach
+    public void runBefore() {
+        cache = new DecodedInstructionCache(16);
+    }
+
+    @Test
+    public void testFillLookup() {
+        // ld $0x12345678, r2 at 0x100
+        int info = DecodedInstructionCache.pack(0x02, 0x00, 6);
+        assertEquals(0, cache.lookup(0x100));
+        cache.fill(0x100, info, 0x12345678);
+        assertEquals(info, cache.lookup(0x100));
+        assertEquals(0x12345678, cache.ext(0x100));
+        assertEquals(0x0, DecodedInstructionCache.opCode(info));
+        assertEquals(2, DecodedInstructionCache.op0(info));
+        assertEquals(6, DecodedInstructionCache.length(info));
+        // test an address sharing the slot does not hit
+        assertEquals(0, cache.lookup(0x120));
+    }
+
+    @Test
+    public void testInvalidation() {
+        cache.fill(0x100, DecodedInstructionCache.pack(0x02, 0x00, 6), 0x12345678);
+        cache.fill(0x106, DecodedInstructionCache.pack(0x63, 0x01, 2), 0);
+        // test a store after both instructions keeps them
+        cache.memoryWritten(0x108, 4);
+        assertNotEquals(0, cache.lookup(0x100));
+        assertNotEquals(0, cache.lookup(0x106));
+        // test a store into the extension of the first drops only it
+        cache.memoryWritten(0x104, 1);
+        assertEquals(0, cache.lookup(0x100));
+        assertNotEquals(0, cache.lookup(0x106));
+        cache.memoryWritten(0x107, 1);
+        assertEquals(0, cache.lookup(0x106));
+    }
+
+    @Test
+    public void testStoreWhileFilling() {
+        int info = DecodedInstructionCache.pack(0x02, 0x00, 6);
+        // test a store into an instruction between beginFill and fill keeps it out of the cache
+        cache.beginFill(0x100);
+        cache.memoryWritten(0x105, 1);
+        cache.fill(0x100, info, 0x12345678);
+        assertEquals(0, cache.lookup(0x100));
+        // test one that does not overlap it, or comes after fill, does not
+        cache.beginFill(0x100);
+        cache.memoryWritten(0x106, 2);
+        cache.fill(0x100, info, 0x12345678);
+        assertEquals(info, cache.lookup(0x100));
+        cache.beginFill(0x106);
+        cache.fill(0x106, DecodedInstructionCache.pack(0x63, 0x01, 2), 0);
+        cache.memoryWritten(0x100, 1);
+        assertEquals(0, cache.lookup(0x100));
+        cache.beginFill(0x100);
+        cache.fill(0x100, info, 0x12345678);
+        assertEquals(info, cache.lookup(0x100));
+    }
+
+    @Test
+    public void testOverwrittenInstruction() throws Exception {
+        MainMemory memory = new MainMemory(0x1000);
+        // 100: inc r0; 102: br 100
+        memory.set(0x100, new byte[] {0x63, 0x00, (byte) 0x80, (byte) 0xfe});
+        CPU cpu = new CPU(CPU.class.getName(), memory);
+        cpu.resetMachineToPC(0x100);
+        step(cpu, 4);
+        assertEquals(2, cpu.getRegisterFile().getValue("r0"));
+        // test the cached inc is dropped once it is overwritten with inca r0
+        memory.set(0x100, new byte[] {0x64, 0x00});
+        step(cpu, 2);
+        assertEquals(6, cpu.getRegisterFile().getValue("r0"));
+        // test the same through turbo mode
+        memory.set(0x100, new byte[] {0x65, 0x00});
+        cpu.runTurbo(2);
+        assertEquals(5, cpu.getRegisterFile().getValue("r0"));
+    }
+
+    private static void step(CPU cpu, int instructions) throws Exception {
+        for (int i = 0; i < instructions; i++)
+            cpu.cycle();
+    }
+}
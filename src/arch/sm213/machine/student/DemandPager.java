@@ -0,0 +1,192 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Demand paging for VirtualMemoryCPU, backed by a swap file.
+ *
+ * The pager owns a pool of physical frames.  When a translation finds a PTE whose valid bit is
+ * clear, the pager loads the page from the swap file into a free frame (evicting one chosen by the
+ * replacement policy if the pool is full), marks the PTE valid and lets the translation proceed.
+ * An evicted frame is written back to swap only if it was stored into while resident, and its
+ * PTE is marked invalid again.
+ *
+ * The swap file is a flat image of one virtual address space: page vpn lives at offset
+ * vpn * PAGE_SIZE.  Pages beyond the end of the file read as zero.
+ */
+
+public class DemandPager {
+  private static final int FREE = -1;
+
+  private final AbstractMainMemory memory;
+  private final FileChannel        swap;
+  private final int                firstFrame;
+  private final int                frameCount;
+  private final ReplacementPolicy  policy;
+  private final int []             ownerVpn;
+  private final int []             ownerPtbr;
+  private final boolean[]          dirty;
+  private final boolean            tracksDirty;
+  private final ByteBuffer         pageBuffer = ByteBuffer.allocateDirect (VirtualMemoryCPU.PAGE_SIZE);
+  private       int                nextFreeFrame;
+  private       long               faults;
+  private       long               pageIns;
+  private       long               pageOuts;
+  private       long               evictions;
+
+  /**
+   * Create a pager.
+   *
+   * @param memory     physical memory holding the frame pool and the page tables.
+   * @param swap       swap file, open for reading and writing.
+   * @param firstFrame physical frame number of the first frame in the pool.
+   * @param frameCount number of frames in the pool.
+   * @param policy     replacement policy sized for frameCount frames.
+   */
+  public DemandPager (AbstractMainMemory memory, FileChannel swap, int firstFrame, int frameCount, ReplacementPolicy policy) {
+    if (frameCount <= 0 || (long) (firstFrame + frameCount) * VirtualMemoryCPU.PAGE_SIZE > memory.length())
+      throw new IllegalArgumentException ("frame pool does not fit in memory");
+    this.memory     = memory;
+    this.swap       = swap;
+    this.firstFrame = firstFrame;
+    this.frameCount = frameCount;
+    this.policy     = policy;
+    ownerVpn        = new int     [frameCount];
+    ownerPtbr       = new int     [frameCount];
+    dirty           = new boolean [frameCount];
+    Arrays.fill (ownerVpn, FREE);
+    tracksDirty = memory instanceof MemoryWriteSource;
+    if (tracksDirty)
+      ((MemoryWriteSource) memory).addWriteListener (this::frameWritten);
+  }
+
+  /**
+   * Bring a non-resident page into memory and make its PTE valid.
+   *
+   * @param ptbr page table base of the faulting address space.
+   * @param vpn  virtual page number that faulted.
+   * @return physical frame number now holding the page.
+   * @throws AbstractMainMemory.InvalidAddressException if the page table itself is not in memory.
+   */
+  public int handleFault (int ptbr, int vpn) throws AbstractMainMemory.InvalidAddressException {
+    faults++;
+    int frame;
+    if (nextFreeFrame < frameCount)
+      frame = nextFreeFrame++;
+    else {
+      frame = policy.selectVictim();
+      evict (frame);
+    }
+    int pfn = firstFrame + frame;
+    readFromSwap (vpn, pfn);
+    pageIns++;
+    ownerVpn  [frame] = vpn;
+    ownerPtbr [frame] = ptbr;
+    dirty     [frame] = false;
+    memory.writeInteger (pteAddress (ptbr, vpn), VirtualMemoryCPU.PTE_VALID_BIT_MASK | pfn);
+    policy.frameLoaded (frame);
+    return pfn;
+  }
+
+  /**
+   * Tell the replacement policy that a translation used a frame.
+   * @param pfn physical frame number; frames outside the pool are ignored.
+   */
+  public void frameAccessed (int pfn) {
+    int frame = pfn - firstFrame;
+    if (frame >= 0 && frame < frameCount)
+      policy.frameAccessed (frame);
+  }
+
+  private void evict (int frame) throws AbstractMainMemory.InvalidAddressException {
+    int vpn  = ownerVpn  [frame];
+    int ptbr = ownerPtbr [frame];
+    if (vpn == FREE)
+      return;
+    if (dirty [frame] || !tracksDirty) {
+      writeToSwap (vpn, firstFrame + frame);
+      pageOuts++;
+    }
+    int pteAddress = pteAddress (ptbr, vpn);
+    memory.writeInteger (pteAddress, memory.readInteger (pteAddress) & ~VirtualMemoryCPU.PTE_VALID_BIT_MASK);
+    ownerVpn [frame] = FREE;
+    evictions++;
+  }
+
+  private void readFromSwap (int vpn, int pfn) throws AbstractMainMemory.InvalidAddressException {
+    pageBuffer.clear();
+    try {
+      long position = (vpn & 0xffffffffL) * VirtualMemoryCPU.PAGE_SIZE;
+      while (pageBuffer.hasRemaining() && swap.read (pageBuffer, position + pageBuffer.position()) > 0);
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+    while (pageBuffer.hasRemaining())
+      pageBuffer.put ((byte) 0);
+    pageBuffer.flip();
+    int base = pfn * VirtualMemoryCPU.PAGE_SIZE;
+    for (int i = 0; i < VirtualMemoryCPU.PAGE_SIZE; i += 4)
+      memory.writeIntegerUnaligned (base + i, pageBuffer.getInt (i));
+  }
+
+  private void writeToSwap (int vpn, int pfn) throws AbstractMainMemory.InvalidAddressException {
+    int base = pfn * VirtualMemoryCPU.PAGE_SIZE;
+    pageBuffer.clear();
+    for (int i = 0; i < VirtualMemoryCPU.PAGE_SIZE; i += 4)
+      pageBuffer.putInt (i, MainMemory.peekInt (memory, base + i));
+    try {
+      long position = (vpn & 0xffffffffL) * VirtualMemoryCPU.PAGE_SIZE;
+      while (pageBuffer.hasRemaining())
+        swap.write (pageBuffer, position + pageBuffer.position());
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Write every dirty resident page back to swap, e.g., before the swap file is inspected.
+   * @throws AbstractMainMemory.InvalidAddressException if the frame pool is not in memory.
+   */
+  public void flush () throws AbstractMainMemory.InvalidAddressException {
+    for (int frame = 0; frame < frameCount; frame++)
+      if (ownerVpn [frame] != FREE && (dirty [frame] || !tracksDirty)) {
+        writeToSwap (ownerVpn [frame], firstFrame + frame);
+        dirty [frame] = false;
+        pageOuts++;
+      }
+  }
+
+  private static int pteAddress (int ptbr, int vpn) {
+    return ptbr + vpn * VirtualMemoryCPU.PTE_SIZE;
+  }
+
+  private void frameWritten (int address, int length) {
+    long first = (address & 0xffffffffL) / VirtualMemoryCPU.PAGE_SIZE - firstFrame;
+    long last  = ((address & 0xffffffffL) + length - 1) / VirtualMemoryCPU.PAGE_SIZE - firstFrame;
+    for (long frame = Math.max (first, 0); frame <= Math.min (last, frameCount - 1); frame++)
+      dirty [(int) frame] = true;
+  }
+
+  public long getFaults    () { return faults; }
+  public long getPageIns   () { return pageIns; }
+  public long getPageOuts  () { return pageOuts; }
+  public long getEvictions () { return evictions; }
+
+  /**
+   * @return number of frames in the pool currently holding a page.
+   */
+  public int getResidentPageCount () {
+    int count = 0;
+    for (int vpn : ownerVpn)
+      if (vpn != FREE)
+        count++;
+    return count;
+  }
+}
@@ -0,0 +1,119 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DemandPagerTest {
+    MainMemory memory;
+    RandomAccessFile file;
+    FileChannel swap;
+    DemandPager pager;
+
+    @BeforeEach
+    public void runBefore() throws IOException {
+        // page table at address 0, a pool of two frames (4 and 5), and an empty swap file
+        File f = File.createTempFile("sm213-test-", ".swap");
+        f.deleteOnExit();
+        file = new RandomAccessFile(f, "rw");
+        swap = file.getChannel();
+        memory = new MainMemory(6 * VirtualMemoryCPU.PAGE_SIZE);
+        pager = new DemandPager(memory, swap, 4, 2, new LruReplacementPolicy(2));
+    }
+
+    @AfterEach
+    public void runAfter() throws IOException {
+        file.close();
+    }
+
+    @Test
+    public void testFaultLoadsPage() {
+        // test page 1 is read from swap into a free frame and its PTE made valid
+        try {
+            ByteBuffer page = ByteBuffer.allocate(VirtualMemoryCPU.PAGE_SIZE);
+            page.putInt(0, 0x12345678);
+            swap.write(page, VirtualMemoryCPU.PAGE_SIZE);
+            assertEquals(4, pager.handleFault(0, 1));
+            assertEquals(0x12345678, memory.readInteger(4 * VirtualMemoryCPU.PAGE_SIZE));
+            assertEquals(VirtualMemoryCPU.PTE_VALID_BIT_MASK | 4, memory.readInteger(4));
+            // test page 2 lies beyond the end of swap and reads as zero
+            assertEquals(5, pager.handleFault(0, 2));
+            assertEquals(0, memory.readInteger(5 * VirtualMemoryCPU.PAGE_SIZE));
+            assertEquals(2, pager.getPageIns());
+            assertEquals(0, pager.getEvictions());
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException | IOException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testEvictionWritesBackDirtyPage() {
+        try {
+            pager.handleFault(0, 0);
+            pager.handleFault(0, 1);
+            // dirty page 1, touch page 0 so page 1 is least recently used, then fault page 2
+            memory.writeInteger(5 * VirtualMemoryCPU.PAGE_SIZE, 42);
+            pager.frameAccessed(4);
+            assertEquals(5, pager.handleFault(0, 2));
+            assertEquals(1, pager.getEvictions());
+            assertEquals(1, pager.getPageOuts());
+            assertEquals(0, memory.readInteger(4) & VirtualMemoryCPU.PTE_VALID_BIT_MASK);
+            ByteBuffer page = ByteBuffer.allocate(4);
+            swap.read(page, VirtualMemoryCPU.PAGE_SIZE);
+            assertEquals(42, page.getInt(0));
+            // test the clean page 0 is evicted without a write back
+            pager.handleFault(0, 3);
+            assertEquals(1, pager.getPageOuts());
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException | IOException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testClockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(3);
+        for (int frame = 0; frame < 3; frame++)
+            policy.frameLoaded(frame);
+        // test a sweep over frames all referenced clears them and takes the first
+        assertEquals(0, policy.selectVictim());
+        policy.frameLoaded(0);
+        // test a frame referenced since the last sweep is skipped once, then evicted
+        policy.frameAccessed(1);
+        assertEquals(2, policy.selectVictim());
+        policy.frameLoaded(2);
+        assertEquals(1, policy.selectVictim());
+    }
+
+    @Test
+    public void testEvictionUnderEitherPolicy() throws Exception {
+        for (ReplacementPolicy policy : new ReplacementPolicy[] {new LruReplacementPolicy(2), new ClockReplacementPolicy(2)}) {
+            memory = new MainMemory(6 * VirtualMemoryCPU.PAGE_SIZE);
+            pager = new DemandPager(memory, swap, 4, 2, policy);
+            // test the page loaded first and not used since is evicted, and written back since it is dirty
+            pager.handleFault(0, 0);
+            pager.handleFault(0, 1);
+            memory.writeInteger(4 * VirtualMemoryCPU.PAGE_SIZE, 7);
+            assertEquals(4, pager.handleFault(0, 2));
+            assertEquals(0, memory.readInteger(0) & VirtualMemoryCPU.PTE_VALID_BIT_MASK);
+            assertEquals(1, pager.getPageOuts());
+            ByteBuffer page = ByteBuffer.allocate(4);
+            swap.read(page, 0);
+            assertEquals(7, page.getInt(0));
+            // test the page comes back from swap when it faults again
+            assertEquals(5, pager.handleFault(0, 0));
+            assertEquals(7, memory.readInteger(5 * VirtualMemoryCPU.PAGE_SIZE));
+            swap.truncate(0);
+        }
+    }
+}
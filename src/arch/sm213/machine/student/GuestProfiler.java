@@ -0,0 +1,460 @@
+package arch.sm213.machine.student;
+
+import isa.Region;
+import machine.AbstractMainMemory;
+import util.UnsignedByte;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Instruction-count profiler for SM213 programs, enabled with CPU.setProfiler.
+ *
+ * The profiler keeps a counter per opcode and a hit counter per instruction address (one slot per two bytes, so an
+ * instruction at an odd address shares the slot of the byte before it).  Every path counts: the clocked cycle,
+ * the turbo interpreter, fused pairs and translated blocks.  Only the clocked cycle counts instruction by
+ * instruction.  The turbo interpreter counts straight-line runs (see countRun) and translated blocks count their
+ * own runs (see adopt), so that profiling costs turbo mode a few percent.  Runs are multiplied out into the
+ * opcode and address counters when the counters are next read, or when a store overwrites their code.  A CPU
+ * without a profiler pays one null check per instruction.
+ *
+ * After the run, fold attributes the hits to the nearest preceding label and to the enclosing function, using the
+ * label map of the program's isa.Memory.  A function is the program's entry point or a label called with the
+ * SM213 calling sequence (gpc followed by j).  The folded profile can be written as CSV or in the collapsed-stack
+ * format ("function;label count") read by flamegraph.pl, speedscope and similar tools.
+ */
+
+public class GuestProfiler implements MemoryWriteListener {
+  private static final int      RUN_TABLE_SIZE = 1024;
+  private static final int      PRUNE_MINIMUM  = 1024;
+  private static final String[] OPCODE_NAMES   = {
+    "ld $i", "ld o(rs)", "ld (rs,ri,4)", "st o(rd)", "st (rd,ri,4)", "atomic", "alu", "shift",
+    "br", "beq", "bgt", "j i", "j o(rr)", "-", "-", "halt/nop"
+  };
+
+  private final long[]                      opCodes = new long [16];
+  private final long[]                      hits;
+  private       long                        outside;
+  private final List<BlockTranslator.Block> blocks  = new ArrayList<>();
+  private       int                         pruneAt = PRUNE_MINIMUM;
+  private final Run[]                       runs    = new Run [RUN_TABLE_SIZE];
+  private       int                         codeStart;
+  private       int                         codeEnd;
+
+  /**
+   * Key (see runKey) and pending count of each run in the run table, or 0 for an empty slot.  The turbo
+   * interpreter increments the count of a run it finds here itself, without calling countRun.
+   */
+  final long[] runKeys   = new long [RUN_TABLE_SIZE];
+  final long[] runCounts = new long [RUN_TABLE_SIZE];
+
+  /**
+   * The instructions of a straight-line run counted by countRun.
+   */
+  private static final class Run {
+    final int    pc;
+    final int    count;
+    final int[]  offsets;
+    final byte[] opCodes;
+
+    Run (int pc, int count, int[] offsets, byte[] opCodes) {
+      this.pc      = pc;
+      this.count   = count;
+      this.offsets = offsets;
+      this.opCodes = opCodes;
+    }
+  }
+
+  /**
+   * One row of a folded profile.
+   */
+  public static final class Entry {
+    public final String function;
+    public final String label;
+    public final int    address;
+    public final long   instructions;
+
+    Entry (String function, String label, int address, long instructions) {
+      this.function     = function;
+      this.label        = label;
+      this.address      = address;
+      this.instructions = instructions;
+    }
+  }
+
+  /**
+   * Create a profiler.
+   * @param addressSpace number of bytes of instruction addresses to keep hit counts for, e.g., the memory size.
+   */
+  public GuestProfiler (int addressSpace) {
+    hits = new long [(addressSpace + 1) >>> 1];
+  }
+
+  /**
+   * Count one executed instruction.
+   * @param pcVal  address of the instruction.
+   * @param opCode its opcode.
+   */
+  void count (int pcVal, int opCode) {
+    opCodes [opCode]++;
+    int slot = pcVal >>> 1;
+    if (slot < hits.length)
+      hits [slot]++;
+    else
+      outside++;
+  }
+
+  /**
+   * Take over counting the runs of a block translated while this profiler is set.
+   *
+   * The block is compiled to increment its own profileRuns on entry, so a run costs the CPU nothing; the runs are
+   * multiplied out into the opcode and address counters when they are next read.  Runs are attributed to pcVal,
+   * the address the block was translated at, even if the block's code is reached through another virtual address.
+   *
+   * @param block the block, with its offsets and opCodes.
+   * @param pcVal address of the block's first instruction.
+   */
+  void adopt (BlockTranslator.Block block, int pcVal) {
+    block.profiler    = this;
+    block.profilePc   = pcVal;
+    block.profileRuns = 0;
+    blocks.add (block);
+    if (blocks.size() >= pruneAt) {
+      flush();
+      pruneAt = Math.max (PRUNE_MINIMUM, 2 * blocks.size());
+    }
+  }
+
+  /**
+   * Count a run of a translated block that did not execute all of its instructions, because one of them threw
+   * or stored into the block.  Its entry was counted as a complete run, so that is taken back and the
+   * instructions that did execute are counted one by one.
+   *
+   * @param pcVal    address of the block's first instruction.
+   * @param block    the block.
+   * @param executed number of its instructions that executed.
+   */
+  void countBlock (int pcVal, BlockTranslator.Block block, int executed) {
+    if (block.profiler == this)
+      block.profileRuns--;
+    for (int i = 0; i < executed; i++)
+      count (pcVal + block.offsets [i], block.opCodes [i]);
+  }
+
+  /**
+   * @return slot of the run [start, end) in the run table.
+   */
+  static int runSlot (int start, int end) {
+    return ((start >>> 1) ^ (end << 3)) & (RUN_TABLE_SIZE - 1);
+  }
+
+  /**
+   * @return key of the run [start, end) in the run table.
+   */
+  static long runKey (int start, int end) {
+    return (long) start << 32 | end & 0xffffffffL;
+  }
+
+  /**
+   * Count a straight-line run of instructions executed by the turbo interpreter.
+   *
+   * Runs are kept in a direct-mapped table keyed by their first and last addresses, so a repeated run only
+   * increments its counter.  A run is decoded when it is first seen; a store into its code (see memoryWritten)
+   * adds its pending count to the counters and drops it.  The caller must count a run before executing an
+   * instruction that may store, so that the run is decoded as it executed.  Only runs at untranslated addresses
+   * are kept in the table; others are decoded and counted every time.
+   *
+   * @param cpu   the CPU, to decode the run.
+   * @param start address of the run's first instruction.
+   * @param end   address following the run's last instruction.
+   * @return end, where the next run starts if execution continues in a straight line.
+   * @throws AbstractMainMemory.InvalidAddressException if the run is not in memory.
+   */
+  int countRun (CPU cpu, int start, int end) throws AbstractMainMemory.InvalidAddressException {
+    int  slot = runSlot (start, end);
+    long key  = runKey  (start, end);
+    if (runKeys [slot] == key) {
+      runCounts [slot]++;
+      return end;
+    }
+    int    length  = end - start;
+    int[]  offsets = new int  [length / 2];
+    byte[] ops     = new byte [length / 2];
+    int    n       = 0;
+    for (int offset = 0; offset < length; n++) {
+      int info = cpu.decode (start + offset);
+      offsets [n] = offset;
+      ops     [n] = (byte) DecodedInstructionCache.opCode (info);
+      offset     += DecodedInstructionCache.length (info);
+    }
+    Run run = new Run (start, n, offsets, ops);
+    if (cpu.translateAddress (start) != start || !cpu.isInstructionCacheable (start, length)) {
+      // a store could not be matched against it
+      flush (run, 1);
+      return end;
+    }
+    drop (slot);
+    runs      [slot] = run;
+    runKeys   [slot] = key;
+    runCounts [slot] = 1;
+    if (codeStart == codeEnd) {
+      codeStart = start;
+      codeEnd   = end;
+    } else {
+      codeStart = Math.min (codeStart, start);
+      codeEnd   = Math.max (codeEnd,   end);
+    }
+    return end;
+  }
+
+  /**
+   * Count and drop every run whose code overlaps the written range.
+   */
+  @Override public void memoryWritten (int address, int length) {
+    if (address >= codeEnd || address + length <= codeStart)
+      return;
+    long lo = address & 0xffffffffL;
+    long hi = lo + length;
+    for (int slot = 0; slot < runs.length; slot++) {
+      Run run = runs [slot];
+      if (run != null && (run.pc & 0xffffffffL) < hi && (runKeys [slot] & 0xffffffffL) > lo)
+        drop (slot);
+    }
+  }
+
+  /**
+   * Count the run in a slot of the run table and empty the slot.
+   */
+  private void drop (int slot) {
+    if (runs [slot] != null)
+      flush (runs [slot], runCounts [slot]);
+    runs      [slot] = null;
+    runKeys   [slot] = 0;
+    runCounts [slot] = 0;
+  }
+
+  /**
+   * Add the pending runs of every block and straight-line run to the opcode and address counters.
+   */
+  private void flush () {
+    for (BlockTranslator.Block block : blocks)
+      flush (block);
+    blocks.removeIf (block -> !block.valid);
+    for (int slot = 0; slot < runs.length; slot++)
+      if (runs [slot] != null) {
+        flush (runs [slot], runCounts [slot]);
+        runCounts [slot] = 0;
+      }
+  }
+
+  private void flush (Run run, long n) {
+    if (n == 0)
+      return;
+    for (int i = 0; i < run.count; i++) {
+      opCodes [run.opCodes [i]] += n;
+      int slot = (run.pc + run.offsets [i]) >>> 1;
+      if (slot < hits.length)
+        hits [slot] += n;
+      else
+        outside += n;
+    }
+  }
+
+  private void flush (BlockTranslator.Block block) {
+    long runs = block.profileRuns;
+    block.profileRuns = 0;
+    if (runs == 0)
+      return;
+    for (int i = 0; i < block.count; i++) {
+      opCodes [block.opCodes [i]] += runs;
+      int slot = (block.profilePc + block.offsets [i]) >>> 1;
+      if (slot < hits.length)
+        hits [slot] += runs;
+      else
+        outside += runs;
+    }
+  }
+
+  /**
+   * @return total number of instructions counted.
+   */
+  public long getInstructions () {
+    flush();
+    long total = 0;
+    for (long n : opCodes)
+      total += n;
+    return total;
+  }
+
+  /**
+   * @param opCode an opcode (0-f).
+   * @return number of instructions executed with that opcode.
+   */
+  public long getOpCodeCount (int opCode) {
+    flush();
+    return opCodes [opCode];
+  }
+
+  /**
+   * @param address instruction address.
+   * @return number of times the instruction at address was executed.
+   */
+  public long getHits (int address) {
+    flush();
+    int slot = address >>> 1;
+    return slot < hits.length ? hits [slot] : 0;
+  }
+
+  /**
+   * @return number of instructions executed at addresses beyond the profiler's address space.
+   */
+  public long getOutside () {
+    flush();
+    return outside;
+  }
+
+  /**
+   * Zero every counter.
+   */
+  public void reset () {
+    blocks.removeIf (block -> !block.valid);
+    for (BlockTranslator.Block block : blocks)
+      block.profileRuns = 0;
+    Arrays.fill (runs,      null);
+    Arrays.fill (runKeys,   0);
+    Arrays.fill (runCounts, 0);
+    codeStart = codeEnd = 0;
+    Arrays.fill (opCodes, 0);
+    Arrays.fill (hits, 0);
+    outside = 0;
+  }
+
+  /**
+   * Attribute the hit counts to labels and functions.
+   *
+   * @param program the program as loaded or assembled, for its labels and instruction regions.
+   * @param memory  the memory it was loaded into, to find call instructions.
+   * @return one entry per (function, label) that executed, in address order.
+   */
+  public List<Entry> fold (isa.Memory program, AbstractMainMemory memory) {
+    flush();
+    TreeMap<Integer, String> labels    = new TreeMap<>();
+    TreeMap<Integer, String> functions = new TreeMap<>();
+    isa.Memory.LabelMap      labelMap  = program.getLabelMap();
+    for (Region region : program.getRegions())
+      if (region.getType() == Region.Type.INSTRUCTIONS) {
+        for (int a = region.getAddress(); a < region.getAddress() + region.byteLength(); a++) {
+          String label = labelMap.getLabel (a);
+          if (label != null)
+            labels.put (a, label);
+        }
+        if (functions.isEmpty())
+          functions.put (region.getAddress(), nameOf (labels, region.getAddress()));
+        findCalls (region, labelMap, memory, functions);
+      }
+
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    for (int slot = 0; slot < hits.length; slot++) {
+      if (hits [slot] == 0)
+        continue;
+      int                       address  = slot << 1;
+      Map.Entry<Integer,String> label    = labels.floorEntry    (address);
+      Map.Entry<Integer,String> function = functions.floorEntry (address);
+      String                    fn       = function != null ? function.getValue() : "?";
+      String                    lb       = label    != null ? label.getValue()    : fn;
+      int                       start    = label    != null ? label.getKey()      : address;
+      String                    key      = fn + ";" + lb;
+      Entry                     e        = entries.get (key);
+      entries.put (key, new Entry (fn, lb, e == null ? start : e.address, (e == null ? 0 : e.instructions) + hits [slot]));
+    }
+    List<Entry> folded = new ArrayList<> (entries.values());
+    folded.sort ((x, y) -> Integer.compareUnsigned (x.address, y.address));
+    return folded;
+  }
+
+  /**
+   * Add the target of every call (gpc immediately followed by j i) in a region to functions.
+   */
+  private static void findCalls (Region region, isa.Memory.LabelMap labelMap, AbstractMainMemory memory, TreeMap<Integer, String> functions) {
+    boolean afterGpc = false;
+    int     end      = region.getAddress() + region.byteLength();
+    try {
+      for (int a = region.getAddress(); a + 2 <= end; ) {
+        UnsignedByte[] ins    = memory.read (a, 2);
+        int            opCode = (int) (ins [0].value() >>> 4);
+        int            op0    = (int) (ins [0].value() & 0xf);
+        if (opCode == 0xb && a + 6 <= end && afterGpc) {
+          int    target = MainMemory.peekInt (memory, a + 2);
+          String label  = labelMap.getLabel (target);
+          functions.put (target, label != null ? label : String.format ("0x%x", target));
+        }
+        afterGpc = opCode == 0x6 && op0 == 0xf;
+        a += opCode == 0x0 || opCode == 0xb ? 6 : 2;
+      }
+    } catch (AbstractMainMemory.InvalidAddressException e) {
+      // region lies partly outside memory; calls found so far are kept
+    }
+  }
+
+  private static String nameOf (TreeMap<Integer, String> labels, int address) {
+    String label = labels.get (address);
+    return label != null ? label : String.format ("0x%x", address);
+  }
+
+  /**
+   * Write a folded profile in collapsed-stack format: "function;label count", or "function count" for
+   * instructions at the function's own label.
+   * @param folded result of fold.
+   * @param out    destination.
+   */
+  public static void writeCollapsed (List<Entry> folded, Appendable out) {
+    try {
+      for (Entry e : folded)
+        out.append (e.function.equals (e.label) ? e.function : e.function + ";" + e.label)
+           .append (' ').append (Long.toString (e.instructions)).append ('\n');
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Write a folded profile as CSV with columns function, label, address, instructions and percent of the total.
+   * @param folded result of fold.
+   * @param out    destination.
+   */
+  public static void writeCsv (List<Entry> folded, Appendable out) {
+    long total = 0;
+    for (Entry e : folded)
+      total += e.instructions;
+    try {
+      out.append ("function,label,address,instructions,percent\n");
+      for (Entry e : folded)
+        out.append (String.format ("%s,%s,0x%x,%d,%.2f%n", e.function, e.label, e.address, e.instructions, total == 0 ? 0.0 : 100.0 * e.instructions / total));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Write the per-opcode counters as CSV with columns opcode, instruction and count.
+   * @param out destination.
+   */
+  public void writeOpCodes (Appendable out) {
+    flush();
+    try {
+      out.append ("opcode,instruction,count\n");
+      for (int op = 0; op < opCodes.length; op++)
+        if (opCodes [op] != 0)
+          out.append (String.format ("%x,%s,%d%n", op, OPCODE_NAMES [op], opCodes [op]));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+}
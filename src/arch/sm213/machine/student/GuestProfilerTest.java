@@ -0,0 +1,156 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GuestProfilerTest {
+
+    // a loop that rewrites the pair it has just run, alternating inc r0; inc r0 with shl $1, r1; inc r0
+    static final List<String> REWRITES_ITS_RUN = Arrays.asList(
+            ".pos 0x100",
+            "        ld $0, r0",
+            "        ld $1, r1",
+            "        ld $100, r2",
+            "        ld $loop, r4",
+            "        ld $0x71016300, r3",
+            "        ld $0x63006300, r5",
+            "loop:   inc r0",
+            "        inc r0",
+            "        st r3, 0(r4)",
+            "        mov r3, r6",
+            "        mov r5, r3",
+            "        mov r6, r5",
+            "        dec r2",
+            "        bgt r2, loop",
+            "        halt");
+
+    static CPU profiled(List<String> source) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        cpu.setProfiler(new GuestProfiler(CPUTest.MEMORY_SIZE));
+        return cpu;
+    }
+
+    // opcode counts followed by the hits of every instruction address
+    static long[] profile(CPU cpu) {
+        GuestProfiler profiler = cpu.getProfiler();
+        long[] profile = new long[16 + CPUTest.MEMORY_SIZE / 2];
+        for (int op = 0; op < 16; op++)
+            profile[op] = profiler.getOpCodeCount(op);
+        for (int a = 0; a < CPUTest.MEMORY_SIZE; a += 2)
+            profile[16 + a / 2] = profiler.getHits(a);
+        return profile;
+    }
+
+    static void assertSameProfile(List<String> source, CPU turbo, int runs) throws Exception {
+        CPU clocked = profiled(source);
+        for (int run = 0; run < runs; run++) {
+            clocked.resetMachineToPC(0x100);
+            turbo.resetMachineToPC(0x100);
+            assertEquals(CPUTest.runClocked(clocked), CPUTest.runTurbo(turbo));
+        }
+        assertArrayEquals(profile(clocked), profile(turbo));
+        assertEquals(clocked.getProfiler().getInstructions(), turbo.getProfiler().getInstructions());
+    }
+
+    @Test
+    public void testClockedCounts() throws Exception {
+        CPU cpu = profiled(CPUTest.PROGRAM);
+        long instructions = CPUTest.runClocked(cpu);
+        GuestProfiler profiler = cpu.getProfiler();
+        assertEquals(instructions, profiler.getInstructions());
+        // the loop body runs once per element
+        assertEquals(5, profiler.getHits(0x118));
+        assertEquals(2, profiler.getOpCodeCount(0x5));
+        assertEquals(0, profiler.getOutside());
+        profiler.reset();
+        assertEquals(0, profiler.getInstructions());
+        assertEquals(0, profiler.getHits(0x118));
+    }
+
+    @Test
+    public void testTurboMatchesClocked() throws Exception {
+        assertSameProfile(CPUTest.PROGRAM, profiled(CPUTest.PROGRAM), 3);
+    }
+
+    @Test
+    public void testTranslatedMatchesClocked() throws Exception {
+        CPU turbo = profiled(CPUTest.PROGRAM);
+        turbo.setBlockTranslationEnabled(true);
+        assertSameProfile(CPUTest.PROGRAM, turbo, 20);
+        assertTrue(turbo.getBlockTranslator().getTranslations() > 0);
+    }
+
+    @Test
+    public void testFusedMatchesClocked() throws Exception {
+        CPU turbo = profiled(CPUTest.PROGRAM);
+        turbo.setFusionEnabled(true);
+        assertSameProfile(CPUTest.PROGRAM, turbo, 3);
+    }
+
+    @Test
+    public void testSelfModifyingCode() throws Exception {
+        // test each run is counted with the instructions it ran, including runs whose code is rewritten by their own store
+        CPU turbo = profiled(REWRITES_ITS_RUN);
+        assertSameProfile(REWRITES_ITS_RUN, turbo, 1);
+        assertEquals(50, turbo.getProfiler().getOpCodeCount(0x7));
+        CPU translated = profiled(REWRITES_ITS_RUN);
+        translated.setBlockTranslationEnabled(true);
+        assertSameProfile(REWRITES_ITS_RUN, translated, 3);
+        CPU other = profiled(BlockTranslatorTest.SELF_MODIFYING);
+        other.setBlockTranslationEnabled(true);
+        assertSameProfile(BlockTranslatorTest.SELF_MODIFYING, other, 3);
+    }
+
+    @Test
+    public void testFaultInTranslatedBlock() throws Exception {
+        // test a block run cut short by a fault counts the instructions up to and including the load that faulted
+        List<String> source = Arrays.asList(
+                ".pos 0x100",
+                "        ld $0x1000, r1",
+                "        ld $0, r0",
+                "        ld $0x100, r4",
+                "loop:   inc r0",
+                "        ld 0(r1), r3",
+                "        add r4, r1",
+                "        br loop");
+        CPU clocked = profiled(source);
+        CPU turbo   = CPUTest.load(source);
+        turbo.setBlockTranslationEnabled(true);
+        turbo.setProfiler(new GuestProfiler(CPUTest.MEMORY_SIZE));
+        try {
+            while (true)
+                clocked.cycle();
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        try {
+            turbo.runTurbo(100000);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        assertTrue(turbo.getBlockTranslator().getTranslations() > 0);
+        assertArrayEquals(profile(clocked), profile(turbo));
+    }
+
+    @Test
+    public void testTurboSteps() throws Exception {
+        // test runs cut short by the instruction budget are counted
+        CPU clocked = profiled(CPUTest.PROGRAM);
+        CPU turbo   = profiled(CPUTest.PROGRAM);
+        CPUTest.runClocked(clocked);
+        try {
+            while (true)
+                turbo.runTurbo(3);
+        } catch (AbstractCPU.MachineHaltException e) {
+            // pass
+        }
+        assertArrayEquals(profile(clocked), profile(turbo));
+    }
+}
@@ -0,0 +1,152 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import machine.Register;
+
+import java.io.File;
+
+
+/**
+ * An SM213 machine for running programs from code, without ui.Machine, the AbstractUI environment or the GUI.
+ *
+ * The machine is a MainMemory and a CPU with model-change notifications disabled (see
+ * CPU.setNotificationsEnabled and MainMemory.setNotificationsEnabled): nothing observes memory, the CPU or its
+ * registers, so no change events are built or delivered while a program runs.  Programs run in turbo mode with
+ * block translation, as in BatchRunner.
+ *
+ *   HeadlessMachine machine = new HeadlessMachine (1 << 20);
+ *   machine.load (new File ("prog.s"));
+ *   if (machine.run (1_000_000))
+ *     System.out.println (machine.getRegister (0));
+ *
+ * A machine is not thread-safe, except for interrupt.
+ */
+
+public class HeadlessMachine {
+  private final MainMemory memory;
+  private final CPU        cpu;
+  private       isa.Memory program;
+
+  /**
+   * Create a machine with the default memory size of BatchRunner.
+   */
+  public HeadlessMachine () {
+    this (BatchRunner.DEFAULT_MEMORY_SIZE);
+  }
+
+  /**
+   * Create a machine.
+   * @param memorySize size of memory in bytes.
+   */
+  public HeadlessMachine (int memorySize) {
+    memory = new MainMemory (memorySize);
+    cpu    = new CPU (CPU.class.getName(), memory);
+    cpu.setTurboMode (true);
+    cpu.setBlockTranslationEnabled (true);
+    silence();
+  }
+
+  private void silence () {
+    memory.setNotificationsEnabled (false);
+    cpu   .setNotificationsEnabled (false);
+  }
+
+  public MainMemory getMemory  () { return memory; }
+  public CPU        getCpu     () { return cpu; }
+
+  /**
+   * @return the program most recently loaded, e.g., for its labels; null if none has been loaded.
+   */
+  public isa.Memory getProgram () {
+    return program;
+  }
+
+  /**
+   * Assemble or load a program into memory and point the pc at its first instruction region.
+   * @param program assembly or machine-code file.
+   * @return address of the first instruction region, or 0 if there is none.
+   * @throws Exception if the program cannot be read or assembled.
+   */
+  public int load (File program) throws Exception {
+    // the loader observes memory and the pc while it loads; detach it again afterwards
+    this.program = BatchRunner.load (cpu, memory, program);
+    silence();
+    int entry = BatchRunner.entryPoint (this.program);
+    cpu.resetMachineToPC (entry);
+    return entry;
+  }
+
+  /**
+   * Run from the current pc.
+   * @param maxInstructions stop after executing this many instructions.
+   * @return true iff the program halted; false if it exhausted maxInstructions or was interrupted.
+   * @throws AbstractCPU.InvalidInstructionException when an instruction is invalid.
+   * @throws AbstractMainMemory.InvalidAddressException when an instruction references an invalid address.
+   */
+  public boolean run (long maxInstructions) throws AbstractCPU.InvalidInstructionException, AbstractMainMemory.InvalidAddressException {
+    try {
+      cpu.runTurbo (maxInstructions);
+      return false;
+    } catch (AbstractCPU.MachineHaltException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Ask a running machine to stop at its next interrupt poll; may be called from any thread.
+   */
+  public void interrupt () {
+    cpu.triggerInterrupt();
+  }
+
+  /**
+   * @return number of instructions executed by the most recent run, including a final halt.
+   */
+  public long getInstructionCount () {
+    return cpu.getTurboInstructionCount();
+  }
+
+  public int getPc () {
+    return BatchRunner.pcOf (cpu);
+  }
+
+  /**
+   * @param register register number (0-7).
+   * @return value of the register.
+   */
+  public int getRegister (int register) {
+    return cpu.getRegisterFile().getValue ("r" + register);
+  }
+
+  /**
+   * Set a register before a run.
+   * @param register register number (0-7).
+   * @param value    new value.
+   */
+  public void setRegister (int register, int value) {
+    cpu.getRegisterFile().setValue ("r" + register, value);
+    // latch the written value, as a clock tick does, so that getRegister and the next run see it
+    cpu.getRegisterFile().tickClock (Register.ClockTransition.NORMAL);
+  }
+
+  /**
+   * @param address address of a four-byte-aligned word.
+   * @return the word, without checking watchpoints.
+   * @throws AbstractMainMemory.InvalidAddressException if the address is unaligned or out of range.
+   */
+  public int readWord (int address) throws AbstractMainMemory.InvalidAddressException {
+    if ((address & 3) != 0)
+      throw new AbstractMainMemory.InvalidAddressException();
+    return memory.peekInt (address);
+  }
+
+  /**
+   * @param address address of a four-byte-aligned word.
+   * @param value   new value of the word.
+   * @throws AbstractMainMemory.InvalidAddressException if the address is unaligned or out of range.
+   */
+  public void writeWord (int address, int value) throws AbstractMainMemory.InvalidAddressException {
+    memory.writeInteger (address, value);
+  }
+}
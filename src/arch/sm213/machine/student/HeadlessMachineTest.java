@@ -0,0 +1,98 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import machine.RegisterSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeadlessMachineTest {
+    File directory;
+    HeadlessMachine machine;
+
+    @BeforeEach
+    public void runBefore() throws Exception {
+        directory = Files.createTempDirectory("headless").toFile();
+        directory.deleteOnExit();
+        machine = new HeadlessMachine(0x2000);
+    }
+
+    File program(String name, String... lines) throws Exception {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        // r0 = r1 + the word at 0x1000, also stored at 0x1004
+        File file = program("add.s",
+                ".pos 0x100",
+                "        ld $0x1000, r2",
+                "        ld 0(r2), r0",
+                "        add r1, r0",
+                "        st r0, 4(r2)",
+                "        halt");
+        assertEquals(0x100, machine.load(file));
+        assertEquals(0x100, machine.getPc());
+        assertNotNull(machine.getProgram());
+        // test a run sees the word and register set before it, and its result is read back
+        machine.writeWord(0x1000, 40);
+        machine.setRegister(1, 2);
+        assertEquals(2, machine.getRegister(1));
+        assertTrue(machine.run(1000));
+        assertEquals(42, machine.getRegister(0));
+        assertEquals(42, machine.readWord(0x1004));
+        assertEquals(5, machine.getInstructionCount());
+        assertEquals(0x10e, machine.getPc());
+        // test unaligned and out-of-range words are rejected
+        try {
+            machine.readWord(0x1002);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        try {
+            machine.writeWord(0x2000, 1);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testBudgetExhausted() throws Exception {
+        machine.load(program("loop.s",
+                ".pos 0x100",
+                "loop:   inc r0",
+                "        br loop"));
+        // test a run that does not halt within its budget returns false, and the next one carries on
+        assertFalse(machine.run(100));
+        assertEquals(100, machine.getInstructionCount());
+        assertEquals(50, machine.getRegister(0));
+        assertFalse(machine.run(100));
+        assertEquals(100, machine.getRegister(0));
+    }
+
+    @Test
+    public void testNothingObserves() throws Exception {
+        machine.load(program("halt.s",
+                ".pos 0x100",
+                "        halt"));
+        // test the loader's observers are detached, so no change events are delivered while a program runs
+        CPU cpu = machine.getCpu();
+        assertEquals(0, machine.getMemory().countObservers());
+        assertEquals(0, cpu.countObservers());
+        assertEquals(0, cpu.getRegisterFile().countObservers());
+        for (RegisterSet set : cpu.getProcessorState())
+            assertEquals(0, set.countObservers(), set.getName());
+        assertTrue(machine.run(10));
+    }
+}
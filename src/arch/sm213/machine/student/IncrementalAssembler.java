@@ -0,0 +1,350 @@
+package arch.sm213.machine.student;
+
+import isa.AbstractAssembler.AssemblyException;
+import machine.AbstractMainMemory;
+import util.UnsignedByte;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * SM213 assembler that keeps a program's source, layout and encodings and updates them line by line as the
+ * source is edited, for editors and tools that reassemble after every change.
+ *
+ * An edit (replaceLines) parses only the new lines.  Addresses are recomputed from the edit onwards only until a
+ * line's address is the same as before, which happens at the next .pos at the latest, so other regions keep their
+ * layout.  Every line keeps its encoding; a line is re-encoded only if it is new, if it is a branch that moved, or
+ * if a label it uses changed address.  Labels are re-resolved only for the lines that moved.  write then stores
+ * just the bytes that changed.
+ *
+ * The syntax and the bytes produced are those of the standard assembler (see AssemblyLine).  A label defined more
+ * than once has the address of its last definition.  A label on a line that emits nothing labels the next byte
+ * emitted, unless another label comes first.  Uses of undefined labels are allowed while editing and reported by
+ * write.
+ */
+
+public class IncrementalAssembler {
+  private final List<AssemblyLine>              lines       = new ArrayList<>();
+  private final Map<String, List<AssemblyLine>> definitions = new HashMap<>();
+  private final Map<String, Set<AssemblyLine>>  users       = new HashMap<>();
+  private final Map<String, Integer>            labels      = new HashMap<>();
+  private final Set<AssemblyLine>               changed     = new HashSet<>();
+  private final List<int[]>                     cleared     = new ArrayList<>();
+  private       int                             encoded;
+
+  /**
+   * Create an assembler with an empty program.
+   */
+  public IncrementalAssembler () {
+  }
+
+  /**
+   * Create an assembler for a program.
+   * @param source the program, one string per line.
+   * @throws AssemblyException if a line is not valid assembly.
+   */
+  public IncrementalAssembler (List<String> source) {
+    replaceLines (0, 0, source);
+  }
+
+  /**
+   * Read and assemble a source file.
+   * @param file assembly file.
+   * @return an assembler holding the program.
+   * @throws IOException       if the file cannot be read.
+   * @throws AssemblyException if a line is not valid assembly.
+   */
+  public static IncrementalAssembler open (File file) throws IOException {
+    return new IncrementalAssembler (Files.readAllLines (file.toPath(), StandardCharsets.UTF_8));
+  }
+
+  public int getLineCount () {
+    return lines.size();
+  }
+
+  /**
+   * @param line line number, from 0.
+   * @return text of the line.
+   */
+  public String getLine (int line) {
+    return lines.get (line).text;
+  }
+
+  /**
+   * @param label a label.
+   * @return its address, or null if it is not defined.
+   */
+  public Integer getAddress (String label) {
+    return labels.get (label);
+  }
+
+  /**
+   * @return every defined label and its address.
+   */
+  public Map<String, Integer> getLabels () {
+    return Collections.unmodifiableMap (labels);
+  }
+
+  /**
+   * @return address of the first instruction, or 0 if there is none.
+   */
+  public int getEntryPoint () {
+    for (AssemblyLine line : lines)
+      if (line.kind == AssemblyLine.INSTRUCTION)
+        return line.address;
+    return 0;
+  }
+
+  /**
+   * @param line line number, from 0.
+   * @return address of the line's first byte (or of the next line's first byte, for a line that emits nothing).
+   */
+  public int getLineAddress (int line) {
+    return lines.get (line).address;
+  }
+
+  /**
+   * @return number of lines encoded by the most recent edit.
+   */
+  public int getEncodedCount () {
+    return encoded;
+  }
+
+  /**
+   * Replace one line.
+   * @param line line number, from 0.
+   * @param text new text.
+   * @throws AssemblyException if the text is not valid assembly; the program is then unchanged.
+   */
+  public void replaceLine (int line, String text) {
+    replaceLines (line, 1, Collections.singletonList (text));
+  }
+
+  /**
+   * Replace a range of lines, e.g., to insert (count 0) or delete (empty replacement) lines.
+   * @param from        number of the first line replaced, from 0.
+   * @param count       number of lines replaced.
+   * @param replacement new lines.
+   * @throws AssemblyException if a new line is not valid assembly; the program is then unchanged.
+   */
+  public void replaceLines (int from, int count, List<String> replacement) {
+    if (from < 0 || count < 0 || from + count > lines.size())
+      throw new IndexOutOfBoundsException ("lines " + from + " to " + (from + count) + " of " + lines.size());
+    List<AssemblyLine> added = new ArrayList<> (replacement.size());
+    for (int i = 0; i < replacement.size(); i++)
+      try {
+        added.add (AssemblyLine.parse (replacement.get (i)));
+      } catch (AssemblyException e) {
+        throw new AssemblyException ("line " + (from + i + 1) + ": " + e);
+      }
+    encoded = 0;
+
+    // labels whose address may change: those of the removed, added and moved lines, and of the label-only
+    // lines just before the edit, whose address is that of the first line after them that emits bytes
+    Set<String> touched = new HashSet<>();
+    List<AssemblyLine> removed = lines.subList (from, from + count);
+    for (AssemblyLine line : removed) {
+      unregister (line);
+      touched (line, touched);
+      if (line.emits())
+        cleared.add (new int[] {line.address, line.length});
+      changed.remove (line);
+    }
+    removed.clear();
+    lines.addAll (from, added);
+    for (AssemblyLine line : added) {
+      register (line);
+      touched (line, touched);
+    }
+    for (int i = from - 1; i >= 0 && !lines.get (i).emits(); i--)
+      touched (lines.get (i), touched);
+
+    // lay out from the edit until a line after it emits bytes where it did before, or sets the pc with .pos
+    int pc   = pcBefore (from);
+    int stop = from;
+    for (; stop < lines.size(); stop++) {
+      AssemblyLine line = lines.get (stop);
+      if (stop >= from + added.size()) {
+        if (line.kind == AssemblyLine.POSITION || (line.emits() && line.address == pc))
+          break;
+        touched (line, touched);
+        if (line.emits()) {
+          cleared.add (new int[] {line.address, line.length});
+          changed.add (line);
+          if (line.pcRelative)
+            line.encoding = null;
+        }
+      }
+      line.address = pc;
+      pc = line.kind == AssemblyLine.POSITION ? line.position : pc + line.length;
+    }
+
+    // a line that emits nothing has the address of the next byte emitted; its label labels that byte, unless
+    // another label comes first or nothing more is emitted
+    int     next = stop < lines.size() ? lines.get (stop).address   : pc;
+    boolean free = stop < lines.size() && lines.get (stop).unclaimed;
+    for (int i = stop - 1; i >= 0; i--) {
+      AssemblyLine line = lines.get (i);
+      if (line.emits()) {
+        if (i < from)
+          break;
+        next = line.address;
+        free = line.label == null;
+      } else {
+        line.address = next;
+        if (line.label != null) {
+          line.attached = free;
+          free          = false;
+        }
+      }
+      line.unclaimed = free;
+    }
+
+    // re-resolve the touched labels; re-encode the users of those that changed, and new or moved branches
+    Set<AssemblyLine> stale = new HashSet<>();
+    for (String label : touched) {
+      Integer before = labels.get (label);
+      Integer after  = resolve (label);
+      if (after == null)
+        labels.remove (label);
+      else
+        labels.put (label, after);
+      if (before == null ? after != null : !before.equals (after))
+        stale.addAll (users.getOrDefault (label, Collections.emptySet()));
+    }
+    for (AssemblyLine line : added)
+      stale.add (line);
+    for (AssemblyLine line : changed)
+      if (line.encoding == null)
+        stale.add (line);
+    for (AssemblyLine line : stale)
+      if (line.emits()) {
+        encode (line);
+        changed.add (line);
+      }
+  }
+
+  /**
+   * @return pc before a line, i.e., after the last line before it that emits bytes or sets the pc.
+   */
+  private int pcBefore (int line) {
+    for (int i = line - 1; i >= 0; i--) {
+      AssemblyLine before = lines.get (i);
+      if (before.kind == AssemblyLine.POSITION)
+        return before.position;
+      if (before.emits())
+        return before.address + before.length;
+    }
+    return 0;
+  }
+
+  private static void touched (AssemblyLine line, Set<String> touched) {
+    if (line.label != null)
+      touched.add (line.label);
+  }
+
+  private void register (AssemblyLine line) {
+    if (line.label != null)
+      definitions.computeIfAbsent (line.label, l -> new ArrayList<>()).add (line);
+    if (line.reference != null)
+      users.computeIfAbsent (line.reference, l -> new HashSet<>()).add (line);
+  }
+
+  private void unregister (AssemblyLine line) {
+    if (line.label != null) {
+      List<AssemblyLine> ds = definitions.get (line.label);
+      ds.remove (line);
+      if (ds.isEmpty())
+        definitions.remove (line.label);
+    }
+    if (line.reference != null) {
+      Set<AssemblyLine> us = users.get (line.reference);
+      us.remove (line);
+      if (us.isEmpty())
+        users.remove (line.reference);
+    }
+  }
+
+  /**
+   * @return address of a label's last definition, or null if it has none.
+   */
+  private Integer resolve (String label) {
+    List<AssemblyLine> ds = definitions.get (label);
+    if (ds == null)
+      return null;
+    if (ds.size() == 1)
+      return defines (ds.get (0)) ? ds.get (0).address : null;
+    AssemblyLine last      = null;
+    int          lastIndex = -1;
+    for (AssemblyLine d : ds)
+      if (defines (d)) {
+        int index = lines.indexOf (d);
+        if (index > lastIndex) {
+          lastIndex = index;
+          last      = d;
+        }
+      }
+    return last != null ? last.address : null;
+  }
+
+  private static boolean defines (AssemblyLine line) {
+    return line.emits() || line.attached;
+  }
+
+  private void encode (AssemblyLine line) {
+    Integer value = line.reference != null ? labels.get (line.reference) : Integer.valueOf (0);
+    if (value == null)
+      line.encoding = null;
+    else {
+      line.encoding = new byte [line.length];
+      line.encode (line.address, value, line.encoding, 0);
+      encoded++;
+    }
+  }
+
+  /**
+   * Store the bytes that changed since the previous write (or every byte, the first time) into memory.  Bytes
+   * of lines that were deleted or moved are zeroed first.
+   * @param memory destination.
+   * @return number of bytes stored.
+   * @throws AssemblyException                  if a line uses an undefined label; nothing is stored.
+   * @throws AbstractMainMemory.InvalidAddressException if a line lies outside memory.
+   */
+  public int write (AbstractMainMemory memory) throws AbstractMainMemory.InvalidAddressException {
+    for (AssemblyLine line : changed)
+      if (line.encoding == null)
+        throw new AssemblyException (String.format ("Label not found: %s at address %d", line.reference, line.address));
+    int stored = 0;
+    for (int[] range : cleared) {
+      store (memory, range [0], new byte [range [1]]);
+      stored += range [1];
+    }
+    for (AssemblyLine line : changed) {
+      store (memory, line.address, line.encoding);
+      stored += line.length;
+    }
+    cleared.clear();
+    changed.clear();
+    return stored;
+  }
+
+  private static void store (AbstractMainMemory memory, int address, byte[] bytes) throws AbstractMainMemory.InvalidAddressException {
+    if (memory instanceof MainMemory) {
+      MainMemory m = (MainMemory) memory;
+      if (address < 0 || address > m.length() - bytes.length)
+        throw new AbstractMainMemory.InvalidAddressException();
+      m.restoreRange (address, bytes, 0, bytes.length);
+    } else
+      memory.writeUnaligned (address, UnsignedByte.toUnsignedBytes (bytes));
+  }
+}
@@ -0,0 +1,173 @@
+package arch.sm213.machine.student;
+
+import isa.AbstractAssembler.AssemblyException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IncrementalAssemblerTest {
+    static final int MEMORY_SIZE = 0x1000;
+
+    // two regions; no line moves the pc, so the regions cannot grow into each other
+    static final List<String> START = Arrays.asList(
+            ".pos 0x100",
+            "L0:     ld $L1, r1      # kept",
+            "        br L2",
+            "L1:     .long 7         # kept",
+            "L2:     inc r0          # kept",
+            "        beq r0, L0",
+            "L4:",
+            "        halt",
+            ".pos 0x800",
+            "L3:     .long L0        # kept",
+            "        .long L2",
+            "L5:     .long L4        # kept");
+
+    static String randomLine(Random random) {
+        int label = random.nextInt(6);
+        switch (random.nextInt(14)) {
+            case 0:  return "L" + label + ":";
+            case 1:  return "L" + label + ":     inc r" + random.nextInt(8);
+            case 2:  return "L" + label + ":     .long " + random.nextInt(1000);
+            case 3:  return "        br L" + label;
+            case 4:  return "        beq r0, L" + label;
+            case 5:  return "        bgt r1, L" + label;
+            case 6:  return "        ld $L" + label + ", r1";
+            case 7:  return "        j L" + label;
+            case 8:  return "        .long L" + label;
+            case 9:  return "        ld $" + random.nextInt(100000) + ", r2";
+            case 10: return "        add r1, r2";
+            case 11: return "        st r2, 8(r1)";
+            case 12: return "# comment";
+            default: return "";
+        }
+    }
+
+    static List<String> randomLines(Random random, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            lines.add(randomLine(random));
+        return lines;
+    }
+
+    /**
+     * Assemble and write into memory.
+     * @return the assembler error message, or null if the write succeeded.
+     */
+    static String write(IncrementalAssembler assembler, MainMemory memory) throws Exception {
+        try {
+            assembler.write(memory);
+            return null;
+        } catch (AssemblyException e) {
+            return e.toString();
+        }
+    }
+
+    static void assertSameAsFull(IncrementalAssembler incremental, MainMemory memory, List<String> source, String step) throws Exception {
+        IncrementalAssembler full       = new IncrementalAssembler(source);
+        MainMemory           fullMemory = new MainMemory(MEMORY_SIZE);
+        String               error      = write(full, fullMemory);
+        // either may report any one of the undefined labels
+        assertEquals(error == null, write(incremental, memory) == null, step);
+        assertEquals(full.getLabels(), incremental.getLabels(), step);
+        assertEquals(full.getEntryPoint(), incremental.getEntryPoint(), step);
+        assertEquals(source.size(), incremental.getLineCount(), step);
+        for (int line = 0; line < source.size(); line++) {
+            assertEquals(source.get(line), incremental.getLine(line), step);
+            assertEquals(full.getLineAddress(line), incremental.getLineAddress(line), step + " line " + line);
+        }
+        if (error == null)
+            assertArrayEquals(fullMemory.get(0, MEMORY_SIZE), memory.get(0, MEMORY_SIZE));
+    }
+
+    @Test
+    public void testEdit() throws Exception {
+        IncrementalAssembler assembler = new IncrementalAssembler(START);
+        MainMemory           memory    = new MainMemory(MEMORY_SIZE);
+        assertNull(write(assembler, memory));
+        assertEquals(0x108, (int) assembler.getAddress("L1"));
+        // test inserting a line moves the labels after it and re-encodes only the new line and those that use them
+        assembler.replaceLines(2, 0, Arrays.asList("        nop"));
+        assertEquals(0x10a, (int) assembler.getAddress("L1"));
+        assertTrue(assembler.getEncodedCount() < START.size());
+        List<String> source = new ArrayList<>(START);
+        source.add(2, "        nop");
+        assertSameAsFull(assembler, memory, source, "insert");
+        assertArrayEquals(new byte[] {0, 0, 1, 0x0a}, memory.get(0x102, 4));
+    }
+
+    @Test
+    public void testUndefinedLabel() throws Exception {
+        IncrementalAssembler assembler = new IncrementalAssembler(START);
+        MainMemory           memory    = new MainMemory(MEMORY_SIZE);
+        assertNull(write(assembler, memory));
+        byte[] before = memory.get(0, MEMORY_SIZE);
+        // test a use of an undefined label is reported by write, which then stores nothing
+        assembler.replaceLine(2, "        br L9");
+        assertNotNull(write(assembler, memory));
+        assertArrayEquals(before, memory.get(0, MEMORY_SIZE));
+        List<String> source = new ArrayList<>(START);
+        source.set(2, "L9:     br L9");
+        assembler.replaceLine(2, source.get(2));
+        assertSameAsFull(assembler, memory, source, "define");
+    }
+
+    @Test
+    public void testLabelOnlyLine() throws Exception {
+        List<String>         source    = new ArrayList<>(Arrays.asList(".pos 0x100", "a:", "b:      inc r0", "        ld $a, r1"));
+        IncrementalAssembler assembler = new IncrementalAssembler(source);
+        MainMemory           memory    = new MainMemory(MEMORY_SIZE);
+        // test a labels the inc only while no other label comes first
+        assertNull(assembler.getAddress("a"));
+        source.set(2, "        inc r0");
+        assembler.replaceLine(2, source.get(2));
+        assertEquals(0x100, (int) assembler.getAddress("a"));
+        assertSameAsFull(assembler, memory, source, "unlabelled");
+        source.set(2, "c:      inc r0");
+        assembler.replaceLine(2, source.get(2));
+        assertNull(assembler.getAddress("a"));
+        assertSameAsFull(assembler, memory, source, "labelled");
+        source.remove(2);
+        assembler.replaceLines(2, 1, Collections.<String>emptyList());
+        assertEquals(0x100, (int) assembler.getAddress("a"));
+        assertSameAsFull(assembler, memory, source, "deleted");
+    }
+
+    @Test
+    public void testRandomEdits() throws Exception {
+        // test every edit leaves the same layout, labels and memory as assembling the edited source from scratch
+        for (int seed = 0; seed < 20; seed++) {
+            Random               random    = new Random(seed);
+            List<String>         source    = new ArrayList<>(START);
+            IncrementalAssembler assembler = new IncrementalAssembler(source);
+            MainMemory           memory    = new MainMemory(MEMORY_SIZE);
+            for (int edit = 0; edit < 60; edit++) {
+                String step  = "seed " + seed + " edit " + edit;
+                int    from  = random.nextInt(source.size() + 1);
+                int    count = Math.min(random.nextInt(4), source.size() - from);
+                // grow while short and shrink while long, so the first region stays below the second
+                int    added = source.size() > 80 ? random.nextInt(2) : random.nextInt(5);
+                List<String> replacement = randomLines(random, added);
+                // keep the .pos lines, and a definition of most labels so that most writes succeed
+                boolean keeps = true;
+                for (String line : source.subList(from, from + count))
+                    keeps &= !line.startsWith(".pos") && !line.endsWith("# kept");
+                if (!keeps)
+                    continue;
+                assembler.replaceLines(from, count, replacement);
+                source.subList(from, from + count).clear();
+                source.addAll(from, replacement);
+                // write after some edits only, so that changes from several edits accumulate
+                if (random.nextInt(3) != 0)
+                    assertSameAsFull(assembler, memory, source, step);
+            }
+            assertSameAsFull(assembler, memory, source, "seed " + seed);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Exact least-recently-used replacement.
+ */
+
+public class LruReplacementPolicy implements ReplacementPolicy {
+  private final long[] lastUse;
+  private       long   clock;
+
+  /**
+   * @param frameCount number of frames in the pool.
+   */
+  public LruReplacementPolicy (int frameCount) {
+    lastUse = new long [frameCount];
+  }
+
+  @Override public void frameLoaded (int frame) {
+    lastUse [frame] = ++clock;
+  }
+
+  @Override public void frameAccessed (int frame) {
+    lastUse [frame] = ++clock;
+  }
+
+  @Override public int selectVictim () {
+    int victim = 0;
+    for (int i = 1; i < lastUse.length; i++)
+      if (lastUse [i] < lastUse [victim])
+        victim = i;
+    return victim;
+  }
+}
@@ -0,0 +1,93 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.Register;
+import machine.RegisterSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Complete state of a machine: the contents of its MainMemory, its register file and its processor state
+ * (pc, ptbr and the instruction registers).
+ *
+ * Taking a snapshot copies memory once; restoring the snapshot taken most recently copies back only the pages
+ * written since it was taken or last restored (see MainMemory.capture), so a test harness that loads a program,
+ * takes a snapshot and restores it before every test case pays for the pages each test dirties rather than for
+ * the whole memory.  Restoring an older snapshot copies all of memory.
+ */
+
+public class MachineSnapshot {
+  private final MainMemory.Image memory;
+  private final int[][]          registers;
+
+  private MachineSnapshot (MainMemory.Image memory, int[][] registers) {
+    this.memory    = memory;
+    this.registers = registers;
+  }
+
+  /**
+   * Capture the state of a stopped machine.
+   * @param cpu the machine's CPU; its memory must be a MainMemory.
+   * @return the snapshot.
+   * @throws IllegalArgumentException if the CPU's memory is not a MainMemory.
+   */
+  public static MachineSnapshot take (AbstractCPU cpu) {
+    return new MachineSnapshot (mainMemory (cpu).capture(), captureRegisters (cpu));
+  }
+
+  /**
+   * Return a stopped machine to this snapshot.
+   * @param cpu the CPU the snapshot was taken of, or one of the same kind with a memory of the same size.
+   * @throws IllegalArgumentException if the CPU's memory is not a MainMemory of the snapshot's size.
+   */
+  public void restore (AbstractCPU cpu) {
+    mainMemory (cpu).restore (memory);
+    restoreRegisters (cpu, registers);
+  }
+
+  /**
+   * @return the value of every register of the register file and processor state, by set.
+   */
+  static int[][] captureRegisters (AbstractCPU cpu) {
+    List<RegisterSet> sets      = registerSets (cpu);
+    int[][]           registers = new int [sets.size()][];
+    for (int s = 0; s < sets.size(); s++) {
+      List<Register> all = sets.get (s).getAll();
+      registers [s] = new int [all.size()];
+      for (int r = 0; r < all.size(); r++)
+        registers [s][r] = all.get (r).get();
+    }
+    return registers;
+  }
+
+  /**
+   * Set every register to a value returned by captureRegisters.
+   */
+  static void restoreRegisters (AbstractCPU cpu, int[][] registers) {
+    List<RegisterSet> sets = registerSets (cpu);
+    for (int s = 0; s < sets.size(); s++) {
+      List<Register> all = sets.get (s).getAll();
+      for (int r = 0; r < all.size(); r++)
+        all.get (r).set (registers [s][r]);
+      // latch the written values, as cycle's clock ticks do, so that Register.get sees them
+      sets.get (s).tickClock (Register.ClockTransition.NORMAL);
+    }
+  }
+
+  private static List<RegisterSet> registerSets (AbstractCPU cpu) {
+    List<RegisterSet> sets = new ArrayList<>();
+    sets.add (cpu.getRegisterFile());
+    for (RegisterSet set : cpu.getProcessorState())
+      if (set != cpu.getRegisterFile())
+        sets.add (set);
+    return sets;
+  }
+
+  static MainMemory mainMemory (AbstractCPU cpu) {
+    if (!(cpu.getMainMemory() instanceof MainMemory))
+      throw new IllegalArgumentException ("snapshots need a MainMemory");
+    return (MainMemory) cpu.getMainMemory();
+  }
+}
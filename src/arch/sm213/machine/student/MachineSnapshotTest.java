@@ -0,0 +1,113 @@
+package arch.sm213.machine.student;
+
+import machine.Register;
+import machine.RegisterSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MachineSnapshotTest {
+
+    // changes registers, pc and one word of the data page at 0x2000
+    static final List<String> INCREMENT = Arrays.asList(
+            ".pos 0x100",
+            "        ld $a, r1",
+            "        ld 0(r1), r2",
+            "        inc r2",
+            "        st r2, 0(r1)",
+            "        ld $7, r7",
+            "        halt",
+            ".pos 0x2000",
+            "a:      .long 41");
+
+    static List<Integer> restored(MainMemory memory, Runnable restore) {
+        List<Integer> pages = new ArrayList<>();
+        MemoryWriteListener listener = (address, length) -> pages.add(address);
+        memory.addWriteListener(listener);
+        restore.run();
+        memory.removeWriteListener(listener);
+        return pages;
+    }
+
+    static void setPtbr(CPU cpu, int value) {
+        for (RegisterSet set : cpu.getProcessorState()) {
+            Register ptbr = set.getRegister("PTBR");
+            if (ptbr != null) {
+                ptbr.set(value);
+                set.tickClock(Register.ClockTransition.NORMAL);
+            }
+        }
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        CPU        cpu      = CPUTest.load(INCREMENT);
+        MainMemory memory   = (MainMemory) cpu.getMainMemory();
+        int[]      state    = CPUTest.state(cpu);
+        byte[]     contents = CPUTest.memory(cpu);
+        MachineSnapshot snapshot = MachineSnapshot.take(cpu);
+        CPUTest.runClocked(cpu);
+        assertEquals(42, memory.readInteger(0x2000));
+        assertEquals(7, CPUTest.state(cpu)[7]);
+        // test only the page the run wrote is copied back, and registers, pc and memory are as they were
+        assertEquals(1, memory.getDirtyPageCount());
+        assertEquals(Arrays.asList(0x2000), restored(memory, () -> snapshot.restore(cpu)));
+        assertEquals(0, memory.getDirtyPageCount());
+        assertArrayEquals(state, CPUTest.state(cpu));
+        assertArrayEquals(contents, CPUTest.memory(cpu));
+        // test the machine runs from it as it did the first time
+        CPUTest.runClocked(cpu);
+        assertEquals(42, memory.readInteger(0x2000));
+        assertEquals(Arrays.asList(0x2000), restored(memory, () -> snapshot.restore(cpu)));
+        assertEquals(41, memory.readInteger(0x2000));
+    }
+
+    @Test
+    public void testRestoreOlder() throws Exception {
+        CPU        cpu    = CPUTest.load(INCREMENT);
+        MainMemory memory = (MainMemory) cpu.getMainMemory();
+        int[]      state  = CPUTest.state(cpu);
+        MachineSnapshot older = MachineSnapshot.take(cpu);
+        CPUTest.runClocked(cpu);
+        int[]  later    = CPUTest.state(cpu);
+        byte[] contents = CPUTest.memory(cpu);
+        MachineSnapshot newer = MachineSnapshot.take(cpu);
+        // test restoring a snapshot older than the last one copies every page, nothing having been written
+        assertEquals(0, memory.getDirtyPageCount());
+        assertEquals(CPUTest.MEMORY_SIZE / MainMemory.DIRTY_PAGE_SIZE, restored(memory, () -> older.restore(cpu)).size());
+        assertArrayEquals(state, CPUTest.state(cpu));
+        assertEquals(41, memory.readInteger(0x2000));
+        // test the newer one, now not the last restored, is copied whole too
+        assertEquals(CPUTest.MEMORY_SIZE / MainMemory.DIRTY_PAGE_SIZE, restored(memory, () -> newer.restore(cpu)).size());
+        assertArrayEquals(later, CPUTest.state(cpu));
+        assertArrayEquals(contents, CPUTest.memory(cpu));
+    }
+
+    @Test
+    public void testVirtualMemory() throws Exception {
+        // page tables at 0x2000 and 0x2400 map virtual page 0x40 (0x800) to frames 0x40 (0x800) and 0x41 (0x820)
+        MainMemory       memory = new MainMemory(CPUTest.MEMORY_SIZE);
+        VirtualMemoryCPU cpu    = new VirtualMemoryCPU(CPU.class.getName(), memory);
+        cpu.setNotificationsEnabled(false);
+        memory.writeInteger(0x2000 + 0x40 * VirtualMemoryCPU.PTE_SIZE, VirtualMemoryCPU.PTE_VALID_BIT_MASK | 0x40);
+        memory.writeInteger(0x2400 + 0x40 * VirtualMemoryCPU.PTE_SIZE, VirtualMemoryCPU.PTE_VALID_BIT_MASK | 0x41);
+        setPtbr(cpu, 0x2000);
+        assertEquals(0x804, cpu.translateAddress(0x804));
+        MachineSnapshot snapshot = MachineSnapshot.take(cpu);
+        // test a restore that changes ptbr back does not use the translations cached under the other table
+        setPtbr(cpu, 0x2400);
+        assertEquals(0x824, cpu.translateAddress(0x804));
+        snapshot.restore(cpu);
+        assertEquals(0x804, cpu.translateAddress(0x804));
+        // test a restore that rewrites a PTE drops the translation cached from the PTE it replaces
+        memory.writeInteger(0x2000 + 0x40 * VirtualMemoryCPU.PTE_SIZE, VirtualMemoryCPU.PTE_VALID_BIT_MASK | 0x42);
+        assertEquals(0x844, cpu.translateAddress(0x804));
+        snapshot.restore(cpu);
+        assertEquals(0x804, cpu.translateAddress(0x804));
+        assertTrue(cpu.getTLB().getFlushes() > 0);
+    }
+}
@@ -1,23 +1,63 @@
 package arch.sm213.machine.student;
 
 import machine.AbstractMainMemory;
+import util.DataModelEvent;
+import util.TableCellIndex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
 /**
  * Main Memory of Simple CPU.
  *
  * Provides an abstraction of main memory (DRAM).
+ *
+ * Every store marks its page (DIRTY_PAGE_SIZE bytes) dirty, so that restoring the image most recently captured
+ * only copies back the pages written since; see capture and restore.
+ *
+ * Stores (but not restore) and the word and bulk loads of the CPU (readInt, readIntUnaligned, readBuffer) are
+ * checked against the Watchpoints set with setWatchpoints, if any.  Byte loads (get, which the GUI, snapshots and
+ * debuggers use) and peekInt are not.
  */
 
-public class MainMemory extends AbstractMainMemory {
+public class MainMemory extends AbstractMainMemory implements MemoryWriteSource {
+  public  static final int DIRTY_PAGE_SIZE  = 4096;
+  private static final int DIRTY_PAGE_SHIFT = 12;
+
   private byte [] mem;
+  private final MemoryWriteListenerList writeListeners = new MemoryWriteListenerList();
+  private final long [] dirty;
+  private       Image   base;
+  private       boolean notificationsEnabled = true;
+  private volatile NotificationCoalescer coalescer;
+  private volatile Watchpoints watchpoints;
+
+  /**
+   * Contents of memory at the time of a capture.
+   */
+  public static final class Image {
+    private final byte [] bytes;
+
+    private Image (byte [] bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * @return size of the image in bytes.
+     */
+    public int length () {
+      return bytes.length;
+    }
+  }
   
   /**
    * Allocate memory.
    * @param byteCapacity size of memory in bytes.
    */
   public MainMemory (int byteCapacity) {
-    mem = new byte [byteCapacity];
+    mem   = new byte [byteCapacity];
+    dirty = new long [(((byteCapacity + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_SHIFT) + 63) >>> 6];
   }
   
   /**
@@ -61,35 +101,16 @@ public class MainMemory extends AbstractMainMemory {
   }
   
   /**
-   * Fetch a sequence of bytes from memory.
+   * Fetch a sequence of bytes from memory.  Not checked against watchpoints.
    * @param address address of the first byte to fetch.
    * @param length  number of bytes to fetch.
    * @throws InvalidAddressException  if any address in the range address to address+length-1 is invalid.
    * @return an array of byte where [0] is memory value at address, [1] is memory value at address+1 etc.
    */
   @Override protected byte[] get (int address, int length) throws InvalidAddressException {
-    // TODO
-    byte[] list = new byte[length];
-    try {
-        for (int i = 0; i < length; i++) {
-            list[i] = mem[address + i];
-        }
-    } catch (ArrayIndexOutOfBoundsException e) {
-        throw new InvalidAddressException();
-    }
-    return list;
-
-//    byte[] list = new byte[length];
-//
-//      for (int i = 0; i < length; i++) {
-//          if ((address + i) >= length()) {
-//              throw new InvalidAddressException();
-//          } else {
-//              list[i] = mem[address + i];
-//          }
-//      }
-//
-//    return list;
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    return Arrays.copyOfRange (mem, address, address + length);
   }
   
   /**
@@ -99,24 +120,347 @@ public class MainMemory extends AbstractMainMemory {
    * @throws InvalidAddressException  if any address in the range address to address+value.length-1 is invalid.
    */
   @Override protected void set (int address, byte[] value) throws InvalidAddressException {
-    // TODO
-    try {
-        for (int i = 0; i < value.length; i++) {
-            mem[address+i] = value[i];
-        }
-    } catch (ArrayIndexOutOfBoundsException e) {
-        throw new InvalidAddressException();
+    if (!isValidRange (address, value.length))
+      throw new InvalidAddressException();
+    Watchpoints w       = watchpoints;
+    int         changed = w != null ? w.changed (mem, address, value) : -1;
+    System.arraycopy (value, 0, mem, address, value.length);
+    markDirty (address, value.length);
+    fireMemoryWritten (address, value.length);
+    if (w != null)
+      w.written (address, value.length, changed);
+  }
+  
+  /**
+   * Load a Big Endian integer from an aligned address without allocating.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if address is not aligned to 4 or any byte is out of range.
+   * @return the integer stored at address.
+   */
+  public int readInt (int address) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    return readIntUnaligned (address);
+  }
+  
+  /**
+   * Load a Big Endian integer from any address without allocating.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return the integer stored at address.
+   */
+  public int readIntUnaligned (int address) throws InvalidAddressException {
+    int         value = peekInt (address);
+    Watchpoints w     = watchpoints;
+    if (w != null)
+      w.read (address, 4);
+    return value;
+  }
+  
+  /**
+   * Load a Big Endian integer from any address without checking watchpoints, for a tool that inspects memory
+   * (e.g., a decoder or debugger) rather than a load of the running program.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return the integer stored at address.
+   */
+  int peekInt (int address) throws InvalidAddressException {
+    if (!isValidRange (address, 4))
+      throw new InvalidAddressException();
+    return ((mem [address] & 0xFF) << 24) | ((mem [address + 1] & 0xFF) << 16)
+            | ((mem [address + 2] & 0xFF) << 8) | (mem [address + 3] & 0xFF);
+  }
+
+  /**
+   * Load a Big Endian integer from any address of any memory for a tool, through peekInt if it is a MainMemory.
+   * @param memory  memory to read.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return the integer stored at address.
+   */
+  static int peekInt (AbstractMainMemory memory, int address) throws InvalidAddressException {
+    return memory instanceof MainMemory ? ((MainMemory) memory).peekInt (address) : memory.readIntegerUnaligned (address);
+  }
+
+  /**
+   * Store a Big Endian integer at an aligned address without allocating.
+   * @param address address of the integer's first byte.
+   * @param value   integer to store.
+   * @throws InvalidAddressException if address is not aligned to 4 or any byte is out of range.
+   */
+  public void writeInt (int address, int value) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    writeIntUnaligned (address, value);
+  }
+  
+  /**
+   * Store a Big Endian integer at any address without allocating.
+   * @param address address of the integer's first byte.
+   * @param value   integer to store.
+   * @throws InvalidAddressException if any byte is out of range.
+   */
+  public void writeIntUnaligned (int address, int value) throws InvalidAddressException {
+    if (!isValidRange (address, 4))
+      throw new InvalidAddressException();
+    Watchpoints w       = watchpoints;
+    int         changed = w != null ? w.changed (mem, address, value) : -1;
+    mem [address]     = (byte) (value >> 24);
+    mem [address + 1] = (byte) (value >> 16);
+    mem [address + 2] = (byte) (value >> 8);
+    mem [address + 3] = (byte) value;
+    markDirty (address, 4);
+    fireMemoryWritten (address, 4);
+    if (w != null)
+      w.written (address, 4, changed);
+  }
+  
+  /**
+   * Word loads and stores bypass the byte-array path of AbstractMainMemory.  Observers are still told
+   * about the access, but the event is only built when there is someone to tell.
+   */
+  @Override public int readInteger (int address) throws InvalidAddressException {
+    int value = readInt (address);
+    tellObserversOfAccess (DataModelEvent.Type.READ, address, 4);
+    return value;
+  }
+  
+  @Override public int readIntegerUnaligned (int address) throws InvalidAddressException {
+    int value = readIntUnaligned (address);
+    tellObserversOfAccess (DataModelEvent.Type.READ, address, 4);
+    return value;
+  }
+  
+  @Override public void writeInteger (int address, int value) throws InvalidAddressException {
+    writeInt (address, value);
+    tellObserversOfAccess (DataModelEvent.Type.WRITE, address, 4);
+  }
+  
+  @Override public void writeIntegerUnaligned (int address, int value) throws InvalidAddressException {
+    writeIntUnaligned (address, value);
+    tellObserversOfAccess (DataModelEvent.Type.WRITE, address, 4);
+  }
+  
+  /**
+   * Load a range of bytes in bulk, e.g., for a system call that writes it to a host channel.  The access is checked
+   * against watchpoints and reported to observers as a read.
+   * @param address address of the first byte.
+   * @param length  number of bytes.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return a read-only buffer over the bytes, valid until memory is next stored into.
+   */
+  ByteBuffer readBuffer (int address, int length) throws InvalidAddressException {
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    Watchpoints w = watchpoints;
+    if (w != null)
+      w.read (address, length);
+    tellObserversOfAccess (DataModelEvent.Type.READ, address, length);
+    return ByteBuffer.wrap (mem, address, length).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Store the remaining bytes of a buffer in bulk, e.g., for a system call that reads them from a host channel.
+   * The store is treated as by set: pages are marked dirty, and write listeners, observers and watchpoints told.
+   * @param address address of the first byte.
+   * @param source  bytes to store, from its position to its limit; its position is advanced to its limit.
+   * @throws InvalidAddressException if any byte is out of range; nothing is stored.
+   */
+  void writeBuffer (int address, ByteBuffer source) throws InvalidAddressException {
+    int length = source.remaining();
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    if (length == 0)
+      return;
+    if (watchpoints != null) {
+      byte[] value = new byte [length];
+      source.get (value);
+      set (address, value);
+    } else {
+      source.get (mem, address, length);
+      markDirty (address, length);
+      fireMemoryWritten (address, length);
     }
+    tellObserversOfAccess (DataModelEvent.Type.WRITE, address, length);
+  }
 
-//      for (int i = 0; i < value.length; i++) {
-//          if ((address + i) >= length()) {
-//              throw new InvalidAddressException();
-//          } else {
-//              mem[address+i] = value[i];
-//          }
-//      }
+  /**
+   * Determine whether every byte in a range lies within memory.
+   * @param address address of the first byte.
+   * @param length  number of bytes.
+   * @return true iff address to address+length-1 are all valid.
+   */
+  private boolean isValidRange (int address, int length) {
+    return address >= 0 && length >= 0 && address <= mem.length - length;
   }
   
+  /**
+   * Enable or disable access notifications for headless use (see HeadlessMachine).  Disabling them detaches
+   * every Observer and stops word loads and stores from even checking for one; write listeners are unaffected.
+   * @param enabled false to stop telling observers about accesses.
+   */
+  public void setNotificationsEnabled (boolean enabled) {
+    notificationsEnabled = enabled;
+    if (!enabled)
+      deleteObservers();
+  }
+  
+  public boolean isNotificationsEnabled () {
+    return notificationsEnabled;
+  }
+  
+  /**
+   * Tell observers (e.g., the GUI memory view) that a range of bytes was read or written.
+   * @param type    READ or WRITE.
+   * @param address address of the first byte accessed.
+   * @param length  number of bytes accessed.
+   */
+  private void tellObserversOfAccess (DataModelEvent.Type type, int address, int length) {
+    NotificationCoalescer c = coalescer;
+    if (c != null) {
+      if (type == DataModelEvent.Type.WRITE)
+        c.markWritten (address, length);
+    } else if (notificationsEnabled && countObservers() > 0)
+      tellObservers (MemoryWriteListenerList.accessEvent (type, address, length));
+  }
+  
+  /**
+   * While a coalescer is set, reads and writes are not reported to observers as they happen; writes are
+   * recorded by the coalescer, which reports them a frame at a time.  Other events are delivered as usual.
+   */
+  @Override protected void tellObservers (DataModelEvent event) {
+    NotificationCoalescer c = coalescer;
+    if (c == null || (event.getType() != DataModelEvent.Type.READ && event.getType() != DataModelEvent.Type.WRITE))
+      super.tellObservers (event);
+    else if (event.getType() == DataModelEvent.Type.WRITE)
+      for (TableCellIndex cell : event.getCells())
+        c.markWritten (cell.rowIndex, 1);
+  }
+  
+  /**
+   * Deliver an event to observers even while a coalescer is set.
+   */
+  void tellObserversNow (DataModelEvent event) {
+    super.tellObservers (event);
+  }
+  
+  /**
+   * @param coalescer coalescer to record writes, or null to report accesses as they happen.
+   */
+  void setCoalescer (NotificationCoalescer coalescer) {
+    this.coalescer = coalescer;
+  }
+  
+  /**
+   * Check loads and stores against a set of watchpoints from now on, or stop checking them.
+   * @param watchpoints watchpoints to check, or null to check none.
+   */
+  public void setWatchpoints (Watchpoints watchpoints) {
+    this.watchpoints = watchpoints;
+  }
+
+  public Watchpoints getWatchpoints () {
+    return watchpoints;
+  }
+
+  /**
+   * Mark the pages holding a range of bytes as written since the last capture or restore.
+   * @param address address of the first byte written.
+   * @param length  number of bytes written; must be positive.
+   */
+  private void markDirty (int address, int length) {
+    int last = (address + length - 1) >>> DIRTY_PAGE_SHIFT;
+    for (int page = address >>> DIRTY_PAGE_SHIFT; page <= last; page++)
+      dirty [page >>> 6] |= 1L << page;
+  }
+
+  /**
+   * Copy the contents of memory and start tracking the pages written from now on.
+   * @return an image of memory that restore can return to.
+   */
+  public Image capture () {
+    base = new Image (mem.clone());
+    Arrays.fill (dirty, 0);
+    return base;
+  }
+
+  /**
+   * Return memory to a captured image.
+   *
+   * If image is the one most recently captured or restored, only the pages written since are copied back;
+   * otherwise every page is.  Write listeners and observers are told about every page copied, so caches of
+   * decoded or translated instructions are invalidated.
+   *
+   * @param image image returned by capture on this memory.
+   * @throws IllegalArgumentException if image is not the size of this memory.
+   */
+  public void restore (Image image) {
+    if (image.bytes.length != mem.length)
+      throw new IllegalArgumentException ("image is " + image.bytes.length + " bytes, memory is " + mem.length);
+    if (image != base) {
+      base = image;
+      Arrays.fill (dirty, -1L);
+    }
+    for (int word = 0; word < dirty.length; word++)
+      for (long bits = dirty [word]; bits != 0; bits &= bits - 1) {
+        int start  = ((word << 6) + Long.numberOfTrailingZeros (bits)) << DIRTY_PAGE_SHIFT;
+        int length = Math.min (DIRTY_PAGE_SIZE, mem.length - start);
+        if (length <= 0)
+          break;
+        restoreRange (start, image.bytes, start, length);
+      }
+    Arrays.fill (dirty, 0);
+  }
+
+  /**
+   * Overwrite a range of memory with saved contents, telling write listeners and observers.
+   * @param address address of the first byte to overwrite.
+   * @param source  saved contents.
+   * @param offset  index in source of the byte for address.
+   * @param length  number of bytes.
+   */
+  void restoreRange (int address, byte [] source, int offset, int length) {
+    System.arraycopy (source, offset, mem, address, length);
+    markDirty (address, length);
+    fireMemoryWritten (address, length);
+    tellObserversOfAccess (DataModelEvent.Type.WRITE, address, length);
+  }
+
+  /**
+   * @return number of pages written since the last capture or restore.
+   */
+  public int getDirtyPageCount () {
+    int count = 0;
+    for (long bits : dirty)
+      count += Long.bitCount (bits);
+    return count;
+  }
+
+  /**
+   * Register a listener to be told about every subsequent call to set.
+   * @param listener listener to add.
+   */
+  @Override public void addWriteListener (MemoryWriteListener listener) {
+    writeListeners.add (listener);
+  }
+
+  /**
+   * Unregister a listener previously added with addWriteListener.
+   * @param listener listener to remove.
+   */
+  @Override public void removeWriteListener (MemoryWriteListener listener) {
+    writeListeners.remove (listener);
+  }
+
+  /**
+   * Tell every write listener that a range of memory has been stored into.
+   * @param address address of the first byte written.
+   * @param length  number of bytes written.
+   */
+  protected void fireMemoryWritten (int address, int length) {
+    writeListeners.fire (address, length);
+  }
+
   /**
    * Determine the size of memory.
    * @return the number of bytes allocated to this memory.
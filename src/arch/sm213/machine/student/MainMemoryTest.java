@@ -3,6 +3,11 @@ package arch.sm213.machine.student;
 import machine.AbstractMainMemory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class MainMemoryTest {
@@ -235,6 +240,54 @@ public class MainMemoryTest {
         }
     }
 
+    @Test
+    public void testReadWriteInt() {
+        memory = new MainMemory(8);
+        // test write and read back an aligned integer, stored Big Endian
+        try {
+            memory.writeInt(4, -25165441);
+            assertEquals(-25165441, memory.readInt(4));
+            assertArrayEquals(new byte[]{b4,b3,b1,b2}, memory.get(4, 4));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+        // test unaligned access through the unaligned variants
+        try {
+            memory.writeIntUnaligned(1, 25133310);
+            assertEquals(25133310, memory.readIntUnaligned(1));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testReadWriteIntInvalid() {
+        memory = new MainMemory(8);
+        // test read an unaligned address
+        try {
+            memory.readInt(2);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // test write an integer that runs past the end of memory
+        try {
+            memory.writeIntUnaligned(6, 1);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // test read a negative address
+        try {
+            memory.readInt(-4);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+    }
+
     @Test
     void addition() {
         long x;
@@ -254,4 +307,106 @@ public class MainMemoryTest {
         int inta4 = (0- (-17));
         assertEquals(17, inta4);
     }
+
+    @Test
+    public void testRestoreCopiesOnlyDirtyPages() {
+        MainMemory big = new MainMemory(3 * MainMemory.DIRTY_PAGE_SIZE + 100);
+        List<Integer> written = new ArrayList<>();
+        try {
+            big.writeInt(0, 0x11223344);
+            big.writeInt(3 * MainMemory.DIRTY_PAGE_SIZE + 96, 0x55667788);
+            MainMemory.Image image = big.capture();
+            assertEquals(0, big.getDirtyPageCount());
+            big.writeInt(4, 1);
+            big.writeInt(8, 2);
+            big.writeInt(3 * MainMemory.DIRTY_PAGE_SIZE + 96, 3);
+            assertEquals(2, big.getDirtyPageCount());
+            big.addWriteListener((address, length) -> written.add(address));
+            big.restore(image);
+            assertEquals(0x11223344, big.readInt(0));
+            assertEquals(0, big.readInt(4));
+            assertEquals(0, big.readInt(8));
+            assertEquals(0x55667788, big.readInt(3 * MainMemory.DIRTY_PAGE_SIZE + 96));
+            assertEquals(0, big.getDirtyPageCount());
+            assertEquals(Arrays.asList(0, 3 * MainMemory.DIRTY_PAGE_SIZE), written);
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testRestoreOlderImage() {
+        MainMemory big = new MainMemory(2 * MainMemory.DIRTY_PAGE_SIZE);
+        try {
+            big.writeInt(MainMemory.DIRTY_PAGE_SIZE, 1);
+            MainMemory.Image first = big.capture();
+            big.writeInt(MainMemory.DIRTY_PAGE_SIZE, 2);
+            MainMemory.Image second = big.capture();
+            big.writeInt(0, 3);
+            big.restore(first);
+            assertEquals(0, big.readInt(0));
+            assertEquals(1, big.readInt(MainMemory.DIRTY_PAGE_SIZE));
+            big.restore(second);
+            assertEquals(2, big.readInt(MainMemory.DIRTY_PAGE_SIZE));
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+        try {
+            memory.restore(big.capture());
+            fail("should not reach here");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testWatchpoints() {
+        MainMemory big = new MainMemory(2 * MainMemory.DIRTY_PAGE_SIZE);
+        Watchpoints watchpoints = new Watchpoints();
+        watchpoints.setWatchpoint(Watchpoints.Kind.READ, 8, 4, true);
+        watchpoints.setWatchpoint(Watchpoints.Kind.WRITE, 17, 1, true);
+        watchpoints.setWatchpoint(Watchpoints.Kind.CHANGE, MainMemory.DIRTY_PAGE_SIZE + 2, 1, true);
+        big.setWatchpoints(watchpoints);
+        try {
+            // accesses to unwatched bytes are not reported
+            big.readInt(4);
+            big.writeInt(8, 1);
+            big.set(12, new byte[]{b1, b1, b1, b1});
+            assertEquals(0, watchpoints.getHitCount());
+            // a load of a watched byte is
+            big.readIntUnaligned(9);
+            assertEquals(1, watchpoints.getHitCount());
+            assertEquals(Watchpoints.Kind.READ, watchpoints.getHitKind());
+            assertEquals(9, watchpoints.getHitAddress());
+            // but not a read by a tool, or while suspended
+            big.get(8, 4);
+            big.peekInt(8);
+            watchpoints.setSuspended(true);
+            big.readInt(8);
+            watchpoints.setSuspended(false);
+            assertEquals(1, watchpoints.getHitCount());
+            // as is any store to a byte watched for writes, even of the same value
+            big.writeInt(16, 0);
+            assertEquals(2, watchpoints.getHitCount());
+            assertEquals(Watchpoints.Kind.WRITE, watchpoints.getHitKind());
+            assertEquals(17, watchpoints.getHitAddress());
+            // but only a store of a different value to a byte watched for changes
+            big.writeInt(MainMemory.DIRTY_PAGE_SIZE, 0);
+            assertEquals(2, watchpoints.getHitCount());
+            big.set(MainMemory.DIRTY_PAGE_SIZE + 1, new byte[]{b0, b2});
+            assertEquals(3, watchpoints.getHitCount());
+            assertEquals(Watchpoints.Kind.CHANGE, watchpoints.getHitKind());
+            assertEquals(MainMemory.DIRTY_PAGE_SIZE + 2, watchpoints.getHitAddress());
+            // restoring an image is not a store
+            big.restore(new MainMemory(2 * MainMemory.DIRTY_PAGE_SIZE).capture());
+            assertEquals(3, watchpoints.getHitCount());
+            watchpoints.setWatchpoint(Watchpoints.Kind.READ, 8, 4, false);
+            big.readInt(8);
+            big.setWatchpoints(null);
+            big.writeInt(16, 1);
+            assertEquals(3, watchpoints.getHitCount());
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
 }
@@ -0,0 +1,236 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import util.DataModelEvent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Main Memory of Simple CPU backed by a memory-mapped file.
+ *
+ * Memory contents live in the file rather than on the Java heap.  An image file can be mapped
+ * read-write (contents persist after the simulation exits, for post-mortem inspection) or
+ * read-only (loaded without copying and shared by every simulator process that maps it).
+ * Stores into a read-only memory are rejected as invalid addresses.
+ */
+
+public class MappedMainMemory extends AbstractMainMemory implements MemoryWriteSource, Closeable {
+  private final MappedByteBuffer        mem;
+  private final boolean                 readOnly;
+  private final MemoryWriteListenerList writeListeners = new MemoryWriteListenerList();
+
+  /**
+   * Allocate memory backed by an anonymous temporary file that is deleted when the JVM exits.
+   * @param byteCapacity size of memory in bytes.
+   */
+  public MappedMainMemory (int byteCapacity) {
+    this (createTempFile(), byteCapacity);
+  }
+
+  /**
+   * Map a file read-write, growing it to byteCapacity if it is shorter.
+   * Existing file contents become the initial contents of memory.
+   * @param file         backing file; created if it does not exist.
+   * @param byteCapacity size of memory in bytes.
+   */
+  public MappedMainMemory (File file, int byteCapacity) {
+    try (RandomAccessFile raf = new RandomAccessFile (file, "rw")) {
+      mem      = raf.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, byteCapacity);
+      readOnly = false;
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Map an existing memory image read-only.  Memory is exactly as long as the file.
+   * @param file memory image.
+   */
+  public MappedMainMemory (File file) {
+    try (RandomAccessFile raf = new RandomAccessFile (file, "r")) {
+      if (raf.length() > Integer.MAX_VALUE)
+        throw new IllegalArgumentException ("memory image is larger than 2 GB");
+      mem      = raf.getChannel().map (FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      readOnly = true;
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  private static File createTempFile () {
+    try {
+      File file = File.createTempFile ("sm213-", ".mem");
+      file.deleteOnExit();
+      return file;
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Determine whether memory rejects stores.
+   * @return true iff memory was mapped read-only.
+   */
+  public boolean isReadOnly () {
+    return readOnly;
+  }
+
+  /**
+   * Write any modified contents back to the backing file.
+   */
+  public void force () {
+    if (!readOnly)
+      mem.force();
+  }
+
+  /**
+   * Flush modified contents to the backing file.  The file itself is closed as soon as it is mapped;
+   * the mapping stays valid until memory is garbage collected.
+   */
+  @Override public void close () {
+    force();
+  }
+
+  /**
+   * Determine whether an address is aligned to specified length.
+   * @param address memory address.
+   * @param length byte length.
+   * @return true iff address is aligned to length.
+   */
+  @Override protected boolean isAccessAligned (int address, int length) {
+    return (address % length == 0);
+  }
+
+  /**
+   * Convert a sequence of four bytes into a Big Endian integer.
+   * @param byteAtAddrPlus0 value of byte with the lowest memory address (base address).
+   * @param byteAtAddrPlus1 value of byte at base address plus 1.
+   * @param byteAtAddrPlus2 value of byte at base address plus 2.
+   * @param byteAtAddrPlus3 value of byte at base address plus 3 (highest memory address).
+   * @return Big Endian integer formed by these four bytes.
+   */
+  @Override public int bytesToInteger (byte byteAtAddrPlus0, byte byteAtAddrPlus1, byte byteAtAddrPlus2, byte byteAtAddrPlus3) {
+    return ((byteAtAddrPlus0 & 0xFF) << 24) | ((byteAtAddrPlus1 & 0xFF) << 16)
+            | ((byteAtAddrPlus2 & 0xFF) << 8) | (byteAtAddrPlus3 & 0xFF);
+  }
+
+  /**
+   * Convert a Big Endian integer into an array of 4 bytes organized by memory address.
+   * @param  i an Big Endian integer.
+   * @return an array of byte where [0] is value of low-address byte of the number etc.
+   */
+  @Override public byte[] integerToBytes (int i) {
+    return new byte[] {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+  }
+
+  /**
+   * Fetch a sequence of bytes from memory.
+   * @param address address of the first byte to fetch.
+   * @param length  number of bytes to fetch.
+   * @throws InvalidAddressException  if any address in the range address to address+length-1 is invalid.
+   * @return an array of byte where [0] is memory value at address, [1] is memory value at address+1 etc.
+   */
+  @Override protected byte[] get (int address, int length) throws InvalidAddressException {
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    byte[]     value = new byte [length];
+    ByteBuffer view  = mem.duplicate();
+    view.position (address);
+    view.get (value);
+    return value;
+  }
+
+  /**
+   * Store a sequence of bytes into memory.
+   * @param  address                  address of the first byte in memory to receive the specified value.
+   * @param  value                    an array of byte values to store in memory at the specified address.
+   * @throws InvalidAddressException  if any address in the range address to address+value.length-1 is invalid,
+   *                                  or memory is read-only.
+   */
+  @Override protected void set (int address, byte[] value) throws InvalidAddressException {
+    if (readOnly || !isValidRange (address, value.length))
+      throw new InvalidAddressException();
+    ByteBuffer view = mem.duplicate();
+    view.position (address);
+    view.put (value);
+    writeListeners.fire (address, value.length);
+  }
+
+  /**
+   * Load a Big Endian integer from any address without allocating.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return the integer stored at address.
+   */
+  public int readIntUnaligned (int address) throws InvalidAddressException {
+    if (!isValidRange (address, 4))
+      throw new InvalidAddressException();
+    return mem.getInt (address);
+  }
+
+  /**
+   * Store a Big Endian integer at any address without allocating.
+   * @param address address of the integer's first byte.
+   * @param value   integer to store.
+   * @throws InvalidAddressException if any byte is out of range or memory is read-only.
+   */
+  public void writeIntUnaligned (int address, int value) throws InvalidAddressException {
+    if (readOnly || !isValidRange (address, 4))
+      throw new InvalidAddressException();
+    mem.putInt (address, value);
+    writeListeners.fire (address, 4);
+  }
+
+  @Override public int readInteger (int address) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    return readIntegerUnaligned (address);
+  }
+
+  @Override public int readIntegerUnaligned (int address) throws InvalidAddressException {
+    int value = readIntUnaligned (address);
+    if (countObservers() > 0)
+      tellObservers (MemoryWriteListenerList.accessEvent (DataModelEvent.Type.READ, address, 4));
+    return value;
+  }
+
+  @Override public void writeInteger (int address, int value) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    writeIntegerUnaligned (address, value);
+  }
+
+  @Override public void writeIntegerUnaligned (int address, int value) throws InvalidAddressException {
+    writeIntUnaligned (address, value);
+    if (countObservers() > 0)
+      tellObservers (MemoryWriteListenerList.accessEvent (DataModelEvent.Type.WRITE, address, 4));
+  }
+
+  @Override public void addWriteListener (MemoryWriteListener listener) {
+    writeListeners.add (listener);
+  }
+
+  @Override public void removeWriteListener (MemoryWriteListener listener) {
+    writeListeners.remove (listener);
+  }
+
+  private boolean isValidRange (int address, int length) {
+    return address >= 0 && length >= 0 && address <= mem.capacity() - length;
+  }
+
+  /**
+   * Determine the size of memory.
+   * @return the number of bytes mapped.
+   */
+  @Override public int length () {
+    return mem.capacity();
+  }
+}
@@ -0,0 +1,84 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedMainMemoryTest {
+    File file;
+    MappedMainMemory memory;
+
+    @BeforeEach
+    public void runBefore() throws IOException {
+        // map a fresh 8-byte memory image
+        file = File.createTempFile("sm213-test-", ".mem");
+        file.deleteOnExit();
+        memory = new MappedMainMemory(file, 8);
+    }
+
+    @Test
+    public void testConstructor() {
+        assertEquals(8, memory.length());
+        assertFalse(memory.isReadOnly());
+        assertEquals(8, file.length());
+    }
+
+    @Test
+    public void testSetGet() {
+        // test at first memory is all 0, then read back what we put
+        try {
+            assertArrayEquals(new byte[]{0,0,0,0,0,0,0,0}, memory.get(0, 8));
+            memory.set(3, new byte[]{1,2,3});
+            assertArrayEquals(new byte[]{0,1,2,3,0}, memory.get(2, 5));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testSetGetInvalid() {
+        // put 2 bytes starting at the last byte of memory
+        try {
+            memory.set(7, new byte[]{1,2});
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // get from a negative address
+        try {
+            memory.get(-1, 1);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testPersistAndReadOnly() {
+        // test contents are still in the file after closing, when the image is mapped again read-only
+        try {
+            memory.writeInteger(4, -25165441);
+            memory.close();
+            MappedMainMemory image = new MappedMainMemory(file);
+            assertTrue(image.isReadOnly());
+            assertEquals(8, image.length());
+            assertEquals(-25165441, image.readInteger(4));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+        // test a read-only image rejects stores
+        try {
+            new MappedMainMemory(file).set(0, new byte[]{1});
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Receives notification of stores into main memory.
+ *
+ * Listeners are called on the thread that performed the store, after the bytes are in memory.
+ */
+
+public interface MemoryWriteListener {
+
+  /**
+   * Called after a sequence of bytes has been stored into memory.
+   * @param address address of the first byte written.
+   * @param length  number of bytes written.
+   */
+  void memoryWritten (int address, int length);
+}
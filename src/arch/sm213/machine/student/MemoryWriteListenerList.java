@@ -0,0 +1,50 @@
+package arch.sm213.machine.student;
+
+import util.DataModelEvent;
+import util.TableCellIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Copy-on-write list of memory write listeners, shared by the MemoryWriteSource implementations.
+ *
+ * Adding and removing are rare and synchronized; firing is lock free and does not allocate.
+ */
+
+class MemoryWriteListenerList {
+  private volatile MemoryWriteListener [] listeners = new MemoryWriteListener [0];
+
+  synchronized void add (MemoryWriteListener listener) {
+    MemoryWriteListener [] ls = Arrays.copyOf (listeners, listeners.length + 1);
+    ls [ls.length - 1] = listener;
+    listeners = ls;
+  }
+
+  synchronized void remove (MemoryWriteListener listener) {
+    List<MemoryWriteListener> ls = new ArrayList<> (Arrays.asList (listeners));
+    ls.remove (listener);
+    listeners = ls.toArray (new MemoryWriteListener [ls.size()]);
+  }
+
+  void fire (int address, int length) {
+    for (MemoryWriteListener l : listeners)
+      l.memoryWritten (address, length);
+  }
+
+  /**
+   * Build the event AbstractMainMemory sends its observers for a read or write of a range of bytes.
+   * @param type    READ or WRITE.
+   * @param address address of the first byte accessed.
+   * @param length  number of bytes accessed.
+   * @return event naming one table cell per byte.
+   */
+  static DataModelEvent accessEvent (DataModelEvent.Type type, int address, int length) {
+    List<TableCellIndex> cells = new ArrayList<> (length);
+    for (int i = 0; i < length; i++)
+      cells.add (new TableCellIndex (address + i, 1));
+    return new DataModelEvent (type, cells);
+  }
+}
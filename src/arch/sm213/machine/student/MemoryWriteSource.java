@@ -0,0 +1,21 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * A main memory that reports every store to registered listeners.
+ */
+
+public interface MemoryWriteSource {
+
+  /**
+   * Register a listener to be told about every subsequent store.
+   * @param listener listener to add.
+   */
+  void addWriteListener (MemoryWriteListener listener);
+
+  /**
+   * Unregister a listener previously added with addWriteListener.
+   * @param listener listener to remove.
+   */
+  void removeWriteListener (MemoryWriteListener listener);
+}
@@ -0,0 +1,186 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+import machine.Register;
+
+import java.io.File;
+
+
+/**
+ * Several SM213 CPUs ("harts") running concurrently, each on its own host thread, against one SharedMainMemory.
+ *
+ * Every hart runs in turbo mode with block translation, so it keeps its registers to itself and touches only
+ * memory that is shared; contended words are resolved by the lock-free atomics of SharedMainMemory rather than
+ * a global lock, and throughput grows with the number of host cores.  See SharedMainMemory for the
+ * memory-ordering model and CPU.atomic for the atomic instructions.
+ *
+ * After reset every hart starts at the same address with r0 holding its hart number (0 to n-1) and every other
+ * register zero, so a program typically begins by branching on r0.  A run ends when every hart has stopped; if a
+ * hart faults the others are interrupted so that harts waiting on it do not spin forever.
+ *
+ * Usage: MultiHartMachine [-n harts] [-b instructions] [-m bytes] program
+ */
+
+public class MultiHartMachine {
+
+  /**
+   * How a hart's run ended.
+   */
+  public enum Status { HALTED, BUDGET_EXHAUSTED, INTERRUPTED, FAULTED }
+
+  /**
+   * Outcome of one hart's run.
+   */
+  public static final class HartResult {
+    public final int       hart;
+    public final Status    status;
+    public final long      instructions;
+    public final Exception fault;
+
+    HartResult (int hart, Status status, long instructions, Exception fault) {
+      this.hart         = hart;
+      this.status       = status;
+      this.instructions = instructions;
+      this.fault        = fault;
+    }
+
+    @Override public String toString () {
+      return String.format ("hart %d: %s after %d instructions%s", hart, status, instructions, fault == null ? "" : " (" + fault.getMessage() + ")");
+    }
+  }
+
+  private static final long INTERRUPT_RETRY_MILLIS = 10;
+
+  private final    SharedMainMemory memory;
+  private final    CPU[]            harts;
+  private volatile boolean          stopping;
+
+  /**
+   * Create harts sharing a memory.
+   * @param memory    memory shared by every hart.
+   * @param hartCount number of harts.
+   */
+  public MultiHartMachine (SharedMainMemory memory, int hartCount) {
+    this.memory = memory;
+    this.harts  = new CPU [hartCount];
+    for (int i = 0; i < hartCount; i++) {
+      harts [i] = new CPU (CPU.class.getName(), memory);
+      harts [i].setTurboMode (true);
+      harts [i].setBlockTranslationEnabled (true);
+    }
+  }
+
+  public SharedMainMemory getMemory    ()      { return memory; }
+  public int              getHartCount ()      { return harts.length; }
+  public CPU              getHart      (int i) { return harts [i]; }
+
+  /**
+   * Assemble or load a program into shared memory.
+   * @param program assembly or machine-code file.
+   * @return address of the first instruction region, or 0 if there is none.
+   * @throws Exception if the program cannot be read or assembled.
+   */
+  public int load (File program) throws Exception {
+    return BatchRunner.entryPoint (BatchRunner.load (harts [0], memory, program));
+  }
+
+  /**
+   * Point every hart at entry, set its r0 to its hart number and clear its other registers.
+   * @param entry address of the first instruction.
+   */
+  public void reset (int entry) {
+    for (int i = 0; i < harts.length; i++) {
+      harts [i].resetMachineToPC (entry);
+      for (int r = 0; r < 8; r++)
+        harts [i].getRegisterFile().setValue ("r" + r, r == 0 ? i : 0);
+      // latch the written values, as a clock tick does, so that runTurbo sees them
+      harts [i].getRegisterFile().tickClock (Register.ClockTransition.NORMAL);
+    }
+  }
+
+  /**
+   * Run every hart on its own thread until all have stopped.
+   * @param maxInstructions instruction budget of each hart.
+   * @return the outcome of each hart, indexed by hart number.
+   * @throws InterruptedException if the calling thread is interrupted while waiting; the harts are interrupted too.
+   */
+  public HartResult[] run (long maxInstructions) throws InterruptedException {
+    HartResult[] results = new HartResult [harts.length];
+    Thread[]     threads = new Thread     [harts.length];
+    stopping = false;
+    for (int i = 0; i < harts.length; i++) {
+      final int hart = i;
+      threads [i] = new Thread (() -> results [hart] = runHart (hart, maxInstructions), "sm213-hart-" + i);
+      threads [i].start();
+    }
+    try {
+      // runTurbo drops an interrupt that arrives before it starts, so repeat it for harts that started late
+      for (Thread thread : threads)
+        while (thread.isAlive()) {
+          thread.join (INTERRUPT_RETRY_MILLIS);
+          if (stopping)
+            interrupt();
+        }
+    } catch (InterruptedException e) {
+      interrupt();
+      throw e;
+    }
+    return results;
+  }
+
+  private HartResult runHart (int hart, long maxInstructions) {
+    CPU cpu = harts [hart];
+    try {
+      long n = cpu.runTurbo (maxInstructions);
+      return new HartResult (hart, n >= maxInstructions ? Status.BUDGET_EXHAUSTED : Status.INTERRUPTED, n, null);
+    } catch (AbstractCPU.MachineHaltException e) {
+      return new HartResult (hart, Status.HALTED, cpu.getTurboInstructionCount(), null);
+    } catch (AbstractCPU.InvalidInstructionException | AbstractMainMemory.InvalidAddressException | RuntimeException e) {
+      interrupt();
+      return new HartResult (hart, Status.FAULTED, cpu.getTurboInstructionCount(), e);
+    }
+  }
+
+  /**
+   * Ask every hart to stop at its next interrupt poll, including harts of the current run that have not started.
+   */
+  public void interrupt () {
+    stopping = true;
+    for (CPU cpu : harts)
+      cpu.triggerInterrupt();
+  }
+
+  public static void main (String[] args) throws Exception {
+    int    count  = Runtime.getRuntime().availableProcessors();
+    long   budget = BatchRunner.DEFAULT_BUDGET;
+    int    size   = BatchRunner.DEFAULT_MEMORY_SIZE;
+    String file   = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args [i]) {
+        case "-n": count  = Integer.parseInt (args [++i]); break;
+        case "-b": budget = Long.parseLong   (args [++i]); break;
+        case "-m": size   = Integer.decode   (args [++i]); break;
+        default:   file   = args [i];
+      }
+    }
+    if (file == null) {
+      System.err.println ("usage: MultiHartMachine [-n harts] [-b instructions] [-m bytes] program");
+      System.exit (2);
+    }
+    MultiHartMachine machine = new MultiHartMachine (new SharedMainMemory (size), count);
+    machine.reset (machine.load (new File (file)));
+    long start = System.nanoTime();
+    HartResult[] results = machine.run (budget);
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    long total  = 0;
+    for (HartResult result : results) {
+      StringBuilder registers = new StringBuilder();
+      for (int r = 0; r < 8; r++)
+        registers.append (r == 0 ? "" : " ").append (machine.getHart (result.hart).getRegisterFile().getValue ("r" + r));
+      System.out.println (result + "  [" + registers + "]");
+      total += result.instructions;
+    }
+    System.out.printf ("%d instructions in %d ms%n", total, millis);
+  }
+}
@@ -0,0 +1,131 @@
+package arch.sm213.machine.student;
+
+import machine.Register;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultiHartMachineTest {
+    static final int HARTS      = 4;
+    static final int ITERATIONS = 20000;
+
+    // every hart adds 1 to count ITERATIONS times with xadd
+    static final List<String> XADD = Arrays.asList(
+            ".pos 0x100",
+            "        ld $count, r1",
+            "        ld $20000, r3",
+            "loop:   ld $1, r2",
+            "        .long 0x5112ff00",
+            "        dec r3",
+            "        bgt r3, loop",
+            "        halt",
+            ".pos 0x1000",
+            "count:  .long 0");
+
+    // every hart increments count ITERATIONS times with ld and st, holding a lock taken with cas
+    static final List<String> SPINLOCK = Arrays.asList(
+            ".pos 0x100",
+            "        ld $lock, r1",
+            "        ld $20000, r3",
+            "loop:   ld $0, r0",
+            "        ld $1, r2",
+            "        .long 0x5012ff00",
+            "        bgt r0, loop",
+            "        ld 4(r1), r4",
+            "        inc r4",
+            "        st r4, 4(r1)",
+            "        ld $0, r5",
+            "        st r5, 0(r1)",
+            "        dec r3",
+            "        bgt r3, loop",
+            "        halt",
+            ".pos 0x1000",
+            "lock:   .long 0",
+            "count:  .long 0");
+
+    // hart 0 loads from an address outside memory while the others spin forever
+    static final List<String> FAULT = Arrays.asList(
+            ".pos 0x100",
+            "        beq r0, fault",
+            "spin:   br spin",
+            "fault:  ld $0x7ffffff0, r1",
+            "        ld 0(r1), r2",
+            "        halt");
+
+    // hart 0 overwrites the loop the others are running with halt
+    static final List<String> CODE_STORE = Arrays.asList(
+            ".pos 0x100",
+            "        beq r0, store",
+            "        j spin",
+            "store:  ld $halts, r1",
+            "        ld 0(r1), r2",
+            "        ld $spin, r1",
+            "        st r2, 0(r1)",
+            "        halt",
+            ".pos 0x200",
+            "spin:   br spin",
+            "        nop",
+            ".pos 0x1000",
+            "halts:  .long 0xf000f000");
+
+    static MultiHartMachine load(List<String> source) throws Exception {
+        SharedMainMemory     memory    = new SharedMainMemory(CPUTest.MEMORY_SIZE);
+        IncrementalAssembler assembler = new IncrementalAssembler(source);
+        assembler.write(memory);
+        MultiHartMachine machine = new MultiHartMachine(memory, HARTS);
+        machine.reset(assembler.getEntryPoint());
+        return machine;
+    }
+
+    static void assertHalted(MultiHartMachine.HartResult[] results) {
+        assertEquals(HARTS, results.length);
+        for (MultiHartMachine.HartResult result : results)
+            assertEquals(MultiHartMachine.Status.HALTED, result.status, result.toString());
+    }
+
+    @Test
+    public void testXadd() throws Exception {
+        MultiHartMachine machine = load(XADD);
+        // test no increment is lost when every hart adds to the same word
+        assertHalted(machine.run(1L << 40));
+        assertEquals(HARTS * ITERATIONS, machine.getMemory().readInteger(0x1000));
+    }
+
+    @Test
+    public void testSpinlock() throws Exception {
+        MultiHartMachine machine = load(SPINLOCK);
+        // test the lock admits one hart at a time, so no plain increment is lost, and is left free
+        assertHalted(machine.run(1L << 40));
+        assertEquals(0, machine.getMemory().readInteger(0x1000));
+        assertEquals(HARTS * ITERATIONS, machine.getMemory().readInteger(0x1004));
+    }
+
+    @Test
+    public void testFault() throws Exception {
+        MultiHartMachine machine = load(FAULT);
+        // test a fault stops the harts spinning forever, even those that had not started when it happened
+        MultiHartMachine.HartResult[] results = machine.run(1L << 40);
+        assertEquals(MultiHartMachine.Status.FAULTED, results[0].status);
+        assertTrue(results[0].fault instanceof MainMemory.InvalidAddressException);
+        for (int i = 1; i < HARTS; i++)
+            assertEquals(MultiHartMachine.Status.INTERRUPTED, results[i].status, results[i].toString());
+        // test the next run is not interrupted by it
+        machine.reset(0x100);
+        machine.getHart(0).getRegisterFile().setValue("r0", 1);
+        machine.getHart(0).getRegisterFile().tickClock(Register.ClockTransition.NORMAL);
+        results = machine.run(1000);
+        for (MultiHartMachine.HartResult result : results)
+            assertEquals(MultiHartMachine.Status.BUDGET_EXHAUSTED, result.status, result.toString());
+    }
+
+    @Test
+    public void testCodeStore() throws Exception {
+        MultiHartMachine machine = load(CODE_STORE);
+        // test a store by one hart into code the others are running, translated or not, reaches them
+        assertHalted(machine.run(1L << 40));
+        assertEquals(0xf000f000, machine.getMemory().readInteger(0x200));
+    }
+}
@@ -0,0 +1,148 @@
+package arch.sm213.machine.student;
+
+import machine.Register;
+import machine.RegisterSet;
+import util.DataModelEvent;
+import util.TableCellIndex;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Batches the model-change notifications of a free-running CPU into frames published on the Swing event thread;
+ * see CPU.setNotificationRate.
+ *
+ * While a coalescer is started, register writes do not notify their register set and stores to a MainMemory do
+ * not notify its observers.  Instead, a store sets one bit per byte written in a lock-free bitmap, and the
+ * simulation thread never waits for the GUI.  A Swing timer fires rate times a second on the event thread.  Each
+ * tick clears the bitmap and tells memory's observers about every byte written since the last tick, in one
+ * WRITE event.  It then tells each register set's observers about every register whose value changed.  Reads
+ * are not reported: they change nothing a table shows.  If the event thread falls behind, ticks are coalesced,
+ * so a slow GUI shows fewer frames but does not slow the program.
+ *
+ * Stopping the coalescer reattaches the registers to their sets and publishes the last frame.
+ */
+
+public class NotificationCoalescer {
+  public static final int DEFAULT_RATE = 60;
+
+  private final MainMemory        memory;
+  private final List<RegisterSet> sets      = new ArrayList<>();
+  private final List<int[]>       published = new ArrayList<>();
+  private final AtomicLongArray   written;
+  private final Timer             timer;
+
+  /**
+   * Create a coalescer for a CPU and, if it is a MainMemory, its memory.
+   * @param cpu  the CPU.
+   * @param rate frames published per second while started.
+   */
+  public NotificationCoalescer (CPU cpu, int rate) {
+    this.memory  = cpu.getMainMemory() instanceof MainMemory ? (MainMemory) cpu.getMainMemory() : null;
+    this.written = memory != null ? new AtomicLongArray ((memory.length() + 63) >>> 6) : null;
+    for (RegisterSet set : cpu.getProcessorState())
+      sets.add (set);
+    if (!sets.contains (cpu.getRegisterFile()))
+      sets.add (cpu.getRegisterFile());
+    for (RegisterSet set : sets)
+      published.add (new int [set.getAll().size()]);
+    timer = new Timer (Math.max (1, 1000 / rate), e -> publish());
+    timer.setCoalesce (true);
+  }
+
+  /**
+   * @return true iff anything observes the CPU's memory or register sets, i.e., there is something to coalesce.
+   */
+  static boolean isObserved (CPU cpu) {
+    if (cpu.getMainMemory() instanceof MainMemory && cpu.getMainMemory().countObservers() > 0)
+      return true;
+    if (cpu.getRegisterFile().countObservers() > 0)
+      return true;
+    for (RegisterSet set : cpu.getProcessorState())
+      if (set.countObservers() > 0)
+        return true;
+    return false;
+  }
+
+  /**
+   * Start batching notifications.  Call from the simulation thread before it runs the CPU.
+   */
+  public void start () {
+    for (int s = 0; s < sets.size(); s++) {
+      List<Register> all = sets.get (s).getAll();
+      for (int r = 0; r < all.size(); r++) {
+        published.get (s) [r] = all.get (r).get();
+        all.get (r).deleteObserver (sets.get (s));
+      }
+    }
+    if (memory != null)
+      memory.setCoalescer (this);
+    timer.start();
+  }
+
+  /**
+   * Stop batching, reattach the registers to their sets and publish what changed since the last frame.
+   */
+  public void stop () {
+    timer.stop();
+    if (memory != null)
+      memory.setCoalescer (null);
+    for (RegisterSet set : sets)
+      for (Register register : set.getAll()) {
+        register.deleteObserver (set);
+        register.addObserver    (set);
+      }
+    if (SwingUtilities.isEventDispatchThread())
+      publish();
+    else
+      SwingUtilities.invokeLater (this::publish);
+  }
+
+  /**
+   * Note that a range of bytes was written.  Called by MainMemory on the simulation thread; never blocks.
+   * @param address address of the first byte written.
+   * @param length  number of bytes written.
+   */
+  void markWritten (int address, int length) {
+    for (int a = address, end = address + length; a < end; ) {
+      int  word = a >>> 6;
+      int  bits = Math.min (end - a, 64 - (a & 63));
+      long mask = (bits == 64 ? -1L : (1L << bits) - 1) << (a & 63);
+      if ((written.get (word) & mask) != mask)
+        written.getAndAccumulate (word, mask, (x, y) -> x | y);
+      a += bits;
+    }
+  }
+
+  /**
+   * Tell observers about everything that changed since the previous frame.  Runs on the event thread.
+   */
+  private void publish () {
+    if (memory != null) {
+      List<TableCellIndex> cells = new ArrayList<>();
+      for (int word = 0; word < written.length(); word++) {
+        if (written.get (word) == 0)
+          continue;
+        for (long bits = written.getAndSet (word, 0); bits != 0; bits &= bits - 1)
+          cells.add (new TableCellIndex ((word << 6) + Long.numberOfTrailingZeros (bits), 1));
+      }
+      if (!cells.isEmpty())
+        memory.tellObserversNow (new DataModelEvent (DataModelEvent.Type.WRITE, cells));
+    }
+    for (int s = 0; s < sets.size(); s++) {
+      List<Register> all    = sets.get (s).getAll();
+      int[]          values = published.get (s);
+      for (int r = 0; r < all.size(); r++) {
+        int value = all.get (r).get();
+        if (value != values [r]) {
+          values [r] = value;
+          sets.get (s).update (all.get (r), new DataModelEvent (DataModelEvent.Type.WRITE, 0, 1));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.Register;
+import machine.RegisterSet;
+import org.junit.jupiter.api.Test;
+import util.DataModelEvent;
+import util.TableCellIndex;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Observer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NotificationCoalescerTest {
+
+    // stores one word at 0x2000, changing r1, r2 and pc
+    static final List<String> STORE = Arrays.asList(
+            ".pos 0x100",
+            "        ld $0x2000, r1",
+            "        ld $0x11223344, r2",
+            "        st r2, 0(r1)",
+            "        halt");
+
+    // WRITE events told to an observer, as lists of rows
+    static class Events implements Observer {
+        final List<List<Integer>> rows = new ArrayList<>();
+
+        @Override
+        public void update(java.util.Observable o, Object arg) {
+            if (arg instanceof DataModelEvent && ((DataModelEvent) arg).getType() == DataModelEvent.Type.WRITE) {
+                List<Integer> cells = new ArrayList<>();
+                for (TableCellIndex cell : ((DataModelEvent) arg).getCells())
+                    cells.add(cell.rowIndex);
+                rows.add(cells);
+            }
+        }
+    }
+
+    static List<Integer> range(int from, int to) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            rows.add(i);
+        return rows;
+    }
+
+    @Test
+    public void testMarkWritten() throws Exception {
+        CPU    cpu    = CPUTest.load(STORE);
+        Events events = new Events();
+        cpu.getMainMemory().addObserver(events);
+        NotificationCoalescer coalescer = new NotificationCoalescer(cpu, NotificationCoalescer.DEFAULT_RATE);
+        coalescer.start();
+        // test an unaligned range crossing two words of the bitmap, and one filling a word, are each published once
+        coalescer.markWritten(60, 10);
+        coalescer.markWritten(62, 2);
+        coalescer.markWritten(128, 64);
+        SwingUtilities.invokeAndWait(coalescer::stop);
+        assertEquals(1, events.rows.size());
+        List<Integer> expected = range(60, 70);
+        expected.addAll(range(128, 192));
+        assertEquals(expected, events.rows.get(0));
+        // test nothing is published when nothing was written
+        SwingUtilities.invokeAndWait(coalescer::stop);
+        assertEquals(1, events.rows.size());
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        CPU    cpu       = CPUTest.load(STORE);
+        Events memory    = new Events();
+        Events registers = new Events();
+        Events processor = new Events();
+        cpu.setNotificationsEnabled(true);
+        cpu.setNotificationRate(NotificationCoalescer.DEFAULT_RATE);
+        cpu.getMainMemory().addObserver(memory);
+        cpu.getRegisterFile().addObserver(registers);
+        RegisterSet state = cpu.getProcessorState().get(0);
+        state.addObserver(processor);
+        List<Register> all = new ArrayList<>();
+        for (RegisterSet set : cpu.getProcessorState())
+            all.addAll(set.getAll());
+        all.addAll(cpu.getRegisterFile().getAll());
+        int[] observers = new int[all.size()];
+        for (int i = 0; i < all.size(); i++)
+            observers[i] = all.get(i).countObservers();
+        try {
+            cpu.start();
+            fail("should not reach here");
+        } catch (AbstractCPU.MachineHaltException e) {
+            // pass
+        }
+        SwingUtilities.invokeAndWait(() -> { });
+        // test the run is published as one WRITE of exactly the bytes stored, and each changed register at most once
+        assertEquals(Arrays.asList(range(0x2000, 0x2004)), memory.rows);
+        assertEquals(2, registers.rows.size());
+        assertTrue(processor.rows.size() <= state.getAll().size());
+        // test every register is observed by its set again, once
+        for (int i = 0; i < all.size(); i++)
+            assertEquals(observers[i], all.get(i).countObservers(), all.get(i).getName());
+        assertTrue(observers[0] > 0);
+    }
+}
@@ -0,0 +1,309 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import util.DataModelEvent;
+
+import java.util.Arrays;
+
+
+/**
+ * Main Memory of Simple CPU that allocates its storage a page at a time.
+ *
+ * Memory is divided into fixed-size pages.  A page is allocated the first time a non-zero byte is
+ * stored into it; pages that have never been written read as zero.  A simulation with a large
+ * address space but a small working set therefore only pays for the pages it touches.
+ */
+
+public class PagedMainMemory extends AbstractMainMemory implements MemoryWriteSource {
+  public static final int DEFAULT_PAGE_SIZE = 4096;
+
+  private final int                     length;
+  private final int                     pageShift;
+  private final int                     pageMask;
+  private final byte[][]                pages;
+  private       int                     residentPageCount;
+  private final MemoryWriteListenerList writeListeners = new MemoryWriteListenerList();
+
+  /**
+   * Allocate memory with the default page size.  No pages are allocated until they are written.
+   * @param byteCapacity size of memory in bytes.
+   */
+  public PagedMainMemory (int byteCapacity) {
+    this (byteCapacity, DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * Allocate memory.  No pages are allocated until they are written.
+   * @param byteCapacity size of memory in bytes.
+   * @param pageSize     size of a page in bytes; must be a power of two.
+   */
+  public PagedMainMemory (int byteCapacity, int pageSize) {
+    if (pageSize <= 0 || (pageSize & (pageSize - 1)) != 0)
+      throw new IllegalArgumentException ("page size must be a power of two");
+    length    = byteCapacity;
+    pageShift = Integer.numberOfTrailingZeros (pageSize);
+    pageMask  = pageSize - 1;
+    pages     = new byte [(int) (((long) byteCapacity + pageSize - 1) >>> pageShift)][];
+  }
+
+  /**
+   * @return size of a page in bytes.
+   */
+  public int getPageSize () {
+    return pageMask + 1;
+  }
+
+  /**
+   * @return number of pages that make up memory, resident or not.
+   */
+  public int getPageCount () {
+    return pages.length;
+  }
+
+  /**
+   * @return number of pages that have been allocated.
+   */
+  public synchronized int getResidentPageCount () {
+    return residentPageCount;
+  }
+
+  /**
+   * Determine whether a page has been allocated.
+   * @param pageNumber page number (address / page size).
+   * @return true iff the page has storage.
+   */
+  public boolean isPageResident (int pageNumber) {
+    return pages [pageNumber] != null;
+  }
+
+  /**
+   * Copy one page of memory into a buffer.  A non-resident page copies as zeros.
+   * @param pageNumber page number (address / page size).
+   * @param dst        buffer of at least one page.
+   */
+  public void readPage (int pageNumber, byte[] dst) {
+    byte[] page = pages [pageNumber];
+    if (page != null)
+      System.arraycopy (page, 0, dst, 0, page.length);
+    else
+      Arrays.fill (dst, 0, pageMask + 1, (byte) 0);
+  }
+
+  /**
+   * Replace the contents of one page.  The final page of memory may be shorter than a full page;
+   * bytes beyond the end of memory are ignored.
+   * @param pageNumber page number (address / page size).
+   * @param src        buffer of at least one page.
+   */
+  public void writePage (int pageNumber, byte[] src) {
+    int base = pageNumber << pageShift;
+    System.arraycopy (src, 0, allocatePage (pageNumber), 0, pageMask + 1);
+    writeListeners.fire (base, Math.min (pageMask + 1, length - base));
+  }
+
+  /**
+   * Zero one page and release its storage.
+   * @param pageNumber page number (address / page size).
+   */
+  public void zeroPage (int pageNumber) {
+    synchronized (this) {
+      if (pages [pageNumber] == null)
+        return;
+      pages [pageNumber] = null;
+      residentPageCount--;
+    }
+    int base = pageNumber << pageShift;
+    writeListeners.fire (base, Math.min (pageMask + 1, length - base));
+  }
+
+  private synchronized byte[] allocatePage (int pageNumber) {
+    byte[] page = pages [pageNumber];
+    if (page == null) {
+      page = new byte [pageMask + 1];
+      pages [pageNumber] = page;
+      residentPageCount++;
+    }
+    return page;
+  }
+
+  /**
+   * Determine whether an address is aligned to specified length.
+   * @param address memory address.
+   * @param length byte length.
+   * @return true iff address is aligned to length.
+   */
+  @Override protected boolean isAccessAligned (int address, int length) {
+    return (address % length == 0);
+  }
+
+  /**
+   * Convert a sequence of four bytes into a Big Endian integer.
+   * @param byteAtAddrPlus0 value of byte with the lowest memory address (base address).
+   * @param byteAtAddrPlus1 value of byte at base address plus 1.
+   * @param byteAtAddrPlus2 value of byte at base address plus 2.
+   * @param byteAtAddrPlus3 value of byte at base address plus 3 (highest memory address).
+   * @return Big Endian integer formed by these four bytes.
+   */
+  @Override public int bytesToInteger (byte byteAtAddrPlus0, byte byteAtAddrPlus1, byte byteAtAddrPlus2, byte byteAtAddrPlus3) {
+    return ((byteAtAddrPlus0 & 0xFF) << 24) | ((byteAtAddrPlus1 & 0xFF) << 16)
+            | ((byteAtAddrPlus2 & 0xFF) << 8) | (byteAtAddrPlus3 & 0xFF);
+  }
+
+  /**
+   * Convert a Big Endian integer into an array of 4 bytes organized by memory address.
+   * @param  i an Big Endian integer.
+   * @return an array of byte where [0] is value of low-address byte of the number etc.
+   */
+  @Override public byte[] integerToBytes (int i) {
+    return new byte[] {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+  }
+
+  /**
+   * Fetch a sequence of bytes from memory.
+   * @param address address of the first byte to fetch.
+   * @param length  number of bytes to fetch.
+   * @throws InvalidAddressException  if any address in the range address to address+length-1 is invalid.
+   * @return an array of byte where [0] is memory value at address, [1] is memory value at address+1 etc.
+   */
+  @Override protected byte[] get (int address, int length) throws InvalidAddressException {
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    byte[] value = new byte [length];
+    for (int i = 0; i < length; ) {
+      int    a     = address + i;
+      int    chunk = Math.min (length - i, pageMask + 1 - (a & pageMask));
+      byte[] page  = pages [a >>> pageShift];
+      if (page != null)
+        System.arraycopy (page, a & pageMask, value, i, chunk);
+      i += chunk;
+    }
+    return value;
+  }
+
+  /**
+   * Store a sequence of bytes into memory.  Pages are allocated only for chunks containing a non-zero byte.
+   * @param  address                  address of the first byte in memory to receive the specified value.
+   * @param  value                    an array of byte values to store in memory at the specified address.
+   * @throws InvalidAddressException  if any address in the range address to address+value.length-1 is invalid.
+   */
+  @Override protected void set (int address, byte[] value) throws InvalidAddressException {
+    if (!isValidRange (address, value.length))
+      throw new InvalidAddressException();
+    for (int i = 0; i < value.length; ) {
+      int    a     = address + i;
+      int    chunk = Math.min (value.length - i, pageMask + 1 - (a & pageMask));
+      byte[] page  = pages [a >>> pageShift];
+      if (page == null && !isAllZero (value, i, chunk))
+        page = allocatePage (a >>> pageShift);
+      if (page != null)
+        System.arraycopy (value, i, page, a & pageMask, chunk);
+      i += chunk;
+    }
+    writeListeners.fire (address, value.length);
+  }
+
+  private static boolean isAllZero (byte[] value, int offset, int length) {
+    for (int i = offset; i < offset + length; i++)
+      if (value [i] != 0)
+        return false;
+    return true;
+  }
+
+  /**
+   * Load a Big Endian integer from any address without allocating.
+   * @param address address of the integer's first byte.
+   * @throws InvalidAddressException if any byte is out of range.
+   * @return the integer stored at address.
+   */
+  public int readIntUnaligned (int address) throws InvalidAddressException {
+    if (!isValidRange (address, 4))
+      throw new InvalidAddressException();
+    int offset = address & pageMask;
+    if (offset > pageMask - 3)
+      return (readByte (address) << 24) | (readByte (address + 1) << 16) | (readByte (address + 2) << 8) | readByte (address + 3);
+    byte[] page = pages [address >>> pageShift];
+    if (page == null)
+      return 0;
+    return ((page [offset] & 0xFF) << 24) | ((page [offset + 1] & 0xFF) << 16)
+            | ((page [offset + 2] & 0xFF) << 8) | (page [offset + 3] & 0xFF);
+  }
+
+  private int readByte (int address) {
+    byte[] page = pages [address >>> pageShift];
+    return page != null ? page [address & pageMask] & 0xFF : 0;
+  }
+
+  /**
+   * Store a Big Endian integer at any address without allocating (other than the page itself on first write).
+   * @param address address of the integer's first byte.
+   * @param value   integer to store.
+   * @throws InvalidAddressException if any byte is out of range.
+   */
+  public void writeIntUnaligned (int address, int value) throws InvalidAddressException {
+    if (!isValidRange (address, 4))
+      throw new InvalidAddressException();
+    int offset = address & pageMask;
+    if (offset > pageMask - 3) {
+      set (address, integerToBytes (value));
+      return;
+    }
+    byte[] page = pages [address >>> pageShift];
+    if (page == null) {
+      if (value == 0) {
+        writeListeners.fire (address, 4);
+        return;
+      }
+      page = allocatePage (address >>> pageShift);
+    }
+    page [offset]     = (byte) (value >> 24);
+    page [offset + 1] = (byte) (value >> 16);
+    page [offset + 2] = (byte) (value >> 8);
+    page [offset + 3] = (byte) value;
+    writeListeners.fire (address, 4);
+  }
+
+  @Override public int readInteger (int address) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    return readIntegerUnaligned (address);
+  }
+
+  @Override public int readIntegerUnaligned (int address) throws InvalidAddressException {
+    int value = readIntUnaligned (address);
+    if (countObservers() > 0)
+      tellObservers (MemoryWriteListenerList.accessEvent (DataModelEvent.Type.READ, address, 4));
+    return value;
+  }
+
+  @Override public void writeInteger (int address, int value) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4))
+      throw new InvalidAddressException();
+    writeIntegerUnaligned (address, value);
+  }
+
+  @Override public void writeIntegerUnaligned (int address, int value) throws InvalidAddressException {
+    writeIntUnaligned (address, value);
+    if (countObservers() > 0)
+      tellObservers (MemoryWriteListenerList.accessEvent (DataModelEvent.Type.WRITE, address, 4));
+  }
+
+  @Override public void addWriteListener (MemoryWriteListener listener) {
+    writeListeners.add (listener);
+  }
+
+  @Override public void removeWriteListener (MemoryWriteListener listener) {
+    writeListeners.remove (listener);
+  }
+
+  private boolean isValidRange (int address, int length) {
+    return address >= 0 && length >= 0 && address <= this.length - length;
+  }
+
+  /**
+   * Determine the size of memory.
+   * @return the number of bytes addressable, whether or not they are resident.
+   */
+  @Override public int length () {
+    return length;
+  }
+}
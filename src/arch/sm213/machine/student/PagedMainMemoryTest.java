@@ -0,0 +1,101 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PagedMainMemoryTest {
+    PagedMainMemory memory;
+
+    @BeforeEach
+    public void runBefore() {
+        // 5 bytes, as in MainMemoryTest, but split into 2-byte pages so accesses cross pages
+        memory = new PagedMainMemory(5, 2);
+    }
+
+    @Test
+    public void testConstructor() {
+        assertEquals(5, memory.length());
+        assertEquals(3, memory.getPageCount());
+        assertEquals(0, memory.getResidentPageCount());
+    }
+
+    @Test
+    public void testSetGetOnce() {
+        // test at first memory is all 0, without allocating anything
+        try {
+            assertArrayEquals(new byte[]{0,0,0,0,0}, memory.get(0, 5));
+            assertEquals(0, memory.getResidentPageCount());
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+        // test put 4 bytes across two pages and the last byte into the short final page
+        try {
+            memory.set(0, new byte[]{1,0x7f,(byte) 0x80,(byte) 0xfe});
+            memory.set(4, new byte[]{(byte) 0xff});
+            assertArrayEquals(new byte[]{1,0x7f,(byte) 0x80,(byte) 0xfe,(byte) 0xff}, memory.get(0, 5));
+            assertEquals(3, memory.getResidentPageCount());
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testZeroWriteDoesNotAllocate() {
+        // test storing zeros into untouched pages leaves them non-resident
+        try {
+            memory.set(0, new byte[]{0,0,0});
+            memory.writeInteger(0, 0);
+            assertEquals(0, memory.getResidentPageCount());
+            memory.set(1, new byte[]{0,1});
+            assertFalse(memory.isPageResident(0));
+            assertTrue(memory.isPageResident(1));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testSetGetInvalid() {
+        // put 6 bytes into memory start from index 0, which exceed the byte capacity of memory
+        try {
+            memory.set(0, new byte[]{1,2,3,1,2,3});
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // test get 2 bytes from index 4, which exceed the byte capacity of memory
+        try {
+            memory.get(4, 2);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // test nothing was allocated by the failed store
+        assertEquals(0, memory.getResidentPageCount());
+    }
+
+    @Test
+    public void testPageOperations() {
+        memory = new PagedMainMemory(16, 8);
+        byte[] page = new byte[8];
+        // test whole-page write, read back and release
+        try {
+            memory.writePage(1, new byte[]{1,2,3,4,5,6,7,8});
+            assertEquals(0x05060708, memory.readInteger(12));
+            memory.readPage(1, page);
+            assertArrayEquals(new byte[]{1,2,3,4,5,6,7,8}, page);
+            memory.zeroPage(1);
+            assertEquals(0, memory.getResidentPageCount());
+            assertEquals(0, memory.readInteger(12));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+}
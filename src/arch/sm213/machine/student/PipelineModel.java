@@ -0,0 +1,284 @@
+package arch.sm213.machine.student;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+
+/**
+ * Timing of a classic five-stage SM213 pipeline (fetch, decode, execute, memory, write-back), for PipelinedCPU.
+ *
+ * The CPU executes instructions as usual and reports each one as it is fetched; the model works out when it would
+ * have entered the execute stage of an in-order, single-issue pipeline, and why it was held back (a system call
+ * counts as a load of r0 from r0, r1 and r2):
+ *
+ *   load-use  With forwarding, a result is passed from execute or memory straight to the next instruction's
+ *             execute stage, so only a loaded value (ld, or the old value of an atomic) used by the very next
+ *             instruction costs a cycle.  A stored value is needed only in the memory stage, so storing a value
+ *             just loaded costs nothing.
+ *   data      Without forwarding, an instruction waits in decode until its operands have been written back.
+ *   control   Control transfers are predicted by a BranchPredictor.  A target predicted at fetch costs nothing;
+ *             one found at decode (br, j i, and beq and bgt predicted taken) costs a cycle; a misprediction,
+ *             found when the transfer executes, costs two.  Indirect jumps (j o(r)) are only predicted at
+ *             fetch.  The memory-indirect jumps the assembler accepts (j *o(r) and j *(r,i,4)) are not modelled,
+ *             since CPU does not implement them.
+ *
+ * Cycles are the instructions, plus their stalls, plus four cycles to fill the pipeline.  A control transfer is
+ * resolved when the next instruction is fetched, i.e., when its real successor is known.
+ */
+
+public class PipelineModel {
+  private static final int CONTROL_NONE        = 0;
+  private static final int CONTROL_DIRECT      = 1;
+  private static final int CONTROL_CONDITIONAL = 2;
+  private static final int CONTROL_INDIRECT    = 3;
+
+  private final BranchPredictor predictor;
+  private final boolean         forwarding;
+  private final long[]          ready = new long [8];
+  private       long            execute;
+  private       long            instructions;
+  private       long            loadUseStalls;
+  private       long            dataStalls;
+  private       long            controlStalls;
+  private       long            transfers;
+  private       long            mispredictions;
+  private       int             pendingKind;
+  private       int             pendingPc;
+  private       int             pendingNext;
+  private       int             pendingGuess;
+  private       boolean         pendingRedirected;
+
+  /**
+   * Create a model of an empty pipeline.
+   * @param predictor  predictor of control transfers.
+   * @param forwarding true to forward results to the execute and memory stages.
+   */
+  public PipelineModel (BranchPredictor predictor, boolean forwarding) {
+    this.predictor  = predictor;
+    this.forwarding = forwarding;
+  }
+
+  /**
+   * An instruction has been fetched.
+   * @param pcVal address of the instruction.
+   * @param info  its packed decode info (see DecodedInstructionCache).
+   * @param ext   its extension word, for six-byte instructions.
+   */
+  void fetch (int pcVal, int info, int ext) {
+    int  opCode = DecodedInstructionCache.opCode (info);
+    int  op0    = DecodedInstructionCache.op0    (info);
+    int  op1    = DecodedInstructionCache.op1    (info);
+    int  op2    = DecodedInstructionCache.op2    (info);
+    int  next   = pcVal + DecodedInstructionCache.length (info);
+    long issue  = execute + 1 + resolve (pcVal);
+    long at     = issue;
+
+    // operands read in execute (and, without forwarding, in decode); a stored value is only needed in memory
+    switch (opCode) {
+      case 0x1: at = operand (op1, at); break;
+      case 0x2: at = operand (op1, operand (op0, at)); break;
+      case 0x3: at = operand (op2, at); at = stored (op0, at); break;
+      case 0x4: at = operand (op2, operand (op1, at)); at = stored (op0, at); break;
+      case 0x5: at = operand (op2, operand (op1, op0 == CPU.ATOMIC_CAS ? operand (0, at) : at)); break;
+      case 0x6:
+        if (op0 == 0x1 || op0 == 0x2)
+          at = operand (op1, operand (op2, at));
+        else if (op0 == 0x0)
+          at = operand (op1, at);
+        else if (op0 != 0xf)
+          at = operand (op2, at);
+        break;
+      case 0x7: at = operand (op0, at); break;
+      case 0x9: case 0xa: case 0xc: at = operand (op0, at); break;
+      case 0xf: if (op0 == 1) at = operand (2, operand (1, operand (0, at))); break;
+      default: break;
+    }
+    // with forwarding only a loaded value can arrive late
+    if (forwarding)
+      loadUseStalls += at - issue;
+    else
+      dataStalls    += at - issue;
+    execute = at;
+    instructions++;
+
+    // results: loads are available after the memory stage, everything else after execute
+    switch (opCode) {
+      case 0x0: result (op0, false); break;
+      case 0x1: case 0x2: result (op2, true); break;
+      case 0x5: result (op0 == CPU.ATOMIC_CAS ? 0 : op2, true); break;
+      case 0x6: result (op2, false); break;
+      case 0x7: result (op0, false); break;
+      case 0xf: if (op0 == 1) result (0, true); break;
+      default: break;
+    }
+
+    // control transfers: what fetch and decode would have guessed; checked against the real successor later
+    switch (opCode) {
+      case 0x8: predict (CONTROL_DIRECT,      pcVal, next, next + 2 * (byte) DecodedInstructionCache.imm (info)); break;
+      case 0x9:
+      case 0xa: predict (CONTROL_CONDITIONAL, pcVal, next, next + 2 * (byte) DecodedInstructionCache.imm (info)); break;
+      case 0xb: predict (CONTROL_DIRECT,      pcVal, next, ext); break;
+      case 0xc: predict (CONTROL_INDIRECT,    pcVal, next, 0); break;
+      default: break;
+    }
+  }
+
+  /**
+   * @return earliest execute cycle, not before at, in which register r can be read.
+   */
+  private long operand (int r, long at) {
+    long when = forwarding ? ready [r] : ready [r] + 1;
+    return Math.max (at, when);
+  }
+
+  /**
+   * @return earliest execute cycle, not before at, of a store of register r; the value is needed a cycle later.
+   */
+  private long stored (int r, long at) {
+    return forwarding ? Math.max (at, ready [r] - 1) : operand (r, at);
+  }
+
+  /**
+   * Record that the instruction now in execute writes register r.  Forwarded, it can be used in execute in the
+   * next cycle (after memory, for a load); otherwise it is written back two cycles after execute and read in
+   * decode in that cycle.
+   */
+  private void result (int r, boolean load) {
+    ready [r] = forwarding ? execute + (load ? 2 : 1) : execute + 2;
+  }
+
+  private void predict (int kind, int pcVal, int next, int target) {
+    int     guess      = predictor.predictTarget (pcVal);
+    boolean redirected = false;
+    if (guess < 0)
+      guess = next;
+    if (kind != CONTROL_INDIRECT) {
+      int decoded = kind == CONTROL_DIRECT || predictor.predictTaken (pcVal, target) ? target : next;
+      if (decoded != guess) {
+        guess      = decoded;
+        redirected = true;
+      }
+    }
+    pendingKind       = kind;
+    pendingPc         = pcVal;
+    pendingNext       = next;
+    pendingGuess      = guess;
+    pendingRedirected = redirected;
+  }
+
+  /**
+   * Resolve the control transfer fetched last, if any, now that its successor is known.
+   * @return cycles lost fetching down the wrong path.
+   */
+  private int resolve (int successor) {
+    if (pendingKind == CONTROL_NONE)
+      return 0;
+    int bubbles;
+    transfers++;
+    if (pendingGuess != successor) {
+      mispredictions++;
+      bubbles = 2;
+    } else
+      bubbles = pendingRedirected ? 1 : 0;
+    controlStalls += bubbles;
+    predictor.update (pendingPc, pendingKind == CONTROL_CONDITIONAL, successor != pendingNext, successor);
+    pendingKind = CONTROL_NONE;
+    return bubbles;
+  }
+
+  public BranchPredictor getPredictor () {
+    return predictor;
+  }
+
+  public boolean isForwarding () {
+    return forwarding;
+  }
+
+  public long getInstructions () {
+    return instructions;
+  }
+
+  /**
+   * @return cycles to run the instructions so far, including filling the pipeline; 0 if there are none.
+   */
+  public long getCycles () {
+    return instructions == 0 ? 0 : instructions + getStalls() + 4;
+  }
+
+  /**
+   * @return average cycles per instruction, or 0 if none has been fetched.
+   */
+  public double getCyclesPerInstruction () {
+    return instructions == 0 ? 0.0 : (double) getCycles() / instructions;
+  }
+
+  public long getStalls () {
+    return loadUseStalls + dataStalls + controlStalls;
+  }
+
+  /**
+   * @return cycles lost to loaded values used by the next instruction (with forwarding).
+   */
+  public long getLoadUseStalls () {
+    return loadUseStalls;
+  }
+
+  /**
+   * @return cycles lost waiting for operands to be written back (without forwarding).
+   */
+  public long getDataStalls () {
+    return dataStalls;
+  }
+
+  /**
+   * @return cycles lost to control transfers found at decode or mispredicted.
+   */
+  public long getControlStalls () {
+    return controlStalls;
+  }
+
+  /**
+   * @return control transfers resolved.
+   */
+  public long getTransfers () {
+    return transfers;
+  }
+
+  public long getMispredictions () {
+    return mispredictions;
+  }
+
+  /**
+   * @return fraction of control transfers mispredicted, or 0 if there have been none.
+   */
+  public double getMispredictionRate () {
+    return transfers == 0 ? 0.0 : (double) mispredictions / transfers;
+  }
+
+  /**
+   * Zero the counters, e.g., to measure a loop after a warm-up; the predictor keeps what it has learned.
+   */
+  public void reset () {
+    instructions   = 0;
+    loadUseStalls  = 0;
+    dataStalls     = 0;
+    controlStalls  = 0;
+    transfers      = 0;
+    mispredictions = 0;
+  }
+
+  /**
+   * Write the counters as CSV lines "name,value": cycles, instructions, cpi, each kind of stall, transfers,
+   * mispredictions and misprediction rate.
+   * @param out destination.
+   */
+  public void writeSummary (Appendable out) {
+    try {
+      out.append (String.format ("cycles,%d%ninstructions,%d%ncpi,%.3f%n", getCycles(), instructions, getCyclesPerInstruction()));
+      out.append (String.format ("loaduse,%d%ndata,%d%ncontrol,%d%n", loadUseStalls, dataStalls, controlStalls));
+      out.append (String.format ("transfers,%d%nmispredictions,%d%nmispredictionrate,%.4f%n", transfers, mispredictions, getMispredictionRate()));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelineModelTest {
+
+    static void fetch(PipelineModel model, int pcVal, int byte0, int byte1) {
+        model.fetch(pcVal, DecodedInstructionCache.pack(byte0, byte1, 2), 0);
+    }
+
+    static void fetch(PipelineModel model, int pcVal, int byte0, int byte1, int ext) {
+        model.fetch(pcVal, DecodedInstructionCache.pack(byte0, byte1, 6), ext);
+    }
+
+    // ld $0x1000, r1; ld 0(r1), r2; add r2, r3
+    static void loadUse(PipelineModel model) {
+        fetch(model, 0x100, 0x01, 0x00, 0x1000);
+        fetch(model, 0x106, 0x10, 0x12);
+        fetch(model, 0x108, 0x61, 0x23);
+    }
+
+    @Test
+    public void testForwarding() {
+        PipelineModel model = new PipelineModel(new StaticBranchPredictor(), true);
+        // test a result of execute is forwarded to the next instruction, and a loaded one costs a cycle
+        loadUse(model);
+        assertEquals(3, model.getInstructions());
+        assertEquals(1, model.getLoadUseStalls());
+        assertEquals(0, model.getDataStalls());
+        assertEquals(3 + 1 + 4, model.getCycles());
+        // test storing a value just loaded costs nothing: ld 0(r1), r4; st r4, 4(r1)
+        model.reset();
+        fetch(model, 0x10a, 0x10, 0x14);
+        fetch(model, 0x10c, 0x34, 0x11);
+        assertEquals(0, model.getStalls());
+        // test the old value of an atomic is a load: xadd r0, (r1) with r2; inc r2
+        model.reset();
+        fetch(model, 0x10e, 0x51, 0x12);
+        fetch(model, 0x110, 0x63, 0x02);
+        assertEquals(1, model.getLoadUseStalls());
+    }
+
+    @Test
+    public void testWithoutForwarding() {
+        PipelineModel model = new PipelineModel(new StaticBranchPredictor(), false);
+        // test each use waits in decode for the write-back of the instruction before
+        loadUse(model);
+        assertEquals(0, model.getLoadUseStalls());
+        assertEquals(4, model.getDataStalls());
+        assertEquals(3 + 4 + 4, model.getCycles());
+        // test independent instructions do not wait: inc r5; inc r6
+        model.reset();
+        fetch(model, 0x10a, 0x63, 0x05);
+        fetch(model, 0x10c, 0x63, 0x06);
+        assertEquals(0, model.getStalls());
+    }
+
+    @Test
+    public void testMisprediction() {
+        PipelineModel model = new PipelineModel(new StaticBranchPredictor(), true);
+        // test a forward beq is predicted not taken, so going to its target costs two cycles
+        fetch(model, 0x100, 0x90, 0x02);
+        fetch(model, 0x106, 0x63, 0x01);
+        assertEquals(1, model.getTransfers());
+        assertEquals(1, model.getMispredictions());
+        assertEquals(2, model.getControlStalls());
+        // test a br is found at decode, costing a cycle
+        fetch(model, 0x108, 0x80, 0xfd);
+        fetch(model, 0x104, 0x63, 0x01);
+        assertEquals(2, model.getTransfers());
+        assertEquals(1, model.getMispredictions());
+        assertEquals(3, model.getControlStalls());
+        // test a backward bgt is predicted taken at decode, so falling through costs two cycles
+        fetch(model, 0x106, 0xa0, 0xfc);
+        fetch(model, 0x108, 0x63, 0x01);
+        assertEquals(3, model.getTransfers());
+        assertEquals(2, model.getMispredictions());
+        assertEquals(5, model.getControlStalls());
+        assertEquals(2.0 / 3, model.getMispredictionRate(), 1e-9);
+        assertEquals(model.getInstructions() + 5 + 4, model.getCycles());
+    }
+
+    @Test
+    public void testIndirectJump() {
+        PipelineModel model = new PipelineModel(new BranchTargetBuffer(16), true);
+        for (int i = 0; i < 2; i++) {
+            // ld 0(r1), r2; j 4(r2); then ld 0(r1), r3; j 0(r3)
+            fetch(model, 0x100, 0x10, 0x12);
+            fetch(model, 0x102, 0xc2, 0x02);
+            fetch(model, 0x304, 0x10, 0x13);
+            fetch(model, 0x306, 0xc3, 0x00);
+            fetch(model, 0x100, 0x63, 0x00);
+            // test both jumps read their base registers, and loading them just before costs a cycle each
+            assertEquals(2, model.getLoadUseStalls());
+            assertEquals(2, model.getTransfers());
+            // test each is mispredicted until the branch target buffer has its target
+            assertEquals(i == 0 ? 2 : 0, model.getMispredictions());
+            assertEquals(i == 0 ? 4 : 0, model.getControlStalls());
+            model.reset();
+        }
+        // test without a branch target buffer it is not known at decode
+        model = new PipelineModel(new StaticBranchPredictor(), true);
+        fetch(model, 0x100, 0xc1, 0x02);
+        fetch(model, 0x204, 0x63, 0x00);
+        assertEquals(1, model.getMispredictions());
+        assertEquals(2, model.getControlStalls());
+    }
+
+    @Test
+    public void testPipelinedCPU() throws Exception {
+        MainMemory           memory    = new MainMemory(CPUTest.MEMORY_SIZE);
+        IncrementalAssembler assembler = new IncrementalAssembler(CPUTest.PROGRAM);
+        assembler.write(memory);
+        PipelinedCPU cpu   = new PipelinedCPU(CPU.class.getName(), memory);
+        CPU          other = CPUTest.load(CPUTest.PROGRAM);
+        cpu.setNotificationsEnabled(false);
+        cpu.resetMachineToPC(assembler.getEntryPoint());
+        // test the timed CPU computes what the plain one does, and its model saw every instruction
+        long instructions = CPUTest.runClocked(cpu);
+        assertEquals(CPUTest.runClocked(other), instructions);
+        assertArrayEquals(CPUTest.state(other), CPUTest.state(cpu));
+        PipelineModel model = cpu.getPipelineModel();
+        assertEquals(instructions, model.getInstructions());
+        assertEquals(instructions + model.getStalls() + 4, model.getCycles());
+        assertTrue(model.getTransfers() > 0);
+    }
+}
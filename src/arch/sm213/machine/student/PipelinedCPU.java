@@ -0,0 +1,45 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+/**
+ * SM213 CPU timed as a classic five-stage pipeline with forwarding, load-use stalls and branch prediction.
+ *
+ * Instructions execute exactly as in CPU, clocked or in turbo mode (which then interprets every instruction), so
+ * every architectural result is the same; the PipelineModel records the cycles a pipelined implementation would
+ * take, its stalls by cause and its misprediction rate.
+ */
+
+public class PipelinedCPU extends CPU {
+  final static int DEFAULT_PREDICTOR_ENTRIES = 512;
+
+  private final PipelineModel pipeline;
+
+  /**
+   * Create a CPU with forwarding and a branch target buffer of DEFAULT_PREDICTOR_ENTRIES entries.
+   *
+   * @param name   fully-qualified name of CPU implementation.
+   * @param memory main memory used by CPU.
+   */
+  public PipelinedCPU (String name, AbstractMainMemory memory) {
+    this (name, memory, new PipelineModel (new BranchTargetBuffer (DEFAULT_PREDICTOR_ENTRIES), true));
+  }
+
+  /**
+   * Create a CPU timed by a pipeline model, e.g., with a StaticBranchPredictor or TwoBitBranchPredictor, or
+   * without forwarding.
+   *
+   * @param name     fully-qualified name of CPU implementation.
+   * @param memory   main memory used by CPU.
+   * @param pipeline model of the pipeline.
+   */
+  public PipelinedCPU (String name, AbstractMainMemory memory, PipelineModel pipeline) {
+    super (name, memory);
+    this.pipeline = pipeline;
+    setPipelineModel (pipeline);
+  }
+
+  public PipelineModel getPipelineModel () {
+    return pipeline;
+  }
+}
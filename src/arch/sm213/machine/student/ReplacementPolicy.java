@@ -0,0 +1,31 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Chooses which physical frame a DemandPager evicts when it needs a free one, or which way of a set a CacheModel
+ * replaces on a miss.
+ *
+ * Frames are numbered from 0 within the pager's pool (or the set's ways).
+ */
+
+public interface ReplacementPolicy {
+
+  /**
+   * A page has just been loaded into a frame.
+   * @param frame frame number within the pool.
+   */
+  void frameLoaded (int frame);
+
+  /**
+   * A resident frame has been accessed through an address translation.
+   * Called on every translation, so implementations must be cheap.
+   * @param frame frame number within the pool.
+   */
+  void frameAccessed (int frame);
+
+  /**
+   * Choose a frame to evict.  Every frame in the pool is resident when this is called.
+   * @return frame number within the pool.
+   */
+  int selectVictim ();
+}
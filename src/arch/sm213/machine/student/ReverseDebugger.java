@@ -0,0 +1,377 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import machine.AbstractMainMemory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Reverse execution for a CPU and its MainMemory: checkpoints taken while running forward, and deterministic
+ * re-execution from the nearest checkpoint to go back.
+ *
+ * The debugger runs the CPU with runTurbo and counts every instruction it executes; its position is the number
+ * of instructions executed since the debugger was attached (or reset).  Every interval instructions it takes a
+ * checkpoint: the registers and processor state, plus a copy of each memory page written since the previous
+ * checkpoint.  Going back to position p restores the last checkpoint at or before p, rewriting only the pages
+ * written since, and replays forward to p, so stepping back costs at most one interval of turbo execution
+ * however long the program has run.
+ *
+ * History is bounded by maxCheckpoints: when it is exceeded, every other checkpoint of the older half is merged
+ * into its successor, so recent history keeps its resolution while older history becomes sparser and slower to
+ * reach.  The first checkpoint, at position 0, holds a copy of all of memory and is never dropped.
+ *
+ * Replay is exact because the CPU is deterministic; changes made to the machine other than by this debugger
+ * (e.g., editing a register) are not replayed, so call reset after making one.  Addresses watched by
+ * reverseToWrite are physical.  A profiler or trace recorder attached to the CPU sees replayed instructions again.
+ * System calls made through the CPU's BufferedSystemCallInterface are made again when replayed, so replay is exact
+ * only while the program's input and output can be repeated (e.g., a file reopened before going back).
+ *
+ * Usage: ReverseDebugger [-i interval] [-c checkpoints] [-m bytes] program
+ */
+
+public class ReverseDebugger implements MemoryWriteListener {
+  public static final long DEFAULT_INTERVAL        = 100_000;
+  public static final int  DEFAULT_MAX_CHECKPOINTS = 1024;
+
+  private static final int PAGE_SIZE   = MainMemory.DIRTY_PAGE_SIZE;
+  private static final int WATCH_BATCH = 1024;
+
+  private static final class Checkpoint {
+    final long                 position;
+    final int[][]              registers;
+    final Map<Integer, byte[]> pages; // contents at position of the pages written since the previous checkpoint
+
+    Checkpoint (long position, int[][] registers, Map<Integer, byte[]> pages) {
+      this.position  = position;
+      this.registers = registers;
+      this.pages     = pages;
+    }
+  }
+
+  private final CPU              cpu;
+  private final MainMemory       memory;
+  private final long             interval;
+  private final int              maxCheckpoints;
+  private final List<Checkpoint> checkpoints = new ArrayList<>();
+  private final BitSet           dirty       = new BitSet();
+  private       byte[]           start;
+  private       long             position;
+  private       boolean          watching;
+  private       int              watchAddress;
+  private       boolean          watchHit;
+
+  /**
+   * Attach a debugger to a stopped machine; its current state becomes position 0.
+   *
+   * @param cpu            the machine's CPU; its memory must be a MainMemory.
+   * @param interval       number of instructions between checkpoints.
+   * @param maxCheckpoints number of checkpoints kept before older ones are thinned out; at least 2.
+   * @throws IllegalArgumentException if the memory is not a MainMemory or a limit is out of range.
+   */
+  public ReverseDebugger (CPU cpu, long interval, int maxCheckpoints) {
+    if (interval < 1 || maxCheckpoints < 2)
+      throw new IllegalArgumentException ("interval must be positive and at least 2 checkpoints must be kept");
+    this.cpu            = cpu;
+    this.memory         = MachineSnapshot.mainMemory (cpu);
+    this.interval       = interval;
+    this.maxCheckpoints = maxCheckpoints;
+    memory.addWriteListener (this);
+    reset();
+  }
+
+  /**
+   * Discard history and make the machine's current state position 0.
+   */
+  public void reset () {
+    try {
+      start = memory.get (0, memory.length());
+    } catch (AbstractMainMemory.InvalidAddressException e) {
+      throw new AssertionError (e);
+    }
+    checkpoints.clear();
+    dirty.clear();
+    position = 0;
+    checkpoints.add (new Checkpoint (0, MachineSnapshot.captureRegisters (cpu), new HashMap<>()));
+  }
+
+  /**
+   * Stop tracking memory; the debugger must not be used afterwards.
+   */
+  public void detach () {
+    memory.removeWriteListener (this);
+  }
+
+  @Override public void memoryWritten (int address, int length) {
+    dirty.set (address / PAGE_SIZE, (address + length - 1) / PAGE_SIZE + 1);
+    if (watching && Integer.compareUnsigned (watchAddress - address, length) < 0)
+      watchHit = true;
+  }
+
+  /**
+   * @return number of instructions executed since the debugger was attached or reset.
+   */
+  public long getPosition () {
+    return position;
+  }
+
+  public int getCheckpointCount () {
+    return checkpoints.size();
+  }
+
+  /**
+   * Execute instructions, taking checkpoints on the way.
+   *
+   * @param n maximum number of instructions to execute.
+   * @return number of instructions executed; fewer than n if the CPU was interrupted.
+   * @throws AbstractCPU.InvalidInstructionException   when an instruction is invalid.
+   * @throws AbstractCPU.MachineHaltException          when the halt instruction executes.
+   * @throws AbstractMainMemory.InvalidAddressException when an instruction references an invalid address.
+   */
+  public long step (long n) throws AbstractCPU.InvalidInstructionException, AbstractCPU.MachineHaltException, AbstractMainMemory.InvalidAddressException {
+    long done = 0;
+    while (done < n) {
+      long next  = checkpoints.get (checkpoints.size() - 1).position + interval;
+      long batch = Math.min (n - done, next - position);
+      try {
+        cpu.runTurbo (batch);
+      } finally {
+        position += cpu.getTurboInstructionCount();
+        done     += cpu.getTurboInstructionCount();
+        if (position == next)
+          checkpoint();
+      }
+      if (cpu.getTurboInstructionCount() < batch)
+        break;
+    }
+    return done;
+  }
+
+  private void checkpoint () {
+    Map<Integer, byte[]> pages = new HashMap<>();
+    for (int page = dirty.nextSetBit (0); page >= 0; page = dirty.nextSetBit (page + 1)) {
+      int address = page * PAGE_SIZE;
+      try {
+        pages.put (page, memory.get (address, Math.min (PAGE_SIZE, memory.length() - address)));
+      } catch (AbstractMainMemory.InvalidAddressException e) {
+        throw new AssertionError (e);
+      }
+    }
+    dirty.clear();
+    checkpoints.add (new Checkpoint (position, MachineSnapshot.captureRegisters (cpu), pages));
+    if (checkpoints.size() > maxCheckpoints)
+      thin();
+  }
+
+  /**
+   * Drop every other checkpoint of the older half of history, merging its pages into its successor.
+   */
+  private void thin () {
+    int              half = checkpoints.size() / 2;
+    List<Checkpoint> kept = new ArrayList<>();
+    kept.add (checkpoints.get (0));
+    for (int i = 1; i < checkpoints.size(); i++) {
+      Checkpoint checkpoint = checkpoints.get (i);
+      if (i < Math.max (half, 2) && i % 2 == 1) {
+        Map<Integer, byte[]> successor = checkpoints.get (i + 1).pages;
+        for (Map.Entry<Integer, byte[]> page : checkpoint.pages.entrySet())
+          successor.putIfAbsent (page.getKey(), page.getValue());
+      } else
+        kept.add (checkpoint);
+    }
+    checkpoints.clear();
+    checkpoints.addAll (kept);
+  }
+
+  /**
+   * Return the machine to the state of a checkpoint and forget the checkpoints after it.
+   */
+  private void restore (int k) {
+    Checkpoint checkpoint = checkpoints.get (k);
+    BitSet     pages      = (BitSet) dirty.clone();
+    for (int i = k + 1; i < checkpoints.size(); i++)
+      for (int page : checkpoints.get (i).pages.keySet())
+        pages.set (page);
+    for (int page = pages.nextSetBit (0); page >= 0; page = pages.nextSetBit (page + 1)) {
+      int    address = page * PAGE_SIZE;
+      int    length  = Math.min (PAGE_SIZE, memory.length() - address);
+      byte[] saved   = null;
+      for (int i = k; i > 0 && saved == null; i--)
+        saved = checkpoints.get (i).pages.get (page);
+      if (saved != null)
+        memory.restoreRange (address, saved, 0, length);
+      else
+        memory.restoreRange (address, start, address, length);
+    }
+    dirty.clear();
+    checkpoints.subList (k + 1, checkpoints.size()).clear();
+    MachineSnapshot.restoreRegisters (cpu, checkpoint.registers);
+    position = checkpoint.position;
+  }
+
+  /**
+   * Return the machine to the state it had at an earlier position, i.e. just before that instruction executed.
+   *
+   * @param target position to return to, from 0 to getPosition.
+   * @throws IllegalArgumentException if target is out of range.
+   * @throws AbstractCPU.InvalidInstructionException   if replay differs from the original run.
+   * @throws AbstractCPU.MachineHaltException          if replay differs from the original run.
+   * @throws AbstractMainMemory.InvalidAddressException if replay differs from the original run.
+   */
+  public void seek (long target) throws AbstractCPU.InvalidInstructionException, AbstractCPU.MachineHaltException, AbstractMainMemory.InvalidAddressException {
+    if (target < 0 || target > position)
+      throw new IllegalArgumentException ("position " + target + " is not in history 0-" + position);
+    int k = checkpoints.size() - 1;
+    while (checkpoints.get (k).position > target)
+      k--;
+    restore (k);
+    try {
+      step (target - position);
+    } catch (AbstractCPU.MachineHaltException e) {
+      if (position != target)
+        throw e;
+    }
+  }
+
+  /**
+   * Go back a number of instructions, or to position 0 if there are fewer.
+   *
+   * @param n number of instructions.
+   * @throws AbstractCPU.InvalidInstructionException   if replay differs from the original run.
+   * @throws AbstractCPU.MachineHaltException          if replay differs from the original run.
+   * @throws AbstractMainMemory.InvalidAddressException if replay differs from the original run.
+   */
+  public void stepBack (long n) throws AbstractCPU.InvalidInstructionException, AbstractCPU.MachineHaltException, AbstractMainMemory.InvalidAddressException {
+    seek (Math.max (0, position - n));
+  }
+
+  /**
+   * Run backwards to the most recent store into a byte of memory, stopping just before the instruction that
+   * performed it, or at position 0 if there is none.
+   *
+   * Each interval is replayed with the address watched, newest first, until one contains a store; the store
+   * is then located by replaying that part of the interval one instruction at a time.
+   *
+   * @param address physical address of the byte.
+   * @return true iff a store was found.
+   * @throws AbstractCPU.InvalidInstructionException   if replay differs from the original run.
+   * @throws AbstractCPU.MachineHaltException          if replay differs from the original run.
+   * @throws AbstractMainMemory.InvalidAddressException if replay differs from the original run.
+   */
+  public boolean reverseToWrite (int address) throws AbstractCPU.InvalidInstructionException, AbstractCPU.MachineHaltException, AbstractMainMemory.InvalidAddressException {
+    long end = position;
+    watchAddress = address;
+    try {
+      while (end > 0) {
+        int k = checkpoints.size() - 1;
+        while (checkpoints.get (k).position >= end)
+          k--;
+        long from     = checkpoints.get (k).position;
+        long hitBatch = -1;
+        restore (k);
+        while (position < end) {
+          long batch = position;
+          if (replayWatched (Math.min (WATCH_BATCH, end - position)))
+            hitBatch = batch;
+        }
+        if (hitBatch >= 0) {
+          long batchEnd = Math.min (hitBatch + WATCH_BATCH, end);
+          long hit      = -1;
+          seek (hitBatch);
+          while (position < batchEnd) {
+            long at = position;
+            if (replayWatched (1))
+              hit = at;
+          }
+          seek (hit);
+          return true;
+        }
+        end = from;
+      }
+      seek (0);
+      return false;
+    } finally {
+      watching = false;
+    }
+  }
+
+  /**
+   * Re-execute n instructions of history (the last may halt) with watchAddress watched.
+   * @return true iff one of them stored into watchAddress.
+   */
+  private boolean replayWatched (long n) throws AbstractCPU.InvalidInstructionException, AbstractCPU.MachineHaltException, AbstractMainMemory.InvalidAddressException {
+    watchHit = false;
+    watching = true;
+    try {
+      step (n);
+    } catch (AbstractCPU.MachineHaltException e) {
+      // the original run halted here too
+    } finally {
+      watching = false;
+    }
+    return watchHit;
+  }
+
+  public static void main (String[] args) throws Exception {
+    long   interval = DEFAULT_INTERVAL;
+    int    count    = DEFAULT_MAX_CHECKPOINTS;
+    int    size     = BatchRunner.DEFAULT_MEMORY_SIZE;
+    String file     = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args [i]) {
+        case "-i": interval = Long.parseLong   (args [++i]); break;
+        case "-c": count    = Integer.parseInt (args [++i]); break;
+        case "-m": size     = Integer.decode   (args [++i]); break;
+        default:   file     = args [i];
+      }
+    }
+    if (file == null) {
+      System.err.println ("usage: ReverseDebugger [-i interval] [-c checkpoints] [-m bytes] program");
+      System.exit (2);
+    }
+    MainMemory memory = new MainMemory (size);
+    CPU        cpu    = new CPU (CPU.class.getName(), memory);
+    cpu.resetMachineToPC (BatchRunner.entryPoint (BatchRunner.load (cpu, memory, new File (file))));
+    // translated blocks stop exactly at a step's budget and count the instructions they ran before a fault,
+    // so positions are the same as when interpreting
+    cpu.setBlockTranslationEnabled (true);
+    ReverseDebugger debugger = new ReverseDebugger (cpu, interval, count);
+    BufferedReader  in       = new BufferedReader (new InputStreamReader (System.in, StandardCharsets.UTF_8));
+    System.out.println ("commands: s [n] step, b [n] step back, c run, g position, w address reverse to write, q quit");
+    for (String line; (line = in.readLine()) != null; ) {
+      String[] words = line.trim().split ("\\s+");
+      long     n     = words.length > 1 ? Long.decode (words [1]) : 1;
+      long     t     = System.nanoTime();
+      String   note  = "";
+      try {
+        switch (words [0]) {
+          case "s": debugger.step     (n);                    break;
+          case "b": debugger.stepBack (n);                    break;
+          case "c": debugger.step     (Long.MAX_VALUE);       break;
+          case "g": debugger.seek     (n);                    break;
+          case "w": note = debugger.reverseToWrite ((int) n) ? "" : "no write found; "; break;
+          case "q": return;
+          case "":  continue;
+          default:  System.out.println ("?"); continue;
+        }
+      } catch (AbstractCPU.MachineHaltException e) {
+        note = "halted; ";
+      } catch (AbstractCPU.InvalidInstructionException | AbstractMainMemory.InvalidAddressException | IllegalArgumentException e) {
+        note = e.getClass().getSimpleName() + "; ";
+      }
+      int[] registers = new int [8];
+      for (int r = 0; r < registers.length; r++)
+        registers [r] = cpu.getRegisterFile().getValue ("r" + r);
+      System.out.printf ("%s@%d pc=%x %s (%d us)%n", note, debugger.getPosition(), BatchRunner.pcOf (cpu), Arrays.toString (registers), (System.nanoTime() - t) / 1000);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReverseDebuggerTest {
+    // the pair of instructions the self-modifying loop stores over; byte 2 alternates between inc and inca
+    static final int TARGET = 0x122;
+
+    // interval and history small enough that the run takes many checkpoints and thins them repeatedly
+    static final long INTERVAL        = 50;
+    static final int  MAX_CHECKPOINTS = 4;
+
+    static ReverseDebugger debugger(CPU cpu) {
+        return new ReverseDebugger(cpu, INTERVAL, MAX_CHECKPOINTS);
+    }
+
+    static long runToHalt(ReverseDebugger debugger) throws Exception {
+        try {
+            debugger.step(Long.MAX_VALUE);
+            fail("should halt");
+        } catch (AbstractCPU.MachineHaltException e) {
+            // pass
+        }
+        return debugger.getPosition();
+    }
+
+    static void assertAt(TraceRecorderTest.Run run, long position, ReverseDebugger debugger, CPU cpu) throws Exception {
+        assertEquals(position, debugger.getPosition());
+        assertArrayEquals(run.states.get((int) position), CPUTest.state(cpu));
+        assertArrayEquals(run.memories.get((int) position), CPUTest.memory(cpu));
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        TraceRecorderTest.Run run = TraceRecorderTest.runClocked(BlockTranslatorTest.SELF_MODIFYING);
+        for (boolean translate : new boolean[] {false, true}) {
+            CPU             cpu      = CPUTest.load(BlockTranslatorTest.SELF_MODIFYING);
+            ReverseDebugger debugger = debugger(cpu);
+            cpu.setBlockTranslationEnabled(translate);
+            assertEquals(run.size(), runToHalt(debugger));
+            assertTrue(debugger.getCheckpointCount() <= MAX_CHECKPOINTS);
+            assertAt(run, run.size(), debugger, cpu);
+            // test positions before, on and after checkpoints, down to position 0
+            for (long target : new long[] {run.size(), run.size() - 1, 3 * INTERVAL + 1, INTERVAL, INTERVAL - 1, 1, 0}) {
+                debugger.seek(target);
+                assertAt(run, target, debugger, cpu);
+            }
+            // test random seeks back, each followed by a run forward that retakes the checkpoints seek dropped
+            assertEquals(run.size(), runToHalt(debugger));
+            Random random = new Random(213);
+            for (int i = 0; i < 40; i++) {
+                long target = (long) (random.nextDouble() * (debugger.getPosition() + 1));
+                debugger.seek(target);
+                assertAt(run, target, debugger, cpu);
+                long forward = Math.max(0, Math.min(random.nextInt(6 * (int) INTERVAL), run.size() - target - 1));
+                assertEquals(forward, debugger.step(forward));
+                assertAt(run, target + forward, debugger, cpu);
+                assertTrue(debugger.getCheckpointCount() <= MAX_CHECKPOINTS);
+            }
+            assertEquals(translate, cpu.getBlockTranslator() != null && cpu.getBlockTranslator().getTranslations() > 0);
+            try {
+                debugger.seek(debugger.getPosition() + 1);
+                fail("should not reach here");
+            } catch (IllegalArgumentException e) {
+                // pass
+            }
+        }
+    }
+
+    @Test
+    public void testStepBack() throws Exception {
+        TraceRecorderTest.Run run      = TraceRecorderTest.runClocked(BlockTranslatorTest.SELF_MODIFYING);
+        CPU                   cpu      = CPUTest.load(BlockTranslatorTest.SELF_MODIFYING);
+        ReverseDebugger       debugger = debugger(cpu);
+        long                  position = runToHalt(debugger);
+        // test single steps back across the last checkpoints, then larger ones across thinned history
+        for (int i = 0; i < 2 * INTERVAL + 3; i++) {
+            debugger.stepBack(1);
+            assertAt(run, --position, debugger, cpu);
+        }
+        while (position > 0) {
+            debugger.stepBack(37);
+            position = Math.max(0, position - 37);
+            assertAt(run, position, debugger, cpu);
+        }
+        debugger.stepBack(1);
+        assertAt(run, 0, debugger, cpu);
+    }
+
+    @Test
+    public void testReverseToWrite() throws Exception {
+        TraceRecorderTest.Run run = TraceRecorderTest.runClocked(BlockTranslatorTest.SELF_MODIFYING);
+        for (boolean translate : new boolean[] {false, true}) {
+            CPU             cpu      = CPUTest.load(BlockTranslatorTest.SELF_MODIFYING);
+            ReverseDebugger debugger = debugger(cpu);
+            cpu.setBlockTranslationEnabled(translate);
+            runToHalt(debugger);
+            // test each store into the loop is found, newest first, stopping just before the st
+            int stores = 0;
+            for (int i = run.size() - 1; i >= 0; i--)
+                if (run.memories.get(i + 1)[TARGET] != run.memories.get(i)[TARGET]) {
+                    assertTrue(debugger.reverseToWrite(TARGET));
+                    assertAt(run, i, debugger, cpu);
+                    assertEquals(0x11e, CPUTest.state(cpu)[8]);
+                    stores++;
+                }
+            assertEquals(200, stores);
+            assertFalse(debugger.reverseToWrite(TARGET));
+            assertAt(run, 0, debugger, cpu);
+            // test an address that is never written leaves the debugger at position 0, and replays forward again
+            runToHalt(debugger);
+            assertFalse(debugger.reverseToWrite(0x1000));
+            assertAt(run, 0, debugger, cpu);
+            assertEquals(run.size(), runToHalt(debugger));
+            assertAt(run, run.size(), debugger, cpu);
+        }
+    }
+}
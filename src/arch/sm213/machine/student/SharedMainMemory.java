@@ -0,0 +1,221 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * Main Memory of Simple CPU shared by several CPUs running on different host threads.
+ *
+ * Memory is an array of Big Endian words updated without locks.  The memory-ordering model seen by
+ * the harts is total store order (TSO), as on x86:
+ *
+ *   - an aligned word load or store is single-copy atomic;
+ *   - loads are not reordered with other loads, and stores are not reordered with other stores;
+ *   - a store may become visible to other harts after a later load by the same hart
+ *     (store-to-load reordering), but every hart sees stores in one global order;
+ *   - the atomic instructions (cas, xadd and xchg) are full fences and are linearizable.
+ *
+ * Programs that need a store-load fence (e.g. Dekker-style mutual exclusion) use xchg on a scratch
+ * word.  Unaligned loads and stores, and the byte accesses made by instruction fetch and the loader,
+ * are performed a word at a time and are not atomic as a whole.
+ *
+ * Stores are reported to write listeners, so every hart's instruction caches follow the code.  A store
+ * is made visible to every hart before it is reported, so a hart that is decoding the bytes it
+ * overlaps discards what it decoded (see DecodedInstructionCache and BlockTranslator).  A hart that
+ * has already fetched an instruction may still execute it once after another hart overwrites it.  Word loads and stores are not
+ * reported to Observers; this memory is meant for headless multi-hart runs, not for the GUI.
+ */
+
+public class SharedMainMemory extends AbstractMainMemory implements MemoryWriteSource, AtomicMemory {
+  private final AtomicIntegerArray      words;
+  private final int                     byteCapacity;
+  private final MemoryWriteListenerList writeListeners = new MemoryWriteListenerList();
+
+  /**
+   * Allocate memory.
+   * @param byteCapacity size of memory in bytes.
+   */
+  public SharedMainMemory (int byteCapacity) {
+    this.byteCapacity = byteCapacity;
+    this.words        = new AtomicIntegerArray ((byteCapacity + 3) / 4);
+  }
+
+  /**
+   * Determine whether an address is aligned to specified length.
+   * @param address memory address.
+   * @param length byte length.
+   * @return true iff address is aligned to length.
+   */
+  @Override protected boolean isAccessAligned (int address, int length) {
+    return (address % length == 0);
+  }
+
+  /**
+   * Convert a sequence of four bytes into a Big Endian integer.
+   * @param byteAtAddrPlus0 value of byte with the lowest memory address (base address).
+   * @param byteAtAddrPlus1 value of byte at base address plus 1.
+   * @param byteAtAddrPlus2 value of byte at base address plus 2.
+   * @param byteAtAddrPlus3 value of byte at base address plus 3 (highest memory address).
+   * @return Big Endian integer formed by these four bytes.
+   */
+  @Override public int bytesToInteger (byte byteAtAddrPlus0, byte byteAtAddrPlus1, byte byteAtAddrPlus2, byte byteAtAddrPlus3) {
+    return ((byteAtAddrPlus0 & 0xFF) << 24) | ((byteAtAddrPlus1 & 0xFF) << 16)
+            | ((byteAtAddrPlus2 & 0xFF) << 8) | (byteAtAddrPlus3 & 0xFF);
+  }
+
+  /**
+   * Convert a Big Endian integer into an array of 4 bytes organized by memory address.
+   * @param  i an Big Endian integer.
+   * @return an array of byte where [0] is value of low-address byte of the number etc.
+   */
+  @Override public byte[] integerToBytes (int i) {
+    return new byte[] {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+  }
+
+  /**
+   * Fetch a sequence of bytes from memory.
+   * @param address address of the first byte to fetch.
+   * @param length  number of bytes to fetch.
+   * @throws InvalidAddressException  if any address in the range address to address+length-1 is invalid.
+   * @return an array of byte where [0] is memory value at address, [1] is memory value at address+1 etc.
+   */
+  @Override protected byte[] get (int address, int length) throws InvalidAddressException {
+    if (!isValidRange (address, length))
+      throw new InvalidAddressException();
+    byte[] value = new byte [length];
+    int    word  = 0;
+    for (int i = 0; i < length; i++) {
+      int a = address + i;
+      if (i == 0 || (a & 3) == 0)
+        word = words.get (a >>> 2);
+      value [i] = (byte) (word >>> shift (a));
+    }
+    return value;
+  }
+
+  /**
+   * Store a sequence of bytes into memory.  Each word touched is updated atomically, so concurrent
+   * stores to other bytes of the same word are not lost.
+   * @param  address                  address of the first byte in memory to receive the specified value.
+   * @param  value                    an array of byte values to store in memory at the specified address.
+   * @throws InvalidAddressException  if any address in the range address to address+value.length-1 is invalid.
+   */
+  @Override protected void set (int address, byte[] value) throws InvalidAddressException {
+    if (!isValidRange (address, value.length))
+      throw new InvalidAddressException();
+    int i = 0;
+    while (i < value.length) {
+      int index = (address + i) >>> 2;
+      int mask  = 0;
+      int bits  = 0;
+      for (; i < value.length && (address + i) >>> 2 == index; i++) {
+        int s = shift (address + i);
+        mask |= 0xff << s;
+        bits |= (value [i] & 0xff) << s;
+      }
+      if (mask == -1)
+        words.set (index, bits);
+      else {
+        int old;
+        do
+          old = words.get (index);
+        while (!words.compareAndSet (index, old, (old & ~mask) | bits));
+      }
+    }
+    writeListeners.fire (address, value.length);
+  }
+
+  /**
+   * Bit position of a byte within its Big Endian word.
+   */
+  private static int shift (int address) {
+    return 24 - ((address & 3) << 3);
+  }
+
+  /**
+   * Load an aligned word.  The load has acquire semantics.
+   */
+  @Override public int readInteger (int address) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4) || !isValidRange (address, 4))
+      throw new InvalidAddressException();
+    return words.get (address >>> 2);
+  }
+
+  /**
+   * Store an aligned word.  The store is volatile rather than a release, which is stronger than TSO, so
+   * that it is visible to a hart decoding the word before the write listeners look for one.
+   */
+  @Override public void writeInteger (int address, int value) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4) || !isValidRange (address, 4))
+      throw new InvalidAddressException();
+    words.set (address >>> 2, value);
+    writeListeners.fire (address, 4);
+  }
+
+  @Override public int readIntegerUnaligned (int address) throws InvalidAddressException {
+    if ((address & 3) == 0)
+      return readInteger (address);
+    byte[] b = get (address, 4);
+    return bytesToInteger (b [0], b [1], b [2], b [3]);
+  }
+
+  @Override public void writeIntegerUnaligned (int address, int value) throws InvalidAddressException {
+    if ((address & 3) == 0)
+      writeInteger (address, value);
+    else
+      set (address, integerToBytes (value));
+  }
+
+  @Override public int compareAndSwap (int address, int expected, int value) throws InvalidAddressException {
+    int index = wordIndex (address);
+    for (;;) {
+      int old = words.get (index);
+      if (old != expected)
+        return old;
+      if (words.compareAndSet (index, expected, value)) {
+        writeListeners.fire (address, 4);
+        return old;
+      }
+    }
+  }
+
+  @Override public int getAndAdd (int address, int delta) throws InvalidAddressException {
+    int old = words.getAndAdd (wordIndex (address), delta);
+    writeListeners.fire (address, 4);
+    return old;
+  }
+
+  @Override public int getAndSet (int address, int value) throws InvalidAddressException {
+    int old = words.getAndSet (wordIndex (address), value);
+    writeListeners.fire (address, 4);
+    return old;
+  }
+
+  private int wordIndex (int address) throws InvalidAddressException {
+    if (!isAccessAligned (address, 4) || !isValidRange (address, 4))
+      throw new InvalidAddressException();
+    return address >>> 2;
+  }
+
+  @Override public void addWriteListener (MemoryWriteListener listener) {
+    writeListeners.add (listener);
+  }
+
+  @Override public void removeWriteListener (MemoryWriteListener listener) {
+    writeListeners.remove (listener);
+  }
+
+  private boolean isValidRange (int address, int length) {
+    return address >= 0 && length >= 0 && address <= byteCapacity - length;
+  }
+
+  /**
+   * Determine the size of memory.
+   * @return the number of bytes allocated to this memory.
+   */
+  @Override public int length () {
+    return byteCapacity;
+  }
+}
@@ -0,0 +1,79 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedMainMemoryTest {
+    SharedMainMemory memory;
+
+    @BeforeEach
+    public void runBefore() {
+        memory = new SharedMainMemory(64);
+    }
+
+    @Test
+    public void testBytesAndWords() {
+        try {
+            // test byte stores land in the right place of a Big Endian word and keep their neighbours
+            memory.writeInteger(8, 0x11223344);
+            memory.set(9, new byte[] {(byte) 0xaa, (byte) 0xbb});
+            assertEquals(0x11aabb44, memory.readInteger(8));
+            // test an unaligned word spanning two words
+            memory.writeIntegerUnaligned(14, 0x01020304);
+            assertEquals(0x01020304, memory.readIntegerUnaligned(14));
+            assertEquals(0x0304, memory.readInteger(16) >>> 16);
+            assertArrayEquals(new byte[] {0x11, (byte) 0xaa, (byte) 0xbb, 0x44}, memory.get(8, 4));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+
+    @Test
+    public void testAtomics() {
+        try {
+            memory.writeInteger(4, 10);
+            // test cas stores only when the word holds the expected value and always returns the old value
+            assertEquals(10, memory.compareAndSwap(4, 9, 20));
+            assertEquals(10, memory.readInteger(4));
+            assertEquals(10, memory.compareAndSwap(4, 10, 20));
+            assertEquals(20, memory.readInteger(4));
+            assertEquals(20, memory.getAndAdd(4, 5));
+            assertEquals(25, memory.getAndSet(4, 7));
+            assertEquals(7, memory.readInteger(4));
+            //pass
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+        // test atomics reject unaligned and out-of-range addresses
+        assertThrows(AbstractMainMemory.InvalidAddressException.class, () -> memory.getAndAdd(2, 1));
+        assertThrows(AbstractMainMemory.InvalidAddressException.class, () -> memory.getAndSet(64, 1));
+    }
+
+    @Test
+    public void testConcurrentGetAndAdd() throws InterruptedException {
+        // test no increment is lost when several threads add to the same word
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 10000; j++)
+                        memory.getAndAdd(0, 1);
+                } catch (AbstractMainMemory.InvalidAddressException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        try {
+            assertEquals(40000, memory.readInteger(0));
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            fail("should not catch this exception");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Static prediction: backward conditional branches (loops) are predicted taken, forward ones not taken.
+ * Nothing is predicted at fetch.
+ */
+
+public class StaticBranchPredictor implements BranchPredictor {
+
+  @Override public int predictTarget (int pcVal) {
+    return -1;
+  }
+
+  @Override public boolean predictTaken (int pcVal, int target) {
+    return target <= pcVal;
+  }
+
+  @Override public void update (int pcVal, boolean conditional, boolean taken, int target) {
+  }
+}
@@ -0,0 +1,341 @@
+package arch.sm213.machine.student;
+
+import isa.AbstractAssembler.AssemblyException;
+import machine.AbstractMainMemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Assembles large SM213 programs straight into a MainMemory, in parallel and without reading the whole source
+ * into the heap.
+ *
+ * The file is split into chunks of about chunkSize bytes at line boundaries, and each chunk reads its part of
+ * the file through a memory mapping.
+ * Pass one, run in parallel, parses a chunk's lines and encodes them into one buffer per run of consecutive
+ * bytes (a new run starts at each .pos).  Lines whose bytes do not depend on where they are, which is most lines,
+ * are encoded at once and their text dropped.  Branches and lines with label operands are kept as fixups.  Label
+ * definitions are noted as offsets into the chunk's runs.  A short sequential step then computes where each
+ * chunk starts, which needs only the length of its first run and whether it sets the pc.  It also builds the
+ * label table.  Pass two, in parallel, encodes the fixups.  Each run is then copied into memory in one bulk write.
+ *
+ * The syntax and the bytes stored are those of the standard assembler (see AssemblyLine), for programs whose
+ * regions do not overlap.  A label defined more than once has the address of its last definition.  A label on a
+ * line that emits nothing labels the next byte emitted, unless another label comes first.  Machine-code files and
+ * the isa.Memory regions the GUI shows are left to the standard loader (BatchRunner.load).
+ */
+
+public class StreamingLoader {
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+  private static final int WINDOW_SIZE       = 1 << 16;  // least number of bytes mapped at once
+
+  private final Map<String, Integer> labels;
+  private final int                  entryPoint;
+  private final int                  lineCount;
+  private final long                 bytesWritten;
+
+  private StreamingLoader (Map<String, Integer> labels, int entryPoint, int lineCount, long bytesWritten) {
+    this.labels       = labels;
+    this.entryPoint   = entryPoint;
+    this.lineCount    = lineCount;
+    this.bytesWritten = bytesWritten;
+  }
+
+  /**
+   * @return every label defined by the program and its address.
+   */
+  public Map<String, Integer> getLabels () {
+    return Collections.unmodifiableMap (labels);
+  }
+
+  /**
+   * @return address of the first instruction, or 0 if there is none.
+   */
+  public int getEntryPoint () {
+    return entryPoint;
+  }
+
+  public int  getLineCount    () { return lineCount; }
+  public long getBytesWritten () { return bytesWritten; }
+
+  /**
+   * Assemble a file into memory using the common pool and the default chunk size.
+   * @param file   assembly file.
+   * @param memory destination.
+   * @return the labels and entry point of the program.
+   * @throws IOException                                if the file cannot be read.
+   * @throws AssemblyException                          if a line is not valid assembly or uses an undefined label;
+   *                                                    memory is then unchanged.
+   * @throws AbstractMainMemory.InvalidAddressException if the program does not fit in memory; memory is then unchanged.
+   */
+  public static StreamingLoader load (File file, MainMemory memory) throws IOException, AbstractMainMemory.InvalidAddressException {
+    return load (file, memory, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Assemble a file into memory.
+   * @param file      assembly file.
+   * @param memory    destination.
+   * @param pool      runs the parallel passes.
+   * @param chunkSize approximate number of source bytes handled by each task.
+   * @return the labels and entry point of the program.
+   * @throws IOException                                if the file cannot be read.
+   * @throws AssemblyException                          if a line is not valid assembly or uses an undefined label;
+   *                                                    memory is then unchanged.
+   * @throws AbstractMainMemory.InvalidAddressException if the program does not fit in memory; memory is then unchanged.
+   */
+  public static StreamingLoader load (File file, MainMemory memory, ForkJoinPool pool, int chunkSize) throws IOException, AbstractMainMemory.InvalidAddressException {
+    List<Chunk> chunks = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open (file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      List<ForkJoinTask<Chunk>> parsed = new ArrayList<>();
+      for (long start = 0; start < size; start += chunkSize) {
+        long from = start;
+        parsed.add (pool.submit (() -> new Chunk (channel, size, from, chunkSize)));
+      }
+      for (ForkJoinTask<Chunk> task : parsed)
+        chunks.add (join (task));
+    }
+
+    // lay out the chunks and collect labels in source order; the label of a chunk's last label-only line labels
+    // the next byte emitted by a later chunk, unless another label comes first
+    Map<String, Integer> labels    = new HashMap<>();
+    String               pending   = null;
+    int                  pc        = 0;
+    int                  lineCount = 0;
+    int                  entry     = -1;
+    for (Chunk chunk : chunks) {
+      if (chunk.error != null)
+        throw new AssemblyException ("line " + (lineCount + chunk.errorLine + 1) + ": " + chunk.error);
+      chunk.firstLine = lineCount;
+      lineCount += chunk.lineCount;
+      pc = chunk.layOut (pc);
+      if (pending != null && chunk.firstEmitted != null && !chunk.claimsFirstEmitted)
+        labels.put (pending, chunk.addressOf (chunk.firstEmitted));
+      if (chunk.firstEmitted != null || chunk.claimsFirstEmitted)
+        pending = chunk.pending;
+      for (Definition definition : chunk.definitions)
+        labels.put (definition.label, chunk.addressOf (definition));
+      if (entry < 0 && chunk.firstInstruction != null)
+        entry = chunk.addressOf (chunk.firstInstruction);
+    }
+
+    List<ForkJoinTask<String>> fixed = new ArrayList<>();
+    for (Chunk chunk : chunks)
+      fixed.add (pool.submit (() -> chunk.fix (labels)));
+    for (ForkJoinTask<String> task : fixed) {
+      String error = join (task);
+      if (error != null)
+        throw new AssemblyException (error);
+    }
+
+    long written = 0;
+    for (Chunk chunk : chunks)
+      for (Run run : chunk.runs)
+        if (run.length > 0 && (run.address < 0 || run.address > memory.length() - run.length))
+          throw new AbstractMainMemory.InvalidAddressException();
+    for (Chunk chunk : chunks)
+      for (Run run : chunk.runs)
+        if (run.length > 0) {
+          memory.restoreRange (run.address, run.bytes, 0, run.length);
+          written += run.length;
+        }
+    return new StreamingLoader (labels, Math.max (entry, 0), lineCount, written);
+  }
+
+  private static <T> T join (ForkJoinTask<T> task) throws IOException {
+    try {
+      return task.join();
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Bytes emitted between two changes of pc.
+   */
+  private static final class Run {
+    final boolean positioned;  // starts at a .pos; otherwise continues the previous chunk
+    final int     position;
+    int           address;
+    byte[]        bytes = new byte [64];
+    int           length;
+
+    Run (boolean positioned, int position) {
+      this.positioned = positioned;
+      this.position   = position;
+    }
+
+    int append (int n) {
+      if (length + n > bytes.length)
+        bytes = Arrays.copyOf (bytes, Math.max (bytes.length * 2, length + n));
+      int offset = length;
+      length += n;
+      return offset;
+    }
+  }
+
+  /**
+   * A place in a chunk: a label definition, or a line to encode once labels and addresses are known.
+   */
+  private static class Definition {
+    final String label;
+    final int    run;
+    final int    offset;
+
+    Definition (String label, int run, int offset) {
+      this.label  = label;
+      this.run    = run;
+      this.offset = offset;
+    }
+  }
+
+  private static final class Fixup extends Definition {
+    final AssemblyLine line;
+    final int          lineNumber;  // in the chunk
+
+    Fixup (AssemblyLine line, int run, int offset, int lineNumber) {
+      super (null, run, offset);
+      this.line       = line;
+      this.lineNumber = lineNumber;
+    }
+  }
+
+  /**
+   * The lines that start in one chunkSize-sized slice of the file: a line belongs to the slice holding its
+   * first byte.
+   */
+  private static final class Chunk {
+    final List<Run>        runs        = new ArrayList<>();
+    final List<Definition> definitions = new ArrayList<>();
+    final List<Fixup>      fixups      = new ArrayList<>();
+    String                 pending;             // label of a label-only line not yet followed by a byte
+    Definition             firstEmitted;
+    boolean                claimsFirstEmitted;  // a label comes before or with the first byte emitted
+    Definition             firstInstruction;
+    int                    lineCount;
+    int                    firstLine;
+    String                 error;
+    int                    errorLine;
+    private MappedByteBuffer window;                        // the part of the file being read
+    private long             windowAt;
+
+    Chunk (FileChannel channel, long size, long start, int chunkSize) throws IOException {
+      long at  = start;
+      long end = Math.min (start + chunkSize, size);
+      // skip the end of a line that starts in the previous slice
+      if (start > 0)
+        while (at < end && byteAt (channel, size, at - 1, chunkSize) != '\n')
+          at++;
+      runs.add (new Run (false, 0));
+      byte[] text = new byte [256];
+      while (at < end) {
+        int length = 0;
+        for (int b; at < size && (b = byteAt (channel, size, at, chunkSize)) != '\n'; at++) {
+          if (length == text.length)
+            text = Arrays.copyOf (text, text.length * 2);
+          text [length++] = (byte) b;
+        }
+        at++;
+        if (length > 0 && text [length - 1] == '\r')
+          length--;
+        add (new String (text, 0, length, StandardCharsets.UTF_8));
+        if (error != null)
+          return;
+      }
+      window = null;
+    }
+
+    /**
+     * @return the byte at a position in the file, mapping the part of the file around it if it is not mapped.
+     */
+    private int byteAt (FileChannel channel, long size, long position, int chunkSize) throws IOException {
+      if (window == null || position < windowAt || position >= windowAt + window.limit()) {
+        windowAt = position;
+        window   = channel.map (FileChannel.MapMode.READ_ONLY, position, Math.min (size - position, Math.max (chunkSize, WINDOW_SIZE) + 1L));
+      }
+      return window.get ((int) (position - windowAt));
+    }
+
+    private void add (String text) {
+      AssemblyLine line;
+      try {
+        line = AssemblyLine.parse (text);
+      } catch (AssemblyException e) {
+        error     = e.toString();
+        errorLine = lineCount;
+        return;
+      }
+      lineCount++;
+      if (line.label != null && firstEmitted == null)
+        claimsFirstEmitted = true;
+      if (line.kind == AssemblyLine.POSITION)
+        runs.add (new Run (true, line.position));
+      if (!line.emits()) {
+        if (line.label != null)
+          pending = line.label;
+        return;
+      }
+      int run    = runs.size() - 1;
+      int offset = runs.get (run).append (line.length);
+      if (line.label != null || pending != null)
+        definitions.add (new Definition (line.label != null ? line.label : pending, run, offset));
+      pending = null;
+      if (firstEmitted == null)
+        firstEmitted = new Definition (null, run, offset);
+      if (firstInstruction == null && line.kind == AssemblyLine.INSTRUCTION)
+        firstInstruction = firstEmitted.run == run && firstEmitted.offset == offset ? firstEmitted : new Definition (null, run, offset);
+      if (line.reference != null || line.pcRelative)
+        fixups.add (new Fixup (line, run, offset, lineCount - 1));
+      else
+        line.encode (0, 0, runs.get (run).bytes, offset);
+    }
+
+    /**
+     * Assign addresses to the runs.
+     * @param pc pc before the chunk.
+     * @return pc after the chunk.
+     */
+    int layOut (int pc) {
+      for (Run run : runs) {
+        run.address = run.positioned ? run.position : pc;
+        pc = run.address + run.length;
+      }
+      return pc;
+    }
+
+    int addressOf (Definition place) {
+      return runs.get (place.run).address + place.offset;
+    }
+
+    /**
+     * Encode the fixups.
+     * @return description of the first use of an undefined label, or null if there is none.
+     */
+    String fix (Map<String, Integer> labels) {
+      for (Fixup fixup : fixups) {
+        int     address = addressOf (fixup);
+        Integer value   = fixup.line.reference != null ? labels.get (fixup.line.reference) : Integer.valueOf (0);
+        if (value == null)
+          return String.format ("line %d: Label not found: %s at address %d", firstLine + fixup.lineNumber + 1, fixup.line.reference, address);
+        fixup.line.encode (address, value, runs.get (fixup.run).bytes, fixup.offset);
+      }
+      return null;
+    }
+  }
+}
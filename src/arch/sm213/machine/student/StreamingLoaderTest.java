@@ -0,0 +1,165 @@
+package arch.sm213.machine.student;
+
+import isa.AbstractAssembler.AssemblyException;
+import machine.AbstractMainMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingLoaderTest {
+    static final int MEMORY_SIZE = 0x4000;
+
+    // every use of a label comes before its definition, and the code jumps between two regions
+    static final List<String> FORWARD = Arrays.asList(
+            ".pos 0x100",
+            "start:  ld $table, r1",
+            "        ld $count, r2",
+            "        ld 0(r2), r2",
+            "        ld $0, r0",
+            "loop:   beq r2, done",
+            "        ld (r1, r2, 4), r3",
+            "        add r3, r0",
+            "        dec r2",
+            "        br loop",
+            "done:   j finish",
+            ".pos 0x800",
+            "finish: st r0, 4(r1)",
+            "        halt",
+            ".pos 0x1000",
+            "count:  .long 3",
+            "table:  .long finish",
+            "        .long 10",
+            "        .long done",
+            "        .long 30");
+
+    File directory;
+
+    @BeforeEach
+    public void runBefore() throws Exception {
+        directory = Files.createTempDirectory("streaming").toFile();
+        directory.deleteOnExit();
+    }
+
+    File program(String name, List<String> lines) throws Exception {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Load a program with the standard assembler.
+     * @return the memory image and, in its last four bytes, the entry point.
+     */
+    static byte[] standard(File program) throws Exception {
+        MainMemory memory = new MainMemory(MEMORY_SIZE);
+        CPU        cpu    = new CPU(CPU.class.getName(), memory);
+        int        entry  = BatchRunner.entryPoint(BatchRunner.load(cpu, memory, program));
+        byte[]     image  = Arrays.copyOf(memory.get(0, MEMORY_SIZE), MEMORY_SIZE + 4);
+        image[MEMORY_SIZE + 2] = (byte) (entry >> 8);
+        image[MEMORY_SIZE + 3] = (byte) entry;
+        return image;
+    }
+
+    static byte[] streamed(File program, int chunkSize) throws Exception {
+        MainMemory      memory = new MainMemory(MEMORY_SIZE);
+        StreamingLoader loader = StreamingLoader.load(program, memory, ForkJoinPool.commonPool(), chunkSize);
+        byte[]          image  = Arrays.copyOf(memory.get(0, MEMORY_SIZE), MEMORY_SIZE + 4);
+        image[MEMORY_SIZE + 2] = (byte) (loader.getEntryPoint() >> 8);
+        image[MEMORY_SIZE + 3] = (byte) loader.getEntryPoint();
+        return image;
+    }
+
+    @Test
+    public void testMatchesStandardLoader() throws Exception {
+        for (List<String> source : Arrays.asList(CPUTest.PROGRAM, FORWARD)) {
+            File   file     = program("program.s", source);
+            byte[] expected = standard(file);
+            // test chunks from a few bytes, which split lines and separate labels from their uses, to the whole file
+            for (int chunkSize : new int[] {1, 5, 17, 64, StreamingLoader.DEFAULT_CHUNK_SIZE})
+                assertArrayEquals(expected, streamed(file, chunkSize));
+        }
+    }
+
+    @Test
+    public void testForwardReferences() throws Exception {
+        File            file   = program("forward.s", FORWARD);
+        MainMemory      memory = new MainMemory(MEMORY_SIZE);
+        StreamingLoader loader = StreamingLoader.load(file, memory, ForkJoinPool.commonPool(), 8);
+        assertEquals(0x100, loader.getEntryPoint());
+        assertEquals(FORWARD.size(), loader.getLineCount());
+        assertEquals(0x800, (int) loader.getLabels().get("finish"));
+        assertEquals(0x1004, (int) loader.getLabels().get("table"));
+        assertEquals(0x800, memory.readInteger(0x1004));
+        // test the loaded program runs: 30 + done + 10
+        CPU cpu = new CPU(CPU.class.getName(), memory);
+        cpu.setNotificationsEnabled(false);
+        cpu.resetMachineToPC(loader.getEntryPoint());
+        CPUTest.runTurbo(cpu);
+        assertEquals(30 + loader.getLabels().get("done") + 10, memory.readInteger(0x1008));
+    }
+
+    @Test
+    public void testMatchesIncrementalAssembler() throws Exception {
+        // a program of a few thousand lines, most with labels used before and after their definition
+        Random       random = new Random(213);
+        List<String> source = new ArrayList<>();
+        source.add(".pos 0x100");
+        for (int i = 0; i < 2000; i++) {
+            String line = IncrementalAssemblerTest.randomLine(random);
+            source.add(line.replaceAll("L(\\d)", "L" + (line.startsWith("L") ? i % 40 : random.nextInt(40)) + "_$1"));
+        }
+        source.add("        halt");
+        // define the labels the random lines did not, after their uses
+        IncrementalAssembler assembler = new IncrementalAssembler(source);
+        for (int i = 0; i < 40; i++)
+            for (int label = 0; label < 6; label++)
+                if (assembler.getAddress("L" + i + "_" + label) == null)
+                    source.add("L" + i + "_" + label + ":  .long " + label);
+        File file = program("large.s", source);
+        assembler = new IncrementalAssembler(source);
+        MainMemory expected = new MainMemory(MEMORY_SIZE);
+        assembler.write(expected);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] {100, 4096, StreamingLoader.DEFAULT_CHUNK_SIZE}) {
+                MainMemory      memory = new MainMemory(MEMORY_SIZE);
+                StreamingLoader loader = StreamingLoader.load(file, memory, pool, chunkSize);
+                assertEquals(assembler.getLabels(), loader.getLabels());
+                assertEquals(assembler.getEntryPoint(), loader.getEntryPoint());
+                assertArrayEquals(expected.get(0, MEMORY_SIZE), memory.get(0, MEMORY_SIZE));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        MainMemory memory = new MainMemory(MEMORY_SIZE);
+        try {
+            StreamingLoader.load(program("undefined.s", Arrays.asList(".pos 0x100", "        ld $0, r0", "        br nowhere")), memory, ForkJoinPool.commonPool(), 8);
+            fail("should not reach here");
+        } catch (AssemblyException e) {
+            // pass
+        }
+        try {
+            StreamingLoader.load(program("large.s", Arrays.asList(".pos 0x100", "        ld $0, r0", ".pos 0x4000", "        .long 1")), memory, ForkJoinPool.commonPool(), 8);
+            fail("should not reach here");
+        } catch (AbstractMainMemory.InvalidAddressException e) {
+            // pass
+        }
+        // test memory is unchanged by either
+        assertArrayEquals(new byte[MEMORY_SIZE], memory.get(0, MEMORY_SIZE));
+    }
+}
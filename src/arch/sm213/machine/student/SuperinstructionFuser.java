@@ -0,0 +1,199 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractMainMemory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+
+/**
+ * Recognises frequent two-instruction SM213 idioms so that CPU.runTurbo can execute each as one fused operation.
+ *
+ * The fused forms are listed in Pattern.  A fused pair is executed as the two instructions in order, so an
+ * exception in the second leaves exactly the state the interpreter would; a pair is not fused if its second
+ * instruction is a turbo breakpoint or would exceed the instruction budget.  Matches (and non-matches) are cached
+ * by the physical address of the first instruction and dropped when a store overlaps either instruction.
+ * The number of times each pattern fired is kept for report.
+ */
+
+public class SuperinstructionFuser implements MemoryWriteListener {
+  private static final int MAX_PAIR_LENGTH = 12;
+  private static final int EMPTY           = -1;
+
+  /**
+   * Fused idioms.  The id of a pattern is its ordinal plus one; 0 means "no fusion".
+   */
+  public enum Pattern {
+    LOAD_ADDRESS_LOAD ("ld $a, rA; ld o(rA), rB"),
+    STEP_BRANCH       ("inc/inca/dec/deca rA; beq/bgt rA, L"),
+    INDEXED_LOAD_INC  ("ld (rS, rI, 4), rD; inc rI"),
+    INDEXED_LOAD_ADD  ("ld (rS, rI, 4), rD; add rD, rT");
+
+    private final String form;
+
+    Pattern (String form) {
+      this.form = form;
+    }
+
+    /**
+     * @return the instruction sequence, in assembler syntax.
+     */
+    public String getForm () {
+      return form;
+    }
+
+    int id () {
+      return ordinal() + 1;
+    }
+  }
+
+  static final int LOAD_ADDRESS_LOAD = 1;
+  static final int STEP_BRANCH       = 2;
+  static final int INDEXED_LOAD_INC  = 3;
+  static final int INDEXED_LOAD_ADD  = 4;
+
+  private final int    mask;
+  private final int [] keys;
+  private final int [] patterns;
+  private final int [] secondInfos;
+  private final int [] secondExts;
+  private final long[] fired = new long [Pattern.values().length + 1];
+  private       int    secondInfo;
+  private       int    secondExt;
+
+  /**
+   * Allocate an empty fusion cache.
+   * @param capacity number of entries; must be a power of two.
+   */
+  public SuperinstructionFuser (int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException ("capacity must be a power of two");
+    mask        = capacity - 1;
+    keys        = new int [capacity];
+    patterns    = new int [capacity];
+    secondInfos = new int [capacity];
+    secondExts  = new int [capacity];
+    Arrays.fill (keys, EMPTY);
+  }
+
+  /**
+   * Determine whether the instruction at pcVal starts a fusible pair.
+   * If it does, the second instruction's decode info and extension are left in secondInfo and secondExt.
+   *
+   * @param cpu   CPU executing the code.
+   * @param pcVal virtual address of the first instruction.
+   * @param info  decode info of the first instruction.
+   * @return pattern id, or 0 if the instruction is not fused.
+   * @throws AbstractMainMemory.InvalidAddressException if pcVal is not mapped.
+   */
+  int lookup (CPU cpu, int pcVal, int info) throws AbstractMainMemory.InvalidAddressException {
+    int key  = cpu.translateAddress (pcVal);
+    int slot = (key >>> 1) & mask;
+    if (keys [slot] != key) {
+      patterns    [slot] = match (cpu, pcVal, info);
+      secondInfos [slot] = secondInfo;
+      secondExts  [slot] = secondExt;
+      keys        [slot] = key;
+    }
+    secondInfo = secondInfos [slot];
+    secondExt  = secondExts  [slot];
+    return patterns [slot];
+  }
+
+  int secondInfo () { return secondInfo; }
+  int secondExt  () { return secondExt; }
+
+  /**
+   * Count one execution of a fused pair.
+   * @param pattern pattern id.
+   */
+  void fired (int pattern) {
+    fired [pattern]++;
+  }
+
+  private int match (CPU cpu, int pcVal, int info) {
+    int length = DecodedInstructionCache.length (info);
+    if (!cpu.isInstructionCacheable (pcVal, length + 2))
+      return 0;
+    try {
+      secondInfo = cpu.decode (pcVal + length);
+      secondExt  = cpu.decodedExt();
+    } catch (AbstractMainMemory.InvalidAddressException e) {
+      return 0;
+    }
+    if (!cpu.isInstructionCacheable (pcVal, length + DecodedInstructionCache.length (secondInfo)))
+      return 0;
+    int opA = DecodedInstructionCache.opCode (info);
+    int a0  = DecodedInstructionCache.op0    (info);
+    int a1  = DecodedInstructionCache.op1    (info);
+    int a2  = DecodedInstructionCache.op2    (info);
+    int opB = DecodedInstructionCache.opCode (secondInfo);
+    int b0  = DecodedInstructionCache.op0    (secondInfo);
+    int b1  = DecodedInstructionCache.op1    (secondInfo);
+    int b2  = DecodedInstructionCache.op2    (secondInfo);
+    if (opA == 0x0 && a0 <= 7 && opB == 0x1 && b1 == a0 && b2 <= 7)
+      return LOAD_ADDRESS_LOAD;
+    if (opA == 0x6 && a0 >= 0x3 && a0 <= 0x6 && a2 <= 7 && (opB == 0x9 || opB == 0xa) && b0 == a2)
+      return STEP_BRANCH;
+    if (opA == 0x2 && (a0 | a1 | a2) <= 7) {
+      if (opB == 0x6 && b0 == 0x3 && b2 == a1)
+        return INDEXED_LOAD_INC;
+      if (opB == 0x6 && b0 == 0x1 && b1 == a2 && b2 <= 7)
+        return INDEXED_LOAD_ADD;
+    }
+    return 0;
+  }
+
+  /**
+   * Drop every entry whose pair of instructions overlaps the written range.
+   */
+  @Override public void memoryWritten (int address, int length) {
+    if (length >= keys.length) {
+      clear();
+      return;
+    }
+    for (int a = address - (MAX_PAIR_LENGTH - 1); a < address + length; a++) {
+      int s = (a >>> 1) & mask;
+      if (keys [s] == a)
+        keys [s] = EMPTY;
+    }
+  }
+
+  /**
+   * Drop every entry.
+   */
+  public void clear () {
+    Arrays.fill (keys, EMPTY);
+  }
+
+  /**
+   * @param pattern a fused idiom.
+   * @return number of times it has been executed.
+   */
+  public long getFired (Pattern pattern) {
+    return fired [pattern.id()];
+  }
+
+  /**
+   * Reset the fired counters.
+   */
+  public void resetStatistics () {
+    Arrays.fill (fired, 0);
+  }
+
+  /**
+   * Write one line per pattern, most frequent first: count, pattern name and instruction sequence.
+   * @param out destination.
+   */
+  public void report (Appendable out) {
+    Pattern[] ordered = Pattern.values();
+    Arrays.sort (ordered, (x, y) -> Long.compare (fired [y.id()], fired [x.id()]));
+    try {
+      for (Pattern p : ordered)
+        out.append (String.format ("%12d  %-18s %s%n", fired [p.id()], p, p.getForm()));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+}
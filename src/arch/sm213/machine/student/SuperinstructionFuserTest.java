@@ -0,0 +1,179 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SuperinstructionFuserTest {
+
+    // one of each pattern: ld $a, r1; ld 4(r1), r2 once, then the other three on each of four iterations
+    static final List<String> PATTERNS = Arrays.asList(
+            ".pos 0x100",
+            "        ld $a, r1",
+            "        ld 4(r1), r2",
+            "        ld $0, r0",
+            "        ld $0, r3",
+            "        ld $4, r5",
+            "loop:   ld (r1, r0, 4), r4",
+            "        add r4, r3",
+            "        ld (r1, r0, 4), r6",
+            "        inc r0",
+            "        dec r5",
+            "        bgt r5, loop",
+            "        halt",
+            ".pos 0x1000",
+            "a:      .long 1",
+            "        .long 2",
+            "        .long 3",
+            "        .long 4");
+
+    // the second pass replaces the second instruction of ld $a, r1; ld 0(r1), r2 (and add r2, r3) with inc r3; inc r3
+    static final List<String> REWRITES_PAIR = Arrays.asList(
+            ".pos 0x100",
+            "        ld $2, r5",
+            "loop:   ld $a, r1",
+            "pair:   ld 0(r1), r2",
+            "        add r2, r3",
+            "        ld $pair, r6",
+            "        ld $0x63036303, r7",
+            "        st r7, 0(r6)",
+            "        dec r5",
+            "        bgt r5, loop",
+            "        halt",
+            ".pos 0x1000",
+            "a:      .long 5");
+
+    static CPU fused(List<String> source) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        cpu.setFusionEnabled(true);
+        return cpu;
+    }
+
+    static int[] clockedFault(List<String> source) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        try {
+            CPUTest.runClocked(cpu);
+            fail("should not reach here");
+        } catch (MainMemory.InvalidAddressException e) {
+            // pass
+        }
+        return CPUTest.state(cpu);
+    }
+
+    @Test
+    public void testPatterns() throws Exception {
+        CPU cpu = fused(PATTERNS);
+        CPU other = CPUTest.load(PATTERNS);
+        // test every pattern fires, and the fused run computes what the clocked one does
+        assertEquals(CPUTest.runClocked(other), CPUTest.runTurbo(cpu));
+        assertArrayEquals(CPUTest.state(other), CPUTest.state(cpu));
+        assertEquals(10, CPUTest.state(cpu)[3]);
+        SuperinstructionFuser fuser = cpu.getFuser();
+        assertEquals(1, fuser.getFired(SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD));
+        assertEquals(4, fuser.getFired(SuperinstructionFuser.Pattern.STEP_BRANCH));
+        assertEquals(4, fuser.getFired(SuperinstructionFuser.Pattern.INDEXED_LOAD_INC));
+        assertEquals(4, fuser.getFired(SuperinstructionFuser.Pattern.INDEXED_LOAD_ADD));
+        // test the report lists every pattern, most frequent first
+        StringBuilder report = new StringBuilder();
+        fuser.report(report);
+        String[] lines = report.toString().split("\n");
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 3; i++)
+            assertTrue(lines[i].trim().startsWith("4 "), lines[i]);
+        assertTrue(lines[3].trim().startsWith("1  LOAD_ADDRESS_LOAD"), lines[3]);
+        assertTrue(lines[3].contains(SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD.getForm()));
+        fuser.resetStatistics();
+        assertEquals(0, fuser.getFired(SuperinstructionFuser.Pattern.STEP_BRANCH));
+    }
+
+    @Test
+    public void testStoreIntoSecondInstruction() throws Exception {
+        CPU cpu = fused(REWRITES_PAIR);
+        SuperinstructionFuser fuser = cpu.getFuser();
+        // test the cached pair is refused once its second instruction is overwritten
+        assertEquals(SuperinstructionFuser.LOAD_ADDRESS_LOAD, fuser.lookup(cpu, 0x106, cpu.decode(0x106)));
+        ((MainMemory) cpu.getMainMemory()).set(0x10c, new byte[] {0x63, 0x03});
+        assertEquals(0, fuser.lookup(cpu, 0x106, cpu.decode(0x106)));
+        // test the same when the program rewrites it after the pair has run
+        cpu = fused(REWRITES_PAIR);
+        CPU other = CPUTest.load(REWRITES_PAIR);
+        assertEquals(CPUTest.runClocked(other), CPUTest.runTurbo(cpu));
+        assertArrayEquals(CPUTest.state(other), CPUTest.state(cpu));
+        assertEquals(7, CPUTest.state(cpu)[3]);
+        assertEquals(1, cpu.getFuser().getFired(SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD));
+    }
+
+    @Test
+    public void testBreakpointOnSecondInstruction() throws Exception {
+        CPU cpu = fused(REWRITES_PAIR);
+        cpu.setTurboBreakpoint(0x10c, true);
+        // test the pair is not fused, so the run stops at its second instruction
+        assertEquals(2, cpu.runTurbo(100));
+        assertEquals(0x10c, CPUTest.state(cpu)[8]);
+        assertEquals(0x1000, CPUTest.state(cpu)[1]);
+        assertEquals(0, CPUTest.state(cpu)[2]);
+        assertEquals(0, cpu.getFuser().getFired(SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD));
+    }
+
+    @Test
+    public void testBudgetBetweenInstructions() throws Exception {
+        CPU cpu = fused(REWRITES_PAIR);
+        CPU other = CPUTest.load(REWRITES_PAIR);
+        // test a budget that ends after the first instruction of a pair stops there
+        assertEquals(2, cpu.runTurbo(2));
+        assertEquals(0x10c, CPUTest.state(cpu)[8]);
+        assertEquals(0, CPUTest.state(cpu)[2]);
+        assertEquals(0, cpu.getFuser().getFired(SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD));
+        // test the next run starts with the second and ends where the clocked one does
+        long instructions = 2 + CPUTest.runTurbo(cpu);
+        assertEquals(CPUTest.runClocked(other), instructions);
+        assertArrayEquals(CPUTest.state(other), CPUTest.state(cpu));
+    }
+
+    @Test
+    public void testFaultInSecondLoad() throws Exception {
+        List<List<String>> sources = Arrays.asList(
+                Arrays.asList(
+                        ".pos 0x100",
+                        "        ld $0x7ffffff0, r1",
+                        "        ld 4(r1), r2",
+                        "        halt"),
+                Arrays.asList(
+                        ".pos 0x100",
+                        "        ld $0x7ffffff0, r1",
+                        "        ld $2, r0",
+                        "        ld (r1, r0, 4), r4",
+                        "        inc r0",
+                        "        halt"),
+                Arrays.asList(
+                        ".pos 0x100",
+                        "        ld $0x7ffffff0, r1",
+                        "        ld $2, r0",
+                        "        ld $3, r3",
+                        "        ld (r1, r0, 4), r4",
+                        "        add r4, r3",
+                        "        halt"));
+        SuperinstructionFuser.Pattern[] patterns = {
+                SuperinstructionFuser.Pattern.LOAD_ADDRESS_LOAD,
+                SuperinstructionFuser.Pattern.INDEXED_LOAD_INC,
+                SuperinstructionFuser.Pattern.INDEXED_LOAD_ADD};
+        for (int i = 0; i < sources.size(); i++) {
+            CPU cpu = fused(sources.get(i));
+            // test a fused load that faults leaves the registers and pc as the clocked run does
+            try {
+                cpu.runTurbo(100);
+                fail("should not reach here");
+            } catch (MainMemory.InvalidAddressException e) {
+                // pass
+            } catch (AbstractCPU.MachineHaltException e) {
+                fail("should not halt");
+            }
+            assertEquals(1, cpu.getFuser().getFired(patterns[i]));
+            assertArrayEquals(clockedFault(sources.get(i)), CPUTest.state(cpu));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package arch.sm213.machine.student;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Cycle-cost model of the memory hierarchy between CPU and main memory, enabled with CPU.setTimingModel.
+ *
+ * The CPU reports every instruction fetch and every data load and store (including atomics) to the model, which
+ * charges one cycle to issue each instruction plus the latency of each access: the hit latency of the first level
+ * that holds the line, plus that of every level above it, or all of them plus the memory latency on a miss
+ * everywhere.  Fetches go to the instruction cache and loads and stores to the data cache; both are backed by an
+ * optional unified second level.  Caches are indexed by the addresses the program uses (virtual ones, under
+ * VirtualMemoryCPU).  A six-byte instruction that straddles two lines accesses both.
+ *
+ * Besides the caches' own hit and miss counters, the model keeps, per instruction address (one slot per two bytes,
+ * as in GuestProfiler), the cycles charged to the instruction and its first-level misses.  A CPU without a timing
+ * model pays one null check per instruction and per load or store; with one, runTurbo interprets every
+ * instruction, without block translation or fusion.
+ */
+
+public class TimingModel {
+  public static final int DEFAULT_MEMORY_LATENCY = 100;
+
+  private final CacheModel instructionCache;
+  private final CacheModel dataCache;
+  private final CacheModel secondLevel;
+  private final int        memoryLatency;
+  private final long[]     pcCycles;
+  private final long[]     pcMisses;
+  private       int        slot;
+  private       long       cycles;
+  private       long       instructions;
+
+  /**
+   * Misses and cycles charged to one instruction address, for getHotSpots.
+   */
+  public static final class HotSpot {
+    public final int  address;
+    public final long misses;
+    public final long cycles;
+
+    HotSpot (int address, long misses, long cycles) {
+      this.address = address;
+      this.misses  = misses;
+      this.cycles  = cycles;
+    }
+  }
+
+  /**
+   * Create a model.
+   * @param addressSpace     number of bytes of instruction addresses to keep per-instruction counts for.
+   * @param instructionCache first-level cache for fetches.
+   * @param dataCache        first-level cache for loads and stores.
+   * @param secondLevel      unified second-level cache, or null for none.
+   * @param memoryLatency    cycles taken by main memory to supply a line that no cache holds.
+   */
+  public TimingModel (int addressSpace, CacheModel instructionCache, CacheModel dataCache, CacheModel secondLevel, int memoryLatency) {
+    this.instructionCache = instructionCache;
+    this.dataCache        = dataCache;
+    this.secondLevel      = secondLevel;
+    this.memoryLatency    = memoryLatency;
+    pcCycles              = new long [(addressSpace + 1) >>> 1];
+    pcMisses              = new long [(addressSpace + 1) >>> 1];
+  }
+
+  /**
+   * Create a model with 8 KB 2-way first-level caches (1-cycle hits), a 256 KB 8-way second level (10 cycles),
+   * 64-byte lines, LRU replacement and DEFAULT_MEMORY_LATENCY.
+   * @param addressSpace number of bytes of instruction addresses to keep per-instruction counts for.
+   * @return the model.
+   */
+  public static TimingModel createDefault (int addressSpace) {
+    return new TimingModel (addressSpace,
+        new CacheModel ("L1I", 8 << 10,   2, 64, 1,  LruReplacementPolicy::new),
+        new CacheModel ("L1D", 8 << 10,   2, 64, 1,  LruReplacementPolicy::new),
+        new CacheModel ("L2",  256 << 10, 8, 64, 10, LruReplacementPolicy::new),
+        DEFAULT_MEMORY_LATENCY);
+  }
+
+  /**
+   * Charge the issue and fetch of an instruction; its loads and stores are charged to it too.
+   * @param pcVal  address of the instruction.
+   * @param length its length in bytes.
+   */
+  void fetch (int pcVal, int length) {
+    int s = pcVal >>> 1;
+    slot = s < pcCycles.length ? s : -1;
+    instructions++;
+    charge (1);
+    access (instructionCache, pcVal);
+    if (!instructionCache.sameLine (pcVal, pcVal + length - 1))
+      access (instructionCache, pcVal + length - 1);
+  }
+
+  /**
+   * Charge a load or store of the word at an address to the instruction last fetched.
+   * @param address address of the word.
+   */
+  void data (int address) {
+    access (dataCache, address);
+  }
+
+  private void access (CacheModel first, int address) {
+    int latency = first.getHitLatency();
+    if (!first.access (address)) {
+      if (slot >= 0)
+        pcMisses [slot]++;
+      if (secondLevel == null)
+        latency += memoryLatency;
+      else {
+        latency += secondLevel.getHitLatency();
+        if (!secondLevel.access (address))
+          latency += memoryLatency;
+      }
+    }
+    charge (latency);
+  }
+
+  private void charge (int latency) {
+    cycles += latency;
+    if (slot >= 0)
+      pcCycles [slot] += latency;
+  }
+
+  public CacheModel getInstructionCache () {
+    return instructionCache;
+  }
+
+  public CacheModel getDataCache () {
+    return dataCache;
+  }
+
+  /**
+   * @return the second-level cache, or null if there is none.
+   */
+  public CacheModel getSecondLevel () {
+    return secondLevel;
+  }
+
+  /**
+   * @return cycles charged since creation or the last reset.
+   */
+  public long getCycles () {
+    return cycles;
+  }
+
+  /**
+   * @return instructions fetched since creation or the last reset.
+   */
+  public long getInstructions () {
+    return instructions;
+  }
+
+  /**
+   * @return average cycles per instruction, or 0 if none has been fetched.
+   */
+  public double getCyclesPerInstruction () {
+    return instructions == 0 ? 0.0 : (double) cycles / instructions;
+  }
+
+  /**
+   * @param address instruction address.
+   * @return first-level misses of the instruction at address (by its fetch or its loads and stores).
+   */
+  public long getMisses (int address) {
+    int s = address >>> 1;
+    return s < pcMisses.length ? pcMisses [s] : 0;
+  }
+
+  /**
+   * @param address instruction address.
+   * @return cycles charged to the instruction at address.
+   */
+  public long getCycles (int address) {
+    int s = address >>> 1;
+    return s < pcCycles.length ? pcCycles [s] : 0;
+  }
+
+  /**
+   * @param limit maximum number of instructions returned.
+   * @return the instructions with the most first-level misses, most first (ties by address); only those with misses.
+   */
+  public List<HotSpot> getHotSpots (int limit) {
+    List<HotSpot> spots = new ArrayList<>();
+    for (int s = 0; s < pcMisses.length; s++)
+      if (pcMisses [s] != 0)
+        spots.add (new HotSpot (s << 1, pcMisses [s], pcCycles [s]));
+    spots.sort ((x, y) -> x.misses != y.misses ? Long.compare (y.misses, x.misses) : Integer.compare (x.address, y.address));
+    return spots.size() > limit ? new ArrayList<> (spots.subList (0, limit)) : spots;
+  }
+
+  /**
+   * Zero every counter, keeping the lines cached (e.g., to measure a run after a warm-up).
+   */
+  public void reset () {
+    instructionCache.resetCounters();
+    dataCache.resetCounters();
+    if (secondLevel != null)
+      secondLevel.resetCounters();
+    Arrays.fill (pcCycles, 0);
+    Arrays.fill (pcMisses, 0);
+    cycles       = 0;
+    instructions = 0;
+  }
+
+  /**
+   * Write the totals and each cache's counters as CSV with columns cache, accesses, hits, misses and hit rate,
+   * preceded by lines "cycles,N", "instructions,N" and "cpi,X".
+   * @param out destination.
+   */
+  public void writeSummary (Appendable out) {
+    try {
+      out.append (String.format ("cycles,%d%ninstructions,%d%ncpi,%.3f%n", cycles, instructions, getCyclesPerInstruction()));
+      out.append ("cache,accesses,hits,misses,hitrate\n");
+      for (CacheModel cache : secondLevel != null ? Arrays.asList (instructionCache, dataCache, secondLevel) : Arrays.asList (instructionCache, dataCache))
+        out.append (String.format ("%s,%d,%d,%d,%.4f%n", cache.getName(), cache.getHits() + cache.getMisses(), cache.getHits(), cache.getMisses(), cache.getHitRate()));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+
+  /**
+   * Write getHotSpots as CSV with columns address, misses and cycles.
+   * @param limit maximum number of rows.
+   * @param out   destination.
+   */
+  public void writeHotSpots (int limit, Appendable out) {
+    try {
+      out.append ("address,misses,cycles\n");
+      for (HotSpot spot : getHotSpots (limit))
+        out.append (String.format ("0x%x,%d,%d%n", spot.address, spot.misses, spot.cycles));
+    } catch (IOException e) {
+      throw new UncheckedIOException (e);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingModelTest {
+    static final int NODES = 16;
+
+    // sum an array of NODES words with ld (r1, r0, 4)
+    static final List<String> ARRAY = array();
+
+    // sum the same values held in a linked list of nodes one 64-byte line apart, with ld o(r1)
+    static final List<String> LIST = list();
+
+    static List<String> array() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                ".pos 0x100",
+                "        ld $a, r1",
+                "        ld $0, r0",
+                "        ld $0, r3",
+                "        ld $" + NODES + ", r2",
+                "loop:   ld (r1, r0, 4), r4",
+                "        add r4, r3",
+                "        inc r0",
+                "        dec r2",
+                "        bgt r2, loop",
+                "        halt",
+                ".pos 0x1000",
+                "a:      .long 1"));
+        for (int i = 2; i <= NODES; i++)
+            source.add("        .long " + i);
+        return source;
+    }
+
+    static List<String> list() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                ".pos 0x100",
+                "        ld $0x1000, r1",
+                "        ld $0, r3",
+                "loop:   ld 0(r1), r4",
+                "        add r4, r3",
+                "        ld 4(r1), r1",
+                "        beq r1, done",
+                "        br loop",
+                "done:   halt"));
+        for (int i = 0; i < NODES; i++) {
+            source.add(String.format(".pos 0x%x", 0x1000 + 64 * i));
+            source.add("        .long " + (i + 1));
+            source.add("        .long " + (i + 1 < NODES ? 0x1000 + 64 * (i + 1) : 0));
+        }
+        return source;
+    }
+
+    // 64-byte first levels of 16-byte lines in 2 ways (1 cycle), and a 256-byte 4-way second level (10 cycles)
+    static TimingModel small(boolean secondLevel) {
+        return new TimingModel(0x2000,
+                new CacheModel("L1I", 64, 2, 16, 1, LruReplacementPolicy::new),
+                new CacheModel("L1D", 64, 2, 16, 1, LruReplacementPolicy::new),
+                secondLevel ? new CacheModel("L2", 256, 4, 16, 10, LruReplacementPolicy::new) : null,
+                100);
+    }
+
+    static TimingModel run(List<String> source, boolean turbo) throws Exception {
+        CPU         cpu    = CPUTest.load(source);
+        TimingModel timing = TimingModel.createDefault(CPUTest.MEMORY_SIZE);
+        cpu.setTimingModel(timing);
+        if (turbo)
+            CPUTest.runTurbo(cpu);
+        else
+            CPUTest.runClocked(cpu);
+        return timing;
+    }
+
+    @Test
+    public void testLatency() {
+        TimingModel timing = small(true);
+        // test a miss everywhere costs issue, both levels and memory, and a hit issue and the first level
+        timing.fetch(0x100, 2);
+        assertEquals(1 + 1 + 10 + 100, timing.getCycles());
+        timing.fetch(0x102, 2);
+        assertEquals(112 + 1 + 1, timing.getCycles());
+        // test loads and stores are charged to the instruction last fetched
+        timing.data(0x800);
+        assertEquals(2 + 111, timing.getCycles(0x102));
+        // test a line evicted from the first level but held by the second costs both hit latencies
+        timing.data(0x820);
+        timing.data(0x840);
+        long cycles = timing.getCycles();
+        timing.data(0x800);
+        assertEquals(cycles + 1 + 10, timing.getCycles());
+        assertEquals(4, timing.getDataCache().getMisses());
+        assertEquals(1, timing.getSecondLevel().getHits());
+        assertEquals(2, timing.getInstructions());
+        // test a miss without a second level goes straight to memory
+        timing = small(false);
+        timing.fetch(0x100, 2);
+        assertEquals(1 + 1 + 100, timing.getCycles());
+        timing.data(0x800);
+        timing.data(0x800);
+        assertEquals(102 + 101 + 1, timing.getCycles());
+        assertNull(timing.getSecondLevel());
+    }
+
+    @Test
+    public void testStraddlingFetch() {
+        TimingModel timing = small(true);
+        // test a six-byte instruction in one line is one access, and one crossing into the next is two
+        timing.fetch(0x100, 6);
+        assertEquals(1, timing.getInstructionCache().getMisses());
+        timing.fetch(0x10e, 6);
+        assertEquals(2, timing.getInstructionCache().getMisses());
+        assertEquals(1, timing.getInstructionCache().getHits());
+        assertEquals(1 + 1 + 1 + 10 + 100, timing.getCycles(0x10e));
+        assertEquals(1, timing.getMisses(0x10e));
+    }
+
+    @Test
+    public void testHotSpots() {
+        TimingModel timing = small(true);
+        timing.fetch(0x100, 2);
+        timing.data(0x800);
+        timing.data(0x900);
+        timing.fetch(0x102, 2);
+        timing.data(0x800);
+        timing.fetch(0x104, 2);
+        timing.data(0xa00);
+        // test misses and cycles are kept per instruction, and hot spots are those with misses, most first
+        assertEquals(3, timing.getMisses(0x100));
+        assertEquals(0, timing.getMisses(0x102));
+        assertEquals(1, timing.getMisses(0x104));
+        assertEquals(1 + 3 * 111, timing.getCycles(0x100));
+        assertEquals(1 + 1 + 1, timing.getCycles(0x102));
+        List<TimingModel.HotSpot> spots = timing.getHotSpots(10);
+        assertEquals(2, spots.size());
+        assertEquals(0x100, spots.get(0).address);
+        assertEquals(3, spots.get(0).misses);
+        assertEquals(timing.getCycles(0x100), spots.get(0).cycles);
+        assertEquals(0x104, spots.get(1).address);
+        assertEquals(1, timing.getHotSpots(1).size());
+        // test addresses beyond the address space are charged to the totals only
+        timing.fetch(0x4000, 2);
+        assertEquals(0, timing.getCycles(0x4000));
+        timing.reset();
+        assertEquals(0, timing.getCycles());
+        assertTrue(timing.getHotSpots(10).isEmpty());
+    }
+
+    @Test
+    public void testClockedMatchesTurbo() throws Exception {
+        TimingModel clocked = run(CPUTest.PROGRAM, false);
+        TimingModel turbo   = run(CPUTest.PROGRAM, true);
+        // test both modes charge the same accesses, in total and to each instruction
+        assertEquals(clocked.getInstructions(), turbo.getInstructions());
+        assertEquals(clocked.getCycles(), turbo.getCycles());
+        assertEquals(clocked.getDataCache().getHits(), turbo.getDataCache().getHits());
+        assertEquals(clocked.getDataCache().getMisses(), turbo.getDataCache().getMisses());
+        assertEquals(clocked.getInstructionCache().getMisses(), turbo.getInstructionCache().getMisses());
+        for (int address = 0x100; address < 0x200; address += 2)
+            assertEquals(clocked.getCycles(address), turbo.getCycles(address));
+        assertTrue(clocked.getDataCache().getHits() > 0);
+    }
+
+    @Test
+    public void testArrayAgainstList() throws Exception {
+        TimingModel array = run(ARRAY, true);
+        TimingModel list  = run(LIST, true);
+        // test the array shares one line between all its elements, while the list misses on every node
+        assertEquals(1, array.getDataCache().getMisses());
+        assertEquals(NODES, list.getDataCache().getMisses());
+        assertTrue(list.getCycles() > array.getCycles() + (NODES - 1) * TimingModel.DEFAULT_MEMORY_LATENCY);
+        // test the load of each node's value is the list's worst instruction
+        TimingModel.HotSpot worst = list.getHotSpots(1).get(0);
+        assertEquals(0x10c, worst.address);
+        assertEquals(NODES, worst.misses);
+    }
+}
@@ -0,0 +1,309 @@
+package arch.sm213.machine.student;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+
+/**
+ * Queries over an execution trace written by TraceRecorder, either a file or a recorder's in-memory trace.
+ *
+ * Records are decoded on demand, one chunk at a time from its keyframe, so a query touches only the chunks
+ * it needs; e.g., lastWrite scans from the newest chunk backwards and stops at the first chunk with a match.
+ * Instructions the ring has overwritten are no longer available: getFirstIndex is the oldest one kept.
+ *
+ * Usage: TraceReader [-n count] [-w address] [-r register] [-i index] trace
+ */
+
+public class TraceReader {
+
+  /**
+   * One retired instruction.  Records passed to forEach are reused; keep a copy to retain one.
+   */
+  public static final class Record {
+    public long    index;
+    public int     pc;
+    public long    instruction;
+    public int     length;
+    public int     registerMask;
+    public boolean memoryWrite;
+    public int     address;
+    public int     value;
+
+    /**
+     * Bytes stored from address: 4 for st and the atomics, the bytes read for sys $0 (whose value is 0).
+     */
+    public int     storeLength;
+
+    /**
+     * Value of every register after the instruction.
+     */
+    public final int[] registers = new int [8];
+
+    /**
+     * @return a copy of this record.
+     */
+    public Record copy () {
+      Record copy = new Record();
+      copy.index        = index;
+      copy.pc           = pc;
+      copy.instruction  = instruction;
+      copy.length       = length;
+      copy.registerMask = registerMask;
+      copy.memoryWrite  = memoryWrite;
+      copy.address      = address;
+      copy.value        = value;
+      copy.storeLength  = storeLength;
+      System.arraycopy (registers, 0, copy.registers, 0, registers.length);
+      return copy;
+    }
+
+    @Override public String toString () {
+      StringBuilder sb = new StringBuilder (String.format ("#%d %08x: %s", index, pc,
+          length == 6 ? String.format ("%012x", instruction) : String.format ("%04x        ", instruction >>> 32)));
+      for (int i = 0; i < registers.length; i++)
+        if ((registerMask & (1 << i)) != 0)
+          sb.append (String.format ("  r%d=%08x", i, registers [i]));
+      if (memoryWrite && storeLength == 4 && instruction >>> 44 != 0xf)
+        sb.append (String.format ("  m[%08x]=%08x", address, value));
+      else if (memoryWrite)
+        sb.append (String.format ("  m[%08x..%08x]", address, address + storeLength - 1));
+      return sb.toString();
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int        chunkSize;
+  private final int        chunkCount;
+  private final long       chunks;
+  private       int        cursor;
+
+  TraceReader (ByteBuffer buffer) {
+    this.buffer     = buffer;
+    this.chunkSize  = buffer.getInt  (12);
+    this.chunkCount = buffer.getInt  (16);
+    this.chunks     = buffer.getLong (24);
+  }
+
+  /**
+   * Open a trace file.
+   * @param file trace written by TraceRecorder.
+   * @return a reader over the file.
+   * @throws IOException if the file cannot be read or is not a trace.
+   */
+  public static TraceReader open (File file) throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile (file, "r")) {
+      ByteBuffer buffer = in.getChannel().map (FileChannel.MapMode.READ_ONLY, 0, in.length());
+      if (buffer.capacity() < TraceRecorder.HEADER_SIZE || buffer.getLong (0) != TraceRecorder.MAGIC)
+        throw new IOException (file + " is not an SM213 trace");
+      if (buffer.getInt (8) != TraceRecorder.VERSION)
+        throw new IOException (file + " has unsupported trace version " + buffer.getInt (8));
+      if (buffer.capacity() < TraceRecorder.HEADER_SIZE + (long) buffer.getInt (12) * buffer.getInt (16))
+        throw new IOException (file + " is truncated");
+      return new TraceReader (buffer);
+    }
+  }
+
+  private long firstChunk () {
+    return Math.max (0, chunks - chunkCount);
+  }
+
+  private int chunkOffset (long chunk) {
+    return (int) (chunk % chunkCount) * chunkSize + TraceRecorder.HEADER_SIZE;
+  }
+
+  /**
+   * @return index of the oldest instruction in the trace.
+   */
+  public long getFirstIndex () {
+    return chunks == 0 ? 0 : buffer.getLong (chunkOffset (firstChunk()));
+  }
+
+  /**
+   * @return index one past the newest instruction in the trace, i.e. the number of instructions recorded.
+   */
+  public long getEndIndex () {
+    if (chunks == 0)
+      return 0;
+    int start = chunkOffset (chunks - 1);
+    return buffer.getLong (start) + buffer.getInt (start + 12);
+  }
+
+  /**
+   * Decode one chunk, stopping early if visitor returns false.
+   * @return false iff the visitor stopped the scan.
+   */
+  private boolean scan (long chunk, Record record, Predicate<Record> visitor) {
+    int start       = chunkOffset (chunk);
+    int count       = buffer.getInt (start + 12);
+    int expectedPc  = buffer.getInt (start + 16);
+    int lastAddress = 0;
+    record.index = buffer.getLong (start) - 1;
+    for (int i = 0; i < record.registers.length; i++)
+      record.registers [i] = buffer.getInt (start + 20 + 4 * i);
+    cursor = start + TraceRecorder.KEYFRAME_SIZE;
+    for (int n = 0; n < count; n++) {
+      int flags = buffer.get (cursor++) & 0xff;
+      switch (flags & 3) {
+        case TraceRecorder.PC_NEXT:
+          record.pc = expectedPc;
+          break;
+        case TraceRecorder.PC_SHORT:
+          record.pc = expectedPc + buffer.getShort (cursor);
+          cursor   += 2;
+          break;
+        default:
+          record.pc = buffer.getInt (cursor);
+          cursor   += 4;
+      }
+      int byte0  = buffer.get (cursor++) & 0xff;
+      int byte1  = buffer.get (cursor++) & 0xff;
+      int opCode = byte0 >>> 4;
+      record.index++;
+      record.length      = opCode == 0x0 || opCode == 0xb ? 6 : 2;
+      record.instruction = (long) byte0 << 40 | (long) byte1 << 32;
+      if (record.length == 6) {
+        record.instruction |= buffer.getInt (cursor) & 0xffffffffL;
+        cursor += 4;
+      }
+      record.registerMask = 0;
+      if ((flags & TraceRecorder.REGISTERS) != 0) {
+        record.registerMask = buffer.get (cursor++) & 0xff;
+        for (int i = 0; i < record.registers.length; i++)
+          if ((record.registerMask & (1 << i)) != 0)
+            record.registers [i] += getVarint();
+      }
+      record.memoryWrite = (flags & TraceRecorder.MEMORY) != 0;
+      if (record.memoryWrite) {
+        record.address = lastAddress + getVarint();
+        lastAddress    = record.address;
+        if (opCode == 0xf) {
+          record.storeLength = getVarint();
+          record.value       = 0;
+        } else {
+          record.storeLength = 4;
+          record.value       = buffer.getInt (cursor);
+          cursor            += 4;
+        }
+      }
+      expectedPc = record.pc + record.length;
+      if (!visitor.test (record))
+        return false;
+    }
+    return true;
+  }
+
+  private int getVarint () {
+    int zigZag = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = buffer.get (cursor++);
+      zigZag |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        break;
+    }
+    return (zigZag >>> 1) ^ -(zigZag & 1);
+  }
+
+  /**
+   * Visit every record in the trace, oldest first.
+   * @param action receives each record; the record object is reused.
+   */
+  public void forEach (Consumer<Record> action) {
+    Record record = new Record();
+    for (long chunk = firstChunk(); chunk < chunks; chunk++)
+      scan (chunk, record, r -> {
+        action.accept (r);
+        return true;
+      });
+  }
+
+  /**
+   * @param index instruction index.
+   * @return the record of that instruction, or null if it is not in the trace.
+   */
+  public Record get (long index) {
+    Record record = new Record();
+    for (long chunk = chunks - 1; chunk >= firstChunk(); chunk--) {
+      int start = chunkOffset (chunk);
+      if (buffer.getLong (start) <= index) {
+        if (index < buffer.getLong (start) + buffer.getInt (start + 12))
+          scan (chunk, record, r -> r.index < index);
+        return record.index == index ? record : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the most recent store to a byte of memory.
+   * @param address address of the byte, as seen by the CPU (physical for the bytes sys $0 reads).
+   * @return the last instruction whose store covered address, or null if there is none in the trace.
+   */
+  public Record lastWrite (int address) {
+    return last (r -> r.memoryWrite && Integer.compareUnsigned (address - r.address, r.storeLength) < 0);
+  }
+
+  /**
+   * Find the most recent write to a register.
+   * @param register register number (0-7).
+   * @return the last instruction that changed the register's value, or null if there is none in the trace.
+   */
+  public Record lastRegisterWrite (int register) {
+    return last (r -> (r.registerMask & (1 << register)) != 0);
+  }
+
+  /**
+   * @return the newest record matching a condition, or null.
+   */
+  private Record last (Predicate<Record> condition) {
+    Record   record = new Record();
+    Record[] found  = new Record [1];
+    for (long chunk = chunks - 1; chunk >= firstChunk() && found [0] == null; chunk--)
+      scan (chunk, record, r -> {
+        if (condition.test (r))
+          found [0] = r.copy();
+        return true;
+      });
+    return found [0];
+  }
+
+  public static void main (String[] args) throws IOException {
+    long    count    = 20;
+    Integer address  = null;
+    Integer register = null;
+    Long    index    = null;
+    String  file     = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args [i]) {
+        case "-n": count    = Long.parseLong    (args [++i]);                   break;
+        case "-w": address  = Long.decode       (args [++i]).intValue();        break;
+        case "-r": register = Integer.parseInt  (args [++i].replace ("r", "")); break;
+        case "-i": index    = Long.parseLong    (args [++i]);                   break;
+        default:   file     = args [i];
+      }
+    }
+    if (file == null) {
+      System.err.println ("usage: TraceReader [-n count] [-w address] [-r register] [-i index] trace");
+      System.exit (2);
+    }
+    TraceReader trace = open (new File (file));
+    System.out.printf ("instructions %d to %d%n", trace.getFirstIndex(), trace.getEndIndex() - 1);
+    if (address != null)
+      System.out.println (trace.lastWrite (address));
+    else if (register != null)
+      System.out.println (trace.lastRegisterWrite (register));
+    else if (index != null)
+      System.out.println (trace.get (index));
+    else {
+      long from = trace.getEndIndex() - count;
+      trace.forEach (r -> {
+        if (r.index >= from)
+          System.out.println (r);
+      });
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package arch.sm213.machine.student;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Binary trace of every instruction a CPU retires, enabled with CPU.setTraceRecorder and read with TraceReader.
+ *
+ * The trace lives off the Java heap, in a direct buffer or in a memory-mapped file, as a ring of fixed-size
+ * chunks: when the last chunk is full recording continues in the first, so a run of any length is traced in
+ * bounded memory and the trace keeps the most recent instructions.  Records are encoded into a small heap array
+ * and copied into the ring a chunk at a time; the pages of a mapped file are written back by the operating
+ * system, so the CPU never waits for the disk.
+ *
+ * Each chunk starts with a keyframe (index of its first instruction, its pc and the registers before it) and
+ * continues with one record per instruction, delta-encoded against the instruction before it:
+ *
+ *   flags ............ 1 byte   bits 0-1: pc is the fall-through address (0), a 16-bit offset from it (1)
+ *                               or an absolute 32-bit address (2); bit 2: registers written; bit 3: memory written
+ *   pc ............... 0, 2 or 4 bytes
+ *   instruction ...... 2 or 6 bytes, as in memory
+ *   registers ........ mask byte, then zig-zag varint (new - old) for each register in the mask
+ *   memory ........... zig-zag varint (address - previous store address in chunk), then the 4-byte value, or for
+ *                      sys $0 the varint number of bytes it read into memory
+ *
+ * A typical ALU instruction takes four or five bytes.  File layout (big endian): magic "SM213TRC", version,
+ * chunk size, chunk count, 4 bytes padding and the number of chunks started, followed by the chunks.  A keyframe
+ * is the first instruction's index (8 bytes), the number of record bytes and records in the chunk, the pc and
+ * r0-r7 (4 bytes each).
+ *
+ * The recorder is not thread-safe; it belongs to one CPU.
+ */
+
+public class TraceRecorder implements Closeable {
+  public static final int DEFAULT_CHUNK_SIZE  = 1 << 16;
+  public static final int DEFAULT_CHUNK_COUNT = 256;
+
+  static final long MAGIC         = 0x534d323133545243L; // "SM213TRC"
+  static final int  VERSION       = 2;
+  static final int  HEADER_SIZE   = 32;
+  static final int  KEYFRAME_SIZE = 52;
+  static final int  MAX_RECORD    = 1 + 4 + 6 + 1 + 8 * 5 + 5 + 4;
+  static final int  PC_NEXT       = 0;
+  static final int  PC_SHORT      = 1;
+  static final int  PC_ABSOLUTE   = 2;
+  static final int  REGISTERS     = 4;
+  static final int  MEMORY        = 8;
+
+  private final ByteBuffer       buffer;
+  private final RandomAccessFile file;
+  private final int              chunkSize;
+  private final int              chunkCount;
+  private final byte[]           staging;
+  private final int[]            registers = new int [8];
+  private       long             index;
+  private       long             chunks;
+  private       int              chunkStart = -1;
+  private       int              position;    // in staging
+  private       int              records;
+  private       int              expectedPc;
+  private       int              lastAddress;
+  private       int              readAddress;
+  private       int              readLength;
+
+  /**
+   * Create a recorder that keeps the trace in memory outside the Java heap.
+   * @param chunkSize  bytes per chunk.
+   * @param chunkCount number of chunks in the ring.
+   * @throws IllegalArgumentException if a chunk cannot hold a record or the trace exceeds 2 GB.
+   */
+  public TraceRecorder (int chunkSize, int chunkCount) {
+    this.buffer     = ByteBuffer.allocateDirect (size (chunkSize, chunkCount));
+    this.file       = null;
+    this.chunkSize  = chunkSize;
+    this.chunkCount = chunkCount;
+    this.staging    = new byte [chunkSize - KEYFRAME_SIZE];
+    writeHeader();
+  }
+
+  /**
+   * Create a recorder that writes the trace to a memory-mapped file, replacing its contents.
+   * @param file       trace file.
+   * @param chunkSize  bytes per chunk.
+   * @param chunkCount number of chunks in the ring.
+   * @throws IOException              if the file cannot be created or mapped.
+   * @throws IllegalArgumentException if a chunk cannot hold a record or the trace exceeds 2 GB.
+   */
+  public TraceRecorder (File file, int chunkSize, int chunkCount) throws IOException {
+    int size = size (chunkSize, chunkCount);
+    this.file = new RandomAccessFile (file, "rw");
+    try {
+      this.file.setLength (size);
+      this.buffer = this.file.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+    this.chunkSize  = chunkSize;
+    this.chunkCount = chunkCount;
+    this.staging    = new byte [chunkSize - KEYFRAME_SIZE];
+    writeHeader();
+  }
+
+  private static int size (int chunkSize, int chunkCount) {
+    if (chunkSize < KEYFRAME_SIZE + MAX_RECORD || chunkCount < 1)
+      throw new IllegalArgumentException ("trace must have at least one chunk of at least " + (KEYFRAME_SIZE + MAX_RECORD) + " bytes");
+    long size = HEADER_SIZE + (long) chunkSize * chunkCount;
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException ("trace larger than 2 GB");
+    return (int) size;
+  }
+
+  private void writeHeader () {
+    buffer.putLong (0,  MAGIC);
+    buffer.putInt  (8,  VERSION);
+    buffer.putInt  (12, chunkSize);
+    buffer.putInt  (16, chunkCount);
+    buffer.putLong (24, 0);
+  }
+
+  /**
+   * Set the register values that precede the next instruction, without recording anything.
+   * @param r r0-r7 (further elements are ignored).
+   */
+  void sync (int[] r) {
+    System.arraycopy (r, 0, registers, 0, registers.length);
+    readLength = 0;
+  }
+
+  /**
+   * Note the bytes the instruction being executed, a sys $0, has read into memory; recorded when it retires.
+   * @param address physical address of the first byte.
+   * @param length  number of bytes.
+   */
+  void read (int address, int length) {
+    readAddress = address;
+    readLength  = length;
+  }
+
+  /**
+   * Record one retired instruction.
+   *
+   * Registers written are those that differ from the values before the instruction, i.e. those of the previous
+   * retire or sync.  The store of st and of the atomic instructions is derived from the instruction and the
+   * registers before and after it; that of sys $0 is the range noted by read.
+   *
+   * @param pcVal address of the instruction.
+   * @param info  its packed decode info (see DecodedInstructionCache).
+   * @param ext   its extension word, ignored for two-byte instructions.
+   * @param r     r0-r7 after the instruction (further elements are ignored).
+   */
+  void retire (int pcVal, int info, int ext, int[] r) {
+    if (chunkStart < 0 || position + MAX_RECORD > staging.length)
+      startChunk (pcVal);
+    int     opCode  = DecodedInstructionCache.opCode (info);
+    int     op0     = DecodedInstructionCache.op0    (info);
+    int     op1     = DecodedInstructionCache.op1    (info);
+    int     op2     = DecodedInstructionCache.op2    (info);
+    int     length  = DecodedInstructionCache.length (info);
+    boolean stores  = false;
+    int     address = 0;
+    int     value   = 0;
+    switch (opCode) {
+      case 0x3: // st rs, o(rd)
+        stores  = true;
+        address = (op1 << 2) + registers [op2];
+        value   = registers [op0];
+        break;
+      case 0x4: // st rs, (rd, ri, 4)
+        stores  = true;
+        address = registers [op1] + (registers [op2] << 2);
+        value   = registers [op0];
+        break;
+      case 0x5: // cas, xadd, xchg: the old value is in r0 (cas) or rs after the instruction
+        address = registers [op1];
+        if (op0 == CPU.ATOMIC_CAS) {
+          stores = r [0] == registers [0];
+          value  = registers [op2];
+        } else {
+          stores = true;
+          value  = op0 == CPU.ATOMIC_XADD ? r [op2] + registers [op2] : registers [op2];
+        }
+        break;
+      case 0xf: // sys $0
+        stores  = readLength > 0;
+        address = readAddress;
+        break;
+    }
+    int mask = 0;
+    for (int i = 0; i < registers.length; i++)
+      if (r [i] != registers [i])
+        mask |= 1 << i;
+
+    int p     = position;
+    int flags = (mask != 0 ? REGISTERS : 0) | (stores ? MEMORY : 0);
+    int delta = pcVal - expectedPc;
+    if (delta == 0)
+      staging [p++] = (byte) (flags | PC_NEXT);
+    else if (delta == (short) delta) {
+      staging [p++] = (byte) (flags | PC_SHORT);
+      p = putShort (p, delta);
+    } else {
+      staging [p++] = (byte) (flags | PC_ABSOLUTE);
+      p = putInt (p, pcVal);
+    }
+    staging [p++] = (byte) DecodedInstructionCache.byte0 (info);
+    staging [p++] = (byte) DecodedInstructionCache.imm   (info);
+    if (length == 6)
+      p = putInt (p, ext);
+    if (mask != 0) {
+      staging [p++] = (byte) mask;
+      for (int i = 0; i < registers.length; i++)
+        if ((mask & (1 << i)) != 0) {
+          p = putVarint (p, r [i] - registers [i]);
+          registers [i] = r [i];
+        }
+    }
+    if (stores) {
+      p = putVarint (p, address - lastAddress);
+      p = opCode == 0xf ? putVarint (p, readLength) : putInt (p, value);
+      lastAddress = address;
+    }
+    readLength = 0;
+    position   = p;
+    expectedPc = pcVal + length;
+    records++;
+    index++;
+  }
+
+  private int putVarint (int p, int n) {
+    int zigZag = (n << 1) ^ (n >> 31);
+    while ((zigZag & ~0x7f) != 0) {
+      staging [p++] = (byte) ((zigZag & 0x7f) | 0x80);
+      zigZag >>>= 7;
+    }
+    staging [p++] = (byte) zigZag;
+    return p;
+  }
+
+  private int putShort (int p, int n) {
+    staging [p]     = (byte) (n >> 8);
+    staging [p + 1] = (byte) n;
+    return p + 2;
+  }
+
+  private int putInt (int p, int n) {
+    staging [p]     = (byte) (n >> 24);
+    staging [p + 1] = (byte) (n >> 16);
+    staging [p + 2] = (byte) (n >> 8);
+    staging [p + 3] = (byte) n;
+    return p + 4;
+  }
+
+  private void startChunk (int pcVal) {
+    finishChunk();
+    chunkStart = (int) (chunks % chunkCount) * chunkSize + HEADER_SIZE;
+    chunks++;
+    buffer.putLong (chunkStart,      index);
+    buffer.putInt  (chunkStart + 8,  0);
+    buffer.putInt  (chunkStart + 12, 0);
+    buffer.putInt  (chunkStart + 16, pcVal);
+    for (int i = 0; i < registers.length; i++)
+      buffer.putInt (chunkStart + 20 + 4 * i, registers [i]);
+    buffer.putLong (24, chunks);
+    position    = 0;
+    records     = 0;
+    expectedPc  = pcVal;
+    lastAddress = 0;
+  }
+
+  /**
+   * Copy the records of the current chunk into the ring and store their size in its keyframe, which makes the
+   * chunk readable.
+   */
+  private void finishChunk () {
+    if (chunkStart >= 0) {
+      ByteBuffer records = buffer.duplicate();
+      records.position (chunkStart + KEYFRAME_SIZE);
+      records.put      (staging, 0, position);
+      buffer.putInt (chunkStart + 8,  position);
+      buffer.putInt (chunkStart + 12, this.records);
+    }
+  }
+
+  /**
+   * @return number of instructions recorded, including those the ring has since overwritten.
+   */
+  public long getInstructionCount () {
+    return index;
+  }
+
+  /**
+   * @return a reader over the trace as recorded so far; it must not be used while recording continues.
+   */
+  public TraceReader reader () {
+    finishChunk();
+    return new TraceReader (buffer.duplicate());
+  }
+
+  /**
+   * Write a mapped trace back to its file and close it.  An in-memory trace stays readable.
+   */
+  @Override public void close () throws IOException {
+    finishChunk();
+    if (file != null) {
+      ((MappedByteBuffer) buffer).force();
+      file.close();
+    }
+  }
+}
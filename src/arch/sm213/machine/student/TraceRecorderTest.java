@@ -0,0 +1,184 @@
+package arch.sm213.machine.student;
+
+import machine.AbstractCPU;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceRecorderTest {
+
+    // every atomic: a cas that stores, a cas that does not, then xadd and xchg on the same word
+    static final List<String> ATOMICS = Arrays.asList(
+            ".pos 0x100",
+            "        ld $a, r1",
+            "        ld $5, r0",
+            "        ld $9, r2",
+            "        ld $0x77, r3",
+            "        .long 0x50125012",
+            "        .long 0x51125213",
+            "        st r0, 4(r1)",
+            "        halt",
+            ".pos 0x1000",
+            "a:      .long 5",
+            "        .long 0");
+
+    // pc, registers and memory of a clocked run, before the first and after every instruction
+    static class Run {
+        final List<Integer> pcs       = new ArrayList<>();
+        final List<int[]>   states    = new ArrayList<>();
+        final List<byte[]>  memories  = new ArrayList<>();
+
+        int size() {
+            return pcs.size();
+        }
+    }
+
+    static Run runClocked(List<String> source) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        Run run = new Run();
+        run.states.add(CPUTest.state(cpu));
+        run.memories.add(CPUTest.memory(cpu));
+        for (boolean halted = false; !halted; ) {
+            run.pcs.add(BatchRunner.pcOf(cpu));
+            try {
+                cpu.cycle();
+            } catch (AbstractCPU.MachineHaltException e) {
+                halted = true;
+            }
+            run.states.add(CPUTest.state(cpu));
+            run.memories.add(CPUTest.memory(cpu));
+        }
+        return run;
+    }
+
+    static TraceReader traced(List<String> source, boolean turbo, TraceRecorder recorder) throws Exception {
+        CPU cpu = CPUTest.load(source);
+        cpu.setTraceRecorder(recorder);
+        if (turbo)
+            CPUTest.runTurbo(cpu);
+        else
+            CPUTest.runClocked(cpu);
+        cpu.setTraceRecorder(null);
+        return recorder.reader();
+    }
+
+    static int word(byte[] memory, int address) {
+        return (memory[address] & 0xff) << 24 | (memory[address + 1] & 0xff) << 16
+                | (memory[address + 2] & 0xff) << 8 | memory[address + 3] & 0xff;
+    }
+
+    /**
+     * Assert every record in the trace describes the instruction of the same index in a clocked run.
+     * @return the records, in order.
+     */
+    static List<TraceReader.Record> assertMatches(Run run, TraceReader trace) {
+        List<TraceReader.Record> records = new ArrayList<>();
+        trace.forEach(r -> records.add(r.copy()));
+        assertEquals(run.size(), trace.getEndIndex());
+        assertEquals(trace.getEndIndex() - trace.getFirstIndex(), records.size());
+        for (TraceReader.Record record : records) {
+            int    i      = (int) record.index;
+            int[]  before = run.states.get(i);
+            int[]  after  = run.states.get(i + 1);
+            byte[] memory = run.memories.get(i + 1);
+            assertEquals((int) run.pcs.get(i), record.pc, "pc " + i);
+            byte[] instruction = Arrays.copyOfRange(memory, record.pc, record.pc + record.length);
+            for (int b = 0; b < record.length; b++)
+                assertEquals(instruction[b], (byte) (record.instruction >>> (40 - 8 * b)), "instruction " + i);
+            assertArrayEquals(Arrays.copyOf(after, 8), record.registers);
+            int mask = 0;
+            for (int r = 0; r < 8; r++)
+                if (before[r] != after[r])
+                    mask |= 1 << r;
+            assertEquals(mask, record.registerMask, "register mask " + i);
+            // test the store holds the value now in memory, and covers every byte the instruction changed
+            byte[] previous = run.memories.get(i);
+            for (int a = 0; a < memory.length; a++)
+                if (memory[a] != previous[a])
+                    assertTrue(record.memoryWrite && a - record.address >= 0 && a - record.address < 4, "store " + i);
+            if (record.memoryWrite)
+                assertEquals(word(memory, record.address), record.value, "store " + i);
+        }
+        return records;
+    }
+
+    @Test
+    public void testClockedRoundTrip() throws Exception {
+        Run run = runClocked(CPUTest.PROGRAM);
+        // small chunks, so the trace spans many keyframes
+        TraceReader trace = traced(CPUTest.PROGRAM, false, new TraceRecorder(128, 64));
+        assertEquals(0, trace.getFirstIndex());
+        assertMatches(run, trace);
+    }
+
+    @Test
+    public void testTurboRoundTrip() throws Exception {
+        Run run = runClocked(CPUTest.PROGRAM);
+        assertMatches(run, traced(CPUTest.PROGRAM, true, new TraceRecorder(128, 64)));
+        assertMatches(run, traced(CPUTest.PROGRAM, true, new TraceRecorder(TraceRecorder.DEFAULT_CHUNK_SIZE, 1)));
+    }
+
+    @Test
+    public void testAtomicStores() throws Exception {
+        Run run = runClocked(ATOMICS);
+        for (boolean turbo : new boolean[] {false, true}) {
+            List<TraceReader.Record> records = assertMatches(run, traced(ATOMICS, turbo, new TraceRecorder(128, 16)));
+            List<Integer> stores = new ArrayList<>();
+            for (TraceReader.Record record : records)
+                if (record.memoryWrite) {
+                    stores.add(record.address);
+                    stores.add(record.value);
+                }
+            // test cas stores 9 over the 5 it expects, the second cas stores nothing, xadd adds 9 and xchg swaps in r3
+            assertEquals(Arrays.asList(0x1000, 9, 0x1000, 18, 0x1000, 0x77, 0x1004, 9), stores);
+            // cas, cas, xadd, xchg
+            assertEquals(0x5012, records.get(4).instruction >>> 32);
+            assertFalse(records.get(5).memoryWrite);
+            assertEquals(1, records.get(5).registerMask);
+            assertEquals(9, records.get(5).registers[0]);
+            assertEquals(0x52, records.get(7).instruction >>> 40);
+        }
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        TraceReader trace = traced(ATOMICS, true, new TraceRecorder(128, 16));
+        // test the last store to each byte of a is the xchg, to a+4 the st, and nothing stored to a+8
+        assertEquals(7, trace.lastWrite(0x1000).index);
+        assertEquals(7, trace.lastWrite(0x1003).index);
+        assertEquals(8, trace.lastWrite(0x1004).index);
+        assertNull(trace.lastWrite(0x1008));
+        assertEquals(5, trace.lastRegisterWrite(0).index);
+        assertEquals(7, trace.lastRegisterWrite(3).index);
+        assertEquals(0x118, trace.get(4).pc);
+        assertNull(trace.get(trace.getEndIndex()));
+    }
+
+    @Test
+    public void testRingKeepsNewest() throws Exception {
+        Run         run   = runClocked(CPUTest.PROGRAM);
+        TraceReader trace = traced(CPUTest.PROGRAM, true, new TraceRecorder(128, 4));
+        // test only the last chunks remain, and they still decode from their own keyframes
+        assertTrue(trace.getFirstIndex() > 0);
+        assertMatches(run, trace);
+        assertNull(trace.get(0));
+        assertNotNull(trace.get(trace.getFirstIndex()));
+    }
+
+    @Test
+    public void testFileRoundTrip() throws Exception {
+        File file = Files.createTempFile("trace", ".trc").toFile();
+        file.deleteOnExit();
+        Run run = runClocked(CPUTest.PROGRAM);
+        try (TraceRecorder recorder = new TraceRecorder(file, 128, 64)) {
+            traced(CPUTest.PROGRAM, true, recorder);
+        }
+        assertMatches(run, TraceReader.open(file));
+    }
+}
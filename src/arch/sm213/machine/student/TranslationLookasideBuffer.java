@@ -0,0 +1,113 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+
+
+/**
+ * Set-associative cache of virtual page number to physical frame number translations.
+ *
+ * Replacement within a set is least-recently-used.  Only valid translations are ever inserted,
+ * so a miss always means the page table must be consulted.
+ */
+
+public class TranslationLookasideBuffer {
+  private static final int INVALID = -1;
+
+  private final int    sets;
+  private final int    ways;
+  private final int [] vpns;
+  private final int [] pfns;
+  private final long[] lastUse;
+  private       long   clock;
+  private       long   hits;
+  private       long   misses;
+  private       long   flushes;
+
+  /**
+   * Create an empty TLB.
+   * @param sets number of sets; must be a power of two.
+   * @param ways number of entries per set.
+   */
+  public TranslationLookasideBuffer (int sets, int ways) {
+    if (sets <= 0 || (sets & (sets - 1)) != 0 || ways <= 0)
+      throw new IllegalArgumentException ("sets must be a power of two and ways positive");
+    this.sets = sets;
+    this.ways = ways;
+    vpns      = new int  [sets * ways];
+    pfns      = new int  [sets * ways];
+    lastUse   = new long [sets * ways];
+    Arrays.fill (vpns, INVALID);
+  }
+
+  /**
+   * Look up a translation.
+   * @param vpn virtual page number.
+   * @return physical frame number, or -1 if the translation is not cached.
+   */
+  public int lookup (int vpn) {
+    int base = (vpn & (sets - 1)) * ways;
+    for (int i = base; i < base + ways; i++)
+      if (vpns [i] == vpn) {
+        lastUse [i] = ++clock;
+        hits++;
+        return pfns [i];
+      }
+    misses++;
+    return INVALID;
+  }
+
+  /**
+   * Cache a valid translation, replacing the least-recently-used entry of its set.
+   * @param vpn virtual page number.
+   * @param pfn physical frame number; must not be negative.
+   */
+  public void insert (int vpn, int pfn) {
+    int base   = (vpn & (sets - 1)) * ways;
+    int victim = base;
+    for (int i = base; i < base + ways; i++) {
+      if (vpns [i] == INVALID || vpns [i] == vpn) {
+        victim = i;
+        break;
+      }
+      if (lastUse [i] < lastUse [victim])
+        victim = i;
+    }
+    vpns    [victim] = vpn;
+    pfns    [victim] = pfn;
+    lastUse [victim] = ++clock;
+  }
+
+  /**
+   * Drop the translation for one page, if cached.
+   * @param vpn virtual page number.
+   */
+  public void invalidate (int vpn) {
+    int base = (vpn & (sets - 1)) * ways;
+    for (int i = base; i < base + ways; i++)
+      if (vpns [i] == vpn)
+        vpns [i] = INVALID;
+  }
+
+  /**
+   * Drop every translation.
+   */
+  public void flush () {
+    Arrays.fill (vpns, INVALID);
+    flushes++;
+  }
+
+  public int  getSets    () { return sets; }
+  public int  getWays    () { return ways; }
+  public long getHits    () { return hits; }
+  public long getMisses  () { return misses; }
+  public long getFlushes () { return flushes; }
+
+  /**
+   * Reset the hit, miss and flush counters.
+   */
+  public void resetStatistics () {
+    hits    = 0;
+    misses  = 0;
+    flushes = 0;
+  }
+}
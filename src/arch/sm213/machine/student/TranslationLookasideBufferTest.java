@@ -0,0 +1,54 @@
+package arch.sm213.machine.student;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TranslationLookasideBufferTest {
+    TranslationLookasideBuffer tlb;
+
+    @BeforeEach
+    public void runBefore() {
+        // 2 sets of 2 ways: even page numbers share set 0, odd ones set 1
+        tlb = new TranslationLookasideBuffer(2, 2);
+    }
+
+    @Test
+    public void testHitMiss() {
+        assertEquals(-1, tlb.lookup(4));
+        tlb.insert(4, 7);
+        assertEquals(7, tlb.lookup(4));
+        assertEquals(1, tlb.getHits());
+        assertEquals(1, tlb.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedReplacement() {
+        tlb.insert(0, 10);
+        tlb.insert(2, 12);
+        // touch page 0 so page 2 is the least recently used in set 0
+        assertEquals(10, tlb.lookup(0));
+        tlb.insert(4, 14);
+        assertEquals(10, tlb.lookup(0));
+        assertEquals(-1, tlb.lookup(2));
+        assertEquals(14, tlb.lookup(4));
+        // test the other set is unaffected
+        tlb.insert(1, 11);
+        assertEquals(11, tlb.lookup(1));
+    }
+
+    @Test
+    public void testInvalidateAndFlush() {
+        tlb.insert(0, 10);
+        tlb.insert(1, 11);
+        tlb.invalidate(0);
+        assertEquals(-1, tlb.lookup(0));
+        assertEquals(11, tlb.lookup(1));
+        tlb.flush();
+        assertEquals(-1, tlb.lookup(1));
+        assertEquals(1, tlb.getFlushes());
+        tlb.resetStatistics();
+        assertEquals(0, tlb.getHits() + tlb.getMisses() + tlb.getFlushes());
+    }
+}
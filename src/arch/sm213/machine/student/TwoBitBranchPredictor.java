@@ -0,0 +1,41 @@
+package arch.sm213.machine.student;
+
+import java.util.Arrays;
+
+
+/**
+ * Dynamic direction prediction with a table of 2-bit saturating counters indexed by branch address; a branch is
+ * predicted taken if its counter is 2 or 3.  Counters start at 1 (weakly not taken).  Nothing is predicted at fetch.
+ */
+
+public class TwoBitBranchPredictor implements BranchPredictor {
+  private final byte[] counters;
+
+  /**
+   * @param entries number of counters; must be a power of two.
+   */
+  public TwoBitBranchPredictor (int entries) {
+    if (entries <= 0 || (entries & (entries - 1)) != 0)
+      throw new IllegalArgumentException ("entries must be a power of two");
+    counters = new byte [entries];
+    Arrays.fill (counters, (byte) 1);
+  }
+
+  @Override public int predictTarget (int pcVal) {
+    return -1;
+  }
+
+  @Override public boolean predictTaken (int pcVal, int target) {
+    return counters [(pcVal >>> 1) & (counters.length - 1)] >= 2;
+  }
+
+  @Override public void update (int pcVal, boolean conditional, boolean taken, int target) {
+    if (!conditional)
+      return;
+    int i = (pcVal >>> 1) & (counters.length - 1);
+    if (taken && counters [i] < 3)
+      counters [i]++;
+    else if (!taken && counters [i] > 0)
+      counters [i]--;
+  }
+}
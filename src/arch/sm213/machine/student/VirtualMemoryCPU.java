@@ -10,21 +10,111 @@ public class VirtualMemoryCPU extends CPU {
   final static int PAGE_SIZE          = 32;
   final static int PTE_VALID_BIT_MASK = 0x80000000;
   final static int PTE_PFN_MASK       = 0x7fffffff;
-  
+  final static int PTE_SIZE           = 4;
+
+  final static int DEFAULT_TLB_SETS   = 16;
+  final static int DEFAULT_TLB_WAYS   = 4;
+
+  private final TranslationLookasideBuffer tlb;
+  private       int                        tlbPtbr;
+  private final boolean                    tracksPageTable;
+  private       DemandPager                pager;
+
   public VirtualMemoryCPU (String name, AbstractMainMemory memory) {
+    this (name, memory, DEFAULT_TLB_SETS, DEFAULT_TLB_WAYS);
+  }
+
+  /**
+   * Create a virtual memory CPU with a TLB of the specified geometry.
+   *
+   * @param name    fully-qualified name of CPU implementation.
+   * @param memory  main memory used by CPU.
+   * @param tlbSets number of TLB sets; must be a power of two.
+   * @param tlbWays number of TLB entries per set.
+   */
+  public VirtualMemoryCPU (String name, AbstractMainMemory memory, int tlbSets, int tlbWays) {
     super (name, memory);
     enableVirtualMemory();
+    tlb = new TranslationLookasideBuffer (tlbSets, tlbWays);
+    tracksPageTable = memory instanceof MemoryWriteSource;
+    if (tracksPageTable)
+      ((MemoryWriteSource) memory).addWriteListener (this::pageTableWritten);
+  }
+
+  /**
+   * Page non-resident pages in on demand instead of treating an invalid PTE as an invalid address.
+   * @param pager pager that owns the frames backing this address space, or null to disable demand paging.
+   */
+  public void setPager (DemandPager pager) {
+    this.pager = pager;
+  }
+
+  /**
+   * @return the TLB in front of the page table, e.g., to read its hit, miss and flush counters.
+   */
+  public TranslationLookasideBuffer getTLB () {
+    return tlb;
   }
-  
+
+  /**
+   * Instructions are cached by physical address, so only those lying within a single page are cacheable.
+   */
+  @Override protected boolean isInstructionCacheable (int pcVal, int length) {
+    return pcVal / PAGE_SIZE == (pcVal + length - 1) / PAGE_SIZE;
+  }
+
   /**
    * Translate virtual address to physical address.
    *
+   * The page table is an array of 4-byte PTEs at physical address PTBR, indexed by virtual page number.
+   * Valid translations are cached in the TLB, which is flushed whenever PTBR changes.  If a pager is set,
+   * an invalid PTE is a page fault that the pager resolves by bringing the page in from swap.
+   *
    * @param va                                          virtual address
    * @return                                            physical address
    * @throws AbstractMainMemory.InvalidAddressException if virtual address is not valid (i.e, not mapped)
    */
-  
+
   @Override public int translateAddress (int va) throws AbstractMainMemory.InvalidAddressException {
-    throw new AbstractMainMemory.InvalidAddressException();
+    int ptbrVal = ptbr.get();
+    if (ptbrVal != tlbPtbr) {
+      tlb.flush();
+      tlbPtbr = ptbrVal;
+    }
+    int vpn = va >>> Integer.numberOfTrailingZeros (PAGE_SIZE);
+    int pfn = tlb.lookup (vpn);
+    if (pfn < 0) {
+      int pte = physMem.readInteger (ptbrVal + vpn * PTE_SIZE);
+      if ((pte & PTE_VALID_BIT_MASK) != 0)
+        pfn = pte & PTE_PFN_MASK;
+      else if (pager != null) {
+        pfn = pager.handleFault (ptbrVal, vpn);
+        if (!tracksPageTable)
+          tlb.flush();
+      } else
+        throw new AbstractMainMemory.InvalidAddressException();
+      tlb.insert (vpn, pfn);
+    }
+    if (pager != null)
+      pager.frameAccessed (pfn);
+    return pfn * PAGE_SIZE + (va & (PAGE_SIZE - 1));
+  }
+
+  /**
+   * Keep the TLB coherent with the page table: a store into a PTE drops the cached translation for that page.
+   *
+   * @param address address of the first byte written.
+   * @param length  number of bytes written.
+   */
+  private void pageTableWritten (int address, int length) {
+    long first = Math.floorDiv ((long) address - (tlbPtbr & 0xffffffffL), PTE_SIZE);
+    long last  = Math.floorDiv ((long) address + length - 1 - (tlbPtbr & 0xffffffffL), PTE_SIZE);
+    if (last < 0 || first >= (1L << 32) / PAGE_SIZE)
+      return;
+    if (last - first >= tlb.getSets() * tlb.getWays())
+      tlb.flush();
+    else
+      for (long vpn = Math.max (first, 0); vpn <= last; vpn++)
+        tlb.invalidate ((int) vpn);
   }
 }
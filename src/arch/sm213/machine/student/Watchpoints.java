@@ -0,0 +1,169 @@
+package arch.sm213.machine.student;
+
+
+/**
+ * Data watchpoints: bytes of a MainMemory whose loads (READ), stores (WRITE) or stores of a different value
+ * (CHANGE) are reported.  Install them with CPU.setWatchpoints, which stops a run after the instruction that hits
+ * one, or directly with MainMemory.setWatchpoints.
+ *
+ * Each kind is a BreakpointSet, so memory checks an access with a bit test per byte, and not at all when the access
+ * lies in a page with no watched byte.  A memory with no Watchpoints set does not check anything.  Only the CPU's
+ * data loads (MainMemory.readInt, readIntUnaligned and readBuffer) are reported as READ; instruction fetches (see
+ * CPU.decode), reads by tools (MainMemory.get and peekInt) and loads of whole images (MainMemory.restore, the
+ * loaders) are not.
+ *
+ * Watchpoints may be changed, suspended and their hits counted while a CPU runs; each change publishes a new set,
+ * which the memory sees at its next access.  Hits are recorded on the CPU's thread; the kind and address of the
+ * most recent one are meant to be read there, or after the run.
+ */
+
+public final class Watchpoints {
+
+  /**
+   * Accesses that a watchpoint reports.
+   */
+  public enum Kind { READ, WRITE, CHANGE }
+
+  private volatile BreakpointSet reads   = BreakpointSet.EMPTY;
+  private volatile BreakpointSet writes  = BreakpointSet.EMPTY;
+  private volatile BreakpointSet changes = BreakpointSet.EMPTY;
+  private volatile boolean       suspended;
+  private volatile long          hitCount;
+  private          Kind          hitKind;
+  private          int           hitAddress = -1;
+
+  /**
+   * Watch or stop watching a range of bytes.
+   * @param kind    accesses to report.
+   * @param address address of the first byte; must not be negative.
+   * @param length  number of bytes.
+   * @param enabled true to watch the bytes, false to stop watching them.
+   */
+  public synchronized void setWatchpoint (Kind kind, int address, int length, boolean enabled) {
+    switch (kind) {
+      case READ:  reads   = reads  .with (address, length, enabled); break;
+      case WRITE: writes  = writes .with (address, length, enabled); break;
+      default:    changes = changes.with (address, length, enabled); break;
+    }
+  }
+
+  /**
+   * Stop watching every byte.
+   */
+  public synchronized void clear () {
+    reads   = BreakpointSet.EMPTY;
+    writes  = BreakpointSet.EMPTY;
+    changes = BreakpointSet.EMPTY;
+  }
+
+  /**
+   * @param kind accesses reported.
+   * @return the bytes watched for kind.
+   */
+  public BreakpointSet getWatched (Kind kind) {
+    switch (kind) {
+      case READ:  return reads;
+      case WRITE: return writes;
+      default:    return changes;
+    }
+  }
+
+  public boolean isEmpty () {
+    return reads.isEmpty() && writes.isEmpty() && changes.isEmpty();
+  }
+
+  /**
+   * @return number of accesses reported since the watchpoints were created.
+   */
+  public long getHitCount () {
+    return hitCount;
+  }
+
+  /**
+   * @return kind of the most recent access reported, or null if there has been none.
+   */
+  public Kind getHitKind () {
+    return hitKind;
+  }
+
+  /**
+   * @return address of the first watched byte of the most recent access reported, or -1 if there has been none.
+   */
+  public int getHitAddress () {
+    return hitAddress;
+  }
+
+  /**
+   * Stop or resume reporting accesses, e.g., while a debugger replays code whose accesses it has already seen.
+   */
+  public void setSuspended (boolean suspended) {
+    this.suspended = suspended;
+  }
+
+  /**
+   * Report a load if it reads a watched byte.
+   * @param address address of the first byte read.
+   * @param length  number of bytes read.
+   */
+  void read (int address, int length) {
+    BreakpointSet watched = reads;
+    if (!watched.isEmpty() && !suspended && watched.containsAny (address, address + length))
+      hit (Kind.READ, watched.next (address));
+  }
+
+  /**
+   * Determine, before a store, whether it changes a byte watched for CHANGE.
+   * @param mem     contents of memory.
+   * @param address address of the first byte stored.
+   * @param value   bytes stored.
+   * @return address of the first watched byte that the store changes, or -1 if there is none.
+   */
+  int changed (byte [] mem, int address, byte [] value) {
+    BreakpointSet watched = changes;
+    if (watched.isEmpty() || !watched.containsAny (address, address + value.length))
+      return -1;
+    for (int i = 0; i < value.length; i++)
+      if (mem [address + i] != value [i] && watched.contains (address + i))
+        return address + i;
+    return -1;
+  }
+
+  /**
+   * Determine, before a store of a Big Endian word, whether it changes a byte watched for CHANGE.
+   * @param mem     contents of memory.
+   * @param address address of the first byte stored.
+   * @param value   word stored.
+   * @return address of the first watched byte that the store changes, or -1 if there is none.
+   */
+  int changed (byte [] mem, int address, int value) {
+    BreakpointSet watched = changes;
+    if (watched.isEmpty() || !watched.containsAny (address, address + 4))
+      return -1;
+    for (int i = 0; i < 4; i++)
+      if (mem [address + i] != (byte) (value >> (24 - 8 * i)) && watched.contains (address + i))
+        return address + i;
+    return -1;
+  }
+
+  /**
+   * Report a store, after it is done, if it wrote a watched byte.
+   * @param address address of the first byte stored.
+   * @param length  number of bytes stored.
+   * @param changed address returned by changed before the store.
+   */
+  void written (int address, int length, int changed) {
+    if (suspended)
+      return;
+    BreakpointSet watched = writes;
+    if (!watched.isEmpty() && watched.containsAny (address, address + length))
+      hit (Kind.WRITE, watched.next (address));
+    else if (changed >= 0)
+      hit (Kind.CHANGE, changed);
+  }
+
+  private void hit (Kind kind, int address) {
+    hitCount++;
+    hitKind    = kind;
+    hitAddress = address;
+  }
+}